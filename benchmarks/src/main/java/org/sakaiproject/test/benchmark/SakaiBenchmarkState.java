@@ -0,0 +1,101 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test.benchmark;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.sakaiproject.test.ComponentContainerEmulator;
+import org.sakaiproject.test.SakaiService;
+import org.sakaiproject.test.ServiceInjector;
+
+/**
+ * Base class for JMH state objects which need Sakai services.
+ *
+ * The component manager is started the first time a state object is set up in
+ * a forked benchmark JVM and stopped when the last one is torn down, so it
+ * boots once per fork however many states a benchmark uses. Fields marked with
+ * {@link SakaiService} are then set, and the fixture hooks are called.
+ *
+ * Subclasses must be annotated with JMH's State. Override the hooks rather than
+ * adding more Trial or Iteration level methods, so that the container is always
+ * running when they're called. Invocation level setup can be added as usual.
+ */
+public abstract class SakaiBenchmarkState {
+	private static final AtomicInteger activeStates = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public final void startContainer() throws Exception {
+		synchronized (SakaiBenchmarkState.class) {
+			if (activeStates.getAndIncrement() == 0 && !ComponentContainerEmulator.isStarted()) {
+				ComponentContainerEmulator.startComponentManagerForTest();
+			}
+		}
+		ServiceInjector.injectServices(this);
+		setUpTrial();
+	}
+
+	@TearDown(Level.Trial)
+	public final void stopContainer() throws Exception {
+		try {
+			tearDownTrial();
+		} finally {
+			synchronized (SakaiBenchmarkState.class) {
+				if (activeStates.decrementAndGet() == 0) {
+					ComponentContainerEmulator.stopComponentManager();
+				}
+			}
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public final void startIteration() throws Exception {
+		setUpIteration();
+	}
+
+	@TearDown(Level.Iteration)
+	public final void endIteration() throws Exception {
+		tearDownIteration();
+	}
+
+	/**
+	 * Creates the fixture shared by every iteration, such as test users.
+	 */
+	protected void setUpTrial() throws Exception {
+	}
+
+	protected void tearDownTrial() throws Exception {
+	}
+
+	/**
+	 * Resets anything an iteration changes, such as caches which shouldn't
+	 * stay warm between iterations.
+	 */
+	protected void setUpIteration() throws Exception {
+	}
+
+	protected void tearDownIteration() throws Exception {
+	}
+}
@@ -0,0 +1,84 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.test.SakaiService;
+import org.sakaiproject.user.api.User;
+import org.sakaiproject.user.api.UserDirectoryService;
+
+/**
+ * Looks up users by EID, cycling through a set of users created for the run.
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class UserLookupBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Users extends SakaiBenchmarkState {
+		@Param({"100"})
+		public int userCount;
+
+		@SakaiService
+		UserDirectoryService userDirectoryService;
+
+		String[] eids;
+
+		protected void setUpTrial() throws Exception {
+			// Unique EIDs, so that a persistent database can be reused between runs.
+			String prefix = "bench-" + System.currentTimeMillis() + "-";
+			eids = new String[userCount];
+			for (int i = 0; i < userCount; i++) {
+				eids[i] = prefix + i;
+				userDirectoryService.addUser(null, eids[i], "Bench", "User " + i, eids[i] + "@somewhere.edu",
+					eids[i] + "pwd", "Guest", null);
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+	}
+
+	@Benchmark
+	public User getUserByEid(Users users, Cursor cursor) throws Exception {
+		String eid = users.eids[cursor.next];
+		cursor.next = (cursor.next + 1) % users.eids.length;
+		return users.userDirectoryService.getUserByEid(eid);
+	}
+}
@@ -0,0 +1,96 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+
+package org.sakaiproject.test.junit5;
+
+import org.junit.jupiter.api.extension.AfterAllCallback;
+import org.junit.jupiter.api.extension.AfterEachCallback;
+import org.junit.jupiter.api.extension.BeforeAllCallback;
+import org.junit.jupiter.api.extension.BeforeEachCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.junit.jupiter.api.extension.TestInstancePostProcessor;
+import org.sakaiproject.test.ComponentContainerEmulator;
+import org.sakaiproject.test.SakaiService;
+import org.sakaiproject.test.ServiceInjector;
+import org.sakaiproject.test.SharedContainer;
+import org.sakaiproject.test.TestDurations;
+
+/**
+ * Runs a JUnit 5 test class on the {@link SharedContainer}, so that it shares
+ * one component manager with every other class in the JVM which uses this
+ * extension, SakaiJUnit4Runner or SharedContainerRule. The {@link SakaiService}
+ * fields of each test instance are set before its "@BeforeEach" methods run.
+ *
+ * <pre>
+ * &#64;ExtendWith(SakaiExtension.class)
+ * class SiteServiceTest {
+ *     &#64;SakaiService
+ *     private SiteService siteService;
+ *
+ *     &#64;Test
+ *     void siteExists() throws Exception {
+ *         assertNotNull(siteService.getSite("!admin"));
+ *     }
+ * }
+ * </pre>
+ *
+ * As with the runner, a class which needs its own Sakai home can call
+ * {@link ComponentContainerEmulator#setTestSakaiHome(String)} from a static
+ * initializer.
+ */
+public class SakaiExtension implements BeforeAllCallback, AfterAllCallback,
+		TestInstancePostProcessor, BeforeEachCallback, AfterEachCallback {
+
+	private static final ExtensionContext.Namespace NAMESPACE = ExtensionContext.Namespace.create(SakaiExtension.class);
+	private static final String ACQUIRED = "acquired";
+
+	public void beforeAll(ExtensionContext context) throws Exception {
+		Class<?> testClass = context.getRequiredTestClass();
+		// Run the class's static initializer first, in case it sets the Sakai home.
+		Class.forName(testClass.getName(), true, testClass.getClassLoader());
+		SharedContainer.acquire();
+		context.getStore(NAMESPACE).put(ACQUIRED, Boolean.TRUE);
+	}
+
+	public void afterAll(ExtensionContext context) throws Exception {
+		// Only release what this class's beforeAll acquired, even if it failed part way.
+		if (context.getStore(NAMESPACE).remove(ACQUIRED) != null) {
+			SharedContainer.release();
+		}
+	}
+
+	public void postProcessTestInstance(Object testInstance, ExtensionContext context) throws Exception {
+		ServiceInjector.injectServices(testInstance);
+	}
+
+	/**
+	 * Records test times for ShardSuite, like the JUnit 4 runner.
+	 */
+	public void beforeEach(ExtensionContext context) throws Exception {
+		TestDurations.testStarted(context.getRequiredTestClass());
+	}
+
+	public void afterEach(ExtensionContext context) throws Exception {
+		TestDurations.testFinished(context.getRequiredTestClass());
+	}
+}
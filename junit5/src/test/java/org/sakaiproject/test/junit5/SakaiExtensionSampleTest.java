@@ -0,0 +1,55 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+
+package org.sakaiproject.test.junit5;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.sakaiproject.test.SakaiService;
+import org.sakaiproject.test.SharedContainer;
+import org.sakaiproject.user.api.User;
+import org.sakaiproject.user.api.UserDirectoryService;
+
+/**
+ * A JUnit 5 version of SharedContainerSampleTest.
+ */
+@ExtendWith(SakaiExtension.class)
+public class SakaiExtensionSampleTest {
+	private static final String GUEST_EID = "joeuser5";
+
+	@SakaiService
+	private UserDirectoryService userDirectoryService;
+
+	@Test
+	public void userStorage() throws Exception {
+		assertNotNull(userDirectoryService);
+		userDirectoryService.addUser(null, GUEST_EID, "J. " + GUEST_EID, "de " + GUEST_EID,
+			GUEST_EID + "@somewhere.edu", GUEST_EID + "pwd", "Guest", null);
+		User user = userDirectoryService.getUserByEid(GUEST_EID);
+		assertEquals("Guest", user.getType());
+		assertEquals(1, SharedContainer.getUsers());
+	}
+}
@@ -0,0 +1,853 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.MutablePropertyValues;
+import org.springframework.beans.PropertyValue;
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanDefinitionHolder;
+import org.springframework.beans.factory.config.ConstructorArgumentValues;
+import org.springframework.beans.factory.config.RuntimeBeanNameReference;
+import org.springframework.beans.factory.config.RuntimeBeanReference;
+import org.springframework.beans.factory.config.TypedStringValue;
+import org.springframework.beans.factory.parsing.EmptyReaderEventListener;
+import org.springframework.beans.factory.parsing.ImportDefinition;
+import org.springframework.beans.factory.support.AbstractBeanDefinition;
+import org.springframework.beans.factory.support.BeanDefinitionRegistry;
+import org.springframework.beans.factory.support.ChildBeanDefinition;
+import org.springframework.beans.factory.support.GenericBeanDefinition;
+import org.springframework.beans.factory.support.LookupOverride;
+import org.springframework.beans.factory.support.ManagedList;
+import org.springframework.beans.factory.support.ManagedMap;
+import org.springframework.beans.factory.support.ManagedProperties;
+import org.springframework.beans.factory.support.ManagedSet;
+import org.springframework.beans.factory.support.MethodOverride;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.core.io.UrlResource;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Keeps the bean definitions read from Spring XML files in a compact binary
+ * form, so that later runs can register them without parsing and validating
+ * the XML again.
+ *
+ * Each set of files (a component's "components.xml", or a test's config
+ * locations) has its own cache file in the harness cache directory. It holds
+ * the MD5 checksum of every file read, including imported ones, and is only
+ * used while they all still match. Definitions are recorded as the XML reader
+ * registers them, so aliases and beans added by namespace handlers are kept
+ * too. A set of files is not cached if reading it looked at definitions from
+ * elsewhere (as some namespace handlers and generated bean names do), or if a
+ * definition holds something other than the usual values and references
+ * produced from XML.
+ *
+ * The time each load took, and the parse time saved by the cache, is kept for
+ * {@link #writeReport(File)}.
+ */
+public class BeanDefinitionCache {
+	private static final Log log = LogFactory.getLog(BeanDefinitionCache.class);
+
+	/**
+	 * Set this Java system property to "true" to cache component and test
+	 * context bean definitions.
+	 */
+	public static final String ENABLED_PROPERTY = "test.harness.definitionCache";
+
+	private static final int MAGIC = 0x53424443;	// "SBDC"
+	private static final int VERSION = 1;
+
+	private static final byte ENTRY_DEFINITION = 0;
+	private static final byte ENTRY_ALIAS = 1;
+
+	private static final byte VALUE_NULL = 0;
+	private static final byte VALUE_STRING = 1;
+	private static final byte VALUE_TYPED_STRING = 2;
+	private static final byte VALUE_REFERENCE = 3;
+	private static final byte VALUE_NAME_REFERENCE = 4;
+	private static final byte VALUE_HOLDER = 5;
+	private static final byte VALUE_DEFINITION = 6;
+	private static final byte VALUE_LIST = 7;
+	private static final byte VALUE_SET = 8;
+	private static final byte VALUE_MAP = 9;
+	private static final byte VALUE_PROPERTIES = 10;
+	private static final byte VALUE_BOOLEAN = 11;
+	private static final byte VALUE_INTEGER = 12;
+	private static final byte VALUE_LONG = 13;
+	private static final byte VALUE_CLASS = 14;
+
+	private static final List<LoadStatistics> statistics = Collections.synchronizedList(new ArrayList<LoadStatistics>());
+
+	/**
+	 * How long one set of files took to load.
+	 */
+	public static class LoadStatistics {
+		private final String label;
+		private final boolean cached;
+		private final long parseNanos;
+		private final long loadNanos;
+
+		LoadStatistics(String label, boolean cached, long parseNanos, long loadNanos) {
+			this.label = label;
+			this.cached = cached;
+			this.parseNanos = parseNanos;
+			this.loadNanos = loadNanos;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		/**
+		 * @return true if the definitions came from the cache
+		 */
+		public boolean isCached() {
+			return cached;
+		}
+
+		/**
+		 * @return how long parsing the XML took, when it was last parsed
+		 */
+		public long getParseNanos() {
+			return parseNanos;
+		}
+
+		public long getLoadNanos() {
+			return loadNanos;
+		}
+
+		public long getSavedNanos() {
+			return cached ? (parseNanos - loadNanos) : 0;
+		}
+	}
+
+	/**
+	 * Thrown while encoding a definition which can't be cached.
+	 */
+	private static class NotCacheableException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		NotCacheableException(String message) {
+			super(message);
+		}
+	}
+
+	public static boolean isEnabled() {
+		return Boolean.valueOf(ComponentContainerEmulator.getPassthroughSystemProperty(ENABLED_PROPERTY)).booleanValue();
+	}
+
+	/**
+	 * Registers the bean definitions from some XML files, from the cache if it's
+	 * current and otherwise with an XmlBeanDefinitionReader, caching the result.
+	 *
+	 * @param resourceLoader the reader's resource loader, or null for its default
+	 * @param beanClassLoader the loader to resolve bean classes with as they're
+	 * registered, or null to leave them as names
+	 * @param label what to call this set of files in the log and report
+	 * @return the number of definitions registered
+	 */
+	public static int loadBeanDefinitions(BeanDefinitionRegistry registry, Resource[] resources, ResourceLoader resourceLoader,
+			ClassLoader beanClassLoader, String label) {
+		long start = System.nanoTime();
+		StringBuilder key = new StringBuilder(label);
+		for (Resource resource : resources) {
+			key.append('|').append(resource.getDescription());
+		}
+		File cacheFile = new File(HarnessFiles.getCacheDirectory(), "bean-definitions-" + HarnessFiles.hashName(key.toString()) + ".bin");
+
+		if (cacheFile.isFile()) {
+			try {
+				CachedDefinitions cached = CachedDefinitions.read(cacheFile, beanClassLoader);
+				if ((cached != null) && cached.canRegister(registry)) {
+					int count = cached.register(registry);
+					long loadNanos = System.nanoTime() - start;
+					statistics.add(new LoadStatistics(label, true, cached.parseNanos, loadNanos));
+					if (log.isDebugEnabled()) log.debug("Read " + count + " cached bean definitions for " + label + " in " + (loadNanos / 1000000) +
+						" ms (parsing took " + (cached.parseNanos / 1000000) + " ms)");
+					return count;
+				}
+			} catch (Exception e) {
+				if (log.isDebugEnabled()) log.debug("Not using cached bean definitions " + cacheFile + ": " + e);
+			}
+		}
+
+		RecordingRegistry recordingRegistry = new RecordingRegistry(registry);
+		final List<Resource> readResources = new ArrayList<Resource>();
+		Collections.addAll(readResources, resources);
+		XmlBeanDefinitionReader reader = new XmlBeanDefinitionReader(recordingRegistry);
+		if (resourceLoader != null) {
+			reader.setResourceLoader(resourceLoader);
+		}
+		reader.setBeanClassLoader(beanClassLoader);
+		reader.setEventListener(new EmptyReaderEventListener() {
+			@Override
+			public void importProcessed(ImportDefinition importDefinition) {
+				Resource[] actualResources = importDefinition.getActualResources();
+				if (actualResources != null) {
+					Collections.addAll(readResources, actualResources);
+				}
+			}
+		});
+		int count = reader.loadBeanDefinitions(resources);
+		long parseNanos = System.nanoTime() - start;
+		statistics.add(new LoadStatistics(label, false, parseNanos, parseNanos));
+
+		if (recordingRegistry.usedOtherDefinitions) {
+			if (log.isDebugEnabled()) log.debug("Not caching bean definitions for " + label + ", since reading them depended on other definitions");
+		} else {
+			try {
+				write(cacheFile, readResources, parseNanos, recordingRegistry.entries);
+			} catch (NotCacheableException e) {
+				if (log.isDebugEnabled()) log.debug("Not caching bean definitions for " + label + ": " + e.getMessage());
+			} catch (IOException e) {
+				log.warn("Could not cache bean definitions for " + label + " in " + cacheFile + ": " + e);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the loads so far in this JVM, in order
+	 */
+	public static List<LoadStatistics> getStatistics() {
+		synchronized (statistics) {
+			return new ArrayList<LoadStatistics>(statistics);
+		}
+	}
+
+	/**
+	 * Writes each load's parse and load times, and the time the cache saved.
+	 */
+	public static void writeReport(File reportFile) throws IOException {
+		writeReport(reportFile, getStatistics());
+	}
+
+	static void writeReport(File reportFile, List<LoadStatistics> loads) throws IOException {
+		long totalParse = 0;
+		long totalLoad = 0;
+		long totalSaved = 0;
+		int cachedCount = 0;
+		PrintWriter out = new PrintWriter(new FileWriter(reportFile));
+		try {
+			out.println(String.format(Locale.US, "%-8s %10s %10s %10s  %s", "Source", "Parse ms", "Load ms", "Saved ms", "Definitions"));
+			for (LoadStatistics load : loads) {
+				out.println(String.format(Locale.US, "%-8s %10.1f %10.1f %10.1f  %s", load.isCached() ? "cache" : "xml",
+					millis(load.getParseNanos()), millis(load.getLoadNanos()), millis(load.getSavedNanos()), load.getLabel()));
+				totalParse += load.getParseNanos();
+				totalLoad += load.getLoadNanos();
+				totalSaved += load.getSavedNanos();
+				if (load.isCached()) {
+					cachedCount++;
+				}
+			}
+			out.println(String.format(Locale.US, "%-8s %10.1f %10.1f %10.1f  %d of %d from the cache", "Total",
+				millis(totalParse), millis(totalLoad), millis(totalSaved), Integer.valueOf(cachedCount), Integer.valueOf(loads.size())));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static Double millis(long nanos) {
+		return Double.valueOf(nanos / 1000000.0);
+	}
+
+	/**
+	 * Passes everything on to the real registry, recording what's registered and
+	 * noticing when the reader looks at definitions it didn't register itself.
+	 */
+	private static class RecordingRegistry implements BeanDefinitionRegistry {
+		private final BeanDefinitionRegistry registry;
+		private final List<Object[]> entries = new ArrayList<Object[]>();
+		private final Set<String> names = new HashSet<String>();
+		private boolean usedOtherDefinitions;
+
+		RecordingRegistry(BeanDefinitionRegistry registry) {
+			this.registry = registry;
+		}
+
+		private boolean checkOther(String name, boolean found) {
+			if (found && !names.contains(name)) {
+				usedOtherDefinitions = true;
+			}
+			return found;
+		}
+
+		public void registerBeanDefinition(String beanName, BeanDefinition beanDefinition) {
+			registry.registerBeanDefinition(beanName, beanDefinition);
+			names.add(beanName);
+			entries.add(new Object[] {beanName, beanDefinition});
+		}
+
+		public void removeBeanDefinition(String beanName) throws NoSuchBeanDefinitionException {
+			usedOtherDefinitions = true;
+			registry.removeBeanDefinition(beanName);
+		}
+
+		public BeanDefinition getBeanDefinition(String beanName) throws NoSuchBeanDefinitionException {
+			BeanDefinition definition = registry.getBeanDefinition(beanName);
+			checkOther(beanName, true);
+			return definition;
+		}
+
+		public boolean containsBeanDefinition(String beanName) {
+			return checkOther(beanName, registry.containsBeanDefinition(beanName));
+		}
+
+		public String[] getBeanDefinitionNames() {
+			usedOtherDefinitions = true;
+			return registry.getBeanDefinitionNames();
+		}
+
+		public int getBeanDefinitionCount() {
+			// The reader counts what it registered this way.
+			return registry.getBeanDefinitionCount();
+		}
+
+		public boolean isBeanNameInUse(String beanName) {
+			return checkOther(beanName, registry.isBeanNameInUse(beanName));
+		}
+
+		public void registerAlias(String name, String alias) {
+			registry.registerAlias(name, alias);
+			names.add(alias);
+			entries.add(new Object[] {name, alias});
+		}
+
+		public void removeAlias(String alias) {
+			usedOtherDefinitions = true;
+			registry.removeAlias(alias);
+		}
+
+		public boolean isAlias(String name) {
+			return checkOther(name, registry.isAlias(name));
+		}
+
+		public String[] getAliases(String name) {
+			String[] aliases = registry.getAliases(name);
+			checkOther(name, aliases.length > 0);
+			return aliases;
+		}
+	}
+
+	private static void write(File cacheFile, List<Resource> resources, long parseNanos, List<Object[]> entries) throws IOException {
+		// Encode everything first, so that nothing is written for definitions
+		// which turn out not to be cacheable.
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(resources.size());
+		for (Resource resource : resources) {
+			out.writeUTF(resource.getURL().toString());
+			out.writeUTF(checksum(resource.getInputStream()));
+		}
+		out.writeLong(parseNanos);
+		out.writeInt(entries.size());
+		for (Object[] entry : entries) {
+			if (entry[1] instanceof BeanDefinition) {
+				out.writeByte(ENTRY_DEFINITION);
+				out.writeUTF((String)entry[0]);
+				writeDefinition(out, (BeanDefinition)entry[1]);
+			} else {
+				out.writeByte(ENTRY_ALIAS);
+				out.writeUTF((String)entry[0]);
+				out.writeUTF((String)entry[1]);
+			}
+		}
+		out.close();
+
+		File tempFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getParentFile());
+		FileOutputStream fileOut = new FileOutputStream(tempFile);
+		try {
+			bytes.writeTo(fileOut);
+		} finally {
+			fileOut.close();
+		}
+		cacheFile.delete();
+		if (!tempFile.renameTo(cacheFile)) {
+			tempFile.delete();
+		}
+	}
+
+	private static void writeDefinition(DataOutputStream out, BeanDefinition beanDefinition) throws IOException {
+		Class<?> definitionClass = beanDefinition.getClass();
+		if ((definitionClass != GenericBeanDefinition.class) && (definitionClass != RootBeanDefinition.class) &&
+				(definitionClass != ChildBeanDefinition.class)) {
+			throw new NotCacheableException("definition type " + definitionClass.getName());
+		}
+		AbstractBeanDefinition definition = (AbstractBeanDefinition)beanDefinition;
+		if (!definition.getQualifiers().isEmpty() || (definition.getOriginatingBeanDefinition() != null)) {
+			throw new NotCacheableException("qualified or decorated definition " + definition);
+		}
+		if (definition.hasBeanClass()) {
+			out.writeBoolean(true);
+			writeString(out, definition.getBeanClass().getName());
+		} else {
+			out.writeBoolean(false);
+			writeString(out, definition.getBeanClassName());
+		}
+		writeString(out, definition.getParentName());
+		writeString(out, definition.getScope());
+		out.writeBoolean(definition.isAbstract());
+		out.writeBoolean(definition.isLazyInit());
+		out.writeInt(definition.getAutowireMode());
+		out.writeInt(definition.getDependencyCheck());
+		writeStrings(out, definition.getDependsOn());
+		out.writeBoolean(definition.isAutowireCandidate());
+		out.writeBoolean(definition.isPrimary());
+		writeString(out, definition.getFactoryBeanName());
+		writeString(out, definition.getFactoryMethodName());
+		writeString(out, definition.getInitMethodName());
+		out.writeBoolean(definition.isEnforceInitMethod());
+		writeString(out, definition.getDestroyMethodName());
+		out.writeBoolean(definition.isEnforceDestroyMethod());
+		out.writeBoolean(definition.isSynthetic());
+		out.writeInt(definition.getRole());
+		writeString(out, definition.getDescription());
+		writeString(out, definition.getResourceDescription());
+
+		String[] attributeNames = definition.attributeNames();
+		out.writeInt(attributeNames.length);
+		for (String attributeName : attributeNames) {
+			out.writeUTF(attributeName);
+			writeValue(out, definition.getAttribute(attributeName));
+		}
+
+		PropertyValue[] propertyValues = definition.getPropertyValues().getPropertyValues();
+		out.writeInt(propertyValues.length);
+		for (PropertyValue propertyValue : propertyValues) {
+			out.writeUTF(propertyValue.getName());
+			writeValue(out, propertyValue.getValue());
+		}
+
+		ConstructorArgumentValues arguments = definition.getConstructorArgumentValues();
+		Map<?, ?> indexed = arguments.getIndexedArgumentValues();
+		out.writeInt(indexed.size());
+		for (Map.Entry<?, ?> entry : indexed.entrySet()) {
+			out.writeInt(((Integer)entry.getKey()).intValue());
+			writeValueHolder(out, (ConstructorArgumentValues.ValueHolder)entry.getValue());
+		}
+		List<?> generic = arguments.getGenericArgumentValues();
+		out.writeInt(generic.size());
+		for (Object valueHolder : generic) {
+			writeValueHolder(out, (ConstructorArgumentValues.ValueHolder)valueHolder);
+		}
+
+		Set<?> overrides = definition.getMethodOverrides().getOverrides();
+		out.writeInt(overrides.size());
+		for (Object override : overrides) {
+			if (!(override instanceof LookupOverride)) {
+				throw new NotCacheableException("method override " + override);
+			}
+			out.writeUTF(((MethodOverride)override).getMethodName());
+			out.writeUTF(((LookupOverride)override).getBeanName());
+		}
+	}
+
+	private static void writeValueHolder(DataOutputStream out, ConstructorArgumentValues.ValueHolder valueHolder) throws IOException {
+		writeValue(out, valueHolder.getValue());
+		writeString(out, valueHolder.getType());
+	}
+
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(VALUE_NULL);
+		} else if (value instanceof String) {
+			out.writeByte(VALUE_STRING);
+			out.writeUTF((String)value);
+		} else if (value instanceof TypedStringValue) {
+			TypedStringValue typedValue = (TypedStringValue)value;
+			out.writeByte(VALUE_TYPED_STRING);
+			writeString(out, typedValue.getValue());
+			if (typedValue.hasTargetType()) {
+				out.writeBoolean(true);
+				writeString(out, typedValue.getTargetType().getName());
+			} else {
+				out.writeBoolean(false);
+				writeString(out, typedValue.getTargetTypeName());
+			}
+		} else if (value instanceof RuntimeBeanReference) {
+			out.writeByte(VALUE_REFERENCE);
+			out.writeUTF(((RuntimeBeanReference)value).getBeanName());
+			out.writeBoolean(((RuntimeBeanReference)value).isToParent());
+		} else if (value instanceof RuntimeBeanNameReference) {
+			out.writeByte(VALUE_NAME_REFERENCE);
+			out.writeUTF(((RuntimeBeanNameReference)value).getBeanName());
+		} else if (value instanceof BeanDefinitionHolder) {
+			BeanDefinitionHolder holder = (BeanDefinitionHolder)value;
+			out.writeByte(VALUE_HOLDER);
+			out.writeUTF(holder.getBeanName());
+			writeStrings(out, holder.getAliases());
+			writeDefinition(out, holder.getBeanDefinition());
+		} else if (value instanceof BeanDefinition) {
+			out.writeByte(VALUE_DEFINITION);
+			writeDefinition(out, (BeanDefinition)value);
+		} else if ((value instanceof ManagedList) || (value instanceof ManagedSet)) {
+			out.writeByte((value instanceof ManagedList) ? VALUE_LIST : VALUE_SET);
+			out.writeBoolean((value instanceof ManagedList) ? ((ManagedList)value).isMergeEnabled() : ((ManagedSet)value).isMergeEnabled());
+			Collection<?> collection = (Collection<?>)value;
+			out.writeInt(collection.size());
+			for (Object element : collection) {
+				writeValue(out, element);
+			}
+		} else if ((value instanceof ManagedMap) || (value instanceof ManagedProperties)) {
+			out.writeByte((value instanceof ManagedMap) ? VALUE_MAP : VALUE_PROPERTIES);
+			out.writeBoolean((value instanceof ManagedMap) ? ((ManagedMap)value).isMergeEnabled() : ((ManagedProperties)value).isMergeEnabled());
+			Map<?, ?> map = (Map<?, ?>)value;
+			out.writeInt(map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				writeValue(out, entry.getKey());
+				writeValue(out, entry.getValue());
+			}
+		} else if (value instanceof Boolean) {
+			out.writeByte(VALUE_BOOLEAN);
+			out.writeBoolean(((Boolean)value).booleanValue());
+		} else if (value instanceof Integer) {
+			out.writeByte(VALUE_INTEGER);
+			out.writeInt(((Integer)value).intValue());
+		} else if (value instanceof Long) {
+			out.writeByte(VALUE_LONG);
+			out.writeLong(((Long)value).longValue());
+		} else if (value instanceof Class) {
+			out.writeByte(VALUE_CLASS);
+			out.writeUTF(((Class<?>)value).getName());
+		} else {
+			throw new NotCacheableException("value of type " + value.getClass().getName());
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static void writeStrings(DataOutputStream out, String[] values) throws IOException {
+		out.writeInt((values != null) ? values.length : -1);
+		if (values != null) {
+			for (String value : values) {
+				out.writeUTF(value);
+			}
+		}
+	}
+
+	static String checksum(InputStream in) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, count);
+			}
+			return HarnessFiles.toHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * The contents of a cache file whose XML files haven't changed.
+	 */
+	private static class CachedDefinitions {
+		private final long parseNanos;
+		private final List<Object[]> entries;
+
+		private CachedDefinitions(long parseNanos, List<Object[]> entries) {
+			this.parseNanos = parseNanos;
+			this.entries = entries;
+		}
+
+		/**
+		 * @return the definitions, or null if any of the files they came from has changed
+		 */
+		static CachedDefinitions read(File cacheFile, ClassLoader beanClassLoader) throws IOException, ClassNotFoundException {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+			try {
+				if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+					return null;
+				}
+				int resourceCount = in.readInt();
+				for (int i = 0; i < resourceCount; i++) {
+					URL url = new URL(in.readUTF());
+					String expected = in.readUTF();
+					try {
+						if (!expected.equals(checksum(new UrlResource(url).getInputStream()))) {
+							return null;
+						}
+					} catch (FileNotFoundException e) {
+						return null;
+					}
+				}
+				long parseNanos = in.readLong();
+				Decoder decoder = new Decoder(in, (beanClassLoader != null) ? beanClassLoader : ClassUtils.getDefaultClassLoader());
+				int entryCount = in.readInt();
+				List<Object[]> entries = new ArrayList<Object[]>(entryCount);
+				for (int i = 0; i < entryCount; i++) {
+					byte kind = in.readByte();
+					String name = in.readUTF();
+					entries.add(new Object[] {name, (kind == ENTRY_DEFINITION) ? decoder.readDefinition() : in.readUTF()});
+				}
+				return new CachedDefinitions(parseNanos, entries);
+			} finally {
+				in.close();
+			}
+		}
+
+		/**
+		 * Generated names ("class#0") were unique when the XML was read, but may
+		 * not be now, in which case the XML has to be read again.
+		 */
+		boolean canRegister(BeanDefinitionRegistry registry) {
+			for (Object[] entry : entries) {
+				String name = (String)entry[0];
+				if ((entry[1] instanceof BeanDefinition) && (name.indexOf('#') >= 0) && registry.containsBeanDefinition(name)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		int register(BeanDefinitionRegistry registry) {
+			int count = 0;
+			for (Object[] entry : entries) {
+				if (entry[1] instanceof BeanDefinition) {
+					registry.registerBeanDefinition((String)entry[0], (BeanDefinition)entry[1]);
+					count++;
+				} else {
+					registry.registerAlias((String)entry[0], (String)entry[1]);
+				}
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Reads definitions back, resolving classes where the reader had resolved them.
+	 */
+	private static class Decoder {
+		private final DataInputStream in;
+		private final ClassLoader classLoader;
+
+		Decoder(DataInputStream in, ClassLoader classLoader) {
+			this.in = in;
+			this.classLoader = classLoader;
+		}
+
+		AbstractBeanDefinition readDefinition() throws IOException, ClassNotFoundException {
+			GenericBeanDefinition definition = new GenericBeanDefinition();
+			boolean resolvedClass = in.readBoolean();
+			definition.setBeanClassName(readString());
+			if (resolvedClass) {
+				definition.resolveBeanClass(classLoader);
+			}
+			definition.setParentName(readString());
+			String scope = readString();
+			if (scope != null) {
+				definition.setScope(scope);
+			}
+			definition.setAbstract(in.readBoolean());
+			definition.setLazyInit(in.readBoolean());
+			definition.setAutowireMode(in.readInt());
+			definition.setDependencyCheck(in.readInt());
+			definition.setDependsOn(readStrings());
+			definition.setAutowireCandidate(in.readBoolean());
+			definition.setPrimary(in.readBoolean());
+			definition.setFactoryBeanName(readString());
+			definition.setFactoryMethodName(readString());
+			definition.setInitMethodName(readString());
+			definition.setEnforceInitMethod(in.readBoolean());
+			definition.setDestroyMethodName(readString());
+			definition.setEnforceDestroyMethod(in.readBoolean());
+			definition.setSynthetic(in.readBoolean());
+			definition.setRole(in.readInt());
+			definition.setDescription(readString());
+			definition.setResourceDescription(readString());
+
+			int attributeCount = in.readInt();
+			for (int i = 0; i < attributeCount; i++) {
+				String attributeName = in.readUTF();
+				definition.setAttribute(attributeName, readValue());
+			}
+
+			MutablePropertyValues propertyValues = new MutablePropertyValues();
+			int propertyCount = in.readInt();
+			for (int i = 0; i < propertyCount; i++) {
+				String propertyName = in.readUTF();
+				propertyValues.addPropertyValue(new PropertyValue(propertyName, readValue()));
+			}
+			definition.setPropertyValues(propertyValues);
+
+			ConstructorArgumentValues arguments = new ConstructorArgumentValues();
+			int indexedCount = in.readInt();
+			for (int i = 0; i < indexedCount; i++) {
+				int index = in.readInt();
+				Object value = readValue();
+				arguments.addIndexedArgumentValue(index, value, readString());
+			}
+			int genericCount = in.readInt();
+			for (int i = 0; i < genericCount; i++) {
+				Object value = readValue();
+				arguments.addGenericArgumentValue(value, readString());
+			}
+			definition.setConstructorArgumentValues(arguments);
+
+			int overrideCount = in.readInt();
+			for (int i = 0; i < overrideCount; i++) {
+				String methodName = in.readUTF();
+				definition.getMethodOverrides().addOverride(new LookupOverride(methodName, in.readUTF()));
+			}
+			return definition;
+		}
+
+		@SuppressWarnings("unchecked")
+		Object readValue() throws IOException, ClassNotFoundException {
+			byte kind = in.readByte();
+			switch (kind) {
+			case VALUE_NULL:
+				return null;
+			case VALUE_STRING:
+				return in.readUTF();
+			case VALUE_TYPED_STRING: {
+				String value = readString();
+				boolean resolvedType = in.readBoolean();
+				String targetTypeName = readString();
+				TypedStringValue typedValue = (targetTypeName != null) ? new TypedStringValue(value, targetTypeName) : new TypedStringValue(value);
+				if (resolvedType) {
+					typedValue.resolveTargetType(classLoader);
+				}
+				return typedValue;
+			}
+			case VALUE_REFERENCE: {
+				String beanName = in.readUTF();
+				return new RuntimeBeanReference(beanName, in.readBoolean());
+			}
+			case VALUE_NAME_REFERENCE:
+				return new RuntimeBeanNameReference(in.readUTF());
+			case VALUE_HOLDER: {
+				String beanName = in.readUTF();
+				String[] aliases = readStrings();
+				return new BeanDefinitionHolder(readDefinition(), beanName, aliases);
+			}
+			case VALUE_DEFINITION:
+				return readDefinition();
+			case VALUE_LIST:
+			case VALUE_SET: {
+				boolean mergeEnabled = in.readBoolean();
+				int size = in.readInt();
+				Collection<Object> collection;
+				if (kind == VALUE_LIST) {
+					ManagedList list = new ManagedList(size);
+					list.setMergeEnabled(mergeEnabled);
+					collection = list;
+				} else {
+					ManagedSet set = new ManagedSet(size);
+					set.setMergeEnabled(mergeEnabled);
+					collection = set;
+				}
+				for (int i = 0; i < size; i++) {
+					collection.add(readValue());
+				}
+				return collection;
+			}
+			case VALUE_MAP:
+			case VALUE_PROPERTIES: {
+				boolean mergeEnabled = in.readBoolean();
+				int size = in.readInt();
+				Map<Object, Object> map;
+				if (kind == VALUE_MAP) {
+					ManagedMap managedMap = new ManagedMap(size);
+					managedMap.setMergeEnabled(mergeEnabled);
+					map = managedMap;
+				} else {
+					ManagedProperties properties = new ManagedProperties();
+					properties.setMergeEnabled(mergeEnabled);
+					map = properties;
+				}
+				for (int i = 0; i < size; i++) {
+					Object key = readValue();
+					map.put(key, readValue());
+				}
+				return map;
+			}
+			case VALUE_BOOLEAN:
+				return Boolean.valueOf(in.readBoolean());
+			case VALUE_INTEGER:
+				return Integer.valueOf(in.readInt());
+			case VALUE_LONG:
+				return Long.valueOf(in.readLong());
+			case VALUE_CLASS:
+				return ClassUtils.forName(in.readUTF(), classLoader);
+			default:
+				throw new IOException("Unknown value kind " + kind);
+			}
+		}
+
+		private String readString() throws IOException {
+			return in.readBoolean() ? in.readUTF() : null;
+		}
+
+		private String[] readStrings() throws IOException {
+			int count = in.readInt();
+			if (count < 0) {
+				return null;
+			}
+			String[] values = new String[count];
+			for (int i = 0; i < count; i++) {
+				values[i] = in.readUTF();
+			}
+			return values;
+		}
+	}
+}
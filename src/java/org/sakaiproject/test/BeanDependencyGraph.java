@@ -0,0 +1,300 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.springframework.beans.PropertyValue;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanDefinitionHolder;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.config.ConstructorArgumentValues;
+import org.springframework.beans.factory.config.RuntimeBeanReference;
+import org.springframework.beans.factory.support.AbstractBeanDefinition;
+import org.springframework.core.SimpleAliasRegistry;
+
+/**
+ * Which component beans need which others, worked out from their definitions:
+ * "depends-on" attributes and bean references in properties and constructor
+ * arguments, including those inside inner beans and collections.
+ *
+ * Sakai's components have some circular references. To make the graph acyclic,
+ * an edge that would close a cycle (in the order beans were defined) is left
+ * out, just as Spring itself has to create one of the beans in a cycle first.
+ */
+public class BeanDependencyGraph {
+	private final Map<String, Set<String>> dependencies;
+	private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+
+	private BeanDependencyGraph(Map<String, Set<String>> dependencies) {
+		this.dependencies = dependencies;
+		for (String beanName : dependencies.keySet()) {
+			dependents.put(beanName, new LinkedHashSet<String>());
+		}
+		for (Map.Entry<String, Set<String>> entry : dependencies.entrySet()) {
+			for (String dependency : entry.getValue()) {
+				dependents.get(dependency).add(entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * @return the graph of every non-abstract bean definition in the factory
+	 */
+	public static BeanDependencyGraph build(ConfigurableListableBeanFactory beanFactory) {
+		Map<String, Set<String>> dependencies = new LinkedHashMap<String, Set<String>>();
+		String[] beanNames = beanFactory.getBeanDefinitionNames();
+		for (String beanName : beanNames) {
+			BeanDefinition definition = beanFactory.getBeanDefinition(beanName);
+			if (definition.isAbstract()) {
+				continue;
+			}
+			Set<String> references = new LinkedHashSet<String>();
+			collectReferences(definition, references);
+			Set<String> resolved = new LinkedHashSet<String>();
+			for (String reference : references) {
+				if (beanFactory instanceof SimpleAliasRegistry) {
+					reference = ((SimpleAliasRegistry)beanFactory).canonicalName(reference);
+				}
+				if (!reference.equals(beanName) && beanFactory.containsBeanDefinition(reference)) {
+					resolved.add(reference);
+				}
+			}
+			dependencies.put(beanName, resolved);
+		}
+		// Abstract beans may be referred to but are never created.
+		for (Set<String> references : dependencies.values()) {
+			references.retainAll(dependencies.keySet());
+		}
+		removeCycles(dependencies);
+		return new BeanDependencyGraph(dependencies);
+	}
+
+	private static void collectReferences(BeanDefinition definition, Set<String> references) {
+		if (definition instanceof AbstractBeanDefinition) {
+			String[] dependsOn = ((AbstractBeanDefinition)definition).getDependsOn();
+			if (dependsOn != null) {
+				Collections.addAll(references, dependsOn);
+			}
+		}
+		for (PropertyValue propertyValue : definition.getPropertyValues().getPropertyValues()) {
+			collectReferences(propertyValue.getValue(), references);
+		}
+		ConstructorArgumentValues arguments = definition.getConstructorArgumentValues();
+		for (Iterator<?> i = arguments.getIndexedArgumentValues().values().iterator(); i.hasNext(); ) {
+			collectReferences(((ConstructorArgumentValues.ValueHolder)i.next()).getValue(), references);
+		}
+		for (Iterator<?> i = arguments.getGenericArgumentValues().iterator(); i.hasNext(); ) {
+			collectReferences(((ConstructorArgumentValues.ValueHolder)i.next()).getValue(), references);
+		}
+	}
+
+	private static void collectReferences(Object value, Set<String> references) {
+		if (value instanceof RuntimeBeanReference) {
+			references.add(((RuntimeBeanReference)value).getBeanName());
+		} else if (value instanceof BeanDefinitionHolder) {
+			collectReferences(((BeanDefinitionHolder)value).getBeanDefinition(), references);
+		} else if (value instanceof BeanDefinition) {
+			collectReferences((BeanDefinition)value, references);
+		} else if (value instanceof Collection) {
+			for (Object element : (Collection<?>)value) {
+				collectReferences(element, references);
+			}
+		} else if (value instanceof Map) {
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+				collectReferences(entry.getKey(), references);
+				collectReferences(entry.getValue(), references);
+			}
+		} else if (value instanceof Object[]) {
+			for (Object element : (Object[])value) {
+				collectReferences(element, references);
+			}
+		}
+	}
+
+	/**
+	 * Drops the edges which lead back to a bean still being visited in a
+	 * depth-first walk.
+	 */
+	private static void removeCycles(Map<String, Set<String>> dependencies) {
+		Set<String> visited = new HashSet<String>();
+		Set<String> onPath = new HashSet<String>();
+		for (String beanName : dependencies.keySet()) {
+			if (!visited.contains(beanName)) {
+				removeCycles(beanName, dependencies, visited, onPath);
+			}
+		}
+	}
+
+	private static void removeCycles(String beanName, Map<String, Set<String>> dependencies, Set<String> visited, Set<String> onPath) {
+		visited.add(beanName);
+		onPath.add(beanName);
+		for (Iterator<String> i = dependencies.get(beanName).iterator(); i.hasNext(); ) {
+			String dependency = i.next();
+			if (onPath.contains(dependency)) {
+				i.remove();
+			} else if (!visited.contains(dependency)) {
+				removeCycles(dependency, dependencies, visited, onPath);
+			}
+		}
+		onPath.remove(beanName);
+	}
+
+	public Set<String> getBeanNames() {
+		return Collections.unmodifiableSet(dependencies.keySet());
+	}
+
+	/**
+	 * @return the beans which must be created before the given one
+	 */
+	public Set<String> getDependencies(String beanName) {
+		Set<String> beanDependencies = dependencies.get(beanName);
+		return (beanDependencies != null) ? Collections.unmodifiableSet(beanDependencies) : Collections.<String>emptySet();
+	}
+
+	/**
+	 * @return the beans which need the given one
+	 */
+	public Set<String> getDependents(String beanName) {
+		Set<String> beanDependents = dependents.get(beanName);
+		return (beanDependents != null) ? Collections.unmodifiableSet(beanDependents) : Collections.<String>emptySet();
+	}
+
+	/**
+	 * @return every bean after all of its dependencies
+	 */
+	public List<String> getCreationOrder() {
+		List<String> order = new ArrayList<String>(dependencies.size());
+		Set<String> added = new HashSet<String>();
+		for (String beanName : dependencies.keySet()) {
+			addInOrder(beanName, order, added);
+		}
+		return order;
+	}
+
+	private void addInOrder(String beanName, List<String> order, Set<String> added) {
+		if (added.add(beanName)) {
+			for (String dependency : dependencies.get(beanName)) {
+				addInOrder(dependency, order, added);
+			}
+			order.add(beanName);
+		}
+	}
+
+	/**
+	 * @param costs the time each bean takes on its own; missing beans cost nothing
+	 * @return the chain of dependent beans with the greatest total cost, first
+	 * bean first
+	 */
+	public List<String> getCriticalPath(Map<String, Long> costs) {
+		Map<String, Long> finish = new HashMap<String, Long>();
+		Map<String, String> previous = new HashMap<String, String>();
+		String last = null;
+		for (String beanName : getCreationOrder()) {
+			long start = 0;
+			for (String dependency : dependencies.get(beanName)) {
+				long dependencyFinish = finish.get(dependency).longValue();
+				if (dependencyFinish > start) {
+					start = dependencyFinish;
+					previous.put(beanName, dependency);
+				}
+			}
+			long beanFinish = start + cost(costs, beanName);
+			finish.put(beanName, Long.valueOf(beanFinish));
+			if ((last == null) || (beanFinish > finish.get(last).longValue())) {
+				last = beanName;
+			}
+		}
+		List<String> path = new ArrayList<String>();
+		for (String beanName = last; beanName != null; beanName = previous.get(beanName)) {
+			path.add(0, beanName);
+		}
+		return path;
+	}
+
+	/**
+	 * Estimates how long creating every bean would take on a number of threads,
+	 * each bean starting as soon as its dependencies are done and a thread is free.
+	 *
+	 * @return the estimated elapsed time, in the units of the costs
+	 */
+	public long estimateElapsed(final Map<String, Long> costs, int threads) {
+		Map<String, Integer> waitingFor = new HashMap<String, Integer>();
+		// Ready beans, costliest first.
+		PriorityQueue<String> ready = new PriorityQueue<String>(Math.max(1, dependencies.size()), new Comparator<String>() {
+			public int compare(String a, String b) {
+				long aCost = cost(costs, a);
+				long bCost = cost(costs, b);
+				return (aCost > bCost) ? -1 : ((aCost == bCost) ? a.compareTo(b) : 1);
+			}
+		});
+		for (Map.Entry<String, Set<String>> entry : dependencies.entrySet()) {
+			waitingFor.put(entry.getKey(), Integer.valueOf(entry.getValue().size()));
+			if (entry.getValue().isEmpty()) {
+				ready.add(entry.getKey());
+			}
+		}
+		// Running beans, by finish time.
+		PriorityQueue<long[]> running = new PriorityQueue<long[]>(Math.max(1, threads), new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return (a[0] < b[0]) ? -1 : ((a[0] == b[0]) ? 0 : 1);
+			}
+		});
+		List<String> runningNames = new ArrayList<String>();
+		long now = 0;
+		while (!ready.isEmpty() || !running.isEmpty()) {
+			while (!ready.isEmpty() && (running.size() < threads)) {
+				String beanName = ready.poll();
+				runningNames.add(beanName);
+				running.add(new long[] {now + cost(costs, beanName), runningNames.size() - 1});
+			}
+			long[] done = running.poll();
+			now = done[0];
+			for (String dependent : getDependents(runningNames.get((int)done[1]))) {
+				int remaining = waitingFor.get(dependent).intValue() - 1;
+				waitingFor.put(dependent, Integer.valueOf(remaining));
+				if (remaining == 0) {
+					ready.add(dependent);
+				}
+			}
+		}
+		return now;
+	}
+
+	private static long cost(Map<String, Long> costs, String beanName) {
+		Long cost = costs.get(beanName);
+		return (cost != null) ? cost.longValue() : 0;
+	}
+}
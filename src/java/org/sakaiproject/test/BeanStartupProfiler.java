@@ -0,0 +1,314 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.beans.PropertyDescriptor;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.PropertyValues;
+import org.springframework.beans.factory.config.InstantiationAwareBeanPostProcessor;
+
+/**
+ * Records how long each component bean takes to be created, split into
+ * instantiation, property population (which is where dependencies usually get
+ * created) and initialization, along with CPU time and allocated bytes.
+ *
+ * Nested bean creation is tracked per thread, so each bean's "self" figures
+ * exclude the beans created on its behalf. After startup a report sorted by
+ * total time is written to "bean-startup-NAME.txt" in the build directory, and
+ * self times in microseconds are written to "bean-startup-NAME.folded" in the
+ * collapsed-stack format read by flame graph tools.
+ */
+public class BeanStartupProfiler extends SakaiContainer.ListenerAdapter implements InstantiationAwareBeanPostProcessor {
+	private static final Log log = LogFactory.getLog(BeanStartupProfiler.class);
+
+	private final ThreadLocal<LinkedList<Frame>> stacks = new ThreadLocal<LinkedList<Frame>>() {
+		protected LinkedList<Frame> initialValue() {
+			return new LinkedList<Frame>();
+		}
+	};
+	private final List<BeanTiming> timings = Collections.synchronizedList(new ArrayList<BeanTiming>());
+	private final ConcurrentMap<String, AtomicLong> foldedStacks = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Measurements for one bean.
+	 */
+	public static class BeanTiming {
+		private final String beanName;
+		private final String beanClassName;
+		private final long totalNanos;
+		private final long selfNanos;
+		private final long instantiationNanos;
+		private final long populationNanos;
+		private final long initializationNanos;
+		private final long cpuNanos;
+		private final long selfCpuNanos;
+		private final long allocatedBytes;
+		private final long selfAllocatedBytes;
+
+		BeanTiming(Frame frame, String beanClassName, long end, long endCpu, long endAllocated) {
+			this.beanName = frame.beanName;
+			this.beanClassName = beanClassName;
+			this.totalNanos = end - frame.start;
+			this.selfNanos = totalNanos - frame.childNanos;
+			this.instantiationNanos = frame.instantiated - frame.start;
+			this.populationNanos = frame.populated - frame.instantiated;
+			this.initializationNanos = end - frame.populated;
+			this.cpuNanos = (endCpu >= 0) ? (endCpu - frame.startCpu) : -1;
+			this.selfCpuNanos = (endCpu >= 0) ? (cpuNanos - frame.childCpuNanos) : -1;
+			this.allocatedBytes = (endAllocated >= 0) ? (endAllocated - frame.startAllocated) : -1;
+			this.selfAllocatedBytes = (endAllocated >= 0) ? (allocatedBytes - frame.childAllocatedBytes) : -1;
+		}
+		public String getBeanName() {
+			return beanName;
+		}
+		public String getBeanClassName() {
+			return beanClassName;
+		}
+		public long getTotalNanos() {
+			return totalNanos;
+		}
+		public long getSelfNanos() {
+			return selfNanos;
+		}
+		public long getInstantiationNanos() {
+			return instantiationNanos;
+		}
+		public long getPopulationNanos() {
+			return populationNanos;
+		}
+		public long getInitializationNanos() {
+			return initializationNanos;
+		}
+		public long getCpuNanos() {
+			return cpuNanos;
+		}
+		public long getSelfCpuNanos() {
+			return selfCpuNanos;
+		}
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+		public long getSelfAllocatedBytes() {
+			return selfAllocatedBytes;
+		}
+	}
+
+	/**
+	 * A bean in the middle of being created.
+	 */
+	private static class Frame {
+		private final String beanName;
+		private final String stack;
+		private final long start;
+		private final long startCpu;
+		private final long startAllocated;
+		private long instantiated;
+		private long populated;
+		private long childNanos;
+		private long childCpuNanos;
+		private long childAllocatedBytes;
+
+		Frame(String beanName, Frame parent) {
+			this.beanName = beanName;
+			this.stack = (parent != null) ? (parent.stack + ";" + beanName) : beanName;
+			this.startCpu = ThreadUsage.getCpuTime();
+			this.startAllocated = ThreadUsage.getAllocatedBytes();
+			this.start = System.nanoTime();
+			this.instantiated = start;
+			this.populated = start;
+		}
+	}
+
+	public Object postProcessBeforeInstantiation(Class beanClass, String beanName) throws BeansException {
+		LinkedList<Frame> stack = stacks.get();
+		stack.addFirst(new Frame(beanName, stack.peek()));
+		return null;
+	}
+
+	public boolean postProcessAfterInstantiation(Object bean, String beanName) throws BeansException {
+		Frame frame = findFrame(beanName);
+		if (frame != null) {
+			frame.instantiated = System.nanoTime();
+			frame.populated = frame.instantiated;
+		}
+		return true;
+	}
+
+	public PropertyValues postProcessPropertyValues(PropertyValues pvs, PropertyDescriptor[] pds, Object bean, String beanName) throws BeansException {
+		return pvs;
+	}
+
+	public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+		Frame frame = findFrame(beanName);
+		if (frame != null) {
+			frame.populated = System.nanoTime();
+		}
+		return bean;
+	}
+
+	public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+		long end = System.nanoTime();
+		long endCpu = ThreadUsage.getCpuTime();
+		long endAllocated = ThreadUsage.getAllocatedBytes();
+		LinkedList<Frame> stack = stacks.get();
+		if (findFrame(beanName) == null) {
+			// For example, an object made by a FactoryBean.
+			return bean;
+		}
+
+		// Discard any beans whose creation failed on the way.
+		Frame frame = stack.removeFirst();
+		while (!frame.beanName.equals(beanName)) {
+			frame = stack.removeFirst();
+		}
+		BeanTiming timing = new BeanTiming(frame, (bean != null) ? bean.getClass().getName() : "", end, endCpu, endAllocated);
+		timings.add(timing);
+		addFoldedStack(frame.stack, timing.getSelfNanos() / 1000);
+
+		Frame parent = stack.peek();
+		if (parent != null) {
+			parent.childNanos += timing.getTotalNanos();
+			parent.childCpuNanos += Math.max(0, timing.getCpuNanos());
+			parent.childAllocatedBytes += Math.max(0, timing.getAllocatedBytes());
+		}
+		return bean;
+	}
+
+	private Frame findFrame(String beanName) {
+		for (Frame frame : stacks.get()) {
+			if (frame.beanName.equals(beanName)) {
+				return frame;
+			}
+		}
+		return null;
+	}
+
+	private void addFoldedStack(String stack, long micros) {
+		AtomicLong total = foldedStacks.get(stack);
+		if (total == null) {
+			AtomicLong newTotal = new AtomicLong();
+			total = foldedStacks.putIfAbsent(stack, newTotal);
+			if (total == null) {
+				total = newTotal;
+			}
+		}
+		total.addAndGet(micros);
+	}
+
+	/**
+	 * @return the measurements so far, sorted by descending total time
+	 */
+	public List<BeanTiming> getTimings() {
+		List<BeanTiming> sorted;
+		synchronized (timings) {
+			sorted = new ArrayList<BeanTiming>(timings);
+		}
+		Collections.sort(sorted, new Comparator<BeanTiming>() {
+			public int compare(BeanTiming a, BeanTiming b) {
+				return (a.totalNanos < b.totalNanos) ? 1 : ((a.totalNanos == b.totalNanos) ? 0 : -1);
+			}
+		});
+		return sorted;
+	}
+
+	/**
+	 * Writes the sorted report and the collapsed stacks.
+	 */
+	public void writeReports(File reportFile, File foldedFile) throws IOException {
+		List<BeanTiming> sorted = getTimings();
+		PrintWriter out = new PrintWriter(new FileWriter(reportFile));
+		try {
+			out.println("# Component bean creation, sorted by total time. Times in ms, allocation in KB; -1 means not measurable.");
+			out.println("# Self figures exclude beans created while this one was being created.");
+			out.println(String.format("%10s %10s %10s %10s %10s %10s %12s %12s  %s", "total", "self", "instant.", "populate", "init",
+				"self cpu", "alloc", "self alloc", "bean (class)"));
+			long totalSelf = 0;
+			for (BeanTiming timing : sorted) {
+				totalSelf += timing.selfNanos;
+				out.println(String.format("%10.1f %10.1f %10.1f %10.1f %10.1f %10.1f %12d %12d  %s (%s)",
+					millis(timing.totalNanos), millis(timing.selfNanos), millis(timing.instantiationNanos),
+					millis(timing.populationNanos), millis(timing.initializationNanos), millis(timing.selfCpuNanos),
+					kilobytes(timing.allocatedBytes), kilobytes(timing.selfAllocatedBytes), timing.beanName, timing.beanClassName));
+			}
+			out.println(String.format("# %d beans, %.1f ms of bean creation in total", sorted.size(), millis(totalSelf)));
+		} finally {
+			out.close();
+		}
+
+		out = new PrintWriter(new FileWriter(foldedFile));
+		try {
+			for (Map.Entry<String, AtomicLong> entry : foldedStacks.entrySet()) {
+				// Flame graph tools split frames on semicolons and the count on the last space.
+				out.println(entry.getKey().replace(' ', '_') + " " + entry.getValue().get());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	public void containerStarted(SakaiContainer container) {
+		writeReports(container);
+	}
+
+	@Override
+	public void containerStopping(SakaiContainer container) {
+		// Lazily created beans may have been added since startup.
+		writeReports(container);
+	}
+
+	private void writeReports(SakaiContainer container) {
+		File dir = HarnessFiles.getBuildDirectory();
+		File reportFile = new File(dir, "bean-startup-" + container.getName() + ".txt");
+		try {
+			writeReports(reportFile, new File(dir, "bean-startup-" + container.getName() + ".folded"));
+			if (log.isInfoEnabled()) log.info("Wrote bean creation profile for " + timings.size() + " beans to " + reportFile);
+		} catch (IOException e) {
+			log.warn("Could not write bean creation profile to " + reportFile, e);
+		}
+	}
+
+	private static double millis(long nanos) {
+		return (nanos < 0) ? -1 : (nanos / 1000000.0);
+	}
+
+	private static long kilobytes(long bytes) {
+		return (bytes < 0) ? -1 : (bytes / 1024);
+	}
+}
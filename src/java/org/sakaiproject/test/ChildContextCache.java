@@ -0,0 +1,149 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Bookkeeping for the test application contexts which Spring's test support
+ * caches for the life of the JVM. Spring itself never lets go of a context
+ * until a test marks it dirty, so this keeps track of which were used least
+ * recently and says which to close once there are too many of them or they're
+ * estimated to take up too much memory.
+ */
+class ChildContextCache {
+	private static final Log log = LogFactory.getLog(ChildContextCache.class);
+
+	/**
+	 * Java system property for the most test contexts to keep. Defaults to 8.
+	 */
+	public static final String SIZE_PROPERTY = "test.harness.contextCache.size";
+
+	/**
+	 * Java system property for the most memory the kept test contexts should
+	 * take, in megabytes. Defaults to 256.
+	 */
+	public static final String MEGABYTES_PROPERTY = "test.harness.contextCache.megabytes";
+
+	// Access-ordered, so the first entry is the least recently used.
+	private static final Map<Key, Long> estimatedBytes = new LinkedHashMap<Key, Long>(16, 0.75f, true);
+	private static long totalEstimatedBytes;
+
+	/**
+	 * Identifies a test context by what it's built from: its configuration files
+	 * and the Sakai home of its parent.
+	 */
+	static final class Key {
+		private final String[] locations;
+		private final String sakaiHome;
+
+		Key(String[] locations, String sakaiHome) {
+			this.locations = (locations != null) ? locations.clone() : new String[0];
+			this.sakaiHome = sakaiHome;
+		}
+
+		String[] getLocations() {
+			return locations.clone();
+		}
+
+		String getSakaiHome() {
+			return sakaiHome;
+		}
+
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key otherKey = (Key)other;
+			return Arrays.equals(locations, otherKey.locations) &&
+				((sakaiHome == null) ? (otherKey.sakaiHome == null) : sakaiHome.equals(otherKey.sakaiHome));
+		}
+
+		public int hashCode() {
+			return Arrays.hashCode(locations) * 31 + ((sakaiHome != null) ? sakaiHome.hashCode() : 0);
+		}
+
+		/**
+		 * Spring caches contexts by this string.
+		 */
+		public String toString() {
+			return Arrays.asList(locations) + " sakai.home=" + sakaiHome;
+		}
+	}
+
+	static synchronized void touch(Key key) {
+		estimatedBytes.get(key);
+	}
+
+	/**
+	 * Records a newly loaded context.
+	 *
+	 * @return the least recently used contexts which should now be closed
+	 */
+	static synchronized List<Key> add(Key key, long bytes) {
+		Long previous = estimatedBytes.put(key, Long.valueOf(bytes));
+		if (previous != null) {
+			totalEstimatedBytes -= previous.longValue();
+		}
+		totalEstimatedBytes += bytes;
+
+		int maxSize = getIntProperty(SIZE_PROPERTY, 8);
+		long maxBytes = getIntProperty(MEGABYTES_PROPERTY, 256) * 1024L * 1024L;
+		List<Key> evicted = new ArrayList<Key>();
+		for (Iterator<Map.Entry<Key, Long>> i = estimatedBytes.entrySet().iterator(); i.hasNext(); ) {
+			if ((estimatedBytes.size() <= maxSize) && (totalEstimatedBytes <= maxBytes)) {
+				break;
+			}
+			Map.Entry<Key, Long> eldest = i.next();
+			if (eldest.getKey().equals(key)) {
+				// Always keep the context that's about to be used.
+				continue;
+			}
+			i.remove();
+			totalEstimatedBytes -= eldest.getValue().longValue();
+			evicted.add(eldest.getKey());
+		}
+		if (!evicted.isEmpty() && log.isDebugEnabled()) log.debug("Evicting test contexts " + evicted);
+		return evicted;
+	}
+
+	static synchronized void remove(Key key) {
+		Long bytes = estimatedBytes.remove(key);
+		if (bytes != null) {
+			totalEstimatedBytes -= bytes.longValue();
+		}
+	}
+
+	private static int getIntProperty(String propertyName, int defaultValue) {
+		String value = ComponentContainerEmulator.getPassthroughSystemProperty(propertyName);
+		return ((value != null) && (value.length() > 0)) ? Integer.parseInt(value) : defaultValue;
+	}
+}
@@ -0,0 +1,278 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Chooses the JVM options which let forked test JVMs share the classes loaded
+ * while the component manager starts, using an application class-data sharing
+ * (AppCDS) archive.
+ *
+ * The archive is stored in the harness cache directory under a fingerprint of
+ * the jar set: the Tomcat library jars (from the {@link ClasspathIndex}), every
+ * file in the components tree, the test classpath and the JVM version. Any
+ * change gives a new archive name, so a stale archive is never used, and older
+ * archives for the same Tomcat home are deleted.
+ *
+ * The archive itself is written by the JVM when a reference startup exits:
+ * when there is no archive for the current jar set, a separate JVM is run with
+ * "-XX:ArchiveClassesAtExit" to start and stop the component manager. Test JVMs
+ * are only ever given "-XX:SharedArchiveFile", so the archive always holds what
+ * a full startup loads, whichever tests run first or last. Java 12 and earlier
+ * can't archive classes from the container's own class loaders, so no options
+ * are given.
+ *
+ * The JVM only maps the archive if the class path it was built with starts
+ * the test JVM's class path, so the reference JVM runs with this JVM's class
+ * path, and test JVMs must be given the same one.
+ *
+ * Run from the build (see the "appcds" Maven profile) as:
+ * <pre>
+ *   ClassDataSharing target/appcds.args   - builds the archive if needed and
+ *                                           writes the options, one per line
+ *   ClassDataSharing reference            - starts and stops the component manager
+ * </pre>
+ */
+public class ClassDataSharing {
+	private static final Log log = LogFactory.getLog(ClassDataSharing.class);
+
+	private final String rootName;
+	private final File archiveFile;
+
+	private ClassDataSharing(String rootName, File archiveFile) {
+		this.rootName = rootName;
+		this.archiveFile = archiveFile;
+	}
+
+	/**
+	 * @return the archive for the current jar set, which may not have been
+	 * built yet
+	 */
+	public static ClassDataSharing forTomcatHome(String tomcatHome) throws IOException {
+		tomcatHome = ComponentContainerEmulator.normalizeTomcatHome(tomcatHome);
+		SakaiTestTimer timer = new SakaiTestTimer("Class data sharing fingerprint");
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		ClasspathIndex index = ClasspathIndex.load(ComponentContainerEmulator.getLibraryDirs(tomcatHome));
+		for (ClasspathIndex.Entry entry : index.getEntries()) {
+			digest.update((entry.getFile().getAbsolutePath() + ":" + entry.getSize() + ":" + entry.getLastModified() + "\n").getBytes("UTF-8"));
+		}
+		SchemaImage.addFingerprint(digest, new File(tomcatHome + "components/"), "");
+		digest.update((System.getProperty("java.class.path") + "\n" + System.getProperty("java.vm.version")).getBytes("UTF-8"));
+		timer.logTimeElapsed();
+
+		String rootName = HarnessFiles.hashName(new File(tomcatHome).getAbsolutePath());
+		File archiveFile = new File(HarnessFiles.getCacheDirectory(),
+			"appcds-" + rootName + "-" + HarnessFiles.toHex(digest.digest()).substring(0, 16) + ".jsa");
+		return new ClassDataSharing(rootName, archiveFile);
+	}
+
+	public File getArchiveFile() {
+		return archiveFile;
+	}
+
+	public boolean exists() {
+		return archiveFile.isFile();
+	}
+
+	/**
+	 * @return the options for a test JVM of the version this one is, which are
+	 * none if there's no archive to use
+	 */
+	public List<String> getJvmOptions() {
+		List<String> options = new ArrayList<String>();
+		if (getJavaVersion() < 13) {
+			if (log.isInfoEnabled()) log.info("Class data sharing for the component manager needs Java 13 or later");
+		} else if (exists()) {
+			options.add("-XX:SharedArchiveFile=" + archiveFile.getAbsolutePath());
+		}
+		return options;
+	}
+
+	/**
+	 * @return the command which writes the archive from a reference startup,
+	 * for the test Tomcat and Sakai homes
+	 */
+	List<String> getReferenceCommand(String tomcatHome, String sakaiHome) {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.add("-XX:ArchiveClassesAtExit=" + archiveFile.getAbsolutePath());
+		command.add("-Dtest.tomcat.home=" + tomcatHome);
+		if (sakaiHome != null) {
+			command.add("-Dtest.sakai.home=" + sakaiHome);
+		}
+		String cacheDir = System.getProperty(HarnessFiles.CACHE_DIR_PROPERTY);
+		if (cacheDir != null) {
+			command.add("-D" + HarnessFiles.CACHE_DIR_PROPERTY + "=" + cacheDir);
+		}
+		command.add("-classpath");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ClassDataSharing.class.getName());
+		command.add("reference");
+		return command;
+	}
+
+	/**
+	 * Writes the archive by starting and stopping the component manager in a
+	 * separate JVM, unless it already exists.
+	 *
+	 * @return true if the archive exists afterwards
+	 */
+	public boolean buildArchive(String tomcatHome, String sakaiHome) throws IOException {
+		if (exists() || (getJavaVersion() < 13)) {
+			return exists();
+		}
+		SakaiTestTimer timer = new SakaiTestTimer("Class data sharing reference startup");
+		ProcessBuilder builder = new ProcessBuilder(getReferenceCommand(tomcatHome, sakaiHome));
+		builder.redirectErrorStream(true);
+		Process process = builder.start();
+		process.getOutputStream().close();
+		InputStream in = process.getInputStream();
+		try {
+			// Pass the reference JVM's output on, so startup failures show in the build.
+			byte[] buffer = new byte[8192];
+			for (int count; (count = in.read(buffer)) >= 0; ) {
+				System.out.write(buffer, 0, count);
+			}
+			System.out.flush();
+		} finally {
+			in.close();
+		}
+		try {
+			int exitCode = process.waitFor();
+			if (exitCode != 0) {
+				log.warn("Reference startup for class data sharing exited with " + exitCode);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			process.destroy();
+		}
+		timer.logTimeElapsed();
+		return exists();
+	}
+
+	/**
+	 * Archives for earlier jar sets from the same Tomcat home are of no further use.
+	 */
+	public void deleteOtherArchives() {
+		File[] files = archiveFile.getParentFile().listFiles();
+		if (files == null) {
+			return;
+		}
+		String prefix = "appcds-" + rootName + "-";
+		for (File file : files) {
+			if (file.getName().startsWith(prefix) && file.getName().endsWith(".jsa") && !file.equals(archiveFile)) {
+				if (log.isDebugEnabled()) log.debug("Deleting stale class data sharing archive " + file);
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * @return the feature release number, such as 6 for "1.6" or 17 for "17"
+	 */
+	static int getJavaVersion() {
+		String version = System.getProperty("java.specification.version");
+		if (version.startsWith("1.")) {
+			version = version.substring(2);
+		}
+		try {
+			return Integer.parseInt(version);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.err.println("Usage: ClassDataSharing [<options file>|reference]");
+		} else if ("reference".equals(args[0])) {
+			ComponentContainerEmulator.startComponentManagerForTest();
+			ComponentContainerEmulator.stopComponentManager();
+		} else {
+			writeOptions(new File(args[0]));
+		}
+	}
+
+	/**
+	 * Writes the JVM options for the test Tomcat home, one per line, in the form
+	 * the "java" launcher reads from an "@" argument file. The file is left empty
+	 * if there's no Tomcat home.
+	 */
+	static void writeOptions(File optionsFile) throws IOException {
+		writeOptions(optionsFile, true);
+	}
+
+	/**
+	 * @param build whether to run a reference startup if there's no archive yet
+	 */
+	static void writeOptions(File optionsFile, boolean build) throws IOException {
+		List<String> options = new ArrayList<String>();
+		String tomcatHome = ComponentContainerEmulator.findTestTomcatHome();
+		if ((tomcatHome != null) && (tomcatHome.length() > 0)) {
+			ClassDataSharing sharing = forTomcatHome(tomcatHome);
+			sharing.deleteOtherArchives();
+			if (build && !sharing.exists() && (getJavaVersion() >= 13)) {
+				if (log.isInfoEnabled()) log.info("Building class data sharing archive " + sharing.getArchiveFile());
+				sharing.buildArchive(tomcatHome, ComponentContainerEmulator.findTestSakaiHome());
+			}
+			options = sharing.getJvmOptions();
+			if (sharing.exists()) {
+				if (log.isInfoEnabled()) log.info("Using class data sharing archive " + sharing.getArchiveFile());
+			} else {
+				log.warn("No class data sharing archive, so test JVMs will load classes as usual");
+			}
+		} else {
+			log.warn("No Tomcat home is set, so not using class data sharing");
+		}
+		File dir = optionsFile.getAbsoluteFile().getParentFile();
+		if (dir != null) {
+			dir.mkdirs();
+		}
+		PrintWriter out = new PrintWriter(new FileWriter(optionsFile));
+		try {
+			for (String option : options) {
+				// Argument files treat quotes specially, so quote the whole option.
+				out.println("\"" + option.replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
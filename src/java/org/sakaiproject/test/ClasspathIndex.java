@@ -0,0 +1,431 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A persistent index of the jars in a set of library directories (such as Tomcat's
+ * "common/lib" and "shared/lib"), recording each jar's path, size, modification
+ * time and the packages it contains.
+ *
+ * The index is saved in the harness cache directory (see {@link HarnessFiles}).
+ * On later runs it is reused as long as the directories and jars have not been
+ * modified, which only needs a "stat" of each known file rather than a directory
+ * walk and a scan of every jar. When something has changed, the jars are
+ * rescanned in parallel.
+ */
+public class ClasspathIndex {
+	private static final Log log = LogFactory.getLog(ClasspathIndex.class);
+
+	/**
+	 * Set this Java system property to "false" to ignore any saved index.
+	 */
+	public static final String ENABLED_PROPERTY = "test.harness.classpathIndex";
+
+	private static final int FILE_MAGIC = 0x53434958;	// "SCIX"
+	private static final int FILE_VERSION = 1;
+
+	private static final FileFilter LIBRARY_FILTER = new FileFilter() {
+		public boolean accept(File pathname) {
+			if(pathname.getName().startsWith("xml-apis")) {
+				return false;
+			}
+			return true;
+		}
+	};
+
+	private final String[] dirPaths;
+	private final long[] dirStamps;
+	private final List<Entry> entries;
+	private final Map<String, List<Entry>> packageIndex = new HashMap<String, List<Entry>>();
+	private long scanMillis;
+
+	/**
+	 * One library file in the index.
+	 */
+	public static class Entry {
+		private final File file;
+		private final long size;
+		private final long lastModified;
+		private final Set<String> packages;
+
+		Entry(File file, long size, long lastModified, Set<String> packages) {
+			this.file = file;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.packages = packages;
+		}
+		public File getFile() {
+			return file;
+		}
+		public long getSize() {
+			return size;
+		}
+		public long getLastModified() {
+			return lastModified;
+		}
+		public Set<String> getPackages() {
+			return packages;
+		}
+		boolean isCurrent() {
+			return (file.length() == size) && (file.lastModified() == lastModified);
+		}
+	}
+
+	private ClasspathIndex(String[] dirPaths, long[] dirStamps, List<Entry> entries) {
+		this.dirPaths = dirPaths;
+		this.dirStamps = dirStamps;
+		this.entries = entries;
+		for (Entry entry : entries) {
+			for (String packageName : entry.packages) {
+				List<Entry> packageEntries = packageIndex.get(packageName);
+				if (packageEntries == null) {
+					packageEntries = new ArrayList<Entry>(1);
+					packageIndex.put(packageName, packageEntries);
+				}
+				packageEntries.add(entry);
+			}
+		}
+	}
+
+	/**
+	 * Returns the index for the given directories, reusing the saved copy if it
+	 * is still up to date and otherwise rebuilding (and saving) it.
+	 */
+	public static ClasspathIndex load(String[] dirPaths) {
+		long start = System.nanoTime();
+		File indexFile = getIndexFile(dirPaths);
+		ClasspathIndex saved = null;
+		if (!"false".equals(ComponentContainerEmulator.getPassthroughSystemProperty(ENABLED_PROPERTY)) && indexFile.exists()) {
+			try {
+				saved = read(indexFile, dirPaths);
+			} catch (IOException e) {
+				log.warn("Ignoring unreadable classpath index " + indexFile + ": " + e);
+			}
+		}
+
+		ClasspathIndex index;
+		if ((saved != null) && saved.isDirectoryListingCurrent()) {
+			index = saved.refreshModifiedEntries();
+			if (index == saved) {
+				if (log.isInfoEnabled()) log.info("Classpath index for " + index.entries.size() + " jars loaded from " + indexFile +
+					" in " + elapsedMillis(start) + " ms (a full scan took " + index.scanMillis + " ms)");
+				return index;
+			}
+		} else {
+			// Reuse what we can from the saved index for jars which haven't changed.
+			index = scan(dirPaths, (saved != null) ? saved.entries : null);
+		}
+		index.save(indexFile);
+		if (log.isInfoEnabled()) log.info("Classpath index for " + index.entries.size() + " jars rebuilt in " + elapsedMillis(start) + " ms");
+		return index;
+	}
+
+	/**
+	 * @return file URLs for every library in the indexed directories, in directory order
+	 */
+	public URL[] getJarUrls() {
+		URL[] urls = new URL[entries.size()];
+		for (int i = 0; i < urls.length; i++) {
+			try {
+				urls[i] = entries.get(i).file.toURI().toURL();
+			} catch (MalformedURLException e) {
+				log.error(e, e);
+			}
+		}
+		return urls;
+	}
+
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * @return the libraries which contain classes in the given package, or an
+	 * empty list if none do
+	 */
+	public List<Entry> getEntriesForPackage(String packageName) {
+		List<Entry> packageEntries = packageIndex.get(packageName);
+		return (packageEntries != null) ? packageEntries : Collections.<Entry>emptyList();
+	}
+
+	/**
+	 * @return the libraries which might contain the named class
+	 */
+	public List<Entry> getEntriesForClass(String className) {
+		int lastDot = className.lastIndexOf('.');
+		return getEntriesForPackage((lastDot > 0) ? className.substring(0, lastDot) : "");
+	}
+
+	/**
+	 * @return how long the last full scan of the directories took
+	 */
+	public long getScanMillis() {
+		return scanMillis;
+	}
+
+	/**
+	 * @return true if none of the indexed directories or libraries have changed
+	 */
+	public boolean isCurrent() {
+		if (!isDirectoryListingCurrent()) {
+			return false;
+		}
+		for (Entry entry : entries) {
+			if (!entry.isCurrent()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isDirectoryListingCurrent() {
+		for (int i = 0; i < dirPaths.length; i++) {
+			if (new File(dirPaths[i]).lastModified() != dirStamps[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Jars can be overwritten in place without changing the directory's timestamp,
+	 * so check each one and rescan any that changed.
+	 */
+	private ClasspathIndex refreshModifiedEntries() {
+		List<Entry> stale = new ArrayList<Entry>();
+		for (Entry entry : entries) {
+			if (!entry.isCurrent()) {
+				stale.add(entry);
+			}
+		}
+		if (stale.isEmpty()) {
+			return this;
+		}
+		if (log.isInfoEnabled()) log.info(stale.size() + " jars changed since the classpath index was saved");
+		return scan(dirPaths, entries);
+	}
+
+	/**
+	 * Walks the directories and scans each library for packages, reusing the
+	 * scan results of any unchanged entries from a previous index.
+	 */
+	private static ClasspathIndex scan(String[] dirPaths, List<Entry> previousEntries) {
+		long start = System.nanoTime();
+		Map<File, Entry> previous = new HashMap<File, Entry>();
+		if (previousEntries != null) {
+			for (Entry entry : previousEntries) {
+				previous.put(entry.file, entry);
+			}
+		}
+
+		long[] dirStamps = new long[dirPaths.length];
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < dirPaths.length; i++) {
+			File dir = new File(dirPaths[i]);
+			if (log.isInfoEnabled()) log.info("dirPath=" + dirPaths[i] + ", dir=" + dir);
+			dirStamps[i] = dir.lastModified();
+			File[] jars = dir.listFiles(LIBRARY_FILTER);
+			if (jars != null) {
+				files.addAll(Arrays.asList(jars));
+			}
+		}
+
+		int threads = Math.max(1, Math.min(files.size(), Runtime.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Entry>> futures = new ArrayList<Future<Entry>>(files.size());
+			for (final File file : files) {
+				final Entry previousEntry = previous.get(file);
+				futures.add(executor.submit(new Callable<Entry>() {
+					public Entry call() throws Exception {
+						if ((previousEntry != null) && previousEntry.isCurrent()) {
+							return previousEntry;
+						}
+						return scanFile(file);
+					}
+				}));
+			}
+			List<Entry> entries = new ArrayList<Entry>(files.size());
+			for (Future<Entry> future : futures) {
+				entries.add(future.get());
+			}
+			ClasspathIndex index = new ClasspathIndex(dirPaths, dirStamps, entries);
+			index.scanMillis = elapsedMillis(start);
+			return index;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static Entry scanFile(File file) {
+		// Capture size and time before reading so that a concurrent rewrite is
+		// detected on the next load rather than silently indexed.
+		long size = file.length();
+		long lastModified = file.lastModified();
+		Set<String> packages = new TreeSet<String>();
+		String name = file.getName();
+		if (file.isFile() && (name.endsWith(".jar") || name.endsWith(".zip"))) {
+			try {
+				JarFile jarFile = new JarFile(file);
+				try {
+					for (Enumeration<JarEntry> jarEntries = jarFile.entries(); jarEntries.hasMoreElements(); ) {
+						String entryName = jarEntries.nextElement().getName();
+						if (entryName.endsWith(".class")) {
+							int lastSlash = entryName.lastIndexOf('/');
+							packages.add((lastSlash > 0) ? entryName.substring(0, lastSlash).replace('/', '.') : "");
+						}
+					}
+				} finally {
+					jarFile.close();
+				}
+			} catch (IOException e) {
+				log.warn("Could not scan " + file + ": " + e);
+			}
+		}
+		return new Entry(file, size, lastModified, packages);
+	}
+
+	private static File getIndexFile(String[] dirPaths) {
+		return new File(HarnessFiles.getCacheDirectory(), "classpath-" + HarnessFiles.hashName(Arrays.asList(dirPaths).toString()) + ".idx");
+	}
+
+	private static ClasspathIndex read(File indexFile, String[] dirPaths) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+			if ((in.readInt() != FILE_MAGIC) || (in.readInt() != FILE_VERSION)) {
+				return null;
+			}
+			int dirCount = in.readInt();
+			if (dirCount != dirPaths.length) {
+				return null;
+			}
+			long[] dirStamps = new long[dirCount];
+			for (int i = 0; i < dirCount; i++) {
+				if (!dirPaths[i].equals(in.readUTF())) {
+					return null;
+				}
+				dirStamps[i] = in.readLong();
+			}
+			int entryCount = in.readInt();
+			List<Entry> entries = new ArrayList<Entry>(entryCount);
+			for (int i = 0; i < entryCount; i++) {
+				File file = new File(in.readUTF());
+				long size = in.readLong();
+				long lastModified = in.readLong();
+				int packageCount = in.readInt();
+				Set<String> packages = new TreeSet<String>();
+				for (int j = 0; j < packageCount; j++) {
+					packages.add(in.readUTF());
+				}
+				entries.add(new Entry(file, size, lastModified, packages));
+			}
+			ClasspathIndex index = new ClasspathIndex(dirPaths, dirStamps, entries);
+			index.scanMillis = in.readLong();
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void save(File indexFile) {
+		File tempFile = null;
+		try {
+			// Forks may save at the same time, so each writes its own temporary file.
+			tempFile = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getParentFile());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			try {
+				out.writeInt(FILE_MAGIC);
+				out.writeInt(FILE_VERSION);
+				out.writeInt(dirPaths.length);
+				for (int i = 0; i < dirPaths.length; i++) {
+					out.writeUTF(dirPaths[i]);
+					out.writeLong(dirStamps[i]);
+				}
+				out.writeInt(entries.size());
+				for (Entry entry : entries) {
+					out.writeUTF(entry.file.getPath());
+					out.writeLong(entry.size);
+					out.writeLong(entry.lastModified);
+					out.writeInt(entry.packages.size());
+					for (String packageName : entry.packages) {
+						out.writeUTF(packageName);
+					}
+				}
+				out.writeLong(scanMillis);
+			} finally {
+				out.close();
+			}
+			indexFile.delete();
+			if (!tempFile.renameTo(indexFile)) {
+				log.warn("Could not save classpath index to " + indexFile);
+			}
+		} catch (IOException e) {
+			log.warn("Could not save classpath index to " + indexFile + ": " + e);
+		} finally {
+			// Nothing left to delete once it has been renamed.
+			if (tempFile != null) {
+				tempFile.delete();
+			}
+		}
+	}
+
+	private static long elapsedMillis(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1000000L;
+	}
+}
@@ -23,14 +23,15 @@
 package org.sakaiproject.test;
 
 import java.io.File;
-import java.io.FileFilter;
+import java.io.IOException;
 import java.lang.reflect.Method;
-import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -40,7 +41,74 @@ import org.apache.commons.logging.LogFactory;
  */
 public class ComponentContainerEmulator {
 	private static final Log log = LogFactory.getLog(ComponentContainerEmulator.class);
-	private static Object componentManager;
+	private static SakaiContainer container;
+	private static volatile boolean keepAlive;
+	private static ContainerClassLoader containerClassLoader;
+	private static ClassLoader previousContextClassLoader;
+	private static File imageSakaiHome;
+	private static final ThreadLocal<SakaiContainer> leasedContainer = new InheritableThreadLocal<SakaiContainer>();
+	
+	/**
+	 * Set this Java system property to "inject" to add the Tomcat libraries to the
+	 * current context class loader, as older versions of the harness did, instead
+	 * of using a {@link ContainerClassLoader}. This only works on JVMs whose
+	 * application class loader is a URLClassLoader (i.e., before Java 9).
+	 */
+	public static final String CLASSLOADER_PROPERTY = "test.harness.classloader";
+	public static final String INJECT_CLASSLOADER_MODE = "inject";
+	
+	/**
+	 * Set this Java system property to "true" to create component beans only when
+	 * they're first needed (see {@link LazyInitPostProcessor}). The optional property
+	 * "test.harness.lazy.eager" holds a comma-separated list of bean names to create
+	 * at startup regardless.
+	 */
+	public static final String LAZY_PROPERTY = "test.harness.lazy";
+	public static final String LAZY_EAGER_BEANS_PROPERTY = "test.harness.lazy.eager";
+	
+	/**
+	 * Set this Java system property to "true" to profile the creation of each
+	 * component bean (see {@link BeanStartupProfiler}).
+	 */
+	public static final String PROFILE_PROPERTY = "test.harness.profile";
+	
+	/**
+	 * Set this Java system property to "true" to count and time the calls made to
+	 * each service method (see {@link ServiceMetrics}).
+	 */
+	public static final String SERVICE_METRICS_PROPERTY = "test.harness.serviceMetrics";
+	
+	/**
+	 * Set this Java system property to "true" to estimate the heap kept alive by
+	 * each component and bean once the container has started (see {@link HeapAccounting}).
+	 */
+	public static final String HEAP_REPORT_PROPERTY = "test.harness.heapReport";
+	
+	/**
+	 * Set this Java system property to "true" to report threads, open files,
+	 * JDBC drivers, MBeans and class loaders left behind each time the container
+	 * stops, or to "fail" to also fail the test (see {@link LeakAudit}).
+	 */
+	public static final String LEAK_AUDIT_PROPERTY = "test.harness.leakAudit";
+	public static final String LEAK_AUDIT_FAIL_MODE = "fail";
+	
+	/**
+	 * Set this Java system property to "true" to load component bean classes on
+	 * a pool of threads during startup and report the bean dependency graph's
+	 * critical path (see {@link ParallelStartup}). The optional property
+	 * "test.harness.parallelStartup.threads" sets the pool size, which defaults
+	 * to the number of processors.
+	 */
+	public static final String PARALLEL_STARTUP_PROPERTY = "test.harness.parallelStartup";
+	public static final String PARALLEL_STARTUP_THREADS_PROPERTY = "test.harness.parallelStartup.threads";
+	
+	/**
+	 * Set this Java system property to "snapshot" to have the test base classes
+	 * put the container's database and caches back as they were before each test
+	 * method, instead of relying on restarts (see {@link ContainerSnapshot}).
+	 */
+	public static final String ISOLATION_PROPERTY = "test.harness.isolation";
+	public static final String SNAPSHOT_ISOLATION_MODE = "snapshot";
 	
 	/**
 	 * Configures the emulated component container to run integration tests.
@@ -57,67 +125,179 @@ public class ComponentContainerEmulator {
 	}
 	
 	public static void startComponentManager(String tomcatHome, String sakaiHome) {
+		startComponentManager(tomcatHome, sakaiHome, null);
+	}
+	
+	/**
+	 * @param databaseImage an image to start the database from if it exists,
+	 * instead of the usual schema image (see {@link FixtureGenerator}). It's
+	 * left to the caller to capture it.
+	 */
+	static void startComponentManager(String tomcatHome, String sakaiHome, SchemaImage databaseImage) {
 		if (log.isDebugEnabled()) log.debug("Starting the component manager; sakaiHome=" + sakaiHome + ", tomcatHome=" + tomcatHome);
 		if (isStarted()) {
 			if (log.isInfoEnabled()) log.info("Component manager already exists, so not starting after all");
 			return;
 		}
 
-		// Normalize file path.
-		char lastChar = tomcatHome.charAt(tomcatHome.length() - 1);
-		if ((lastChar != '/') && (lastChar != '\\')) {
-			tomcatHome += "/";
-		}
+		long startNanos = System.nanoTime();
+		tomcatHome = normalizeTomcatHome(tomcatHome);
 		
-		// Set the system properties needed by the sakai component manager
-		if ((sakaiHome != null) && (sakaiHome.length() > 0)) {
-			System.setProperty("sakai.home", sakaiHome);
+		// Put the sakai jars in a class loader of their own, unless told to use the
+		// old approach of adding them to the current classpath.
+		ClassLoader loader;
+		if (INJECT_CLASSLOADER_MODE.equals(getPassthroughSystemProperty(CLASSLOADER_PROPERTY))) {
+			loader = injectLibraries(getLibraryDirs(tomcatHome));
+		} else {
+			loader = getContainerClassLoader(getLibraryDirs(tomcatHome));
 		}
-		System.setProperty("sakai.components.root", tomcatHome + "components/");
-		
-		// Add the sakai jars to the current classpath.  Note:  We are limited to using the sun jvm now
-		URL[] sakaiUrls = getJarUrls(new String[] {tomcatHome + "common/endorsed/",
-				tomcatHome + "common/lib/", tomcatHome + "shared/lib/"});
-		URLClassLoader appClassLoader = (URLClassLoader)Thread.currentThread().getContextClassLoader();
-		try {
-			Method addMethod = URLClassLoader.class.getDeclaredMethod("addURL", new Class[] {URL.class});
-			addMethod.setAccessible(true);
-			for(int i=0; i<sakaiUrls.length; i++) {
-				addMethod.invoke(appClassLoader, new Object[] {sakaiUrls[i]});
-			}
-			
-			Class<?> clazz = Class.forName("org.sakaiproject.component.cover.ComponentManager");
-			componentManager = clazz.getDeclaredMethod("getInstance", (Class[])null).invoke((Object[])null, (Object[])null);
-		} catch (Exception e) {
-			// Wrap as runtime exception, since it's unlikely the caller will want to do
-			// anything but die.
-			if (e instanceof RuntimeException) {
-				throw (RuntimeException)e;
-			} else {
-				throw new RuntimeException(e);
+		// Start from a prebuilt database if there is one.
+		SchemaImage schemaImage = null;
+		String containerSakaiHome = sakaiHome;
+		boolean useDatabaseImage = (databaseImage != null) && databaseImage.exists();
+		if ((sakaiHome != null) && (useDatabaseImage || SchemaImage.isEnabled())) {
+			try {
+				schemaImage = useDatabaseImage ? databaseImage : SchemaImage.forComponents(tomcatHome + "components/", sakaiHome);
+				if ((schemaImage != null) && schemaImage.exists()) {
+					// A directory of this start's own, since other JVMs may be
+					// restoring the same image at the same time.
+					imageSakaiHome = HarnessFiles.createWorkDirectory("sakai-home-image");
+					ContainerPool.copySakaiHome(sakaiHome, imageSakaiHome);
+					Map<String, String> overrides = new LinkedHashMap<String, String>();
+					schemaImage.applyTo(imageSakaiHome, overrides);
+					ContainerPool.appendProperties(new File(imageSakaiHome, "sakai.properties"), overrides, "Database image settings added by the test harness");
+					containerSakaiHome = imageSakaiHome.getAbsolutePath() + File.separator;
+					schemaImage = null;
+				}
+			} catch (IOException e) {
+				log.warn("Not using a database image: " + e);
+				schemaImage = null;
+				deleteImageSakaiHome();
+				containerSakaiHome = sakaiHome;
 			}
 		}
+		SakaiContainer newContainer = new SakaiContainer("default", tomcatHome + "components/", containerSakaiHome, loader);
+		newContainer.setBaseSakaiHome(sakaiHome);
+		configureContainer(newContainer);
+		try {
+			newContainer.start();
+		} catch (RuntimeException e) {
+			deleteImageSakaiHome();
+			throw e;
+		}
+		container = newContainer;
+		if (schemaImage != null) {
+			schemaImage.capture(newContainer);
+		}
+		
+		// Leave the container's class loader in place for code which relies on
+		// the context class loader, as it would in Tomcat.
+		previousContextClassLoader = Thread.currentThread().getContextClassLoader();
+		Thread.currentThread().setContextClassLoader(loader);
+		TestDurations.containerStarted(System.nanoTime() - startNanos);
 
 		if (log.isDebugEnabled()) log.debug("Finished starting the component manager");
 	}
 	
 	public static void stopComponentManager() {
 		if (log.isDebugEnabled()) log.debug("Starting the component manager");
-		if(componentManager != null) {
+		if (keepAlive) {
+			if (log.isInfoEnabled()) log.info("Component manager is being kept alive, so not stopping after all");
+			return;
+		}
+		if (leasedContainer.get() != null) {
+			if (log.isInfoEnabled()) log.info("Component manager is leased from a pool, so not stopping after all");
+			return;
+		}
+		if(container != null) {
+			List<LeakAudit> leakAudits = LeakAudit.getAudits(container);
 			try {
-				Method closeMethod = componentManager.getClass().getMethod("close", new Class[0]);
-				closeMethod.invoke(componentManager, new Object[0]);
-				componentManager = null;
-			} catch (Exception e) {
-				log.error(e);
+				container.stop();
+			} finally {
+				container = null;
+				if (previousContextClassLoader != null) {
+					Thread.currentThread().setContextClassLoader(previousContextClassLoader);
+					previousContextClassLoader = null;
+				}
+				deleteImageSakaiHome();
 			}
+			// Only now can the component class loaders be collected.
+			LeakAudit.finish(leakAudits);
 		} else {
 			if (log.isInfoEnabled()) log.info("Component manager already stopped");				
 		}
 	}
 	
+	private static void deleteImageSakaiHome() {
+		if (imageSakaiHome != null) {
+			HarnessFiles.delete(imageSakaiHome);
+			imageSakaiHome = null;
+		}
+	}
+
 	public static boolean isStarted() {
-		return (componentManager != null);
+		SakaiContainer current = getCurrentContainer();
+		return ((current != null) && current.isStarted());
+	}
+	
+	/**
+	 * @return the container leased by the current thread from a {@link ContainerPool}
+	 * if there is one, and otherwise the container started by this class (if any)
+	 */
+	public static SakaiContainer getCurrentContainer() {
+		SakaiContainer leased = leasedContainer.get();
+		return (leased != null) ? leased : container;
+	}
+	
+	/**
+	 * Makes the static methods of this class use the given container for
+	 * the current thread (and threads it starts). Pass null to go back to
+	 * the default container.
+	 */
+	static void setLeasedContainer(SakaiContainer leased) {
+		if (leased != null) {
+			leasedContainer.set(leased);
+		} else {
+			leasedContainer.remove();
+		}
+	}
+	
+	/**
+	 * When set, requests to stop the component manager are ignored. This lets a
+	 * long-lived process such as {@link ContainerDaemon} keep the container warm
+	 * across test classes which would otherwise shut it down.
+	 */
+	static void setKeepAlive(boolean keepAlive) {
+		ComponentContainerEmulator.keepAlive = keepAlive;
+	}
+	
+	static boolean isKeptAlive() {
+		return keepAlive;
+	}
+	
+	/**
+	 * @return the class loader holding the Tomcat libraries, or null if the
+	 * component manager hasn't been started with one
+	 */
+	public static ClassLoader getContainerClassLoader() {
+		SakaiContainer leased = leasedContainer.get();
+		return (leased != null) ? leased.getClassLoader() : containerClassLoader;
+	}
+	
+	/**
+	 * Disposes of the cached container class loader so that the classes it loaded
+	 * can be garbage collected. Normally the loader is kept after the component
+	 * manager is stopped so that a restart doesn't need to load the classes again.
+	 */
+	public static synchronized void releaseContainerClassLoader() {
+		if ((container != null) && container.isStarted()) {
+			log.warn("Component manager is still running, so not releasing its class loader");
+			return;
+		}
+		if (containerClassLoader != null) {
+			containerClassLoader.dispose();
+			containerClassLoader = null;
+		}
 	}
 	
 	/**
@@ -126,16 +306,34 @@ public class ComponentContainerEmulator {
 	 * for any other purpose.
 	 */
 	public static Object getContainerApplicationContext() {
-		Object applicationContext = null;
-		if (componentManager != null) {
-			try {
-				Method getContextMethod = componentManager.getClass().getMethod("getApplicationContext", new Class[0]);
-				applicationContext = getContextMethod.invoke(componentManager, new Object[0]);
-			} catch (Exception e) {
-				log.error(e);
-			}
+		SakaiContainer current = getCurrentContainer();
+		return (current != null) ? current.getApplicationContext() : null;
+	}
+	
+	public static boolean isSnapshotIsolation() {
+		return SNAPSHOT_ISOLATION_MODE.equals(getPassthroughSystemProperty(ISOLATION_PROPERTY));
+	}
+	
+	/**
+	 * Called before each test method. In snapshot isolation mode, takes the
+	 * snapshot the first time the running container is used by a test.
+	 */
+	static void beginIsolatedTest() {
+		SakaiContainer current = getCurrentContainer();
+		if ((current != null) && isSnapshotIsolation() && !current.hasSnapshot()) {
+			current.takeSnapshot();
+		}
+	}
+	
+	/**
+	 * Called after each test method. In snapshot isolation mode, undoes whatever
+	 * the test did to the database and caches.
+	 */
+	static void endIsolatedTest() {
+		SakaiContainer current = getCurrentContainer();
+		if ((current != null) && isSnapshotIsolation()) {
+			current.restoreSnapshot();
 		}
-		return applicationContext;
 	}
 	
 	/**
@@ -146,13 +344,14 @@ public class ComponentContainerEmulator {
 	 * @return The service, or null if the ID is not registered
 	 */
 	public static final Object getService(String beanId) {
-		try {
-			Method getMethod = componentManager.getClass().getMethod("get", new Class[] {String.class});
-			return getMethod.invoke(componentManager, new Object[] {beanId});
-		} catch (Exception e) {
-			log.error(e, e);
+		SakaiContainer current = getCurrentContainer();
+		if (current == null) {
+			log.error("Component manager has not been started, so can't get " + beanId);
 			return null;
 		}
+		Object service = current.getService(beanId);
+		TestFootprints.serviceUsed(beanId, service);
+		return service;
 	}
 	
 	/**
@@ -163,8 +362,14 @@ public class ComponentContainerEmulator {
 	 * @return the implementing service
 	 */
 	public static final <T> T getService(Class<T> clazz) {
-		String beanId = clazz.getName();
-		return (T) getService(beanId);
+		SakaiContainer current = getCurrentContainer();
+		if (current == null) {
+			log.error("Component manager has not been started, so can't get " + clazz.getName());
+			return null;
+		}
+		T service = current.getService(clazz);
+		TestFootprints.serviceUsed(clazz, service);
+		return service;
 	}
 	
 	/**
@@ -283,44 +488,111 @@ public class ComponentContainerEmulator {
 	}
 
 	/**
-	 * Builds an array of file URLs from a directory path.
-	 * 
-	 * @param dirPath
-	 * @return
-	 * @throws Exception
+	 * Applies the optional container behaviors selected by Java system properties.
 	 */
-	private static URL[] getJarUrls(String dirPath) {
-		File dir = new File(dirPath);
-		if (log.isInfoEnabled()) log.info("dirPath=" + dirPath + ", dir=" + dir);
-		File[] jars = dir.listFiles(new FileFilter() {
-			public boolean accept(File pathname) {
-				if(pathname.getName().startsWith("xml-apis")) {
-					return false;
+	static void configureContainer(SakaiContainer newContainer) {
+		if (Boolean.valueOf(getPassthroughSystemProperty(LAZY_PROPERTY)).booleanValue()) {
+			Set<String> eagerBeanNames = new HashSet<String>();
+			String eagerBeans = getPassthroughSystemProperty(LAZY_EAGER_BEANS_PROPERTY);
+			if (eagerBeans != null) {
+				for (String beanName : eagerBeans.split(",")) {
+					if (beanName.trim().length() > 0) {
+						eagerBeanNames.add(beanName.trim());
+					}
 				}
-				return true;
 			}
-		});
-		URL[] urls = new URL[jars.length];
-		for(int i = 0; i < jars.length; i++) {
-			try {
-				urls[i] = jars[i].toURL();
-			} catch (MalformedURLException e) {
-				log.error(e, e);
+			newContainer.addBeanFactoryPostProcessor(new LazyInitPostProcessor(eagerBeanNames));
+		}
+		if (BeanDefinitionCache.isEnabled()) {
+			newContainer.setCachingDefinitions(true);
+		}
+		boolean parallelStartup = Boolean.valueOf(getPassthroughSystemProperty(PARALLEL_STARTUP_PROPERTY)).booleanValue();
+		boolean profile = Boolean.valueOf(getPassthroughSystemProperty(PROFILE_PROPERTY)).booleanValue();
+		BeanStartupProfiler profiler = null;
+		if (profile || parallelStartup) {
+			// Parallel startup needs the timings even if the profile reports aren't wanted.
+			profiler = new BeanStartupProfiler();
+			newContainer.addBeanPostProcessor(profiler);
+			if (profile) {
+				newContainer.addListener(profiler);
+			}
+		}
+		if (parallelStartup) {
+			int threads = Runtime.getRuntime().availableProcessors();
+			String threadsProperty = getPassthroughSystemProperty(PARALLEL_STARTUP_THREADS_PROPERTY);
+			if (threadsProperty != null) {
+				threads = Integer.parseInt(threadsProperty.trim());
 			}
+			ParallelStartup startup = new ParallelStartup(threads, profiler);
+			newContainer.addBeanFactoryPostProcessor(startup);
+			newContainer.addListener(startup);
+		}
+		if (Boolean.valueOf(getPassthroughSystemProperty(SERVICE_METRICS_PROPERTY)).booleanValue()) {
+			ServiceMetrics serviceMetrics = new ServiceMetrics();
+			newContainer.addBeanPostProcessor(serviceMetrics);
+			newContainer.addListener(serviceMetrics);
+		}
+		if (Boolean.valueOf(getPassthroughSystemProperty(HEAP_REPORT_PROPERTY)).booleanValue()) {
+			newContainer.addListener(new HeapAccounting());
+		}
+		String leakAudit = getPassthroughSystemProperty(LEAK_AUDIT_PROPERTY);
+		if ((leakAudit != null) && (Boolean.valueOf(leakAudit).booleanValue() || LEAK_AUDIT_FAIL_MODE.equals(leakAudit))) {
+			// Last, so that the other listeners have cleaned up before it looks.
+			newContainer.addListener(new LeakAudit(LEAK_AUDIT_FAIL_MODE.equals(leakAudit)));
 		}
-		return urls;
 	}
-
-	private static URL[] getJarUrls(String[] dirPaths) {
-		List<URL> jarList = new ArrayList<URL>();
-		
-		// Add all of the tomcat jars
-		for(int i=0; i<dirPaths.length; i++) {
-			jarList.addAll(Arrays.asList(getJarUrls(dirPaths[i])));
+	
+	static String normalizeTomcatHome(String tomcatHome) {
+		char lastChar = tomcatHome.charAt(tomcatHome.length() - 1);
+		if ((lastChar != '/') && (lastChar != '\\')) {
+			tomcatHome += "/";
+		}
+		return tomcatHome;
+	}
+	
+	static String[] getLibraryDirs(String tomcatHome) {
+		return new String[] {tomcatHome + "common/endorsed/",
+				tomcatHome + "common/lib/", tomcatHome + "shared/lib/"};
+	}
+	
+	private static synchronized ClassLoader getContainerClassLoader(String[] libraryDirs) {
+		if ((containerClassLoader != null) && !containerClassLoader.getIndex().isCurrent()) {
+			if (log.isInfoEnabled()) log.info("Tomcat libraries have changed, so not reusing the container class loader");
+			containerClassLoader.dispose();
+			containerClassLoader = null;
+		}
+		if (containerClassLoader == null) {
+			ClasspathIndex index = ClasspathIndex.load(libraryDirs);
+			containerClassLoader = new ContainerClassLoader(index, Thread.currentThread().getContextClassLoader(), false);
+		} else {
+			if (log.isDebugEnabled()) log.debug("Reusing the container class loader");
+		}
+		return containerClassLoader;
+	}
+	
+	/**
+	 * Adds the libraries to the current context class loader.
+	 */
+	private static ClassLoader injectLibraries(String[] libraryDirs) {
+		URL[] sakaiUrls = getJarUrls(libraryDirs);
+		URLClassLoader appClassLoader = (URLClassLoader)Thread.currentThread().getContextClassLoader();
+		try {
+			Method addMethod = URLClassLoader.class.getDeclaredMethod("addURL", new Class[] {URL.class});
+			addMethod.setAccessible(true);
+			for(int i=0; i<sakaiUrls.length; i++) {
+				addMethod.invoke(appClassLoader, new Object[] {sakaiUrls[i]});
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
 		}
+		return appClassLoader;
+	}
 
-		URL[] urlArray = new URL[jarList.size()];
-		jarList.toArray(urlArray);
-		return urlArray;
+	/**
+	 * Builds an array of file URLs for the libraries in the given directories,
+	 * using the saved {@link ClasspathIndex} when it's still current.
+	 */
+	private static URL[] getJarUrls(String[] dirPaths) {
+		return ClasspathIndex.load(dirPaths).getJarUrls();
 	}
 }
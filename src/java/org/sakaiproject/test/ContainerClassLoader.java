@@ -0,0 +1,261 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Holds the Tomcat "common" and "shared" libraries for the emulated component
+ * container, in place of the Tomcat class loaders.
+ *
+ * Classes are found through a {@link ClasspathIndex}, so only the jars which
+ * actually contain a class's package are opened and probed. The loader registers
+ * itself as parallel capable on JVMs which support that, and it can be disposed
+ * of so that the container's classes can be garbage collected.
+ */
+public class ContainerClassLoader extends URLClassLoader {
+	private static final Log log = LogFactory.getLog(ContainerClassLoader.class);
+
+	static {
+		// ClassLoader.registerAsParallelCapable() only exists on Java 7 and later.
+		try {
+			Method registerMethod = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable", new Class[0]);
+			registerMethod.setAccessible(true);
+			registerMethod.invoke(null, new Object[0]);
+		} catch (Exception e) {
+			if (log.isDebugEnabled()) log.debug("Class loader is not parallel capable: " + e);
+		}
+	}
+
+	private static final String[] SHARED_PREFIXES = new String[] {
+		"java.", "javax.", "sun.", "com.sun.", "org.w3c.", "org.xml.", "org.ietf.", "org.omg.",
+		"org.springframework.", "org.apache.commons.logging.", "org.apache.log4j.",
+		"junit.", "org.junit.", "org.sakaiproject.test.",
+	};
+
+	private final ClasspathIndex index;
+	private final boolean isolated;
+	private final ConcurrentMap<String, Object> loadingLocks = new ConcurrentHashMap<String, Object>();
+	private final ConcurrentMap<File, JarFile> openJars = new ConcurrentHashMap<File, JarFile>();
+	private final boolean hasUnindexedEntries;
+	private volatile boolean closed;
+
+	public ContainerClassLoader(ClasspathIndex index, ClassLoader parent, boolean isolated) {
+		super(index.getJarUrls(), parent);
+		this.index = index;
+		this.isolated = isolated;
+		boolean unindexed = false;
+		for (ClasspathIndex.Entry entry : index.getEntries()) {
+			if (!entry.getFile().isFile()) {
+				unindexed = true;
+			}
+		}
+		this.hasUnindexedEntries = unindexed;
+	}
+
+	public ClasspathIndex getIndex() {
+		return index;
+	}
+
+	public boolean isIsolated() {
+		return isolated;
+	}
+
+	@Override
+	protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+		if (!isolated || isSharedClass(name)) {
+			return super.loadClass(name, resolve);
+		}
+		synchronized (getLoadingLock(name)) {
+			Class<?> c = findLoadedClass(name);
+			if (c == null) {
+				try {
+					c = findClass(name);
+				} catch (ClassNotFoundException e) {
+					c = super.loadClass(name, false);
+				}
+			}
+			if (resolve) {
+				resolveClass(c);
+			}
+			return c;
+		}
+	}
+
+	@Override
+	public URL getResource(String name) {
+		if (isolated) {
+			URL url = findResource(name);
+			if (url != null) {
+				return url;
+			}
+		}
+		return super.getResource(name);
+	}
+
+	/**
+	 * @return true if the class should always come from the parent class loader
+	 */
+	static boolean isSharedClass(String name) {
+		for (String prefix : SHARED_PREFIXES) {
+			if (name.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return name.startsWith("org.sakaiproject.") && (name.indexOf(".api.") > 0);
+	}
+
+	private Object getLoadingLock(String name) {
+		Object lock = new Object();
+		Object existing = loadingLocks.putIfAbsent(name, lock);
+		return (existing != null) ? existing : lock;
+	}
+
+	@Override
+	protected Class<?> findClass(String name) throws ClassNotFoundException {
+		if (closed) {
+			throw new ClassNotFoundException(name + " (container class loader has been closed)");
+		}
+		String entryName = name.replace('.', '/') + ".class";
+		List<ClasspathIndex.Entry> entries = index.getEntriesForClass(name);
+		for (ClasspathIndex.Entry entry : entries) {
+			try {
+				JarFile jarFile = getJarFile(entry.getFile());
+				JarEntry jarEntry = jarFile.getJarEntry(entryName);
+				if (jarEntry != null) {
+					return defineClass(name, entry.getFile(), jarFile, jarEntry);
+				}
+			} catch (IOException e) {
+				throw new ClassNotFoundException(name, e);
+			}
+		}
+
+		// Exploded directories aren't indexed by package.
+		if (hasUnindexedEntries) {
+			return super.findClass(name);
+		}
+		throw new ClassNotFoundException(name);
+	}
+
+	private Class<?> defineClass(String name, File file, JarFile jarFile, JarEntry jarEntry) throws IOException {
+		byte[] bytes = readEntry(jarFile, jarEntry);
+		URL url = file.toURI().toURL();
+		int lastDot = name.lastIndexOf('.');
+		if (lastDot > 0) {
+			String packageName = name.substring(0, lastDot);
+			if (getPackage(packageName) == null) {
+				Manifest manifest = jarFile.getManifest();
+				try {
+					if (manifest != null) {
+						definePackage(packageName, manifest, url);
+					} else {
+						definePackage(packageName, null, null, null, null, null, null, null);
+					}
+				} catch (IllegalArgumentException e) {
+					// Another thread defined the package first.
+				}
+			}
+		}
+
+		// The code signers are only available once the entry has been read.
+		CodeSigner[] signers = jarEntry.getCodeSigners();
+		return defineClass(name, bytes, 0, bytes.length, new CodeSource(url, signers));
+	}
+
+	private JarFile getJarFile(File file) throws IOException {
+		JarFile jarFile = openJars.get(file);
+		if (jarFile == null) {
+			jarFile = new JarFile(file);
+			JarFile existing = openJars.putIfAbsent(file, jarFile);
+			if (existing != null) {
+				jarFile.close();
+				jarFile = existing;
+			}
+		}
+		return jarFile;
+	}
+
+	private static byte[] readEntry(JarFile jarFile, JarEntry jarEntry) throws IOException {
+		InputStream in = jarFile.getInputStream(jarEntry);
+		try {
+			long size = jarEntry.getSize();
+			ByteArrayOutputStream out = new ByteArrayOutputStream((size > 0) ? (int)size : 4096);
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Releases the open jar files. After this, no more classes can be loaded,
+	 * and the loader and its classes can be collected once nothing else refers
+	 * to them.
+	 */
+	public void dispose() {
+		closed = true;
+		for (JarFile jarFile : openJars.values()) {
+			try {
+				jarFile.close();
+			} catch (IOException e) {
+				log.debug(e);
+			}
+		}
+		openJars.clear();
+
+		// URLClassLoader.close() only exists on Java 7 and later.
+		try {
+			Method closeMethod = URLClassLoader.class.getMethod("close", new Class[0]);
+			closeMethod.invoke(this, new Object[0]);
+		} catch (NoSuchMethodException e) {
+			// Nothing more to release.
+		} catch (Exception e) {
+			log.debug(e);
+		}
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+}
@@ -0,0 +1,586 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestListener;
+import junit.framework.TestResult;
+import junit.framework.TestSuite;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.runner.Describable;
+import org.junit.runner.Description;
+
+/**
+ * A long-lived JVM which starts the emulated component container once and then
+ * runs test classes inside it on behalf of other (typically Surefire-forked) JVMs.
+ *
+ * <p>
+ * Start the daemon with the test classpath and the usual Sakai properties:
+ * </p>
+ * <pre>
+ * java -cp target/test-classes:target/classes:... -Dmaven.tomcat.home=... \
+ *   org.sakaiproject.test.ContainerDaemon start
+ * </pre>
+ *
+ * <p>
+ * Test classes opt in by routing their "suite()" method through {@link #suite(Class)}.
+ * When the "test.harness.daemon.port" Java system property is set and a daemon is
+ * listening on that port, the test class is run remotely and its results are
+ * reported back to the local JUnit runner. Otherwise the test class runs locally
+ * as usual.
+ * </p>
+ *
+ * <p>
+ * While the daemon is running, calls to {@link ComponentContainerEmulator#stopComponentManager()}
+ * made by test code are ignored so that the container stays warm. To get a clean
+ * container, set "test.harness.daemon.restart=true" on the client side (the
+ * container is restarted before each test class), or run "ContainerDaemon restart".
+ * Test classes themselves are loaded by the daemon JVM, so restart the daemon after
+ * recompiling them.
+ * </p>
+ */
+public class ContainerDaemon {
+	private static final Log log = LogFactory.getLog(ContainerDaemon.class);
+
+	public static final String PORT_PROPERTY = "test.harness.daemon.port";
+	public static final String RESTART_PROPERTY = "test.harness.daemon.restart";
+	public static final int DEFAULT_PORT = 18987;
+
+	// Protocol commands.
+	static final byte CMD_RUN = 1;
+	static final byte CMD_RESTART = 2;
+	static final byte CMD_PING = 3;
+	static final byte CMD_SHUTDOWN = 4;
+
+	// Protocol events.
+	static final byte EVT_START = 1;
+	static final byte EVT_FAILURE = 2;
+	static final byte EVT_ERROR = 3;
+	static final byte EVT_END = 4;
+	static final byte EVT_DONE = 5;
+	static final byte EVT_OK = 6;
+
+	// Keep writeUTF well inside its 64K limit.
+	private static final int MAX_STRING_LENGTH = 16000;
+
+	private static volatile boolean daemonProcess;
+
+	private final int port;
+	private ServerSocket serverSocket;
+	private volatile boolean running;
+
+	public ContainerDaemon(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Usage: ContainerDaemon [start|stop|restart|ping] [port]
+	 */
+	public static void main(String[] args) throws Exception {
+		String command = (args.length > 0) ? args[0] : "start";
+		int port = (args.length > 1) ? Integer.parseInt(args[1]) : getConfiguredPort();
+		if ("start".equals(command)) {
+			new ContainerDaemon(port).run();
+		} else if ("stop".equals(command)) {
+			sendCommand(port, CMD_SHUTDOWN);
+		} else if ("restart".equals(command)) {
+			sendCommand(port, CMD_RESTART);
+		} else if ("ping".equals(command)) {
+			System.out.println(isListening(port) ? "Daemon is listening on port " + port : "No daemon on port " + port);
+		} else {
+			System.err.println("Usage: ContainerDaemon [start|stop|restart|ping] [port]");
+		}
+	}
+
+	/**
+	 * Starts the component manager and serves requests until told to shut down.
+	 */
+	public void run() throws IOException {
+		daemonProcess = true;
+		startContainer();
+		try {
+			serve();
+		} finally {
+			stopContainer();
+			daemonProcess = false;
+		}
+	}
+
+	/**
+	 * Serves requests on the port until told to shut down, leaving the
+	 * component manager alone.
+	 */
+	void serve() throws IOException {
+		// Only accept local connections.
+		serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+		running = true;
+		if (log.isInfoEnabled()) log.info("Container daemon listening on port " + port);
+		try {
+			while (running) {
+				Socket socket = serverSocket.accept();
+				try {
+					handle(socket);
+				} catch (IOException e) {
+					log.warn("Lost connection to test client", e);
+				} finally {
+					socket.close();
+				}
+			}
+		} finally {
+			serverSocket.close();
+		}
+	}
+
+	void startContainer() {
+		SakaiTestTimer timer = new SakaiTestTimer("Container daemon startup");
+		ComponentContainerEmulator.startComponentManagerForTest();
+		ComponentContainerEmulator.setKeepAlive(true);
+		timer.logTimeElapsed();
+	}
+
+	void stopContainer() {
+		ComponentContainerEmulator.setKeepAlive(false);
+		ComponentContainerEmulator.stopComponentManager();
+	}
+
+	private void handle(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		byte command = in.readByte();
+		// A broken component manager shouldn't take the daemon down with it:
+		// the client hears about it and the next connection is served as usual.
+		try {
+			switch (command) {
+			case CMD_RUN:
+				String className = in.readUTF();
+				boolean restart = in.readBoolean();
+				if (restart) {
+					restartContainer();
+				}
+				runTestClass(className, out);
+				break;
+			case CMD_RESTART:
+				restartContainer();
+				out.writeByte(EVT_OK);
+				break;
+			case CMD_PING:
+				out.writeByte(EVT_OK);
+				break;
+			case CMD_SHUTDOWN:
+				running = false;
+				out.writeByte(EVT_OK);
+				break;
+			default:
+				log.warn("Unknown daemon command " + command);
+			}
+		} catch (RuntimeException e) {
+			writeCommandError(command, e, out);
+		} catch (Error e) {
+			writeCommandError(command, e, out);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Reports a command which failed in the daemon itself, rather than in a
+	 * test, as an error against the whole test class (for CMD_RUN) or instead
+	 * of EVT_OK.
+	 */
+	private void writeCommandError(byte command, Throwable t, DataOutputStream out) throws IOException {
+		log.error("Container daemon command " + command + " failed", t);
+		out.writeByte(EVT_ERROR);
+		out.writeUTF("container daemon");
+		writeThrowable(out, t);
+		if (command == CMD_RUN) {
+			out.writeByte(EVT_DONE);
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeInt(1);
+		}
+	}
+
+	void restartContainer() {
+		SakaiTestTimer timer = new SakaiTestTimer("Container daemon restart");
+		ComponentContainerEmulator.setKeepAlive(false);
+		try {
+			ComponentContainerEmulator.stopComponentManager();
+			ComponentContainerEmulator.startComponentManagerForTest();
+		} finally {
+			ComponentContainerEmulator.setKeepAlive(true);
+		}
+		timer.logTimeElapsed();
+	}
+
+	private void runTestClass(String className, final DataOutputStream out) throws IOException {
+		if (log.isInfoEnabled()) log.info("Running " + className);
+		TestResult result = new TestResult();
+		final IOException[] writeFailure = new IOException[1];
+		result.addListener(new TestListener() {
+			public void startTest(Test test) {
+				write(EVT_START, test, null);
+			}
+			public void addFailure(Test test, AssertionFailedError t) {
+				write(EVT_FAILURE, test, t);
+			}
+			public void addError(Test test, Throwable t) {
+				write(EVT_ERROR, test, t);
+			}
+			public void endTest(Test test) {
+				write(EVT_END, test, null);
+			}
+			private void write(byte event, Test test, Throwable t) {
+				if (writeFailure[0] != null) return;
+				try {
+					out.writeByte(event);
+					out.writeUTF(truncate(String.valueOf(test)));
+					if (t != null) {
+						writeThrowable(out, t);
+					}
+				} catch (IOException e) {
+					writeFailure[0] = e;
+				}
+			}
+		});
+
+		// The container may have been stopped by an earlier test class.
+		if (!ComponentContainerEmulator.isStarted()) {
+			restartContainer();
+		}
+
+		Test test;
+		try {
+			test = createLocalTest(Class.forName(className));
+		} catch (Throwable t) {
+			test = warning(className, t);
+		}
+		test.run(result);
+		if (writeFailure[0] != null) {
+			throw writeFailure[0];
+		}
+		out.writeByte(EVT_DONE);
+		out.writeInt(result.runCount());
+		out.writeInt(result.failureCount());
+		out.writeInt(result.errorCount());
+	}
+
+	/**
+	 * Routes a test class through the daemon if one has been configured and is
+	 * listening. Use this from the test class's "suite()" method:
+	 *
+	 * <pre>
+	 * public static Test suite() {
+	 *     return ContainerDaemon.suite(MyIntegrationTest.class);
+	 * }
+	 * </pre>
+	 *
+	 * @param testClass the test class to run
+	 * @return a remote proxy for the test class, or the local test suite
+	 */
+	public static Test suite(Class<?> testClass) {
+		return suite(testClass, new TestSuite(testClass));
+	}
+
+	/**
+	 * As above, but with an explicitly built local suite (for example, a
+	 * TestSetup which calls "oneTimeSetup()" and "oneTimeTearDown()").
+	 */
+	public static Test suite(Class<?> testClass, Test localSuite) {
+		if (daemonProcess) {
+			return localSuite;
+		}
+		String portValue = ComponentContainerEmulator.getPassthroughSystemProperty(PORT_PROPERTY);
+		if ((portValue == null) || (portValue.length() == 0)) {
+			return localSuite;
+		}
+		int port = Integer.parseInt(portValue);
+		if (!isListening(port)) {
+			log.warn("No container daemon is listening on port " + port + ", so running " + testClass.getName() + " locally");
+			return localSuite;
+		}
+		boolean restart = Boolean.valueOf(ComponentContainerEmulator.getPassthroughSystemProperty(RESTART_PROPERTY)).booleanValue();
+		return new RemoteTest(testClass.getName(), port, restart, localSuite.countTestCases());
+	}
+
+	public static boolean isDaemonProcess() {
+		return daemonProcess;
+	}
+
+	private static int getConfiguredPort() {
+		String portValue = ComponentContainerEmulator.getPassthroughSystemProperty(PORT_PROPERTY);
+		return ((portValue != null) && (portValue.length() > 0)) ? Integer.parseInt(portValue) : DEFAULT_PORT;
+	}
+
+	static boolean isListening(int port) {
+		try {
+			sendCommand(port, CMD_PING);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	static void sendCommand(int port, byte command) throws IOException {
+		Socket socket = new Socket(InetAddress.getByName(null), port);
+		try {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			out.writeByte(command);
+			out.flush();
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			byte response = in.readByte();
+			if (response == EVT_ERROR) {
+				in.readUTF();
+				Throwable t = readThrowable(in, false);
+				IOException e = new IOException("Container daemon failed: " + t.getMessage());
+				e.initCause(t);
+				throw e;
+			} else if (response != EVT_OK) {
+				throw new IOException("Unexpected daemon response");
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Builds the local test the same way the JUnit runner would: through
+	 * the class's "suite()" method if it has one.
+	 */
+	private static Test createLocalTest(Class<?> testClass) throws Exception {
+		try {
+			Method suiteMethod = testClass.getMethod("suite", new Class[0]);
+			if (Modifier.isStatic(suiteMethod.getModifiers())) {
+				return (Test)suiteMethod.invoke(null, new Object[0]);
+			}
+		} catch (NoSuchMethodException e) {
+			// Fall through to the default suite.
+		}
+		return new TestSuite(testClass);
+	}
+
+	private static Test warning(final String className, final Throwable t) {
+		return new Test() {
+			public int countTestCases() {
+				return 1;
+			}
+			public void run(TestResult result) {
+				result.startTest(this);
+				result.addError(this, t);
+				result.endTest(this);
+			}
+			public String toString() {
+				return "warning(" + className + ")";
+			}
+		};
+	}
+
+	private static String truncate(String value) {
+		if (value == null) return "";
+		return (value.length() > MAX_STRING_LENGTH) ? value.substring(0, MAX_STRING_LENGTH) : value;
+	}
+
+	static void writeThrowable(DataOutputStream out, Throwable t) throws IOException {
+		out.writeUTF(t.getClass().getName());
+		out.writeUTF(truncate(t.getMessage()));
+		StackTraceElement[] frames = t.getStackTrace();
+		out.writeInt(frames.length);
+		for (StackTraceElement frame : frames) {
+			out.writeUTF(frame.getClassName());
+			out.writeUTF(frame.getMethodName());
+			out.writeUTF((frame.getFileName() != null) ? frame.getFileName() : "");
+			out.writeInt(frame.getLineNumber());
+		}
+	}
+
+	static Throwable readThrowable(DataInputStream in, boolean failure) throws IOException {
+		String className = in.readUTF();
+		String message = in.readUTF();
+		Throwable t;
+		if (failure) {
+			t = new AssertionFailedError(message);
+		} else {
+			t = new RemoteTestException(className, message);
+		}
+		StackTraceElement[] frames = new StackTraceElement[in.readInt()];
+		for (int i = 0; i < frames.length; i++) {
+			String declaringClass = in.readUTF();
+			String methodName = in.readUTF();
+			String fileName = in.readUTF();
+			int lineNumber = in.readInt();
+			frames[i] = new StackTraceElement(declaringClass, methodName, (fileName.length() > 0) ? fileName : null, lineNumber);
+		}
+		t.setStackTrace(frames);
+		return t;
+	}
+
+	/**
+	 * Stands in for an exception thrown inside the daemon, which may not be
+	 * loadable (or serializable) in the client JVM.
+	 */
+	public static class RemoteTestException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		private final String remoteClassName;
+
+		public RemoteTestException(String remoteClassName, String message) {
+			super(message);
+			this.remoteClassName = remoteClassName;
+		}
+
+		public String getRemoteClassName() {
+			return remoteClassName;
+		}
+
+		public String toString() {
+			String message = getLocalizedMessage();
+			return (message != null) ? (remoteClassName + ": " + message) : remoteClassName;
+		}
+	}
+
+	/**
+	 * Client-side proxy for a test class which runs inside the daemon.
+	 */
+	static class RemoteTest implements Test {
+		private final String className;
+		private final int port;
+		private final boolean restart;
+		private final int testCaseCount;
+
+		RemoteTest(String className, int port, boolean restart, int testCaseCount) {
+			this.className = className;
+			this.port = port;
+			this.restart = restart;
+			this.testCaseCount = testCaseCount;
+		}
+
+		public int countTestCases() {
+			return testCaseCount;
+		}
+
+		public void run(TestResult result) {
+			Socket socket = null;
+			try {
+				socket = new Socket(InetAddress.getByName(null), port);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				out.writeByte(CMD_RUN);
+				out.writeUTF(className);
+				out.writeBoolean(restart);
+				out.flush();
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				Test current = this;
+				while (true) {
+					byte event = in.readByte();
+					if (event == EVT_DONE) {
+						if (log.isDebugEnabled()) log.debug(className + " ran remotely: runs=" + in.readInt() + ", failures=" + in.readInt() + ", errors=" + in.readInt());
+						break;
+					}
+					String testName = in.readUTF();
+					switch (event) {
+					case EVT_START:
+						current = new RemoteTestCase(testName);
+						result.startTest(current);
+						break;
+					case EVT_FAILURE:
+						result.addFailure(current, (AssertionFailedError)readThrowable(in, true));
+						break;
+					case EVT_ERROR:
+						result.addError(current, readThrowable(in, false));
+						break;
+					case EVT_END:
+						result.endTest(current);
+						current = this;
+						break;
+					default:
+						throw new IOException("Unexpected daemon event " + event);
+					}
+				}
+			} catch (IOException e) {
+				result.addError(this, e);
+			} finally {
+				if (socket != null) {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						log.debug(e);
+					}
+				}
+			}
+		}
+
+		public String toString() {
+			return className;
+		}
+	}
+
+	/**
+	 * Local description of a test which ran remotely. The name is the remote
+	 * test's "toString()", e.g. "testSomething(org.example.MyTest)". JUnit 3
+	 * reporters see a TestCase named after the test method, and JUnit 4 ones
+	 * (which would otherwise describe it by this class) see the remote test's
+	 * own description.
+	 */
+	static class RemoteTestCase extends TestCase implements Describable {
+		private final String remoteName;
+
+		RemoteTestCase(String remoteName) {
+			super(methodName(remoteName));
+			this.remoteName = remoteName;
+		}
+
+		public Description getDescription() {
+			return Description.createSuiteDescription(remoteName);
+		}
+
+		/**
+		 * The test has already run in the daemon, so running it again here
+		 * just reports that it can't be.
+		 */
+		@Override
+		protected void runTest() throws Throwable {
+			fail(remoteName + " can only be run by the container daemon");
+		}
+
+		@Override
+		public String toString() {
+			return remoteName;
+		}
+
+		private static String methodName(String remoteName) {
+			int paren = remoteName.indexOf('(');
+			return (paren > 0) ? remoteName.substring(0, paren) : remoteName;
+		}
+	}
+}
@@ -0,0 +1,438 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Holds several independent Sakai containers in one JVM so that integration
+ * test classes can run in parallel.
+ *
+ * Each container gets its own isolating {@link ContainerClassLoader} (and so its
+ * own component manager and static state), its own copy of the Sakai home
+ * directory, and its own in-memory database. Containers are started lazily, one
+ * at a time, as they're first leased.
+ *
+ * <pre>
+ * SakaiContainer container = ContainerPool.getSharedPool().lease();
+ * try {
+ *     // ComponentContainerEmulator.getService(...) now uses the leased container
+ *     // on this thread.
+ * } finally {
+ *     ContainerPool.getSharedPool().release(container);
+ * }
+ * </pre>
+ *
+ * Sakai only reads "sakai.home" and "sakai.components.root" from the system
+ * properties while starting, so those are set per container during startup.
+ * Components which read such properties later will see the values from the
+ * most recently started container.
+ */
+public class ContainerPool {
+	private static final Log log = LogFactory.getLog(ContainerPool.class);
+
+	/**
+	 * Java system property for the number of containers in the shared pool. Defaults
+	 * to the number of available processors.
+	 */
+	public static final String SIZE_PROPERTY = "test.harness.pool.size";
+
+	/**
+	 * Java system property for the database URL pattern, in which "{0}" is replaced
+	 * by the container number. Set it to an empty string to leave the database
+	 * configuration alone.
+	 */
+	public static final String DATABASE_URL_PROPERTY = "test.harness.pool.databaseUrl";
+	public static final String DEFAULT_DATABASE_URL = "jdbc:hsqldb:mem:sakai-pool-{0}";
+
+	private static ContainerPool sharedPool;
+
+	private final String tomcatHome;
+	private final String baseSakaiHome;
+	private final int size;
+	private final File workDir;
+	private final String databaseUrlPattern;
+	private final List<SakaiContainer> containers = new ArrayList<SakaiContainer>();
+	private final BlockingQueue<SakaiContainer> idle = new LinkedBlockingQueue<SakaiContainer>();
+	private final Map<SakaiContainer, Lease> leases = new IdentityHashMap<SakaiContainer, Lease>();
+	private int starting;
+	private int nextNumber;
+	private final Object setupLock = new Object();
+	private ClasspathIndex index;
+	private SchemaImage schemaImage;
+	private boolean schemaImageChecked;
+	private volatile boolean shutdown;
+
+	/**
+	 * How often a thread waiting for a container checks whether a slot has
+	 * come free because another thread's start failed.
+	 */
+	private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * @param tomcatHome the Tomcat deployment to load components from
+	 * @param baseSakaiHome the Sakai home to copy for each container, or null
+	 * @param size the maximum number of containers
+	 * @param workDir where to put each container's Sakai home
+	 * @param databaseUrlPattern the database URL for each container, with "{0}" standing
+	 *	for the container number, or null to use the configured database
+	 */
+	public ContainerPool(String tomcatHome, String baseSakaiHome, int size, File workDir, String databaseUrlPattern) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Pool size must be positive");
+		}
+		this.tomcatHome = ComponentContainerEmulator.normalizeTomcatHome(tomcatHome);
+		this.baseSakaiHome = baseSakaiHome;
+		this.size = size;
+		this.workDir = workDir;
+		this.databaseUrlPattern = databaseUrlPattern;
+	}
+
+	/**
+	 * @return a JVM-wide pool configured like {@link ComponentContainerEmulator#startComponentManagerForTest()},
+	 * which is shut down when the JVM exits
+	 */
+	public static synchronized ContainerPool getSharedPool() {
+		if (sharedPool == null) {
+			String sizeValue = ComponentContainerEmulator.getPassthroughSystemProperty(SIZE_PROPERTY);
+			int size = ((sizeValue != null) && (sizeValue.length() > 0)) ? Integer.parseInt(sizeValue) : Runtime.getRuntime().availableProcessors();
+			String databaseUrlPattern = ComponentContainerEmulator.getPassthroughSystemProperty(DATABASE_URL_PROPERTY);
+			if (databaseUrlPattern == null) {
+				databaseUrlPattern = DEFAULT_DATABASE_URL;
+			} else if (databaseUrlPattern.length() == 0) {
+				databaseUrlPattern = null;
+			}
+			// Each JVM gets its own work directory, so parallel forks don't
+			// restore database images over each other.
+			final File workDir;
+			try {
+				workDir = HarnessFiles.createWorkDirectory("container-pool");
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			final ContainerPool pool = new ContainerPool(ComponentContainerEmulator.findTestTomcatHome(),
+				ComponentContainerEmulator.findTestSakaiHome(), size, workDir, databaseUrlPattern);
+			Runtime.getRuntime().addShutdownHook(new Thread("ContainerPool shutdown") {
+				public void run() {
+					pool.shutdown();
+					HarnessFiles.delete(workDir);
+				}
+			});
+			sharedPool = pool;
+		}
+		return sharedPool;
+	}
+
+	/**
+	 * Leases a container, starting a new one if the pool isn't full yet and otherwise
+	 * waiting for one to be released. The container is bound to the current thread,
+	 * so the static methods of {@link ComponentContainerEmulator} (and the test base
+	 * classes which use them) will use it until it's released.
+	 */
+	public SakaiContainer lease() throws InterruptedException {
+		return lease(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the leased container, or null if none became free within the timeout
+	 */
+	public SakaiContainer lease(long timeout, TimeUnit unit) throws InterruptedException {
+		if (shutdown) {
+			throw new IllegalStateException("Container pool has been shut down");
+		}
+		SakaiContainer container = idle.poll();
+		if (container == null) {
+			container = startNewContainer();
+		}
+		long remainingNanos = unit.toNanos(timeout);
+		while (container == null) {
+			if (shutdown) {
+				throw new IllegalStateException("Container pool has been shut down");
+			}
+			if (remainingNanos <= 0) {
+				return null;
+			}
+			long waitNanos = Math.min(remainingNanos, RETRY_NANOS);
+			container = idle.poll(waitNanos, TimeUnit.NANOSECONDS);
+			if (container == null) {
+				remainingNanos -= waitNanos;
+				container = startNewContainer();
+			}
+		}
+		synchronized (leases) {
+			leases.put(container, new Lease(Thread.currentThread(), Thread.currentThread().getContextClassLoader()));
+		}
+		Thread.currentThread().setContextClassLoader(container.getClassLoader());
+		ComponentContainerEmulator.setLeasedContainer(container);
+		if (log.isDebugEnabled()) log.debug(Thread.currentThread().getName() + " leased " + container);
+		return container;
+	}
+
+	/**
+	 * Returns a leased container to the pool and, if the current thread leased
+	 * it, unbinds it from the thread. A container released from another thread
+	 * stays bound to the thread which leased it, so that thread shouldn't use
+	 * the harness any more.
+	 *
+	 * @throws IllegalStateException if the container isn't currently leased
+	 * from this pool, as when it's released twice
+	 */
+	public void release(SakaiContainer container) {
+		Lease lease;
+		synchronized (leases) {
+			lease = leases.remove(container);
+		}
+		if (lease == null) {
+			throw new IllegalStateException("Container " + container + " is not leased from this pool");
+		}
+		Thread current = Thread.currentThread();
+		if (lease.thread == current) {
+			if (ComponentContainerEmulator.getCurrentContainer() == container) {
+				ComponentContainerEmulator.setLeasedContainer(null);
+			}
+			current.setContextClassLoader(lease.previousContextClassLoader);
+		} else {
+			log.warn(current.getName() + " released " + container + " leased by " + lease.thread.getName());
+		}
+		if (log.isDebugEnabled()) log.debug(current.getName() + " released " + container);
+		if (!shutdown) {
+			idle.offer(container);
+		}
+	}
+
+	/**
+	 * Stops all the containers and releases their class loaders.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		List<SakaiContainer> toStop;
+		synchronized (this) {
+			toStop = new ArrayList<SakaiContainer>(containers);
+			containers.clear();
+		}
+		idle.clear();
+		synchronized (leases) {
+			leases.clear();
+		}
+		List<LeakAudit> leakAudits = new ArrayList<LeakAudit>();
+		for (SakaiContainer container : toStop) {
+			leakAudits.addAll(LeakAudit.getAudits(container));
+			container.stop();
+			((ContainerClassLoader)container.getClassLoader()).dispose();
+		}
+		toStop.clear();
+		LeakAudit.finish(leakAudits);
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return how many containers have been started so far
+	 */
+	public synchronized int getStartedCount() {
+		return containers.size();
+	}
+
+	/**
+	 * Reserves a slot while holding the pool's lock, but starts the container
+	 * without it, so that other threads can lease idle containers (or start
+	 * their own) meanwhile. The slot is given back if the start fails.
+	 *
+	 * @return the new container, or null if the pool is full or shut down
+	 */
+	private SakaiContainer startNewContainer() {
+		int number;
+		synchronized (this) {
+			if (shutdown || (containers.size() + starting >= size)) {
+				return null;
+			}
+			starting++;
+			number = nextNumber++;
+		}
+		SakaiContainer container = null;
+		try {
+			container = startContainer(number);
+		} finally {
+			if (container == null) {
+				synchronized (this) {
+					starting--;
+				}
+			}
+		}
+		synchronized (this) {
+			starting--;
+			if (!shutdown) {
+				containers.add(container);
+				return container;
+			}
+		}
+		// Shut down while it was starting.
+		container.stop();
+		((ContainerClassLoader)container.getClassLoader()).dispose();
+		return null;
+	}
+
+	private SakaiContainer startContainer(int number) {
+		boolean useImage;
+		synchronized (setupLock) {
+			if (index == null) {
+				index = ClasspathIndex.load(ComponentContainerEmulator.getLibraryDirs(tomcatHome));
+			}
+			if (!schemaImageChecked && (baseSakaiHome != null) && SchemaImage.isEnabled()) {
+				try {
+					schemaImage = SchemaImage.forComponents(tomcatHome + "components/", baseSakaiHome);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				schemaImageChecked = true;
+			}
+			useImage = (schemaImage != null) && schemaImage.exists();
+		}
+		ContainerClassLoader loader = new ContainerClassLoader(index, ContainerPool.class.getClassLoader(), true);
+		SakaiContainer container;
+		try {
+			container = new SakaiContainer("pool-" + number, tomcatHome + "components/", prepareSakaiHome(number, useImage), loader);
+			container.setBaseSakaiHome(baseSakaiHome);
+			ComponentContainerEmulator.configureContainer(container);
+			container.start();
+			if ((schemaImage != null) && !useImage) {
+				schemaImage.capture(container);
+			}
+		} catch (IOException e) {
+			loader.dispose();
+			throw new RuntimeException(e);
+		} catch (RuntimeException e) {
+			loader.dispose();
+			throw e;
+		}
+		return container;
+	}
+
+	/**
+	 * Copies the files in the base Sakai home to a directory of the container's own,
+	 * and points its data source at a database of its own: either a copy of the
+	 * database image, or an empty in-memory database.
+	 */
+	private String prepareSakaiHome(int number, boolean useImage) throws IOException {
+		File sakaiHome = new File(workDir, "sakai-home-" + number);
+		copySakaiHome(baseSakaiHome, sakaiHome);
+		Map<String, String> overrides = new LinkedHashMap<String, String>();
+		if (useImage) {
+			schemaImage.applyTo(sakaiHome, overrides);
+		} else if (databaseUrlPattern != null) {
+			overrides.put("vendor@org.sakaiproject.db.api.SqlService", "hsqldb");
+			overrides.put("driverClassName@javax.sql.BaseDataSource", "org.hsqldb.jdbcDriver");
+			overrides.put("url@javax.sql.BaseDataSource", MessageFormat.format(databaseUrlPattern, new Object[] {Integer.toString(number)}));
+		}
+		if (!overrides.isEmpty()) {
+			appendProperties(new File(sakaiHome, "sakai.properties"), overrides, "Per-container settings added by ContainerPool");
+		}
+		return sakaiHome.getAbsolutePath() + File.separator;
+	}
+
+	/**
+	 * Copies the top-level files of a Sakai home, if there is one.
+	 */
+	static void copySakaiHome(String baseSakaiHome, File sakaiHome) throws IOException {
+		sakaiHome.mkdirs();
+		if (baseSakaiHome != null) {
+			File[] files = new File(baseSakaiHome).listFiles();
+			if (files != null) {
+				for (File file : files) {
+					if (file.isFile()) {
+						copyFile(file, new File(sakaiHome, file.getName()));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends settings to a properties file. Later settings win when Sakai loads
+	 * the file, so this overrides anything copied from the original.
+	 */
+	static void appendProperties(File propertiesFile, Map<String, String> properties, String comment) throws IOException {
+		PrintWriter writer = new PrintWriter(new FileWriter(propertiesFile, true));
+		try {
+			writer.println();
+			writer.println("# " + comment);
+			for (Map.Entry<String, String> entry : properties.entrySet()) {
+				writer.println(entry.getKey() + "=" + entry.getValue());
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	static void copyFile(File from, File to) throws IOException {
+		InputStream in = new FileInputStream(from);
+		try {
+			OutputStream out = new FileOutputStream(to);
+			try {
+				byte[] buffer = new byte[8192];
+				int count;
+				while ((count = in.read(buffer)) != -1) {
+					out.write(buffer, 0, count);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * The thread holding a leased container, and what to restore when it's released.
+	 */
+	private static class Lease {
+		final Thread thread;
+		final ClassLoader previousContextClassLoader;
+
+		Lease(Thread thread, ClassLoader previousContextClassLoader) {
+			this.thread = thread;
+			this.previousContextClassLoader = previousContextClassLoader;
+		}
+	}
+}
@@ -0,0 +1,421 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.lang.reflect.Method;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * The contents of a container's databases at one moment, which can be put back
+ * between tests far faster than the container can be restarted.
+ *
+ * Every table reachable through the container's data source beans is copied
+ * into memory. On restore, each table is read again and only the tables whose
+ * rows differ are emptied and refilled, with referential integrity checks
+ * switched off where the database allows it. Component caches are then cleared
+ * so that no service hands out rows which no longer exist.
+ *
+ * This is meant for the small databases tests run against (normally HSQLDB in
+ * memory). State which components hold outside the database and the caches,
+ * such as sessions or static fields, is not restored.
+ */
+public class ContainerSnapshot {
+	private static final Log log = LogFactory.getLog(ContainerSnapshot.class);
+
+	private final SakaiContainer container;
+	private final List<DatabaseImage> databases;
+
+	private ContainerSnapshot(SakaiContainer container, List<DatabaseImage> databases) {
+		this.container = container;
+		this.databases = databases;
+	}
+
+	/**
+	 * Copies the current contents of the container's databases.
+	 */
+	public static ContainerSnapshot capture(SakaiContainer container) {
+		SakaiTestTimer timer = new SakaiTestTimer("Container snapshot (" + container.getName() + ")");
+		List<DatabaseImage> databases = new ArrayList<DatabaseImage>();
+		for (DataSource dataSource : findDataSources(container)) {
+			try {
+				databases.add(DatabaseImage.capture(dataSource));
+			} catch (SQLException e) {
+				throw new RuntimeException("Could not snapshot database for " + container, e);
+			}
+		}
+		timer.logTimeElapsed();
+		return new ContainerSnapshot(container, databases);
+	}
+
+	/**
+	 * Puts the databases back as they were when captured, and empties the
+	 * component caches.
+	 */
+	public void restore() {
+		SakaiTestTimer timer = new SakaiTestTimer("Container snapshot restore (" + container.getName() + ")");
+		int restoredTables = 0;
+		for (DatabaseImage database : databases) {
+			try {
+				restoredTables += database.restore();
+			} catch (SQLException e) {
+				throw new RuntimeException("Could not restore database snapshot for " + container, e);
+			}
+		}
+		resetCaches(container);
+		if (log.isDebugEnabled()) log.debug("Restored " + restoredTables + " changed tables");
+		timer.logTimeElapsed();
+	}
+
+	public SakaiContainer getContainer() {
+		return container;
+	}
+
+	/**
+	 * @return one already created data source per distinct database
+	 */
+	static List<DataSource> findDataSources(SakaiContainer container) {
+		Object context = container.getApplicationContext();
+		if (!(context instanceof ConfigurableApplicationContext)) {
+			return new ArrayList<DataSource>();
+		}
+		// Don't create lazy or prototype beans just to look at them.
+		Map<?, ?> beans = ((ConfigurableApplicationContext)context).getBeansOfType(DataSource.class, false, false);
+		List<DataSource> dataSources = new ArrayList<DataSource>();
+		Set<String> urls = new HashSet<String>();
+		for (Iterator<?> i = beans.values().iterator(); i.hasNext(); ) {
+			DataSource dataSource = (DataSource)i.next();
+			try {
+				Connection connection = dataSource.getConnection();
+				try {
+					DatabaseMetaData metaData = connection.getMetaData();
+					if (urls.add(metaData.getURL() + " " + metaData.getUserName())) {
+						dataSources.add(dataSource);
+					}
+				} finally {
+					connection.close();
+				}
+			} catch (SQLException e) {
+				log.warn("Leaving a data source out of the snapshot: " + e);
+			}
+		}
+		return dataSources;
+	}
+
+	/**
+	 * Clears Sakai's memory service caches. The memory service only lets a super
+	 * user do that, so fall back to clearing its cache manager directly.
+	 */
+	static void resetCaches(SakaiContainer container) {
+		Object memoryService = container.getService("org.sakaiproject.memory.api.MemoryService");
+		if (memoryService != null) {
+			try {
+				Method resetMethod = memoryService.getClass().getMethod("resetCachers", new Class[0]);
+				resetMethod.invoke(memoryService, new Object[0]);
+				return;
+			} catch (Exception e) {
+				if (log.isDebugEnabled()) log.debug("MemoryService.resetCachers failed, so clearing cache managers: " + e);
+			}
+		}
+		Object context = container.getApplicationContext();
+		if (!(context instanceof ConfigurableApplicationContext)) {
+			return;
+		}
+		Class<?> cacheManagerClass;
+		try {
+			cacheManagerClass = Class.forName("net.sf.ehcache.CacheManager", false, container.getClassLoader());
+		} catch (ClassNotFoundException e) {
+			return;
+		}
+		Map<?, ?> cacheManagers = ((ConfigurableApplicationContext)context).getBeansOfType(cacheManagerClass, false, false);
+		for (Iterator<?> i = cacheManagers.values().iterator(); i.hasNext(); ) {
+			Object cacheManager = i.next();
+			try {
+				cacheManagerClass.getMethod("clearAll", new Class[0]).invoke(cacheManager, new Object[0]);
+			} catch (Exception e) {
+				log.warn("Could not clear " + cacheManager + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * @return the connection's current schema, or null for any
+	 */
+	static String getCurrentSchema(Connection connection) throws SQLException {
+		try {
+			String schema = connection.getSchema();
+			if (schema != null) {
+				return schema;
+			}
+		} catch (AbstractMethodError e) {
+			// A driver older than JDBC 4.1.
+		} catch (SQLException e) {
+			if (log.isDebugEnabled()) log.debug("Driver can't give the current schema: " + e);
+		}
+		DatabaseMetaData metaData = connection.getMetaData();
+		if (metaData.getDatabaseProductName().toLowerCase().indexOf("oracle") >= 0) {
+			// Oracle's current schema is the user's own.
+			return metaData.getUserName();
+		}
+		return null;
+	}
+
+	static String escapePattern(String name, String escape) {
+		if ((name == null) || (escape == null) || (escape.length() == 0)) {
+			return name;
+		}
+		return name.replace(escape, escape + escape).replace("_", escape + "_").replace("%", escape + "%");
+	}
+
+	/**
+	 * @param quote the database's identifier quote, which is a space if it has none
+	 */
+	static String quote(String identifier, String quote) {
+		if ((quote == null) || (quote.trim().length() == 0)) {
+			return identifier;
+		}
+		return quote + identifier.replace(quote, quote + quote) + quote;
+	}
+
+	/**
+	 * The rows of every table in one database.
+	 */
+	private static class DatabaseImage {
+		private final DataSource dataSource;
+		private final Map<String, TableImage> tables;
+
+		private DatabaseImage(DataSource dataSource, Map<String, TableImage> tables) {
+			this.dataSource = dataSource;
+			this.tables = tables;
+		}
+
+		static DatabaseImage capture(DataSource dataSource) throws SQLException {
+			Map<String, TableImage> tables = new LinkedHashMap<String, TableImage>();
+			Connection connection = dataSource.getConnection();
+			try {
+				DatabaseMetaData metaData = connection.getMetaData();
+				String quote = metaData.getIdentifierQuoteString();
+				// Only this connection's own tables, not every schema it can see.
+				ResultSet tableResults = metaData.getTables(connection.getCatalog(),
+					escapePattern(getCurrentSchema(connection), metaData.getSearchStringEscape()), "%", new String[] {"TABLE"});
+				List<String> tableNames = new ArrayList<String>();
+				try {
+					while (tableResults.next()) {
+						String schema = tableResults.getString("TABLE_SCHEM");
+						String table = tableResults.getString("TABLE_NAME");
+						tableNames.add(((schema != null) ? (quote(schema, quote) + ".") : "") + quote(table, quote));
+					}
+				} finally {
+					tableResults.close();
+				}
+				for (String tableName : tableNames) {
+					tables.put(tableName, TableImage.read(connection, tableName));
+				}
+			} finally {
+				connection.close();
+			}
+			return new DatabaseImage(dataSource, tables);
+		}
+
+		/**
+		 * @return the number of tables which had changed
+		 */
+		int restore() throws SQLException {
+			Connection connection = dataSource.getConnection();
+			boolean previousAutoCommit = connection.getAutoCommit();
+			int restored = 0;
+			try {
+				List<TableImage> changed = new ArrayList<TableImage>();
+				for (TableImage table : tables.values()) {
+					if (!table.matches(TableImage.read(connection, table.name))) {
+						changed.add(table);
+					}
+				}
+				if (!changed.isEmpty()) {
+					String product = connection.getMetaData().getDatabaseProductName().toLowerCase();
+					connection.setAutoCommit(false);
+					setReferentialIntegrity(connection, product, false);
+					try {
+						for (TableImage table : changed) {
+							table.write(connection);
+						}
+					} finally {
+						setReferentialIntegrity(connection, product, true);
+					}
+					connection.commit();
+					restored = changed.size();
+				}
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(previousAutoCommit);
+				connection.close();
+			}
+			return restored;
+		}
+
+		private static void setReferentialIntegrity(Connection connection, String product, boolean on) throws SQLException {
+			String sql;
+			if (product.indexOf("hsql") >= 0) {
+				sql = "SET REFERENTIAL_INTEGRITY " + (on ? "TRUE" : "FALSE");
+			} else if (product.indexOf("mysql") >= 0) {
+				sql = "SET FOREIGN_KEY_CHECKS=" + (on ? "1" : "0");
+			} else {
+				return;
+			}
+			Statement statement = connection.createStatement();
+			try {
+				statement.execute(sql);
+			} finally {
+				statement.close();
+			}
+		}
+	}
+
+	/**
+	 * The rows of one table.
+	 */
+	private static class TableImage {
+		private final String name;
+		private final int columnCount;
+		private final int[] columnTypes;
+		private final List<Object[]> rows;
+
+		private TableImage(String name, int[] columnTypes, List<Object[]> rows) {
+			this.name = name;
+			this.columnCount = columnTypes.length;
+			this.columnTypes = columnTypes;
+			this.rows = rows;
+		}
+
+		static TableImage read(Connection connection, String name) throws SQLException {
+			Statement statement = connection.createStatement();
+			try {
+				ResultSet results = statement.executeQuery("SELECT * FROM " + name);
+				ResultSetMetaData metaData = results.getMetaData();
+				int[] columnTypes = new int[metaData.getColumnCount()];
+				for (int i = 0; i < columnTypes.length; i++) {
+					columnTypes[i] = metaData.getColumnType(i + 1);
+				}
+				List<Object[]> rows = new ArrayList<Object[]>();
+				while (results.next()) {
+					Object[] row = new Object[columnTypes.length];
+					for (int i = 0; i < columnTypes.length; i++) {
+						row[i] = detach(results.getObject(i + 1));
+					}
+					rows.add(row);
+				}
+				results.close();
+				return new TableImage(name, columnTypes, rows);
+			} finally {
+				statement.close();
+			}
+		}
+
+		/**
+		 * Large objects are only valid while their connection is open, so keep
+		 * their contents instead.
+		 */
+		private static Object detach(Object value) throws SQLException {
+			if (value instanceof Blob) {
+				Blob blob = (Blob)value;
+				return blob.getBytes(1, (int)blob.length());
+			} else if (value instanceof Clob) {
+				Clob clob = (Clob)value;
+				return clob.getSubString(1, (int)clob.length());
+			}
+			return value;
+		}
+
+		/**
+		 * Compares rows in order, which is good enough to notice a change since
+		 * an unchanged table is read back in the same order.
+		 */
+		boolean matches(TableImage other) {
+			if ((columnCount != other.columnCount) || (rows.size() != other.rows.size())) {
+				return false;
+			}
+			for (int i = 0; i < rows.size(); i++) {
+				if (!Arrays.deepEquals(rows.get(i), other.rows.get(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		void write(Connection connection) throws SQLException {
+			Statement statement = connection.createStatement();
+			try {
+				statement.executeUpdate("DELETE FROM " + name);
+			} finally {
+				statement.close();
+			}
+			if (rows.isEmpty()) {
+				return;
+			}
+			StringBuilder sql = new StringBuilder("INSERT INTO ").append(name).append(" VALUES (");
+			for (int i = 0; i < columnCount; i++) {
+				sql.append((i == 0) ? "?" : ", ?");
+			}
+			sql.append(")");
+			PreparedStatement insert = connection.prepareStatement(sql.toString());
+			try {
+				for (Object[] row : rows) {
+					for (int i = 0; i < columnCount; i++) {
+						if (row[i] == null) {
+							insert.setNull(i + 1, columnTypes[i]);
+						} else {
+							insert.setObject(i + 1, row[i]);
+						}
+					}
+					insert.addBatch();
+				}
+				insert.executeBatch();
+			} finally {
+				insert.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,644 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Fills the container with large numbers of users, sites, site memberships
+ * and groups, for testing services at production sizes.
+ *
+ * Everything is worked out from a seed, so the same settings always give the
+ * same IDs, names and memberships, and tests can find the data again through
+ * the {@link Fixture} without querying for it. IDs are numbered rather than
+ * random, so they never collide. The data is inserted through the Sakai
+ * services from a pool of threads, each working through a batch of users or
+ * sites as the administrator; the insert rates are logged.
+ *
+ * <pre>
+ * FixtureGenerator generator = new FixtureGenerator(42);
+ * generator.setUsers(100000);
+ * generator.setSites(10000);
+ * generator.setMembersPerSite(30);
+ * generator.setGroupsPerSite(2);
+ * FixtureGenerator.Fixture fixture = generator.startContainerWithFixtures();
+ * Site site = siteService.getSite(fixture.getSiteId(17));
+ * </pre>
+ *
+ * {@link #startContainerWithFixtures()} starts the component manager from a
+ * saved copy of the database with the fixtures already in it, if there is
+ * one for these settings and components, and otherwise generates them and
+ * saves the database for next time (HSQLDB only, see {@link SchemaImage}).
+ * {@link #generate()} inserts into an already running container instead.
+ */
+public class FixtureGenerator {
+	private static final Log log = LogFactory.getLog(FixtureGenerator.class);
+	private static final AtomicInteger generatorNumber = new AtomicInteger();
+
+	private static final String[] FIRST_NAMES = {
+		"Ada", "Ben", "Chen", "Dana", "Emeka", "Fatima", "Goran", "Hana", "Ivan", "Jia", "Kofi", "Lena",
+		"Mateo", "Nadia", "Omar", "Priya", "Quinn", "Rosa", "Sami", "Tariq", "Uma", "Vera", "Wei", "Yusuf",
+	};
+	private static final String[] LAST_NAMES = {
+		"Abara", "Becker", "Costa", "Dubois", "Eriksen", "Fischer", "Garcia", "Haddad", "Ito", "Jensen",
+		"Kowalski", "Lee", "Moreau", "Nguyen", "Okafor", "Petrov", "Rossi", "Silva", "Tanaka", "Wong",
+	};
+	static final String MAINTAIN_ROLE = "maintain";
+	static final String ACCESS_ROLE = "access";
+	private static final int MIN_DIGITS = 7;
+
+	private final long seed;
+	private int users = 100;
+	private int sites = 10;
+	private int membersPerSite = 10;
+	private int groupsPerSite;
+	private int membersPerGroup = 5;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int batchSize = 100;
+
+	public FixtureGenerator(long seed) {
+		this.seed = seed;
+	}
+
+	public void setUsers(int users) {
+		this.users = users;
+	}
+
+	public void setSites(int sites) {
+		this.sites = sites;
+	}
+
+	/**
+	 * @param membersPerSite how many users each site has, the first of them
+	 * with the "maintain" role and the rest with "access"
+	 */
+	public void setMembersPerSite(int membersPerSite) {
+		this.membersPerSite = membersPerSite;
+	}
+
+	public void setGroupsPerSite(int groupsPerSite) {
+		this.groupsPerSite = groupsPerSite;
+	}
+
+	/**
+	 * @param membersPerGroup how many of the site's members are in each group
+	 */
+	public void setMembersPerGroup(int membersPerGroup) {
+		this.membersPerGroup = membersPerGroup;
+	}
+
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one thread is needed");
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * @param batchSize how many users each thread inserts before taking the
+	 * next batch; sites are batched to cover about as many memberships
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batches can't be empty");
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return the fixture these settings describe, without inserting anything
+	 */
+	public Fixture getFixture() {
+		return new Fixture(seed, users, sites, Math.min(membersPerSite, users), groupsPerSite,
+			Math.min(membersPerGroup, Math.min(membersPerSite, users)));
+	}
+
+	/**
+	 * Inserts the fixture into the running container. Users and sites which
+	 * already exist are skipped.
+	 */
+	public Fixture generate() throws InterruptedException {
+		Fixture fixture = getFixture();
+		fixture.result = insert(fixture);
+		return fixture;
+	}
+
+	/**
+	 * Starts the component manager with the fixture in its database, from a
+	 * saved copy if possible. If the component manager is already running,
+	 * this is the same as {@link #generate()}.
+	 */
+	public Fixture startContainerWithFixtures() throws InterruptedException {
+		Fixture fixture = getFixture();
+		if (ComponentContainerEmulator.isStarted()) {
+			log.warn("Component manager is already running, so generating fixtures without saving them");
+			fixture.result = insert(fixture);
+			return fixture;
+		}
+		String tomcatHome = ComponentContainerEmulator.findTestTomcatHome();
+		String sakaiHome = ComponentContainerEmulator.findTestSakaiHome();
+		SchemaImage image = null;
+		if (sakaiHome != null) {
+			try {
+				image = SchemaImage.forComponents(ComponentContainerEmulator.normalizeTomcatHome(tomcatHome) + "components/",
+					sakaiHome, "db-fixtures-", fixture.getKey());
+			} catch (IOException e) {
+				log.warn("Not saving fixtures: " + e);
+			}
+		}
+		boolean saved = (image != null) && image.exists();
+		ComponentContainerEmulator.startComponentManager(tomcatHome, sakaiHome, image);
+		if (saved) {
+			if (log.isInfoEnabled()) log.info("Started with saved fixtures " + fixture);
+			return fixture;
+		}
+		fixture.result = insert(fixture);
+		if ((image != null) && (fixture.result.getErrors() == 0)) {
+			image.capture(ComponentContainerEmulator.getCurrentContainer());
+		}
+		return fixture;
+	}
+
+	/**
+	 * The users, sites, memberships and groups for one set of settings. Users
+	 * and sites are numbered from 0.
+	 */
+	public static class Fixture {
+		private final long seed;
+		private final int users;
+		private final int sites;
+		private final int membersPerSite;
+		private final int groupsPerSite;
+		private final int membersPerGroup;
+		private final String prefix;
+		private final int userDigits;
+		private final int siteDigits;
+		private Result result;
+
+		Fixture(long seed, int users, int sites, int membersPerSite, int groupsPerSite, int membersPerGroup) {
+			this.seed = seed;
+			this.users = users;
+			this.sites = sites;
+			this.membersPerSite = membersPerSite;
+			this.groupsPerSite = groupsPerSite;
+			this.membersPerGroup = membersPerGroup;
+			this.prefix = "fx" + Long.toHexString(seed) + "-";
+			// Pad to a fixed width so that growing a fixture keeps the IDs it had.
+			this.userDigits = Math.max(MIN_DIGITS, Integer.toString(Math.max(users - 1, 0)).length());
+			this.siteDigits = Math.max(MIN_DIGITS, Integer.toString(Math.max(sites - 1, 0)).length());
+		}
+
+		public int getUserCount() {
+			return users;
+		}
+
+		public int getSiteCount() {
+			return sites;
+		}
+
+		public int getGroupsPerSite() {
+			return groupsPerSite;
+		}
+
+		public String getUserId(int user) {
+			return prefix + "user-" + pad(user, userDigits);
+		}
+
+		public String getUserEid(int user) {
+			return prefix + "eid-" + pad(user, userDigits);
+		}
+
+		public String getFirstName(int user) {
+			return FIRST_NAMES[random(1, user, 0).nextInt(FIRST_NAMES.length)];
+		}
+
+		public String getLastName(int user) {
+			return LAST_NAMES[random(2, user, 0).nextInt(LAST_NAMES.length)];
+		}
+
+		public String getEmail(int user) {
+			return getUserEid(user) + "@example.edu";
+		}
+
+		public String getSiteId(int site) {
+			return prefix + "site-" + pad(site, siteDigits);
+		}
+
+		public String getSiteTitle(int site) {
+			return "Fixture site " + site;
+		}
+
+		/**
+		 * @return the numbers of the site's members, of whom the first maintains it
+		 */
+		public int[] getSiteMembers(int site) {
+			return choose(random(3, site, 0), users, membersPerSite);
+		}
+
+		public String getGroupTitle(int site, int group) {
+			return "Fixture group " + site + "." + group;
+		}
+
+		/**
+		 * @return the numbers of the group's members, all members of its site
+		 */
+		public int[] getGroupMembers(int site, int group) {
+			int[] siteMembers = getSiteMembers(site);
+			int[] chosen = choose(random(4, site, group), siteMembers.length, membersPerGroup);
+			int[] members = new int[chosen.length];
+			for (int i = 0; i < chosen.length; i++) {
+				members[i] = siteMembers[chosen[i]];
+			}
+			return members;
+		}
+
+		/**
+		 * @return what was inserted, or null if the fixture was loaded from a
+		 * saved database or not inserted at all
+		 */
+		public Result getResult() {
+			return result;
+		}
+
+		/**
+		 * @return a file name fragment which identifies these settings
+		 */
+		String getKey() {
+			return HarnessFiles.hashName("1 " + seed + " " + users + " " + sites + " " + membersPerSite + " " +
+				groupsPerSite + " " + membersPerGroup);
+		}
+
+		private Random random(int kind, int number, int subNumber) {
+			return new Random(((seed * 31 + kind) * 1000003L + number) * 31 + subNumber);
+		}
+
+		/**
+		 * Picks distinct numbers below the limit, in a random order.
+		 */
+		private static int[] choose(Random random, int limit, int count) {
+			int[] chosen = new int[Math.min(count, limit)];
+			if (chosen.length * 2 > limit) {
+				int[] all = new int[limit];
+				for (int i = 0; i < limit; i++) {
+					all[i] = i;
+				}
+				for (int i = 0; i < chosen.length; i++) {
+					int j = i + random.nextInt(limit - i);
+					int swap = all[i];
+					all[i] = all[j];
+					all[j] = swap;
+				}
+				System.arraycopy(all, 0, chosen, 0, chosen.length);
+			} else {
+				Set<Integer> seen = new HashSet<Integer>();
+				for (int i = 0; i < chosen.length; ) {
+					int candidate = random.nextInt(limit);
+					if (seen.add(Integer.valueOf(candidate))) {
+						chosen[i++] = candidate;
+					}
+				}
+			}
+			return chosen;
+		}
+
+		private static String pad(int number, int digits) {
+			StringBuilder sb = new StringBuilder(Integer.toString(number));
+			while (sb.length() < digits) {
+				sb.insert(0, '0');
+			}
+			return sb.toString();
+		}
+
+		public String toString() {
+			return String.format(Locale.US, "seed %d: %d users, %d sites with %d members and %d groups of %d",
+				Long.valueOf(seed), Integer.valueOf(users), Integer.valueOf(sites), Integer.valueOf(membersPerSite),
+				Integer.valueOf(groupsPerSite), Integer.valueOf(membersPerGroup));
+		}
+	}
+
+	/**
+	 * What was inserted, and how fast.
+	 */
+	public static class Result {
+		private final AtomicLong users = new AtomicLong();
+		private final AtomicLong sites = new AtomicLong();
+		private final AtomicLong memberships = new AtomicLong();
+		private final AtomicLong groups = new AtomicLong();
+		private final AtomicLong skipped = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicReference<Throwable> firstError = new AtomicReference<Throwable>();
+		private long userNanos;
+		private long siteNanos;
+
+		public long getUsers() {
+			return users.get();
+		}
+
+		public long getSites() {
+			return sites.get();
+		}
+
+		/**
+		 * @return site and group memberships
+		 */
+		public long getMemberships() {
+			return memberships.get();
+		}
+
+		public long getGroups() {
+			return groups.get();
+		}
+
+		/**
+		 * @return users and sites which were already there
+		 */
+		public long getSkipped() {
+			return skipped.get();
+		}
+
+		public long getErrors() {
+			return errors.get();
+		}
+
+		public Throwable getFirstError() {
+			return firstError.get();
+		}
+
+		public double getUsersPerSecond() {
+			return (userNanos == 0) ? 0 : (users.get() * 1000000000.0 / userNanos);
+		}
+
+		public double getSitesPerSecond() {
+			return (siteNanos == 0) ? 0 : (sites.get() * 1000000000.0 / siteNanos);
+		}
+
+		public double getMembershipsPerSecond() {
+			return (siteNanos == 0) ? 0 : (memberships.get() * 1000000000.0 / siteNanos);
+		}
+
+		public String toString() {
+			return String.format(Locale.US, "%d users in %.1f s (%.0f/s); %d sites, %d groups and %d memberships in %.1f s (%.0f sites/s, %.0f memberships/s); %d already there, %d failed",
+				Long.valueOf(users.get()), Double.valueOf(userNanos / 1000000000.0), Double.valueOf(getUsersPerSecond()),
+				Long.valueOf(sites.get()), Long.valueOf(groups.get()), Long.valueOf(memberships.get()),
+				Double.valueOf(siteNanos / 1000000000.0), Double.valueOf(getSitesPerSecond()), Double.valueOf(getMembershipsPerSecond()),
+				Long.valueOf(skipped.get()), Long.valueOf(errors.get()));
+		}
+
+		void failed(Throwable t) {
+			if ((t.getClass().getName().endsWith("IdUsedException")) || (t.getClass().getName().endsWith("IdExistsException"))) {
+				skipped.incrementAndGet();
+			} else {
+				errors.incrementAndGet();
+				firstError.compareAndSet(null, t);
+			}
+		}
+	}
+
+	private Result insert(final Fixture fixture) throws InterruptedException {
+		SakaiContainer container = ComponentContainerEmulator.getCurrentContainer();
+		if ((container == null) || !container.isStarted()) {
+			throw new IllegalStateException("The component manager must be running to insert fixtures");
+		}
+		final Services services = new Services(container.getClassLoader());
+		final Result result = new Result();
+		if (log.isInfoEnabled()) log.info("Inserting fixtures " + fixture + " from " + threads + " threads");
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new FixtureThreadFactory(container.getClassLoader()));
+		try {
+			SakaiTestTimer timer = new SakaiTestTimer("Fixture users");
+			List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+			for (int start = 0; start < fixture.users; start += batchSize) {
+				final int first = start;
+				final int last = Math.min(start + batchSize, fixture.users);
+				tasks.add(new Callable<Object>() {
+					public Object call() throws Exception {
+						services.becomeAdmin();
+						for (int user = first; user < last; user++) {
+							try {
+								services.addUser(fixture, user);
+								result.users.incrementAndGet();
+							} catch (InvocationTargetException e) {
+								result.failed(e.getCause());
+							}
+						}
+						return null;
+					}
+				});
+			}
+			runAll(executor, tasks);
+			result.userNanos = timer.lap();
+
+			timer = new SakaiTestTimer("Fixture sites");
+			tasks.clear();
+			int sitesPerBatch = Math.max(1, batchSize / Math.max(1, fixture.membersPerSite));
+			for (int start = 0; start < fixture.sites; start += sitesPerBatch) {
+				final int first = start;
+				final int last = Math.min(start + sitesPerBatch, fixture.sites);
+				tasks.add(new Callable<Object>() {
+					public Object call() throws Exception {
+						services.becomeAdmin();
+						for (int site = first; site < last; site++) {
+							try {
+								services.addSite(fixture, site, result);
+								result.sites.incrementAndGet();
+							} catch (InvocationTargetException e) {
+								result.failed(e.getCause());
+							}
+						}
+						return null;
+					}
+				});
+			}
+			runAll(executor, tasks);
+			result.siteNanos = timer.lap();
+		} finally {
+			executor.shutdown();
+		}
+		if (result.getErrors() > 0) {
+			log.warn(result.getErrors() + " fixture inserts failed; the first failure was", result.getFirstError());
+		}
+		if (log.isInfoEnabled()) log.info("Inserted fixtures: " + result);
+		return result;
+	}
+
+	private static void runAll(ExecutorService executor, List<Callable<Object>> tasks) throws InterruptedException {
+		for (Future<Object> future : executor.invokeAll(tasks)) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Could not insert fixtures", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * The Sakai API methods used, looked up through the container's class
+	 * loader since the harness isn't compiled against Sakai.
+	 */
+	private static class Services {
+		private final Object userDirectoryService;
+		private final Object siteService;
+		private final Object sessionManager;
+		private final Method addUser;
+		private final Method addSite;
+		private final Method saveSite;
+		private final Method setSiteTitle;
+		private final Method addSiteMember;
+		private final Method addGroup;
+		private final Method setGroupTitle;
+		private final Method addGroupMember;
+		private final Method getCurrentSession;
+		private final Method setSessionUserId;
+		private final Method setSessionUserEid;
+
+		Services(ClassLoader classLoader) {
+			try {
+				Class<?> userDirectoryServiceClass = loadClass(classLoader, "org.sakaiproject.user.api.UserDirectoryService");
+				Class<?> siteServiceClass = loadClass(classLoader, "org.sakaiproject.site.api.SiteService");
+				Class<?> sessionManagerClass = loadClass(classLoader, "org.sakaiproject.tool.api.SessionManager");
+				Class<?> siteClass = loadClass(classLoader, "org.sakaiproject.site.api.Site");
+				Class<?> groupClass = loadClass(classLoader, "org.sakaiproject.site.api.Group");
+				Class<?> sessionClass = loadClass(classLoader, "org.sakaiproject.tool.api.Session");
+				userDirectoryService = getService(userDirectoryServiceClass);
+				siteService = getService(siteServiceClass);
+				sessionManager = getService(sessionManagerClass);
+				addUser = findMethod(userDirectoryServiceClass, "addUser", 8);
+				addSite = siteServiceClass.getMethod("addSite", new Class[] {String.class, String.class});
+				saveSite = siteServiceClass.getMethod("save", new Class[] {siteClass});
+				setSiteTitle = siteClass.getMethod("setTitle", new Class[] {String.class});
+				addSiteMember = siteClass.getMethod("addMember", new Class[] {String.class, String.class, boolean.class, boolean.class});
+				addGroup = siteClass.getMethod("addGroup", new Class[0]);
+				setGroupTitle = groupClass.getMethod("setTitle", new Class[] {String.class});
+				addGroupMember = groupClass.getMethod("addMember", new Class[] {String.class, String.class, boolean.class, boolean.class});
+				getCurrentSession = sessionManagerClass.getMethod("getCurrentSession", new Class[0]);
+				setSessionUserId = sessionClass.getMethod("setUserId", new Class[] {String.class});
+				setSessionUserEid = sessionClass.getMethod("setUserEid", new Class[] {String.class});
+			} catch (ClassNotFoundException e) {
+				throw new IllegalStateException("The container doesn't have the Sakai services needed for fixtures", e);
+			} catch (NoSuchMethodException e) {
+				throw new IllegalStateException("The container's Sakai services aren't the expected version", e);
+			}
+		}
+
+		/**
+		 * Lets the current thread's session do anything.
+		 */
+		void becomeAdmin() throws Exception {
+			Object session = getCurrentSession.invoke(sessionManager, new Object[0]);
+			setSessionUserId.invoke(session, new Object[] {"admin"});
+			setSessionUserEid.invoke(session, new Object[] {"admin"});
+		}
+
+		void addUser(Fixture fixture, int user) throws Exception {
+			addUser.invoke(userDirectoryService, new Object[] {fixture.getUserId(user), fixture.getUserEid(user),
+				fixture.getFirstName(user), fixture.getLastName(user), fixture.getEmail(user), fixture.getUserEid(user),
+				"registered", null});
+		}
+
+		/**
+		 * Adds a site with its members and groups, saving it once.
+		 */
+		void addSite(Fixture fixture, int siteNumber, Result result) throws Exception {
+			Object site = addSite.invoke(siteService, new Object[] {fixture.getSiteId(siteNumber), "project"});
+			setSiteTitle.invoke(site, new Object[] {fixture.getSiteTitle(siteNumber)});
+			int[] members = fixture.getSiteMembers(siteNumber);
+			for (int i = 0; i < members.length; i++) {
+				addSiteMember.invoke(site, new Object[] {fixture.getUserId(members[i]), getRole(members, members[i]), Boolean.TRUE, Boolean.FALSE});
+			}
+			for (int groupNumber = 0; groupNumber < fixture.groupsPerSite; groupNumber++) {
+				Object group = addGroup.invoke(site, new Object[0]);
+				setGroupTitle.invoke(group, new Object[] {fixture.getGroupTitle(siteNumber, groupNumber)});
+				for (int member : fixture.getGroupMembers(siteNumber, groupNumber)) {
+					addGroupMember.invoke(group, new Object[] {fixture.getUserId(member), getRole(members, member), Boolean.TRUE, Boolean.FALSE});
+				}
+			}
+			saveSite.invoke(siteService, new Object[] {site});
+			result.memberships.addAndGet(members.length + (long)fixture.groupsPerSite * fixture.membersPerGroup);
+			result.groups.addAndGet(fixture.groupsPerSite);
+		}
+
+		private static String getRole(int[] siteMembers, int member) {
+			return ((siteMembers.length > 0) && (siteMembers[0] == member)) ? MAINTAIN_ROLE : ACCESS_ROLE;
+		}
+
+		private static Class<?> loadClass(ClassLoader classLoader, String name) throws ClassNotFoundException {
+			return Class.forName(name, true, classLoader);
+		}
+
+		private static Object getService(Class<?> serviceClass) {
+			Object service = ComponentContainerEmulator.getService(serviceClass.getName());
+			if (service == null) {
+				throw new IllegalStateException(serviceClass.getName() + " isn't registered");
+			}
+			return service;
+		}
+
+		private static Method findMethod(Class<?> clazz, String name, int parameterCount) throws NoSuchMethodException {
+			for (Method method : clazz.getMethods()) {
+				if (method.getName().equals(name) && (method.getParameterTypes().length == parameterCount)) {
+					return method;
+				}
+			}
+			throw new NoSuchMethodException(clazz.getName() + "." + name + " with " + parameterCount + " parameters");
+		}
+	}
+
+	/**
+	 * Worker threads see the container's classes, as request threads would.
+	 */
+	private static class FixtureThreadFactory implements ThreadFactory {
+		private final String prefix = "FixtureGenerator-" + generatorNumber.incrementAndGet() + "-";
+		private final AtomicInteger threadNumber = new AtomicInteger();
+		private final ClassLoader contextClassLoader;
+
+		FixtureThreadFactory(ClassLoader contextClassLoader) {
+			this.contextClassLoader = contextClassLoader;
+		}
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, prefix + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			thread.setContextClassLoader(contextClassLoader);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Locates the directories where the test harness keeps files between runs.
+ */
+public class HarnessFiles {
+	/**
+	 * Java system property (or, failing that, environment variable TEST_HARNESS_CACHE_DIR)
+	 * naming the directory for caches which should survive "mvn clean".
+	 */
+	public static final String CACHE_DIR_PROPERTY = "test.harness.cache.dir";
+
+	/**
+	 * Java system property naming the directory for reports and other files
+	 * which belong to the current build.
+	 */
+	public static final String BUILD_DIR_PROPERTY = "test.harness.build.dir";
+
+	/**
+	 * @return the build output directory, which defaults to "target" (relative to
+	 * the working directory, which Maven sets to the project's base directory).
+	 * The directory is created if need be.
+	 */
+	public static File getBuildDirectory() {
+		String path = ComponentContainerEmulator.getPassthroughSystemProperty(BUILD_DIR_PROPERTY);
+		File dir = ((path != null) && (path.length() > 0)) ? new File(path) : new File("target");
+		dir.mkdirs();
+		return dir;
+	}
+
+	/**
+	 * @return the cache directory, which defaults to "sakai-test-harness" under
+	 * the Java temporary directory. The directory is created if need be.
+	 */
+	public static File getCacheDirectory() {
+		String path = ComponentContainerEmulator.getPassthroughSystemProperty(CACHE_DIR_PROPERTY);
+		if ((path == null) || (path.length() == 0)) {
+			path = System.getenv("TEST_HARNESS_CACHE_DIR");
+		}
+		File dir;
+		if ((path != null) && (path.length() > 0)) {
+			dir = new File(path);
+		} else {
+			dir = new File(System.getProperty("java.io.tmpdir"), "sakai-test-harness");
+		}
+		dir.mkdirs();
+		return dir;
+	}
+
+	/**
+	 * @return a new empty directory under the build directory, named with the
+	 * given prefix, which no other JVM (or caller in this one) will be given.
+	 * Tests running in parallel JVMs can each write their own files there.
+	 */
+	public static File createWorkDirectory(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix + "-", "", getBuildDirectory());
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Could not create directory " + dir);
+		}
+		return dir;
+	}
+
+	/**
+	 * Deletes a file, or a directory and everything under it.
+	 */
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * @return a file name fragment which identifies the given string (such as a
+	 * list of directories) without embedding it.
+	 */
+	public static String hashName(String key) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			return toHex(digest.digest(key.getBytes("UTF-8"))).substring(0, 16);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
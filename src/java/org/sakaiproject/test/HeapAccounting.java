@@ -0,0 +1,557 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Estimates how much of the heap each component and bean keeps alive once the
+ * container has started, to show which components make test JVMs large.
+ *
+ * Every object reachable from each singleton bean is found by walking its
+ * fields, without crossing into other beans, bean factories, classes, class
+ * loaders, threads or soft and weak references. An object reached from one
+ * bean only is counted against that bean; one reached from several beans of
+ * the same component against the component; and one reached from beans of
+ * different components as shared. Sizes are estimated from field types
+ * (assuming compressed references on 64-bit JVMs), so they are approximate,
+ * but they rank components well. Static fields aren't followed.
+ *
+ * Beans are grouped by the component package whose class loader loaded their
+ * class; beans of shared library classes are grouped together.
+ *
+ * Where the JVM doesn't allow reflection into its own classes (Java 9 and
+ * later), collections and maps are walked through their elements instead and
+ * other such objects are counted by their shallow size only.
+ */
+public class HeapAccounting extends SakaiContainer.ListenerAdapter {
+	private static final Log log = LogFactory.getLog(HeapAccounting.class);
+
+	/**
+	 * Java system property giving the most objects to walk, by default five million.
+	 */
+	public static final String MAX_OBJECTS_PROPERTY = "test.harness.heapReport.maxObjects";
+
+	private static final String SHARED_LIBRARIES = "(shared libraries)";
+
+	private static final ConcurrentMap<Class<?>, ClassLayout> layouts = new ConcurrentHashMap<Class<?>, ClassLayout>();
+	private static final boolean is64Bit = !"32".equals(System.getProperty("sun.arch.data.model"));
+	private static final boolean compressedReferences = is64Bit && (Runtime.getRuntime().maxMemory() < (32L << 30));
+	private static final int referenceSize = (is64Bit && !compressedReferences) ? 8 : 4;
+	private static final int objectHeaderSize = is64Bit ? (compressedReferences ? 12 : 16) : 8;
+	private static final int arrayHeaderSize = objectHeaderSize + 4;
+
+	private long heapBeforeStart = -1;
+
+	/**
+	 * The estimate for one bean or component.
+	 */
+	public static class Usage {
+		private final String name;
+		private final String component;
+		private int beans;
+		private long objects;
+		private long bytes;
+
+		Usage(String name, String component) {
+			this.name = name;
+			this.component = component;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the component a bean belongs to, or the component's own name
+		 */
+		public String getComponent() {
+			return component;
+		}
+
+		public int getBeans() {
+			return beans;
+		}
+
+		public long getObjects() {
+			return objects;
+		}
+
+		/**
+		 * @return the estimated bytes kept alive by this bean or component alone
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+	}
+
+	/**
+	 * The results of one walk, largest first.
+	 */
+	public static class Report {
+		private final List<Usage> components;
+		private final List<Usage> beans;
+		private final long sharedObjects;
+		private final long sharedBytes;
+		private final boolean truncated;
+
+		Report(List<Usage> components, List<Usage> beans, long sharedObjects, long sharedBytes, boolean truncated) {
+			this.components = components;
+			this.beans = beans;
+			this.sharedObjects = sharedObjects;
+			this.sharedBytes = sharedBytes;
+			this.truncated = truncated;
+		}
+
+		public List<Usage> getComponents() {
+			return components;
+		}
+
+		public List<Usage> getBeans() {
+			return beans;
+		}
+
+		/**
+		 * @return the estimated bytes reachable from beans of more than one component
+		 */
+		public long getSharedBytes() {
+			return sharedBytes;
+		}
+
+		public long getSharedObjects() {
+			return sharedObjects;
+		}
+
+		/**
+		 * @return true if the walk stopped at the object limit
+		 */
+		public boolean isTruncated() {
+			return truncated;
+		}
+
+		public long getTotalBytes() {
+			long total = sharedBytes;
+			for (Usage component : components) {
+				total += component.bytes;
+			}
+			return total;
+		}
+
+		/**
+		 * @param heapGrowth the growth in used heap to compare with, or -1 if unknown
+		 */
+		public void write(File reportFile, long heapGrowth) throws IOException {
+			PrintWriter out = new PrintWriter(new FileWriter(reportFile));
+			try {
+				out.println(String.format(Locale.US, "Estimated heap reachable from component beans: %.1f MB (%.1f MB shared between components)%s",
+					megabytes(getTotalBytes()), megabytes(sharedBytes), truncated ? ", walk truncated" : ""));
+				if (heapGrowth >= 0) {
+					out.println(String.format(Locale.US, "Used heap growth during startup: %.1f MB", megabytes(heapGrowth)));
+				}
+				out.println();
+				out.println(String.format(Locale.US, "%12s %10s %6s  %s", "Retained KB", "Objects", "Beans", "Component"));
+				for (Usage component : components) {
+					out.println(String.format(Locale.US, "%12d %10d %6d  %s", Long.valueOf(component.bytes / 1024),
+						Long.valueOf(component.objects), Integer.valueOf(component.beans), component.name));
+				}
+				out.println();
+				out.println(String.format(Locale.US, "%12s %10s  %s", "Retained KB", "Objects", "Bean (component)"));
+				for (Usage bean : beans) {
+					out.println(String.format(Locale.US, "%12d %10d  %s (%s)", Long.valueOf(bean.bytes / 1024),
+						Long.valueOf(bean.objects), bean.name, bean.component));
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		private static Double megabytes(long bytes) {
+			return Double.valueOf(bytes / (1024.0 * 1024.0));
+		}
+	}
+
+	@Override
+	public void containerStarting(SakaiContainer container) {
+		heapBeforeStart = getUsedHeap();
+	}
+
+	@Override
+	public void containerStarted(SakaiContainer container) {
+		long heapGrowth = (heapBeforeStart >= 0) ? (getUsedHeap() - heapBeforeStart) : -1;
+		Report report = measure(container);
+		if (report == null) {
+			return;
+		}
+		File reportFile = new File(HarnessFiles.getBuildDirectory(), "heap-components-" + container.getName() + ".txt");
+		try {
+			report.write(reportFile, heapGrowth);
+			if (log.isInfoEnabled()) log.info(String.format(Locale.US, "Component beans reach about %.1f MB of heap; wrote %s",
+				Double.valueOf(report.getTotalBytes() / (1024.0 * 1024.0)), reportFile));
+		} catch (IOException e) {
+			log.warn("Could not write heap report to " + reportFile, e);
+		}
+	}
+
+	private static long getUsedHeap() {
+		System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * Walks the singleton beans of a running container.
+	 *
+	 * @return the report, or null if the container isn't running
+	 */
+	public static Report measure(SakaiContainer container) {
+		Object context = container.getApplicationContext();
+		if (!(context instanceof ConfigurableApplicationContext)) {
+			return null;
+		}
+		ConfigurableListableBeanFactory beanFactory = ((ConfigurableApplicationContext)context).getBeanFactory();
+		Map<String, Object> beans = new LinkedHashMap<String, Object>();
+		Map<String, String> components = new HashMap<String, String>();
+		for (String beanName : beanFactory.getSingletonNames()) {
+			Object bean = beanFactory.getSingleton(beanName);
+			if (bean != null) {
+				beans.put(beanName, bean);
+				components.put(beanName, getComponentName(bean.getClass().getClassLoader()));
+			}
+		}
+		String maxObjects = ComponentContainerEmulator.getPassthroughSystemProperty(MAX_OBJECTS_PROPERTY);
+		SakaiTestTimer timer = new SakaiTestTimer("Heap accounting (" + container.getName() + ")");
+		Report report = measure(beans, components, (maxObjects != null) ? Integer.parseInt(maxObjects.trim()) : 5000000);
+		timer.logTimeElapsed();
+		return report;
+	}
+
+	/**
+	 * @return the directory name of the component package the class loader
+	 * belongs to, going by its "WEB-INF" URLs
+	 */
+	static String getComponentName(ClassLoader classLoader) {
+		if (classLoader instanceof URLClassLoader) {
+			for (URL url : ((URLClassLoader)classLoader).getURLs()) {
+				String path = url.getPath();
+				int webInf = path.lastIndexOf("/WEB-INF/");
+				if (webInf > 0) {
+					return path.substring(path.lastIndexOf('/', webInf - 1) + 1, webInf);
+				}
+			}
+		}
+		return SHARED_LIBRARIES;
+	}
+
+	/**
+	 * @param beans the roots, by bean name
+	 * @param components the component of each bean
+	 * @param maxObjects where to stop walking
+	 */
+	static Report measure(Map<String, Object> beans, Map<String, String> components, int maxObjects) {
+		Walk walk = new Walk(beans, components, maxObjects);
+		walk.run();
+		return walk.report();
+	}
+
+	/**
+	 * Ownership goes from a bean (its index, from 0) to a component (-2 - its
+	 * index) to shared (-1), and each object is walked again each time it moves.
+	 */
+	private static class Walk {
+		private static final int SHARED = -1;
+
+		private final List<String> beanNames;
+		private final List<Object> roots;
+		private final int[] beanComponents;
+		private final List<String> componentNames = new ArrayList<String>();
+		private final IdentityHashMap<Object, Integer> owners = new IdentityHashMap<Object, Integer>();
+		private final IdentityHashMap<Object, Boolean> rootSet = new IdentityHashMap<Object, Boolean>();
+		private final int maxObjects;
+		private boolean truncated;
+
+		Walk(Map<String, Object> beans, Map<String, String> components, int maxObjects) {
+			this.maxObjects = maxObjects;
+			beanNames = new ArrayList<String>(beans.keySet());
+			roots = new ArrayList<Object>(beans.values());
+			beanComponents = new int[beanNames.size()];
+			Map<String, Integer> componentIndexes = new HashMap<String, Integer>();
+			for (int i = 0; i < beanNames.size(); i++) {
+				String component = components.get(beanNames.get(i));
+				if (component == null) {
+					component = SHARED_LIBRARIES;
+				}
+				Integer index = componentIndexes.get(component);
+				if (index == null) {
+					index = Integer.valueOf(componentNames.size());
+					componentIndexes.put(component, index);
+					componentNames.add(component);
+				}
+				beanComponents[i] = index.intValue();
+				rootSet.put(roots.get(i), Boolean.TRUE);
+			}
+		}
+
+		void run() {
+			List<Object> stack = new ArrayList<Object>();
+			for (int bean = 0; bean < roots.size(); bean++) {
+				stack.add(roots.get(bean));
+				boolean isRoot = true;
+				while (!stack.isEmpty()) {
+					Object object = stack.remove(stack.size() - 1);
+					if (!isRoot && (rootSet.containsKey(object) || !isWalkable(object))) {
+						continue;
+					}
+					isRoot = false;
+					Integer previous = owners.get(object);
+					int owner = (previous == null) ? bean : merge(previous.intValue(), bean);
+					if ((previous != null) && (previous.intValue() == owner)) {
+						continue;
+					}
+					if ((previous == null) && (owners.size() >= maxObjects)) {
+						truncated = true;
+						continue;
+					}
+					owners.put(object, Integer.valueOf(owner));
+					addReferences(object, stack);
+				}
+			}
+		}
+
+		private int merge(int previous, int bean) {
+			int component = beanComponents[bean];
+			if (previous == bean) {
+				return bean;
+			} else if (previous >= 0) {
+				return (beanComponents[previous] == component) ? (-2 - component) : SHARED;
+			} else if (previous == (-2 - component)) {
+				return previous;
+			}
+			return SHARED;
+		}
+
+		Report report() {
+			Usage[] beanUsage = new Usage[beanNames.size()];
+			Usage[] componentUsage = new Usage[componentNames.size()];
+			for (int i = 0; i < componentUsage.length; i++) {
+				componentUsage[i] = new Usage(componentNames.get(i), componentNames.get(i));
+			}
+			for (int i = 0; i < beanUsage.length; i++) {
+				beanUsage[i] = new Usage(beanNames.get(i), componentNames.get(beanComponents[i]));
+				beanUsage[i].beans = 1;
+				componentUsage[beanComponents[i]].beans++;
+			}
+			long sharedObjects = 0;
+			long sharedBytes = 0;
+			for (Map.Entry<Object, Integer> entry : owners.entrySet()) {
+				long size = sizeOf(entry.getKey());
+				int owner = entry.getValue().intValue();
+				if (owner == SHARED) {
+					sharedObjects++;
+					sharedBytes += size;
+				} else {
+					Usage component = componentUsage[(owner >= 0) ? beanComponents[owner] : (-2 - owner)];
+					component.objects++;
+					component.bytes += size;
+					if (owner >= 0) {
+						beanUsage[owner].objects++;
+						beanUsage[owner].bytes += size;
+					}
+				}
+			}
+			Comparator<Usage> largestFirst = new Comparator<Usage>() {
+				public int compare(Usage a, Usage b) {
+					return (a.bytes > b.bytes) ? -1 : ((a.bytes == b.bytes) ? a.name.compareTo(b.name) : 1);
+				}
+			};
+			List<Usage> components = new ArrayList<Usage>();
+			Collections.addAll(components, componentUsage);
+			Collections.sort(components, largestFirst);
+			List<Usage> beans = new ArrayList<Usage>();
+			Collections.addAll(beans, beanUsage);
+			Collections.sort(beans, largestFirst);
+			return new Report(components, beans, sharedObjects, sharedBytes, truncated);
+		}
+	}
+
+	/**
+	 * Objects which belong to the container or the JVM as a whole rather than
+	 * to any one bean.
+	 */
+	private static boolean isWalkable(Object object) {
+		return !((object instanceof Class) || (object instanceof ClassLoader) || (object instanceof Thread) ||
+			(object instanceof ThreadGroup) || (object instanceof Reference) || (object instanceof BeanFactory) ||
+			(object instanceof ApplicationContext));
+	}
+
+	private static void addReferences(Object object, List<Object> stack) {
+		Class<?> c = object.getClass();
+		if (c.isArray()) {
+			if (!c.getComponentType().isPrimitive()) {
+				for (Object element : (Object[])object) {
+					if (element != null) {
+						stack.add(element);
+					}
+				}
+			}
+			return;
+		}
+		ClassLayout layout = getLayout(c);
+		if (layout.accessible) {
+			for (Field field : layout.referenceFields) {
+				try {
+					Object value = field.get(object);
+					if (value != null) {
+						stack.add(value);
+					}
+				} catch (IllegalAccessException e) {
+					// Only fields which were made accessible are listed.
+				}
+			}
+		} else if (object instanceof Collection) {
+			try {
+				for (Object element : (Collection<?>)object) {
+					if (element != null) {
+						stack.add(element);
+					}
+				}
+			} catch (RuntimeException e) {
+				if (log.isDebugEnabled()) log.debug("Could not walk a " + c.getName() + ": " + e);
+			}
+		} else if (object instanceof Map) {
+			try {
+				for (Map.Entry<?, ?> entry : ((Map<?, ?>)object).entrySet()) {
+					if (entry.getKey() != null) {
+						stack.add(entry.getKey());
+					}
+					if (entry.getValue() != null) {
+						stack.add(entry.getValue());
+					}
+				}
+			} catch (RuntimeException e) {
+				if (log.isDebugEnabled()) log.debug("Could not walk a " + c.getName() + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * @return the estimated shallow size of the object, in bytes
+	 */
+	static long sizeOf(Object object) {
+		Class<?> c = object.getClass();
+		if (c.isArray()) {
+			Class<?> componentType = c.getComponentType();
+			return align(arrayHeaderSize + (long)Array.getLength(object) * sizeOfType(componentType));
+		}
+		return getLayout(c).size;
+	}
+
+	private static ClassLayout getLayout(Class<?> c) {
+		ClassLayout layout = layouts.get(c);
+		if (layout == null) {
+			layout = new ClassLayout(c);
+			layouts.putIfAbsent(c, layout);
+		}
+		return layout;
+	}
+
+	private static int sizeOfType(Class<?> type) {
+		if ((type == long.class) || (type == double.class)) {
+			return 8;
+		} else if ((type == int.class) || (type == float.class)) {
+			return 4;
+		} else if ((type == short.class) || (type == char.class)) {
+			return 2;
+		} else if ((type == byte.class) || (type == boolean.class)) {
+			return 1;
+		}
+		return referenceSize;
+	}
+
+	private static long align(long size) {
+		return (size + 7) & ~7L;
+	}
+
+	/**
+	 * A class's estimated instance size and the fields to follow.
+	 */
+	private static class ClassLayout {
+		private final long size;
+		private final List<Field> referenceFields = new ArrayList<Field>();
+		private final boolean accessible;
+
+		ClassLayout(Class<?> c) {
+			long fieldBytes = 0;
+			boolean allAccessible = true;
+			for (Class<?> type = c; type != null; type = type.getSuperclass()) {
+				for (Field field : type.getDeclaredFields()) {
+					if (Modifier.isStatic(field.getModifiers())) {
+						continue;
+					}
+					fieldBytes += sizeOfType(field.getType());
+					if (!field.getType().isPrimitive() && allAccessible) {
+						try {
+							field.setAccessible(true);
+							referenceFields.add(field);
+						} catch (RuntimeException e) {
+							// Java 9 and later keep their own classes closed.
+							allAccessible = false;
+						}
+					}
+				}
+			}
+			size = align(objectHeaderSize + fieldBytes);
+			accessible = allAccessible;
+			if (!accessible) {
+				referenceFields.clear();
+			}
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size histogram of non-negative values (normally nanoseconds) which
+ * can be recorded into from many threads without locking.
+ *
+ * Values below 64 are counted exactly. Larger values share a bucket with the
+ * values that agree in their top seven bits, so any reported percentile is
+ * within about 1.5% of the true one. The whole range of a long fits in under
+ * 4,000 buckets.
+ *
+ * Every recording thread would otherwise update the same total and maximum,
+ * so those are kept in stripes chosen by thread, each on a cache line of its
+ * own, and summed when read. The count is the sum of the buckets. Reading is
+ * therefore slower than recording, which suits a histogram read once when
+ * reporting.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+	/** A power of two at least the number of processors, so threads rarely share a stripe. */
+	private static final int STRIPE_COUNT = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1));
+	/** Longs per stripe, so that each stripe has a 64 byte cache line to itself. */
+	private static final int STRIPE_SPACING = 8;
+	private static final int TOTAL = 0;
+	private static final int MAX = 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLongArray stripes = new AtomicLongArray(STRIPE_COUNT * STRIPE_SPACING);
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(indexOf(value));
+		int stripe = (int)(Thread.currentThread().getId() & (STRIPE_COUNT - 1)) * STRIPE_SPACING;
+		stripes.addAndGet(stripe + TOTAL, value);
+		long currentMax = stripes.get(stripe + MAX);
+		while ((value > currentMax) && !stripes.compareAndSet(stripe + MAX, currentMax, value)) {
+			currentMax = stripes.get(stripe + MAX);
+		}
+	}
+
+	public long getCount() {
+		long n = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			n += counts.get(i);
+		}
+		return n;
+	}
+
+	public long getTotal() {
+		long total = 0;
+		for (int stripe = 0; stripe < STRIPE_COUNT; stripe++) {
+			total += stripes.get(stripe * STRIPE_SPACING + TOTAL);
+		}
+		return total;
+	}
+
+	public long getMax() {
+		long max = 0;
+		for (int stripe = 0; stripe < STRIPE_COUNT; stripe++) {
+			max = Math.max(max, stripes.get(stripe * STRIPE_SPACING + MAX));
+		}
+		return max;
+	}
+
+	public double getMean() {
+		long n = getCount();
+		return (n == 0) ? 0 : ((double)getTotal() / n);
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the highest value in the bucket holding the given percentile, or 0
+	 * if nothing has been recorded
+	 */
+	public long getPercentile(double percentile) {
+		long n = getCount();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long)Math.ceil((percentile / 100.0) * n);
+		if (rank < 1) {
+			rank = 1;
+		}
+		long max = getMax();
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValueAt(i), max);
+			}
+		}
+		return max;
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts.set(i, 0);
+		}
+		for (int i = 0; i < stripes.length(); i++) {
+			stripes.set(i, 0);
+		}
+	}
+
+	static int indexOf(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int)value;
+		}
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+		int subBucket = (int)(value >>> shift) - SUB_BUCKET_COUNT;
+		return SUB_BUCKET_COUNT + (shift * SUB_BUCKET_COUNT) + subBucket;
+	}
+
+	static long highestValueAt(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+		long subBucket = ((index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT) + SUB_BUCKET_COUNT;
+		long highest = ((subBucket + 1) << shift) - 1;
+		return (highest < 0) ? Long.MAX_VALUE : highest;
+	}
+}
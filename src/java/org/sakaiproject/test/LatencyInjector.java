@@ -0,0 +1,112 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Random;
+
+/**
+ * Wraps a service so that every call is delayed, to model a slow dependency
+ * (a remote user provider, say) and see how its callers behave.
+ *
+ * Each call waits for the base latency plus a uniformly distributed jitter of
+ * up to the given amount either way, never less than zero. The jitter comes
+ * from a seeded random number generator so that runs can be repeated.
+ *
+ * <pre>
+ * UserDirectoryService slowUsers = new LatencyInjector(50, 20).wrap(UserDirectoryService.class, uds);
+ * </pre>
+ */
+public class LatencyInjector {
+	private final long latencyNanos;
+	private final long jitterNanos;
+	private final Random random;
+
+	/**
+	 * @param latencyMillis the typical delay
+	 * @param jitterMillis how far each delay can be from the typical one
+	 */
+	public LatencyInjector(long latencyMillis, long jitterMillis) {
+		this(latencyMillis * 1000, jitterMillis * 1000, 42);
+	}
+
+	/**
+	 * @param latencyMicros the typical delay
+	 * @param jitterMicros how far each delay can be from the typical one
+	 * @param seed for the jitter
+	 */
+	public LatencyInjector(long latencyMicros, long jitterMicros, long seed) {
+		this.latencyNanos = latencyMicros * 1000;
+		this.jitterNanos = jitterMicros * 1000;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * @return a proxy which delays each call and then passes it to the service
+	 */
+	public <T> T wrap(Class<T> clazz, Object service) {
+		final T target = ServiceBridge.bridge(clazz, service);
+		if (target == null) {
+			throw new IllegalArgumentException(service + " does not implement " + clazz.getName());
+		}
+		return clazz.cast(Proxy.newProxyInstance(clazz.getClassLoader(), new Class[] {clazz}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getDeclaringClass() != Object.class) {
+					delay();
+				}
+				try {
+					return method.invoke(target, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		}));
+	}
+
+	/**
+	 * @return the next delay in nanoseconds
+	 */
+	long nextDelayNanos() {
+		long jitter = 0;
+		if (jitterNanos > 0) {
+			double offset;
+			synchronized (random) {
+				offset = random.nextDouble();
+			}
+			jitter = (long)((offset * 2 - 1) * jitterNanos);
+		}
+		return Math.max(0, latencyNanos + jitter);
+	}
+
+	private void delay() throws InterruptedException {
+		long delay = nextDelayNanos();
+		long end = System.nanoTime() + delay;
+		while (delay > 0) {
+			Thread.sleep(delay / 1000000, (int)(delay % 1000000));
+			delay = end - System.nanoTime();
+		}
+	}
+}
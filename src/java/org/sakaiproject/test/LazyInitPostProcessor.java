@@ -0,0 +1,72 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.util.Collection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.support.AbstractBeanDefinition;
+
+/**
+ * Marks every singleton component bean as lazily initialized, so that the
+ * container only creates the services a test actually reaches (directly or
+ * through their dependencies).
+ *
+ * This changes behavior for components which do useful work as a side effect
+ * of being created, such as registering themselves with another service.
+ * Such beans can be kept eager by name.
+ */
+public class LazyInitPostProcessor implements BeanFactoryPostProcessor {
+	private static final Log log = LogFactory.getLog(LazyInitPostProcessor.class);
+
+	private final Collection<String> eagerBeanNames;
+
+	/**
+	 * @param eagerBeanNames beans which should still be created at startup
+	 */
+	public LazyInitPostProcessor(Collection<String> eagerBeanNames) {
+		this.eagerBeanNames = eagerBeanNames;
+	}
+
+	public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) throws BeansException {
+		String[] beanNames = beanFactory.getBeanDefinitionNames();
+		int lazyCount = 0;
+		for (String beanName : beanNames) {
+			if (eagerBeanNames.contains(beanName)) {
+				continue;
+			}
+			BeanDefinition definition = beanFactory.getBeanDefinition(beanName);
+			if (definition.isSingleton() && !definition.isAbstract() && !definition.isLazyInit() &&
+					(definition instanceof AbstractBeanDefinition)) {
+				((AbstractBeanDefinition)definition).setLazyInit(true);
+				lazyCount++;
+			}
+		}
+		if (log.isInfoEnabled()) log.info("Deferred creation of " + lazyCount + " of " + beanNames.length + " component beans");
+	}
+}
@@ -0,0 +1,523 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.AssertionFailedError;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Looks for what a container leaves behind when it's stopped: threads, open
+ * files and sockets, registered JDBC drivers, MBeans, and component class
+ * loaders which can't be garbage collected.
+ *
+ * Each is listed just before the container starts and again once it has
+ * stopped (after giving threads a moment to finish). Anything new is reported
+ * with a guess at which component it came from: a thread's context class
+ * loader or class, a driver's class, a file's path. Leaks are logged and
+ * appended to target/leaks-&lt;container&gt;.txt, one section per start/stop
+ * cycle, so a long suite shows how they build up. In "fail" mode, stopping
+ * the container then fails the test.
+ *
+ * Component class loaders can only be collected once nothing refers to the
+ * stopped container any more, so they are checked by {@link #finish(List)},
+ * which whatever dropped the container calls afterwards (as
+ * {@link ComponentContainerEmulator#stopComponentManager()} and
+ * {@link ContainerPool#shutdown()} do). The report is written then.
+ *
+ * Open files are only listed on systems with "/proc/self/fd". Jars held open
+ * by the reusable container class loader are not counted.
+ */
+public class LeakAudit extends SakaiContainer.ListenerAdapter {
+	private static final Log log = LogFactory.getLog(LeakAudit.class);
+
+	/**
+	 * Java system property giving how long to wait for threads to finish after
+	 * the container has stopped, by default 2000 milliseconds.
+	 */
+	public static final String GRACE_MILLIS_PROPERTY = "test.harness.leakAudit.graceMillis";
+
+	/**
+	 * Threads which the JVM, the test runner or the harness start for themselves.
+	 */
+	private static final String[] IGNORED_THREAD_PREFIXES = new String[] {
+		"Attach Listener", "Signal Dispatcher", "Common-Cleaner", "process reaper", "ForkJoinPool.commonPool",
+		"Reference Handler", "Finalizer", "surefire", "ParallelStartup-", "LoadDriver-", "ContainerDaemon",
+	};
+
+	private final boolean failOnLeak;
+	private final long graceMillis;
+	private int cycle;
+	private State before;
+	private String stoppedName;
+	private final List<Leak> lastLeaks = new ArrayList<Leak>();
+	private final List<WeakReference<ClassLoader>> componentLoaders = new ArrayList<WeakReference<ClassLoader>>();
+	private final List<String> componentLoaderNames = new ArrayList<String>();
+
+	/**
+	 * One thing left behind.
+	 */
+	public static class Leak {
+		private final String kind;
+		private final String description;
+		private final String source;
+
+		Leak(String kind, String description, String source) {
+			this.kind = kind;
+			this.description = description;
+			this.source = source;
+		}
+
+		/**
+		 * @return "thread", "file", "driver", "mbean" or "classloader"
+		 */
+		public String getKind() {
+			return kind;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		/**
+		 * @return the component it seems to come from
+		 */
+		public String getSource() {
+			return source;
+		}
+
+		public String toString() {
+			return kind + " " + description + " (from " + source + ")";
+		}
+	}
+
+	/**
+	 * @param failOnLeak whether to throw an AssertionFailedError when the
+	 * container stops with leaks
+	 */
+	public LeakAudit(boolean failOnLeak) {
+		this.failOnLeak = failOnLeak;
+		String grace = ComponentContainerEmulator.getPassthroughSystemProperty(GRACE_MILLIS_PROPERTY);
+		graceMillis = (grace != null) ? Long.parseLong(grace.trim()) : 2000;
+	}
+
+	/**
+	 * @return what was left behind the last time the container stopped
+	 */
+	public List<Leak> getLastLeaks() {
+		return Collections.unmodifiableList(lastLeaks);
+	}
+
+	@Override
+	public void containerStarting(SakaiContainer container) {
+		if (stoppedName != null) {
+			// Nobody finished the last cycle, so the loaders can't be judged fairly.
+			componentLoaders.clear();
+			componentLoaderNames.clear();
+			finish(false);
+		}
+		before = State.capture();
+		componentLoaders.clear();
+		componentLoaderNames.clear();
+	}
+
+	@Override
+	public void containerStarted(SakaiContainer container) {
+		// Remember the component class loaders, to see whether they go away.
+		Object context = container.getApplicationContext();
+		if (!(context instanceof ConfigurableApplicationContext)) {
+			return;
+		}
+		ConfigurableListableBeanFactory beanFactory = ((ConfigurableApplicationContext)context).getBeanFactory();
+		Map<ClassLoader, Boolean> loaders = new IdentityHashMap<ClassLoader, Boolean>();
+		for (String beanName : beanFactory.getSingletonNames()) {
+			Object bean = beanFactory.getSingleton(beanName);
+			ClassLoader loader = (bean != null) ? bean.getClass().getClassLoader() : null;
+			if ((loader != null) && (loader != container.getClassLoader()) && !isAncestor(loader, container.getClassLoader()) &&
+					(loaders.put(loader, Boolean.TRUE) == null)) {
+				componentLoaders.add(new WeakReference<ClassLoader>(loader));
+				componentLoaderNames.add(HeapAccounting.getComponentName(loader));
+			}
+		}
+	}
+
+	private static boolean isAncestor(ClassLoader candidate, ClassLoader loader) {
+		for (ClassLoader parent = loader; parent != null; parent = parent.getParent()) {
+			if (parent == candidate) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void containerStopped(SakaiContainer container) {
+		if (before == null) {
+			return;
+		}
+		cycle++;
+		lastLeaks.clear();
+		Set<String> ignoredFiles = getContainerLibraries(container);
+
+		// Give threads which were told to stop a chance to finish.
+		long deadline = System.currentTimeMillis() + graceMillis;
+		State after;
+		do {
+			System.gc();
+			after = State.capture();
+			if (findLeakedThreads(after).isEmpty()) {
+				break;
+			}
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		} while (System.currentTimeMillis() < deadline);
+
+		for (Thread thread : findLeakedThreads(after)) {
+			lastLeaks.add(new Leak("thread", "\"" + thread.getName() + "\" (" + thread.getClass().getName() +
+				(thread.isDaemon() ? ", daemon" : "") + ")", describeThreadSource(thread)));
+		}
+		for (Map.Entry<String, Integer> file : after.files.entrySet()) {
+			Integer previous = before.files.get(file.getKey());
+			int opened = file.getValue().intValue() - ((previous != null) ? previous.intValue() : 0);
+			if ((opened > 0) && !ignoredFiles.contains(file.getKey())) {
+				lastLeaks.add(new Leak("file", file.getKey() + ((opened > 1) ? (" (" + opened + " times)") : ""), describePath(file.getKey())));
+			}
+		}
+		if ((before.fileCount >= 0) && after.files.isEmpty() && (after.fileCount > before.fileCount)) {
+			lastLeaks.add(new Leak("file", (after.fileCount - before.fileCount) + " more open file descriptors", "unknown"));
+		}
+		for (Map.Entry<Driver, String> driver : after.drivers.entrySet()) {
+			if (!before.drivers.containsKey(driver.getKey())) {
+				lastLeaks.add(new Leak("driver", driver.getValue(), HeapAccounting.getComponentName(driver.getKey().getClass().getClassLoader())));
+			}
+		}
+		for (String mbean : after.mbeans) {
+			if (!before.mbeans.contains(mbean)) {
+				lastLeaks.add(new Leak("mbean", mbean, "unknown"));
+			}
+		}
+		before = null;
+		// Keep only the name, so as not to hold on to the container itself.
+		stoppedName = container.getName();
+	}
+
+	/**
+	 * @return the leak audits listening to a container, to finish once it has
+	 * been stopped and dropped
+	 */
+	public static List<LeakAudit> getAudits(SakaiContainer container) {
+		List<LeakAudit> audits = new ArrayList<LeakAudit>();
+		for (SakaiContainer.Listener listener : container.getListeners()) {
+			if (listener instanceof LeakAudit) {
+				audits.add((LeakAudit)listener);
+			}
+		}
+		return audits;
+	}
+
+	/**
+	 * Checks the component class loaders of stopped containers and reports
+	 * everything they left behind. Call this once nothing refers to the
+	 * containers any more.
+	 *
+	 * @throws AssertionFailedError in "fail" mode if anything leaked, after
+	 * every audit has reported
+	 */
+	public static void finish(List<LeakAudit> audits) {
+		AssertionFailedError failure = null;
+		for (LeakAudit audit : audits) {
+			try {
+				audit.finish(true);
+			} catch (AssertionFailedError e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void finish(boolean mayFail) {
+		if (stoppedName == null) {
+			return;
+		}
+		String name = stoppedName;
+		stoppedName = null;
+
+		// Loaders go with the first collection after their last reference, but
+		// the collector may need asking more than once.
+		long deadline = System.currentTimeMillis() + graceMillis;
+		while (hasLiveLoaders() && (System.currentTimeMillis() < deadline)) {
+			System.gc();
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		for (int i = 0; i < componentLoaders.size(); i++) {
+			ClassLoader loader = componentLoaders.get(i).get();
+			if (loader != null) {
+				lastLeaks.add(new Leak("classloader", loader.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(loader)),
+					componentLoaderNames.get(i)));
+			}
+		}
+		componentLoaders.clear();
+		componentLoaderNames.clear();
+
+		report(name);
+		if (mayFail && failOnLeak && !lastLeaks.isEmpty()) {
+			throw new AssertionFailedError(lastLeaks.size() + " resources leaked by component manager " + name + ": " + lastLeaks);
+		}
+	}
+
+	private boolean hasLiveLoaders() {
+		for (WeakReference<ClassLoader> loader : componentLoaders) {
+			if (loader.get() != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private List<Thread> findLeakedThreads(State after) {
+		List<Thread> leaked = new ArrayList<Thread>();
+		for (Thread thread : after.threads.keySet()) {
+			if (!before.threads.containsKey(thread) && thread.isAlive() && !isIgnored(thread)) {
+				leaked.add(thread);
+			}
+		}
+		return leaked;
+	}
+
+	private static boolean isIgnored(Thread thread) {
+		for (String prefix : IGNORED_THREAD_PREFIXES) {
+			if (thread.getName().startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String describeThreadSource(Thread thread) {
+		String source = HeapAccounting.getComponentName(thread.getContextClassLoader());
+		String classSource = HeapAccounting.getComponentName(thread.getClass().getClassLoader());
+		if (!classSource.equals(source)) {
+			source += ", thread class from " + classSource;
+		}
+		StackTraceElement[] stack = thread.getStackTrace();
+		for (StackTraceElement frame : stack) {
+			if (!frame.getClassName().startsWith("java.") && !frame.getClassName().startsWith("sun.") && !frame.getClassName().startsWith("jdk.")) {
+				return source + ", running " + frame;
+			}
+		}
+		return source;
+	}
+
+	private static String describePath(String path) {
+		int components = path.indexOf("/components/");
+		if (components >= 0) {
+			int end = path.indexOf('/', components + "/components/".length());
+			if (end > 0) {
+				return path.substring(components + "/components/".length(), end);
+			}
+		}
+		return "unknown";
+	}
+
+	/**
+	 * The container's own jars stay open for the class loader to be reused.
+	 */
+	private static Set<String> getContainerLibraries(SakaiContainer container) {
+		Set<String> paths = new HashSet<String>();
+		if (container.getClassLoader() instanceof ContainerClassLoader) {
+			for (ClasspathIndex.Entry entry : ((ContainerClassLoader)container.getClassLoader()).getIndex().getEntries()) {
+				try {
+					paths.add(entry.getFile().getCanonicalPath());
+				} catch (IOException e) {
+					paths.add(entry.getFile().getAbsolutePath());
+				}
+			}
+		}
+		return paths;
+	}
+
+	private void report(String name) {
+		if (lastLeaks.isEmpty()) {
+			if (log.isDebugEnabled()) log.debug("Nothing leaked by component manager " + name);
+		} else {
+			log.warn(lastLeaks.size() + " resources leaked by component manager " + name + " (start/stop cycle " + cycle + "):");
+			for (Leak leak : lastLeaks) {
+				log.warn("  " + leak);
+			}
+		}
+		File reportFile = new File(HarnessFiles.getBuildDirectory(), "leaks-" + name + ".txt");
+		try {
+			PrintWriter out = new PrintWriter(new FileWriter(reportFile, cycle > 1));
+			try {
+				out.println("Cycle " + cycle + ": " + lastLeaks.size() + " leaked");
+				Map<String, Integer> bySource = new TreeMap<String, Integer>();
+				for (Leak leak : lastLeaks) {
+					out.println("  " + leak);
+					Integer count = bySource.get(leak.getSource());
+					bySource.put(leak.getSource(), Integer.valueOf((count != null) ? (count.intValue() + 1) : 1));
+				}
+				for (Map.Entry<String, Integer> entry : bySource.entrySet()) {
+					out.println("  " + entry.getValue() + " from " + entry.getKey());
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			log.warn("Could not write leak report to " + reportFile, e);
+		}
+	}
+
+	/**
+	 * What's alive and registered at one moment.
+	 */
+	private static class State {
+		private final Map<Thread, Boolean> threads = new IdentityHashMap<Thread, Boolean>();
+		private final Map<String, Integer> files = new TreeMap<String, Integer>();
+		private long fileCount = -1;
+		private final Map<Driver, String> drivers = new IdentityHashMap<Driver, String>();
+		private final Set<String> mbeans = new TreeSet<String>();
+
+		static State capture() {
+			State state = new State();
+			for (Thread thread : Thread.getAllStackTraces().keySet()) {
+				state.threads.put(thread, Boolean.TRUE);
+			}
+			state.captureFiles();
+			for (Driver driver : getRegisteredDrivers()) {
+				state.drivers.put(driver, driver.getClass().getName());
+			}
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			for (Object name : server.queryNames(null, null)) {
+				state.mbeans.add(((ObjectName)name).getCanonicalName());
+			}
+			return state;
+		}
+
+		/**
+		 * Counts the targets of "/proc/self/fd", or failing that just the open
+		 * descriptors. Sockets and pipes can't be resolved to a path, so they're
+		 * told apart by descriptor number.
+		 */
+		private void captureFiles() {
+			File[] descriptors = new File("/proc/self/fd").listFiles();
+			if (descriptors != null) {
+				for (File descriptor : descriptors) {
+					// Skip the descriptor used for the listing, which is closed by now.
+					if (!descriptor.exists()) {
+						continue;
+					}
+					try {
+						String target = descriptor.getCanonicalPath();
+						if (target.startsWith("/proc/")) {
+							target = "socket or pipe, descriptor " + descriptor.getName();
+						}
+						Integer count = files.get(target);
+						files.put(target, Integer.valueOf((count != null) ? (count.intValue() + 1) : 1));
+					} catch (IOException e) {
+						// Closed while listing.
+					}
+				}
+				return;
+			}
+			try {
+				Object os = ManagementFactory.getOperatingSystemMXBean();
+				Method countMethod = Class.forName("com.sun.management.UnixOperatingSystemMXBean").getMethod("getOpenFileDescriptorCount", new Class[0]);
+				fileCount = ((Long)countMethod.invoke(os, new Object[0])).longValue();
+			} catch (Exception e) {
+				// Not available on this JVM.
+			}
+		}
+
+		/**
+		 * DriverManager only shows drivers the caller's class loader can see,
+		 * which leaves out the components' own. Read its registry instead where
+		 * the JVM allows it.
+		 */
+		private static Collection<Driver> getRegisteredDrivers() {
+			List<Driver> drivers = new ArrayList<Driver>();
+			try {
+				Field registeredField = DriverManager.class.getDeclaredField("registeredDrivers");
+				registeredField.setAccessible(true);
+				for (Iterator<?> i = ((Collection<?>)registeredField.get(null)).iterator(); i.hasNext(); ) {
+					Object info = i.next();
+					if (info instanceof Driver) {
+						drivers.add((Driver)info);
+					} else {
+						Field driverField = info.getClass().getDeclaredField("driver");
+						driverField.setAccessible(true);
+						drivers.add((Driver)driverField.get(info));
+					}
+				}
+				return drivers;
+			} catch (Exception e) {
+				drivers.clear();
+			}
+			for (Enumeration<Driver> e = DriverManager.getDrivers(); e.hasMoreElements(); ) {
+				drivers.add(e.nextElement());
+			}
+			return drivers;
+		}
+	}
+}
@@ -0,0 +1,310 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs a scenario of service calls from many threads at once and reports
+ * throughput and latency percentiles.
+ *
+ * In the default closed-loop mode each thread starts its next call as soon as
+ * the last one returns. In open-loop mode (see {@link #setRatePerSecond(double)})
+ * calls are scheduled at a fixed overall rate, and each call's latency is
+ * measured from when it should have started. A stall therefore counts against
+ * every call queued up behind it, rather than hiding them as a closed loop
+ * does ("coordinated omission"). Closed-loop latencies can be corrected the
+ * same way by giving the interval calls are expected to arrive at.
+ *
+ * <pre>
+ * LoadDriver driver = new LoadDriver();
+ * driver.setThreads(16);
+ * driver.setWarmupMillis(5000);
+ * driver.setDurationMillis(30000);
+ * LoadDriver.Result result = driver.run(new LoadDriver.Scenario() {
+ *     public void run(int thread, long iteration) throws Exception {
+ *         siteService.getSite(siteIds[(int)(iteration % siteIds.length)]);
+ *     }
+ * });
+ * log.info(result);
+ * </pre>
+ *
+ * Worker threads inherit the calling thread's container (see {@link ContainerPool}),
+ * so scenarios can use {@link ComponentContainerEmulator#getService(Class)}.
+ * A different kind of thread, such as virtual threads on JVMs which have them,
+ * can be used through {@link #setThreadFactory(ThreadFactory)}.
+ */
+public class LoadDriver {
+	private static final Log log = LogFactory.getLog(LoadDriver.class);
+	private static final AtomicInteger driverNumber = new AtomicInteger();
+
+	private int threads = 1;
+	private long warmupMillis;
+	private long durationMillis = 10000;
+	private double ratePerSecond;
+	private long expectedIntervalNanos;
+	private ThreadFactory threadFactory;
+
+	/**
+	 * The work done by one call.
+	 */
+	public interface Scenario {
+		/**
+		 * @param thread the number of the calling thread, from 0
+		 * @param iteration the number of this call on the calling thread, from 0
+		 */
+		void run(int thread, long iteration) throws Exception;
+	}
+
+	/**
+	 * What was measured after the warm-up.
+	 */
+	public static class Result {
+		private final long operations;
+		private final long errors;
+		private final long elapsedNanos;
+		private final LatencyHistogram latency;
+		private final LatencyHistogram serviceTime;
+		private final Throwable firstError;
+
+		Result(long operations, long errors, long elapsedNanos, LatencyHistogram latency, LatencyHistogram serviceTime, Throwable firstError) {
+			this.operations = operations;
+			this.errors = errors;
+			this.elapsedNanos = elapsedNanos;
+			this.latency = latency;
+			this.serviceTime = serviceTime;
+			this.firstError = firstError;
+		}
+
+		/**
+		 * @return calls completed, including failed ones
+		 */
+		public long getOperations() {
+			return operations;
+		}
+
+		public long getErrors() {
+			return errors;
+		}
+
+		public Throwable getFirstError() {
+			return firstError;
+		}
+
+		public double getThroughputPerSecond() {
+			return (elapsedNanos == 0) ? 0 : (operations * 1000000000.0 / elapsedNanos);
+		}
+
+		/**
+		 * @return latencies in nanoseconds, corrected for coordinated omission where
+		 * the mode allows it
+		 */
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+
+		/**
+		 * @return how long the calls themselves took, in nanoseconds
+		 */
+		public LatencyHistogram getServiceTime() {
+			return serviceTime;
+		}
+
+		public String toString() {
+			return String.format(Locale.US, "%d calls (%d failed), %.1f calls/s, latency p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms; service time p50 %.3f ms, p99 %.3f ms",
+				Long.valueOf(operations), Long.valueOf(errors), Double.valueOf(getThroughputPerSecond()),
+				millis(latency.getPercentile(50)), millis(latency.getPercentile(90)), millis(latency.getPercentile(99)),
+				millis(latency.getMax()), millis(serviceTime.getPercentile(50)), millis(serviceTime.getPercentile(99)));
+		}
+
+		private static Double millis(long nanos) {
+			return Double.valueOf(nanos / 1000000.0);
+		}
+	}
+
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one thread is needed");
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * @param warmupMillis how long to run before measuring
+	 */
+	public void setWarmupMillis(long warmupMillis) {
+		this.warmupMillis = warmupMillis;
+	}
+
+	/**
+	 * @param durationMillis how long to measure for, after the warm-up
+	 */
+	public void setDurationMillis(long durationMillis) {
+		this.durationMillis = durationMillis;
+	}
+
+	/**
+	 * Switches to open-loop mode, starting calls at this overall rate, spread
+	 * evenly over the threads. There must be enough threads to keep up with the
+	 * rate, or latencies will grow for the whole run. Zero means closed-loop.
+	 */
+	public void setRatePerSecond(double ratePerSecond) {
+		this.ratePerSecond = ratePerSecond;
+	}
+
+	/**
+	 * In closed-loop mode, the interval at which each thread's calls would be
+	 * expected to arrive in production. A call which takes longer is recorded
+	 * along with the calls which would have been waiting behind it. Zero (the
+	 * default) records service times as they are.
+	 */
+	public void setExpectedIntervalMicros(long expectedIntervalMicros) {
+		this.expectedIntervalNanos = expectedIntervalMicros * 1000;
+	}
+
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * Runs the scenario for the warm-up and measurement periods and waits for
+	 * every thread to finish its last call.
+	 */
+	public Result run(final Scenario scenario) throws InterruptedException {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LatencyHistogram serviceTime = new LatencyHistogram();
+		final AtomicLong operations = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicReference<Throwable> firstError = new AtomicReference<Throwable>();
+		final CountDownLatch ready = new CountDownLatch(threads);
+		final CountDownLatch go = new CountDownLatch(1);
+		final long[] times = new long[3];
+		final long intervalNanos = (ratePerSecond > 0) ? (long)(threads * 1000000000.0 / ratePerSecond) : 0;
+
+		ThreadFactory factory = (threadFactory != null) ? threadFactory : new DefaultThreadFactory();
+		List<Thread> workers = new ArrayList<Thread>(threads);
+		for (int i = 0; i < threads; i++) {
+			final int threadNumber = i;
+			Thread worker = factory.newThread(new Runnable() {
+				public void run() {
+					ready.countDown();
+					try {
+						go.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					long start = times[0];
+					long measureStart = times[1];
+					long end = times[2];
+					// Stagger the threads so that open-loop calls are evenly spread.
+					long intended = start + ((intervalNanos * threadNumber) / threads);
+					for (long iteration = 0; ; iteration++) {
+						if (intervalNanos == 0) {
+							intended = System.nanoTime();
+						}
+						if (intended - end >= 0) {
+							break;
+						}
+						long wait;
+						while ((wait = intended - System.nanoTime()) > 0) {
+							LockSupport.parkNanos(wait);
+						}
+						long callStart = System.nanoTime();
+						boolean failed = false;
+						try {
+							scenario.run(threadNumber, iteration);
+						} catch (Throwable t) {
+							failed = true;
+							firstError.compareAndSet(null, t);
+						}
+						long callEnd = System.nanoTime();
+						if (intended - measureStart >= 0) {
+							operations.incrementAndGet();
+							if (failed) {
+								errors.incrementAndGet();
+							}
+							serviceTime.record(callEnd - callStart);
+							recordLatency(latency, callEnd - intended);
+						}
+						if (intervalNanos > 0) {
+							intended += intervalNanos;
+						}
+					}
+				}
+			});
+			workers.add(worker);
+		}
+
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		ready.await();
+		times[0] = System.nanoTime();
+		times[1] = times[0] + warmupMillis * 1000000;
+		times[2] = times[1] + durationMillis * 1000000;
+		// The latch makes the times visible to the workers.
+		go.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		Result result = new Result(operations.get(), errors.get(), times[2] - times[1], latency, serviceTime, firstError.get());
+		if (result.getErrors() > 0) {
+			log.warn(result.getErrors() + " calls failed; the first failure was", result.getFirstError());
+		}
+		if (log.isDebugEnabled()) log.debug(result);
+		return result;
+	}
+
+	private void recordLatency(LatencyHistogram latency, long nanos) {
+		latency.record(nanos);
+		if ((ratePerSecond <= 0) && (expectedIntervalNanos > 0)) {
+			// Back-fill the calls which would have arrived during a slow one.
+			for (long missed = nanos - expectedIntervalNanos; missed >= expectedIntervalNanos; missed -= expectedIntervalNanos) {
+				latency.record(missed);
+			}
+		}
+	}
+
+	private static class DefaultThreadFactory implements ThreadFactory {
+		private final String prefix = "LoadDriver-" + driverNumber.incrementAndGet() + "-";
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, prefix + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,251 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.support.AbstractBeanDefinition;
+
+/**
+ * Uses idle processors while the component manager starts, and measures how
+ * much more a fully parallel startup could gain.
+ *
+ * Spring 2.x holds a single lock while it creates any singleton, so the beans
+ * themselves can't be created on more than one thread. What can be done in
+ * parallel is the class loading each bean needs, which is a large part of
+ * Sakai's startup time. Once the bean definitions are loaded, their dependency
+ * graph is worked out (see {@link BeanDependencyGraph}) and a bounded pool of
+ * daemon threads loads the bean classes and the classes their constructors,
+ * methods and fields name, in the order the beans will be needed, while Spring
+ * creates the beans on the starting thread.
+ *
+ * Static initializers are left to the starting thread. Running them on the
+ * pool while that thread holds Spring's singleton lock could deadlock, if an
+ * initializer looked up a bean while the starting thread waited for the class.
+ * Loading alone takes only class loader locks, which are always taken from a
+ * component's loader towards the shared ones, so it can't deadlock.
+ *
+ * When the container has started, the time each bean took on its own (from a
+ * {@link BeanStartupProfiler}) is laid over the graph to find the critical path,
+ * the longest chain of beans which must be created one after another. That
+ * chain bounds any parallel startup. The report, written to
+ * target/bean-startup-graph-&lt;container&gt;.txt, gives the serial total, the
+ * critical path, and the estimated startup time and speedup with the pool's
+ * number of threads.
+ */
+public class ParallelStartup extends SakaiContainer.ListenerAdapter implements BeanFactoryPostProcessor {
+	private static final Log log = LogFactory.getLog(ParallelStartup.class);
+	private static final AtomicInteger poolNumber = new AtomicInteger();
+
+	private final int threads;
+	private final BeanStartupProfiler profiler;
+	private final AtomicInteger loadedClasses = new AtomicInteger();
+	private final AtomicInteger failedClasses = new AtomicInteger();
+	private volatile BeanDependencyGraph graph;
+	private ExecutorService executor;
+	private long preloadStart;
+	private volatile long preloadEnd;
+
+	/**
+	 * @param threads the most threads to load classes on
+	 * @param profiler where bean timings come from; may be null to skip the report
+	 */
+	public ParallelStartup(int threads, BeanStartupProfiler profiler) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one thread is needed");
+		}
+		this.threads = threads;
+		this.profiler = profiler;
+	}
+
+	public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) throws BeansException {
+		graph = BeanDependencyGraph.build(beanFactory);
+		List<String> order = graph.getCreationOrder();
+		final ClassLoader classLoader = (beanFactory.getBeanClassLoader() != null) ? beanFactory.getBeanClassLoader() : Thread.currentThread().getContextClassLoader();
+		final AtomicInteger remaining = new AtomicInteger(order.size());
+		preloadStart = System.nanoTime();
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory());
+		for (String beanName : order) {
+			BeanDefinition definition = beanFactory.getBeanDefinition(beanName);
+			// Component definitions already hold classes from their own package's
+			// loader, which the bean factory's loader can't see.
+			final Class<?> beanClass = ((definition instanceof AbstractBeanDefinition) && ((AbstractBeanDefinition)definition).hasBeanClass()) ?
+				((AbstractBeanDefinition)definition).getBeanClass() : null;
+			final String className = definition.getBeanClassName();
+			if ((beanClass == null) && (className == null)) {
+				countDown(remaining);
+				continue;
+			}
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						Class<?> clazz = (beanClass != null) ? beanClass : Class.forName(className, false, classLoader);
+						// Resolving the members loads the classes they name, without
+						// initializing any of them.
+						clazz.getDeclaredConstructors();
+						clazz.getDeclaredMethods();
+						clazz.getDeclaredFields();
+						loadedClasses.incrementAndGet();
+					} catch (Throwable t) {
+						// Spring will report it properly when it gets to the bean.
+						failedClasses.incrementAndGet();
+						if (log.isDebugEnabled()) log.debug("Could not preload " + ((beanClass != null) ? beanClass.getName() : className) + ": " + t);
+					} finally {
+						countDown(remaining);
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		if (log.isDebugEnabled()) log.debug("Preloading classes for " + order.size() + " beans on " + threads + " threads");
+	}
+
+	private void countDown(AtomicInteger remaining) {
+		if (remaining.decrementAndGet() == 0) {
+			preloadEnd = System.nanoTime();
+		}
+	}
+
+	/**
+	 * @return how many bean classes were loaded, and how many couldn't be
+	 */
+	int getLoadedClasses() {
+		return loadedClasses.get();
+	}
+
+	int getFailedClasses() {
+		return failedClasses.get();
+	}
+
+	/**
+	 * @return the graph of the container's beans, or null before their
+	 * definitions are loaded
+	 */
+	public BeanDependencyGraph getGraph() {
+		return graph;
+	}
+
+	@Override
+	public void containerStarted(SakaiContainer container) {
+		if (executor != null) {
+			try {
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (log.isInfoEnabled()) log.info("Preloaded " + loadedClasses.get() + " bean classes (" + failedClasses.get() + " failed) in " +
+				((preloadEnd != 0) ? ((preloadEnd - preloadStart) / 1000000) : -1) + " ms on " + threads + " threads");
+			executor = null;
+		}
+		if ((profiler != null) && (graph != null)) {
+			File reportFile = new File(HarnessFiles.getBuildDirectory(), "bean-startup-graph-" + container.getName() + ".txt");
+			try {
+				writeReport(reportFile);
+				if (log.isInfoEnabled()) log.info("Wrote bean dependency graph report to " + reportFile);
+			} catch (IOException e) {
+				log.warn("Could not write bean dependency graph report to " + reportFile, e);
+			}
+		}
+	}
+
+	/**
+	 * Writes the serial and estimated parallel startup times, the critical path,
+	 * and each bean's dependencies.
+	 */
+	public void writeReport(File reportFile) throws IOException {
+		Map<String, Long> costs = new HashMap<String, Long>();
+		long serialNanos = 0;
+		for (BeanStartupProfiler.BeanTiming timing : profiler.getTimings()) {
+			costs.put(timing.getBeanName(), Long.valueOf(timing.getSelfNanos()));
+			serialNanos += timing.getSelfNanos();
+		}
+		List<String> criticalPath = graph.getCriticalPath(costs);
+		long criticalNanos = 0;
+		for (String beanName : criticalPath) {
+			Long cost = costs.get(beanName);
+			criticalNanos += (cost != null) ? cost.longValue() : 0;
+		}
+		long estimatedNanos = graph.estimateElapsed(costs, threads);
+
+		PrintWriter out = new PrintWriter(new FileWriter(reportFile));
+		try {
+			out.println(String.format(Locale.US, "Beans: %d, created: %d", Integer.valueOf(graph.getBeanNames().size()), Integer.valueOf(costs.size())));
+			out.println(String.format(Locale.US, "Serial creation time: %.1f ms", millis(serialNanos)));
+			out.println(String.format(Locale.US, "Critical path: %.1f ms over %d beans (speedup at most %.2fx)",
+				millis(criticalNanos), Integer.valueOf(criticalPath.size()), speedup(serialNanos, criticalNanos)));
+			out.println(String.format(Locale.US, "Estimated with %d threads: %.1f ms (speedup %.2fx)",
+				Integer.valueOf(threads), millis(estimatedNanos), speedup(serialNanos, estimatedNanos)));
+			out.println();
+			out.println("Critical path:");
+			for (String beanName : criticalPath) {
+				Long cost = costs.get(beanName);
+				out.println(String.format(Locale.US, "%10.1f ms  %s", millis((cost != null) ? cost.longValue() : 0), beanName));
+			}
+			out.println();
+			out.println("Dependencies:");
+			for (String beanName : graph.getCreationOrder()) {
+				out.println(beanName + " <- " + graph.getDependencies(beanName));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static Double millis(long nanos) {
+		return Double.valueOf(nanos / 1000000.0);
+	}
+
+	private static Double speedup(long serialNanos, long parallelNanos) {
+		return Double.valueOf((parallelNanos == 0) ? 1 : ((double)serialNanos / parallelNanos));
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final String prefix = "ParallelStartup-" + poolNumber.incrementAndGet() + "-";
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, prefix + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
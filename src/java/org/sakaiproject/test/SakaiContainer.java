@@ -0,0 +1,524 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.support.BeanDefinitionRegistry;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+/**
+ * One emulated Sakai component container: a component manager together with
+ * the class loader it was loaded from and the Sakai home it was configured with.
+ *
+ * Most tests will use the single container managed by {@link ComponentContainerEmulator}.
+ * Several containers can live in one JVM as long as each has its own isolating
+ * class loader (see {@link ContainerPool}).
+ *
+ * Bean factory and bean post-processors can be added before the container is
+ * started. They're applied to the component manager's Spring context by asking
+ * the component manager to defer its refresh (as it does when loaded by a web
+ * application), registering the processors, and then refreshing the context.
+ *
+ * With {@link #setCachingDefinitions(boolean)}, the component manager is given
+ * an empty components directory and the container loads each component
+ * package's definitions itself through the {@link BeanDefinitionCache}, before
+ * the deferred refresh. Each package gets its own class loader for its
+ * "WEB-INF/classes" and "WEB-INF/lib", as the component manager would give it.
+ */
+public class SakaiContainer {
+	private static final Log log = LogFactory.getLog(SakaiContainer.class);
+
+	// The component manager reads its configuration from Java system properties
+	// while it starts, so containers have to start one at a time.
+	private static final Object startLock = new Object();
+
+	private static final String COVER_CLASS_NAME = "org.sakaiproject.component.cover.ComponentManager";
+
+	private final String name;
+	private final String componentsRoot;
+	private final String sakaiHome;
+	private final ClassLoader classLoader;
+	private volatile Object componentManager;
+	private volatile ComponentManagerHandles handles;
+	private final ConcurrentMap<String, Object> servicesById = new ConcurrentHashMap<String, Object>();
+	private final ConcurrentMap<Class<?>, Object> servicesByInterface = new ConcurrentHashMap<Class<?>, Object>();
+	private final List<BeanFactoryPostProcessor> beanFactoryPostProcessors = new ArrayList<BeanFactoryPostProcessor>();
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private volatile ContainerSnapshot snapshot;
+	private String baseSakaiHome;
+	private boolean cachingDefinitions;
+
+	/**
+	 * Is told when the container starts and stops, for instance to report on
+	 * what happened in between.
+	 */
+	public interface Listener {
+		void containerStarting(SakaiContainer container);
+		void containerStarted(SakaiContainer container);
+		void containerStopping(SakaiContainer container);
+		void containerStopped(SakaiContainer container);
+	}
+
+	/**
+	 * Empty implementation of {@link Listener} to extend.
+	 */
+	public static class ListenerAdapter implements Listener {
+		public void containerStarting(SakaiContainer container) {
+		}
+		public void containerStarted(SakaiContainer container) {
+		}
+		public void containerStopping(SakaiContainer container) {
+		}
+		public void containerStopped(SakaiContainer container) {
+		}
+	}
+
+	/**
+	 * @param name used in log messages
+	 * @param componentsRoot the Tomcat "components" directory
+	 * @param sakaiHome the directory holding "sakai.properties", or null to use
+	 * 	whatever "sakai.home" is already set to
+	 * @param classLoader the class loader holding the Tomcat libraries
+	 */
+	public SakaiContainer(String name, String componentsRoot, String sakaiHome, ClassLoader classLoader) {
+		this.name = name;
+		this.componentsRoot = componentsRoot;
+		this.sakaiHome = sakaiHome;
+		this.classLoader = classLoader;
+	}
+
+	public void start() {
+		synchronized (startLock) {
+			if (isStarted()) {
+				if (log.isInfoEnabled()) log.info("Component manager " + name + " already exists, so not starting after all");
+				return;
+			}
+
+			// Set the system properties needed by the sakai component manager
+			if ((sakaiHome != null) && (sakaiHome.length() > 0)) {
+				System.setProperty("sakai.home", sakaiHome);
+			}
+			System.setProperty("sakai.components.root", componentsRoot);
+
+			for (Listener listener : listeners) {
+				listener.containerStarting(this);
+			}
+			SakaiTestTimer timer = new SakaiTestTimer("Component manager startup (" + name + ")");
+			ClassLoader previousContextClassLoader = Thread.currentThread().getContextClassLoader();
+			Thread.currentThread().setContextClassLoader(classLoader);
+			try {
+				Class<?> clazz = Class.forName(COVER_CLASS_NAME, true, classLoader);
+				if (beanFactoryPostProcessors.isEmpty() && !cachingDefinitions) {
+					componentManager = clazz.getDeclaredMethod("getInstance", (Class[])null).invoke((Object[])null, (Object[])null);
+				} else {
+					componentManager = startWithLateRefresh(clazz);
+				}
+				handles = new ComponentManagerHandles(componentManager);
+			} catch (Exception e) {
+				// Wrap as runtime exception, since it's unlikely the caller will want to do
+				// anything but die.
+				if (e instanceof RuntimeException) {
+					throw (RuntimeException)e;
+				} else {
+					throw new RuntimeException(e);
+				}
+			} finally {
+				Thread.currentThread().setContextClassLoader(previousContextClassLoader);
+			}
+			timer.logTimeElapsed();
+			for (Listener listener : listeners) {
+				listener.containerStarted(this);
+			}
+		}
+	}
+
+	/**
+	 * Creates the component manager without refreshing its application context,
+	 * applies the post-processors, and then refreshes it.
+	 */
+	private Object startWithLateRefresh(Class<?> coverClass) throws Exception {
+		Field lateRefreshField;
+		try {
+			lateRefreshField = coverClass.getField("lateRefresh");
+		} catch (NoSuchFieldException e) {
+			log.warn("This component manager can't defer its refresh, so bean post-processors and cached definitions will not be used");
+			return coverClass.getDeclaredMethod("getInstance", (Class[])null).invoke((Object[])null, (Object[])null);
+		}
+		boolean previousLateRefresh = lateRefreshField.getBoolean(null);
+		lateRefreshField.setBoolean(null, true);
+		if (cachingDefinitions) {
+			File emptyRoot = new File(HarnessFiles.getBuildDirectory(), "empty-components");
+			emptyRoot.mkdirs();
+			System.setProperty("sakai.components.root", emptyRoot.getAbsolutePath() + File.separator);
+		}
+		Object manager;
+		try {
+			manager = coverClass.getDeclaredMethod("getInstance", (Class[])null).invoke((Object[])null, (Object[])null);
+		} finally {
+			lateRefreshField.setBoolean(null, previousLateRefresh);
+			System.setProperty("sakai.components.root", componentsRoot);
+		}
+		Method getContextMethod = manager.getClass().getMethod("getApplicationContext", new Class[0]);
+		ConfigurableApplicationContext context = (ConfigurableApplicationContext)getContextMethod.invoke(manager, new Object[0]);
+		if (cachingDefinitions) {
+			loadComponentPackages((BeanDefinitionRegistry)context.getBeanFactory());
+		}
+		for (BeanFactoryPostProcessor processor : beanFactoryPostProcessors) {
+			context.addBeanFactoryPostProcessor(processor);
+		}
+		context.refresh();
+		return manager;
+	}
+
+	/**
+	 * Registers the definitions from each component package's "components.xml"
+	 * (and "components-demo.xml" in demo mode), in the order the component
+	 * manager would find them.
+	 */
+	private void loadComponentPackages(BeanDefinitionRegistry registry) throws MalformedURLException {
+		File[] packageDirs = new File(componentsRoot).listFiles();
+		if (packageDirs == null) {
+			log.warn("No component packages in " + componentsRoot);
+			return;
+		}
+		SakaiTestTimer timer = new SakaiTestTimer("Component definitions (" + name + ")");
+		int firstLoad = BeanDefinitionCache.getStatistics().size();
+		boolean demo = (System.getProperty("sakai.demo") != null);
+		ClassLoader previousContextClassLoader = Thread.currentThread().getContextClassLoader();
+		try {
+			for (File packageDir : packageDirs) {
+				File webInf = new File(packageDir, "WEB-INF");
+				File componentsXml = new File(webInf, "components.xml");
+				if (!componentsXml.isFile()) {
+					continue;
+				}
+				List<Resource> resources = new ArrayList<Resource>();
+				resources.add(new FileSystemResource(componentsXml));
+				File demoXml = new File(webInf, "components-demo.xml");
+				if (demo && demoXml.isFile()) {
+					resources.add(new FileSystemResource(demoXml));
+				}
+				ClassLoader packageClassLoader = newPackageClassLoader(webInf);
+				Thread.currentThread().setContextClassLoader(packageClassLoader);
+				BeanDefinitionCache.loadBeanDefinitions(registry, resources.toArray(new Resource[resources.size()]), null,
+					packageClassLoader, packageDir.getName());
+			}
+		} finally {
+			Thread.currentThread().setContextClassLoader(previousContextClassLoader);
+		}
+		timer.logTimeElapsed();
+
+		List<BeanDefinitionCache.LoadStatistics> loads = BeanDefinitionCache.getStatistics();
+		loads = loads.subList(firstLoad, loads.size());
+		long savedNanos = 0;
+		for (BeanDefinitionCache.LoadStatistics load : loads) {
+			savedNanos += load.getSavedNanos();
+		}
+		File reportFile = new File(HarnessFiles.getBuildDirectory(), "bean-definitions-" + name + ".txt");
+		try {
+			BeanDefinitionCache.writeReport(reportFile, loads);
+		} catch (IOException e) {
+			log.warn("Could not write bean definition report to " + reportFile, e);
+		}
+		if (log.isInfoEnabled()) log.info("Loaded definitions for " + loads.size() + " component packages; the cache saved " +
+			(savedNanos / 1000000) + " ms of parsing (see " + reportFile + ")");
+	}
+
+	private ClassLoader newPackageClassLoader(File webInf) throws MalformedURLException {
+		List<URL> urls = new ArrayList<URL>();
+		File classes = new File(webInf, "classes");
+		if (classes.isDirectory()) {
+			urls.add(classes.toURI().toURL());
+		}
+		File[] libs = new File(webInf, "lib").listFiles();
+		if (libs != null) {
+			for (File lib : libs) {
+				if (lib.getName().endsWith(".jar")) {
+					urls.add(lib.toURI().toURL());
+				}
+			}
+		}
+		return new URLClassLoader(urls.toArray(new URL[urls.size()]), classLoader);
+	}
+
+	/**
+	 * Has the container parse component definitions itself, through the
+	 * definition cache. Needs a component manager which can defer its refresh.
+	 * Only takes effect if set before {@link #start()}.
+	 */
+	public void setCachingDefinitions(boolean cachingDefinitions) {
+		this.cachingDefinitions = cachingDefinitions;
+	}
+
+	/**
+	 * Adds a post-processor to apply to the component bean definitions before
+	 * any beans are created. Only takes effect if added before {@link #start()}.
+	 */
+	public void addBeanFactoryPostProcessor(BeanFactoryPostProcessor processor) {
+		beanFactoryPostProcessors.add(processor);
+	}
+
+	/**
+	 * Adds a post-processor which will see every component bean as it's created.
+	 * Only takes effect if added before {@link #start()}.
+	 */
+	public void addBeanPostProcessor(final BeanPostProcessor processor) {
+		beanFactoryPostProcessors.add(new BeanFactoryPostProcessor() {
+			public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) throws BeansException {
+				beanFactory.addBeanPostProcessor(processor);
+			}
+		});
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	public void stop() {
+		ComponentManagerHandles current = handles;
+		if (current != null) {
+			for (Listener listener : listeners) {
+				listener.containerStopping(this);
+			}
+			ClassLoader previousContextClassLoader = Thread.currentThread().getContextClassLoader();
+			Thread.currentThread().setContextClassLoader(classLoader);
+			try {
+				servicesById.clear();
+				servicesByInterface.clear();
+				snapshot = null;
+				current.closeMethod.invoke(current.componentManager, new Object[0]);
+				componentManager = null;
+				handles = null;
+				releaseCover(current.componentManager);
+			} catch (Exception e) {
+				log.error(e);
+			} finally {
+				Thread.currentThread().setContextClassLoader(previousContextClassLoader);
+			}
+			for (Listener listener : listeners) {
+				listener.containerStopped(this);
+			}
+		} else {
+			if (log.isInfoEnabled()) log.info("Component manager " + name + " already stopped");
+		}
+	}
+
+	/**
+	 * The component manager cover keeps the closed manager in a static field,
+	 * and so every component's classes with it, since its class loader is
+	 * reused for the next start. Clearing the field also makes the cover create
+	 * a new manager next time.
+	 */
+	private void releaseCover(Object closedManager) {
+		try {
+			Class<?> coverClass = Class.forName(COVER_CLASS_NAME, false, classLoader);
+			for (Field field : coverClass.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers()) && !Modifier.isFinal(field.getModifiers()) && !field.getType().isPrimitive()) {
+					field.setAccessible(true);
+					if (field.get(null) == closedManager) {
+						field.set(null, null);
+					}
+				}
+			}
+		} catch (Exception e) {
+			log.warn("Could not release the closed component manager: " + e);
+		}
+	}
+
+	public boolean isStarted() {
+		return (componentManager != null);
+	}
+
+	/**
+	 * @return the container's Spring ApplicationContext, or null if it isn't running
+	 */
+	public Object getApplicationContext() {
+		ComponentManagerHandles current = handles;
+		return (current != null) ? current.applicationContext : null;
+	}
+
+	/**
+	 * Service beans are cached by ID once found, as long as Spring says they're
+	 * singletons, so repeated lookups don't go through reflection at all.
+	 * 
+	 * @param beanId The id of the service
+	 * @return The service, or null if the ID is not registered
+	 */
+	public Object getService(String beanId) {
+		Object service = servicesById.get(beanId);
+		if (service == null) {
+			ComponentManagerHandles current = handles;
+			try {
+				service = current.getMethod.invoke(current.componentManager, new Object[] {beanId});
+			} catch (Exception e) {
+				log.error(e, e);
+				return null;
+			}
+			if ((service != null) && current.isSingleton(beanId)) {
+				servicesById.put(beanId, service);
+			}
+		}
+		return service;
+	}
+
+	/**
+	 * @param clazz the interface of a singleton service whose ID is the interface name
+	 * @return the implementing service
+	 */
+	public <T> T getService(Class<T> clazz) {
+		Object service = servicesByInterface.get(clazz);
+		if (service == null) {
+			String beanId = clazz.getName();
+			service = ServiceBridge.bridge(clazz, getService(beanId));
+			if ((service != null) && servicesById.containsKey(beanId)) {
+				servicesByInterface.put(clazz, service);
+			}
+		}
+		return clazz.cast(service);
+	}
+
+	/**
+	 * Records the current contents of the container's databases, to go back to
+	 * with {@link #restoreSnapshot()}. Replaces any earlier snapshot.
+	 */
+	public ContainerSnapshot takeSnapshot() {
+		snapshot = ContainerSnapshot.capture(this);
+		return snapshot;
+	}
+
+	/**
+	 * Puts the container's databases back to the last snapshot and clears the
+	 * component caches.
+	 *
+	 * @return false if no snapshot has been taken since the container started
+	 */
+	public boolean restoreSnapshot() {
+		ContainerSnapshot current = snapshot;
+		if (current == null) {
+			return false;
+		}
+		current.restore();
+		return true;
+	}
+
+	public boolean hasSnapshot() {
+		return (snapshot != null);
+	}
+
+	/**
+	 * The reflective handles on a running component manager, resolved once at startup.
+	 */
+	private static class ComponentManagerHandles {
+		private final Object componentManager;
+		private final Method getMethod;
+		private final Method closeMethod;
+		private final Object applicationContext;
+
+		ComponentManagerHandles(Object componentManager) throws Exception {
+			this.componentManager = componentManager;
+			Class<?> managerClass = componentManager.getClass();
+			getMethod = managerClass.getMethod("get", new Class[] {String.class});
+			closeMethod = managerClass.getMethod("close", new Class[0]);
+			Object context = null;
+			try {
+				Method getContextMethod = managerClass.getMethod("getApplicationContext", new Class[0]);
+				context = getContextMethod.invoke(componentManager, new Object[0]);
+			} catch (Exception e) {
+				log.error(e);
+			}
+			applicationContext = context;
+		}
+
+		/**
+		 * Prototype beans must not be cached. If the context can't tell us, assume
+		 * the worst.
+		 */
+		boolean isSingleton(String beanId) {
+			if (applicationContext instanceof ConfigurableApplicationContext) {
+				try {
+					return ((ConfigurableApplicationContext)applicationContext).isSingleton(beanId);
+				} catch (Exception e) {
+					if (log.isDebugEnabled()) log.debug("Not caching " + beanId + ": " + e);
+				}
+			}
+			return false;
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	List<Listener> getListeners() {
+		return listeners;
+	}
+
+	public String getSakaiHome() {
+		return sakaiHome;
+	}
+
+	/**
+	 * @return the Sakai home this container's own was copied from, or its own
+	 * Sakai home if it wasn't a copy
+	 */
+	public String getBaseSakaiHome() {
+		return (baseSakaiHome != null) ? baseSakaiHome : sakaiHome;
+	}
+
+	public void setBaseSakaiHome(String baseSakaiHome) {
+		this.baseSakaiHome = baseSakaiHome;
+	}
+
+	public ClassLoader getClassLoader() {
+		return classLoader;
+	}
+
+	public String toString() {
+		return "SakaiContainer[" + name + "]";
+	}
+}
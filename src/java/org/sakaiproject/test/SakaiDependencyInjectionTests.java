@@ -24,13 +24,19 @@ package org.sakaiproject.test;
 
 import static org.sakaiproject.test.ComponentContainerEmulator.setTestSakaiHome;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.BeanDefinitionStoreException;
 import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
 import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.core.io.Resource;
 import org.springframework.test.AbstractDependencyInjectionSpringContextTests;
 
 /**
@@ -44,35 +50,143 @@ import org.springframework.test.AbstractDependencyInjectionSpringContextTests;
  * This models the bean visibility you get with a Sakai web application (although
  * the classloading still won't be completely realistic).
  * 
- * If you run more than one integration test and you need a clean start between
- * tests to avoid static debris in the component system, make sure to include
- * a call to "setDirty()" in a "tearDown()" or "oneTimeTearDown()" method. 
+ * Test contexts are cached for the life of the JVM by their configuration
+ * locations and Sakai home, so test classes which share a configuration share
+ * a context. The least recently used contexts are closed once there are more
+ * than "test.harness.contextCache.size" of them (default 8) or they're estimated
+ * to take more than "test.harness.contextCache.megabytes" (default 256).
+ * 
+ * Calling "setDirty()" closes this test's own context. If you run more than one
+ * integration test and you need a clean start between tests to avoid static
+ * debris in the component system, call "setContainerDirty()" in a "tearDown()"
+ * or "oneTimeTearDown()" method to stop the component manager as well.
+ * With "-Dtest.harness.isolation=snapshot", the database and caches are instead
+ * put back after every test method.
  */
 public class SakaiDependencyInjectionTests extends AbstractDependencyInjectionSpringContextTests {
 	private static final Log log = LogFactory.getLog(SakaiDependencyInjectionTests.class);
 	
+	/**
+	 * Also checks that a cached context still belongs to the running component
+	 * manager, and restarts the component manager if this test needs a different
+	 * Sakai home.
+	 */
+	@Override
+	protected Object contextKey() {
+		String sakaiHome = ComponentContainerEmulator.findTestSakaiHome();
+		ChildContextCache.Key key = new ChildContextCache.Key(getConfigLocations(), sakaiHome);
+		SakaiContainer container = ComponentContainerEmulator.getCurrentContainer();
+		if ((container != null) && (sakaiHome != null) && !sakaiHome.equals(container.getBaseSakaiHome())) {
+			if (log.isInfoEnabled()) log.info("Restarting the component manager to use sakai.home " + sakaiHome);
+			ComponentContainerEmulator.stopComponentManager();
+		}
+		if (hasCachedContext(key)) {
+			try {
+				if (getContext(key).getParent() != ComponentContainerEmulator.getContainerApplicationContext()) {
+					removeContext(key);
+				}
+			} catch (Exception e) {
+				removeContext(key);
+			}
+		}
+		ChildContextCache.touch(key);
+		return key;
+	}
+
+	@Override
+	protected ConfigurableApplicationContext loadContext(Object key) throws Exception {
+		ChildContextCache.Key childKey = (ChildContextCache.Key)key;
+		// Start the parent first, so that it isn't counted as part of this context.
+		if (!ComponentContainerEmulator.isStarted()) {
+			ComponentContainerEmulator.startComponentManagerForTest();
+		}
+		long allocatedBefore = ThreadUsage.getAllocatedBytes();
+		ConfigurableApplicationContext context = loadContextLocations(childKey.getLocations());
+		long allocatedAfter = ThreadUsage.getAllocatedBytes();
+
+		// Allocation while loading overstates what the context keeps, but it's a
+		// cheap upper bound. Without it, guess from the number of beans.
+		long estimatedBytes = ((allocatedBefore >= 0) && (allocatedAfter >= 0)) ? (allocatedAfter - allocatedBefore) :
+			(context.getBeanDefinitionCount() * 16L * 1024L);
+		for (ChildContextCache.Key evicted : ChildContextCache.add(childKey, estimatedBytes)) {
+			setDirty(evicted);
+		}
+		return context;
+	}
+
+	private void removeContext(ChildContextCache.Key key) {
+		ChildContextCache.remove(key);
+		setDirty(key);
+	}
+
 	@Override
 	protected ConfigurableApplicationContext createApplicationContext(String[] locations) {
 		if (log.isDebugEnabled()) log.debug("createApplicationContext locations=" + Arrays.asList(locations));
 		ComponentContainerEmulator.startComponentManagerForTest();		
+		ComponentContainerEmulator.beginIsolatedTest();
 		ConfigurableApplicationContext componentContext = (ConfigurableApplicationContext)ComponentContainerEmulator.getContainerApplicationContext();
 
 		// WARNING: Copied from the superclass! The only change is to add a 
 		// parent application context to the application context constructor.
 		GenericApplicationContext context = new GenericApplicationContext(componentContext);
 		customizeBeanFactory(context.getDefaultListableBeanFactory());
-		new XmlBeanDefinitionReader(context).loadBeanDefinitions(locations);
+		if (BeanDefinitionCache.isEnabled()) {
+			List<Resource> resources = new ArrayList<Resource>();
+			for (String location : locations) {
+				try {
+					Collections.addAll(resources, context.getResources(location));
+				} catch (IOException e) {
+					throw new BeanDefinitionStoreException("Could not resolve bean definition resource pattern [" + location + "]", e);
+				}
+			}
+			BeanDefinitionCache.loadBeanDefinitions(context, resources.toArray(new Resource[resources.size()]), context, null,
+				Arrays.asList(locations).toString());
+		} else {
+			new XmlBeanDefinitionReader(context).loadBeanDefinitions(locations);
+		}
 		context.refresh();
 		
 		return context;
 	}
 
+	@Override
+	public void runBare() throws Throwable {
+		String sakaiHome = ComponentContainerEmulator.findTestSakaiHome();
+		TestDurations.testStarted(getClass(), sakaiHome, new ChildContextCache.Key(getConfigLocations(), sakaiHome).toString());
+		ComponentContainerEmulator.beginIsolatedTest();
+		try {
+			super.runBare();
+		} finally {
+			ComponentContainerEmulator.endIsolatedTest();
+			TestDurations.testFinished(getClass());
+		}
+	}
+
+	/**
+	 * Also records which component beans were injected, for {@link TestFootprints}.
+	 */
+	@Override
+	protected void injectDependencies() throws Exception {
+		super.injectDependencies();
+		TestFootprints.contextInjected(this, SakaiDependencyInjectionTests.class, getApplicationContext());
+	}
+
+	/**
+	 * Closes this test's application context, leaving the component manager
+	 * running for the next test.
+	 */
 	@Override
 	protected void setDirty() {
+		ChildContextCache.remove((ChildContextCache.Key)contextKey());
 		super.setDirty();
-		
-		// The above call will have closed this test's application context, but
-		// make sure the component manager context is closed as well.
+	}
+
+	/**
+	 * Closes this test's application context and stops the component manager,
+	 * so that the next test starts from scratch.
+	 */
+	protected void setContainerDirty() {
+		setDirty();
 		ComponentContainerEmulator.stopComponentManager();
 	}
 
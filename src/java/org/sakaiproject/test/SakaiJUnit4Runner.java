@@ -0,0 +1,102 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import org.junit.runner.notification.RunNotifier;
+import org.junit.runners.BlockJUnit4ClassRunner;
+import org.junit.runners.model.FrameworkMethod;
+import org.junit.runners.model.InitializationError;
+import org.junit.runners.model.Statement;
+
+/**
+ * Runs a JUnit 4 test class on the {@link SharedContainer}, so that every test
+ * class in the JVM which uses this runner shares one component manager. The
+ * {@link SakaiService} fields of each test instance are set before its
+ * "@Before" methods run.
+ *
+ * <pre>
+ * &#64;RunWith(SakaiJUnit4Runner.class)
+ * public class SiteServiceTest {
+ *     &#64;SakaiService
+ *     private SiteService siteService;
+ *
+ *     &#64;Test
+ *     public void siteExists() throws Exception {
+ *         assertNotNull(siteService.getSite("!admin"));
+ *     }
+ * }
+ * </pre>
+ *
+ * A class which needs its own Sakai home can call
+ * {@link ComponentContainerEmulator#setTestSakaiHome(String)} from a static
+ * initializer.
+ */
+public class SakaiJUnit4Runner extends BlockJUnit4ClassRunner {
+
+	public SakaiJUnit4Runner(Class<?> testClass) throws InitializationError {
+		super(testClass);
+	}
+
+	@Override
+	protected Statement classBlock(RunNotifier notifier) {
+		final Statement statement = super.classBlock(notifier);
+		return new Statement() {
+			public void evaluate() throws Throwable {
+				// Run the class's static initializer first, in case it sets the Sakai home.
+				Class.forName(getTestClass().getName(), true, getTestClass().getJavaClass().getClassLoader());
+				SharedContainer.acquire();
+				try {
+					statement.evaluate();
+				} finally {
+					SharedContainer.release();
+				}
+			}
+		};
+	}
+
+	@Override
+	protected Object createTest() throws Exception {
+		Object test = super.createTest();
+		ServiceInjector.injectServices(test);
+		return test;
+	}
+
+	/**
+	 * Records test times for {@link ShardSuite}, like the JUnit 3 base classes.
+	 */
+	@Override
+	protected Statement methodInvoker(FrameworkMethod method, Object test) {
+		final Statement statement = super.methodInvoker(method, test);
+		final Class<?> testClass = getTestClass().getJavaClass();
+		return new Statement() {
+			public void evaluate() throws Throwable {
+				TestDurations.testStarted(testClass);
+				try {
+					statement.evaluate();
+				} finally {
+					TestDurations.testFinished(testClass);
+				}
+			}
+		};
+	}
+}
@@ -63,6 +63,24 @@ public abstract class SakaiTestBase extends TestCase {
 		}
 	}
 	
+	/**
+	 * With "-Dtest.harness.isolation=snapshot", each test method sees the
+	 * database and caches as they were when the first test started. Test times
+	 * are recorded for {@link ShardSuite}.
+	 */
+	@Override
+	public void runBare() throws Throwable {
+		String sakaiHome = ComponentContainerEmulator.findTestSakaiHome();
+		TestDurations.testStarted(getClass(), sakaiHome, new ChildContextCache.Key(null, sakaiHome).toString());
+		ComponentContainerEmulator.beginIsolatedTest();
+		try {
+			super.runBare();
+		} finally {
+			ComponentContainerEmulator.endIsolatedTest();
+			TestDurations.testFinished(getClass());
+		}
+	}
+	
 	/**
 	 * Convenience method to get a service bean from the Sakai component manager.
 	 * 
@@ -77,6 +95,20 @@ public abstract class SakaiTestBase extends TestCase {
 		return ComponentContainerEmulator.getService(clazz);
 	}
 
+	/**
+	 * Convenience method to run a scenario from several threads at once in
+	 * closed-loop mode. Use {@link LoadDriver} directly for other modes.
+	 * 
+	 * @return throughput and latency measured after the warm-up
+	 */
+	protected static LoadDriver.Result runLoad(int threads, long warmupMillis, long durationMillis, LoadDriver.Scenario scenario) throws InterruptedException {
+		LoadDriver driver = new LoadDriver();
+		driver.setThreads(threads);
+		driver.setWarmupMillis(warmupMillis);
+		driver.setDurationMillis(durationMillis);
+		return driver.run(scenario);
+	}
+
 	/**
 	 * Convenience method to create a somewhat unique site id for testing.  Useful
 	 * in tests that need to create a site to run tests upon.
@@ -103,4 +135,24 @@ public abstract class SakaiTestBase extends TestCase {
 	public static final <T> T getServiceProxy(Class<T> clazz, InvocationHandler handler) {
 		return (T)Proxy.newProxyInstance(Thread.currentThread().getContextClassLoader(), new Class[] {clazz}, handler);
 	}
+
+	/**
+	 * Returns the real service, or records or replays it when the
+	 * "test.harness.recording" system property is "record" or "replay".
+	 * See {@link ServiceRecorder}.
+	 */
+	protected static <T> T getRecordedService(Class<T> clazz) {
+		return ServiceRecorder.getRecordedService(clazz);
+	}
+
+	/**
+	 * Returns a proxy which delays every call to the service, to see how the code
+	 * under test copes with a slow dependency. See {@link LatencyInjector}.
+	 * 
+	 * @param latencyMillis the typical delay
+	 * @param jitterMillis how far each delay can be from the typical one
+	 */
+	public static final <T> T getSlowServiceProxy(Class<T> clazz, T service, long latencyMillis, long jitterMillis) {
+		return new LatencyInjector(latencyMillis, jitterMillis).wrap(clazz, service);
+	}
 }
@@ -20,38 +20,287 @@
  **********************************************************************************/
 package org.sakaiproject.test;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
- * 
+ * Times a task, once or over many laps.
+ *
+ * Every lap is recorded in a {@link TaskStatistics} shared by all timers with
+ * the same task name, which keeps a latency histogram and the bytes the timing
+ * thread allocated during each lap. The statistics of every task can be written
+ * out as CSV or JSON, either explicitly or at JVM exit by setting the
+ * "test.harness.timer.export" system property to a directory.
+ *
+ * <pre>
+ * SakaiTestTimer timer = new SakaiTestTimer("Site lookup");
+ * for (int i = 0; i &lt; 1000; i++) {
+ *     siteService.getSite(siteId);
+ *     timer.lap();
+ * }
+ * log.info(timer.getStatistics());
+ * </pre>
+ *
  * @author <a href="mailto:jholtzman@berkeley.edu">Josh Holtzman</a>
- * 
+ *
  */
 public class SakaiTestTimer {
 	private static final Log log = LogFactory.getLog(SakaiTestTimer.class);
+
+	/**
+	 * Java system property naming a directory to write "timings.csv" and
+	 * "timings.json" to when the JVM exits.
+	 */
+	public static final String EXPORT_DIR_PROPERTY = "test.harness.timer.export";
+
+	private static final ConcurrentMap<String, TaskStatistics> statisticsByTask = new ConcurrentHashMap<String, TaskStatistics>();
+
+	static {
+		final String exportDir = ComponentContainerEmulator.getPassthroughSystemProperty(EXPORT_DIR_PROPERTY);
+		if ((exportDir != null) && (exportDir.length() > 0)) {
+			Runtime.getRuntime().addShutdownHook(new Thread("SakaiTestTimer export") {
+				public void run() {
+					File dir = new File(exportDir);
+					dir.mkdirs();
+					try {
+						writeCsv(new File(dir, "timings.csv"));
+						writeJson(new File(dir, "timings.json"));
+					} catch (IOException e) {
+						log.warn("Could not export timings to " + dir, e);
+					}
+				}
+			});
+		}
+	}
+
 	private String task;
+	private final TaskStatistics statistics;
 	private long start;
+	private long startAllocated;
 
 	/**
 	 * Create a new SakaiTestTimer
-	 * 
+	 *
 	 * @param task
 	 *            The name of the task being timed
 	 */
 	public SakaiTestTimer(String task) {
 		this.task = task;
+		this.statistics = getStatistics(task);
 		restart();
 	}
 
 	public void restart() {
-		start = System.currentTimeMillis();
+		startAllocated = ThreadUsage.getAllocatedBytes();
+		start = System.nanoTime();
+	}
+
+	/**
+	 * @return nanoseconds since this was created, restarted or last lapped
+	 */
+	public long getElapsedNanos() {
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Records the time (and allocation) since this was created, restarted or last
+	 * lapped, and starts the next lap.
+	 *
+	 * @return the lap time in nanoseconds
+	 */
+	public long lap() {
+		long now = System.nanoTime();
+		long allocated = ThreadUsage.getAllocatedBytes();
+		long elapsed = now - start;
+		statistics.record(elapsed, ((allocated >= 0) && (startAllocated >= 0)) ? (allocated - startAllocated) : -1);
+		startAllocated = ThreadUsage.getAllocatedBytes();
+		start = System.nanoTime();
+		return elapsed;
 	}
 
 	/**
-	 * Log the elapsed time since this was created or reset.
+	 * Log the elapsed time since this was created, restarted or last lapped.
+	 * This neither records a lap nor restarts the timer.
 	 */
 	public void logTimeElapsed() {
-		log.debug(task + ": " + (System.currentTimeMillis() - start) + " ms");
+		if (log.isDebugEnabled()) log.debug(task + ": " + formatMillis(getElapsedNanos()) + " ms");
+	}
+
+	public String getTask() {
+		return task;
+	}
+
+	public TaskStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * @return the statistics for the named task, created empty if need be
+	 */
+	public static TaskStatistics getStatistics(String task) {
+		TaskStatistics taskStatistics = statisticsByTask.get(task);
+		if (taskStatistics == null) {
+			TaskStatistics newStatistics = new TaskStatistics(task);
+			taskStatistics = statisticsByTask.putIfAbsent(task, newStatistics);
+			if (taskStatistics == null) {
+				taskStatistics = newStatistics;
+			}
+		}
+		return taskStatistics;
+	}
+
+	/**
+	 * @return the statistics of every task timed so far, by task name
+	 */
+	public static List<TaskStatistics> getAllStatistics() {
+		List<TaskStatistics> all = new ArrayList<TaskStatistics>(statisticsByTask.values());
+		Collections.sort(all, new Comparator<TaskStatistics>() {
+			public int compare(TaskStatistics a, TaskStatistics b) {
+				return a.getTask().compareTo(b.getTask());
+			}
+		});
+		return all;
+	}
+
+	/**
+	 * Forgets all recorded laps.
+	 */
+	public static void resetAllStatistics() {
+		statisticsByTask.clear();
+	}
+
+	/**
+	 * Writes one row per task. Times are in milliseconds.
+	 */
+	public static void writeCsv(File file) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("task,count,mean_ms,p50_ms,p90_ms,p99_ms,max_ms,mean_allocated_bytes");
+			for (TaskStatistics taskStatistics : getAllStatistics()) {
+				LatencyHistogram histogram = taskStatistics.getHistogram();
+				out.println(quoteCsv(taskStatistics.getTask()) + "," + histogram.getCount() + "," +
+					formatMillis(histogram.getMean()) + "," + formatMillis(histogram.getPercentile(50)) + "," +
+					formatMillis(histogram.getPercentile(90)) + "," + formatMillis(histogram.getPercentile(99)) + "," +
+					formatMillis(histogram.getMax()) + "," + taskStatistics.getMeanAllocatedBytes());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes an array with one object per task. Times are in milliseconds.
+	 */
+	public static void writeJson(File file) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("[");
+			List<TaskStatistics> all = getAllStatistics();
+			for (int i = 0; i < all.size(); i++) {
+				TaskStatistics taskStatistics = all.get(i);
+				LatencyHistogram histogram = taskStatistics.getHistogram();
+				out.print("  {\"task\": " + quoteJson(taskStatistics.getTask()) +
+					", \"count\": " + histogram.getCount() +
+					", \"meanMs\": " + formatMillis(histogram.getMean()) +
+					", \"p50Ms\": " + formatMillis(histogram.getPercentile(50)) +
+					", \"p90Ms\": " + formatMillis(histogram.getPercentile(90)) +
+					", \"p99Ms\": " + formatMillis(histogram.getPercentile(99)) +
+					", \"maxMs\": " + formatMillis(histogram.getMax()) +
+					", \"meanAllocatedBytes\": " + taskStatistics.getMeanAllocatedBytes() + "}");
+				out.println((i < all.size() - 1) ? "," : "");
+			}
+			out.println("]");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String formatMillis(double nanos) {
+		return String.format(Locale.US, "%.3f", nanos / 1000000.0);
+	}
+
+	private static String quoteCsv(String value) {
+		if ((value.indexOf(',') < 0) && (value.indexOf('"') < 0) && (value.indexOf('\n') < 0)) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	private static String quoteJson(String value) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if ((c == '"') || (c == '\\')) {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", Integer.valueOf(c)));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * The laps recorded for one task name, from any number of timers and threads.
+	 */
+	public static class TaskStatistics {
+		private final String task;
+		private final LatencyHistogram histogram = new LatencyHistogram();
+		private final AtomicLong allocatedBytes = new AtomicLong();
+		private final AtomicLong allocationLaps = new AtomicLong();
+
+		TaskStatistics(String task) {
+			this.task = task;
+		}
+
+		/**
+		 * @param nanos the lap time
+		 * @param bytes bytes allocated during the lap, or -1 if unknown
+		 */
+		public void record(long nanos, long bytes) {
+			histogram.record(nanos);
+			if (bytes >= 0) {
+				allocatedBytes.addAndGet(bytes);
+				allocationLaps.incrementAndGet();
+			}
+		}
+
+		public String getTask() {
+			return task;
+		}
+
+		public LatencyHistogram getHistogram() {
+			return histogram;
+		}
+
+		/**
+		 * @return the mean bytes allocated per lap, or -1 if allocation couldn't
+		 * be measured
+		 */
+		public long getMeanAllocatedBytes() {
+			long laps = allocationLaps.get();
+			return (laps == 0) ? -1 : (allocatedBytes.get() / laps);
+		}
+
+		public String toString() {
+			return task + ": " + histogram.getCount() + " laps, mean " + formatMillis(histogram.getMean()) +
+				" ms, p50 " + formatMillis(histogram.getPercentile(50)) + " ms, p90 " + formatMillis(histogram.getPercentile(90)) +
+				" ms, p99 " + formatMillis(histogram.getPercentile(99)) + " ms, max " + formatMillis(histogram.getMax()) +
+				" ms, " + getMeanAllocatedBytes() + " bytes allocated per lap";
+		}
 	}
 }
@@ -0,0 +1,504 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs a scenario at a growing series of data sizes and thread counts, to
+ * catch services which are fast with test data but slow down faster than
+ * the data grows.
+ *
+ * At each size the workload first sets up that much data, then
+ * {@link LoadDriver} runs its scenario once for each thread count. Latency
+ * percentiles, throughput and the bytes allocated per call are measured at
+ * every point. For each thread count a power law, time = a * size^b, is
+ * fitted to the latencies and allocations by least squares on a log-log
+ * scale. The exponent b gives the shape of the curve: about 0 for constant,
+ * 1 for linear, 2 for quadratic. Curves steeper than
+ * {@link #setSuperLinearExponent(double)} are flagged.
+ *
+ * <pre>
+ * ScalingSweep sweep = new ScalingSweep("site-members");
+ * sweep.setSizes(new int[] {1000, 10000, 100000});
+ * sweep.setThreadCounts(new int[] {1, 8});
+ * ScalingSweep.Report report = sweep.run(new ScalingSweep.Workload() {
+ *     public LoadDriver.Scenario prepare(final int size) throws Exception {
+ *         FixtureGenerator generator = new FixtureGenerator(1);
+ *         generator.setUsers(size);
+ *         final FixtureGenerator.Fixture fixture = generator.generate();
+ *         return new LoadDriver.Scenario() {
+ *             public void run(int thread, long iteration) throws Exception {
+ *                 userDirectoryService.getUser(fixture.getUserId((int)(iteration % size)));
+ *             }
+ *         };
+ *     }
+ * });
+ * assertTrue(report.toString(), report.getSuperLinearFits().isEmpty());
+ * </pre>
+ *
+ * The points are written to target/scaling-NAME.csv and the fitted curves to
+ * target/scaling-NAME.txt. Sizes and thread counts can be overridden with
+ * the "test.harness.scaling.sizes" and "test.harness.scaling.threads"
+ * properties (comma separated), for instance to try production sizes on a
+ * bigger machine without changing the test.
+ */
+public class ScalingSweep {
+	private static final Log log = LogFactory.getLog(ScalingSweep.class);
+	private static final AtomicInteger sweepNumber = new AtomicInteger();
+
+	public static final String SIZES_PROPERTY = "test.harness.scaling.sizes";
+	public static final String THREADS_PROPERTY = "test.harness.scaling.threads";
+
+	static final String P50_LATENCY = "p50 latency";
+	static final String P99_LATENCY = "p99 latency";
+	static final String ALLOCATION = "allocated bytes per call";
+
+	private final String name;
+	private int[] sizes = {100, 1000, 10000};
+	private int[] threadCounts = {1};
+	private long warmupMillis = 2000;
+	private long durationMillis = 5000;
+	private double superLinearExponent = 1.25;
+
+	/**
+	 * @param name names the report files
+	 */
+	public ScalingSweep(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Sets up the data for one size and returns the scenario to run against it.
+	 * Sizes are prepared in increasing order, so a workload can add to the data
+	 * from the last size rather than starting again.
+	 */
+	public interface Workload {
+		LoadDriver.Scenario prepare(int size) throws Exception;
+	}
+
+	public void setSizes(int[] sizes) {
+		this.sizes = sizes.clone();
+	}
+
+	public void setThreadCounts(int[] threadCounts) {
+		this.threadCounts = threadCounts.clone();
+	}
+
+	/**
+	 * @param warmupMillis how long to run before measuring, at every point
+	 */
+	public void setWarmupMillis(long warmupMillis) {
+		this.warmupMillis = warmupMillis;
+	}
+
+	/**
+	 * @param durationMillis how long to measure each point for
+	 */
+	public void setDurationMillis(long durationMillis) {
+		this.durationMillis = durationMillis;
+	}
+
+	/**
+	 * @param superLinearExponent the steepest fitted exponent not flagged; the
+	 * default of 1.25 leaves room for n log n and measurement noise
+	 */
+	public void setSuperLinearExponent(double superLinearExponent) {
+		this.superLinearExponent = superLinearExponent;
+	}
+
+	/**
+	 * What was measured at one size and thread count.
+	 */
+	public static class Point {
+		private final int size;
+		private final int threads;
+		private final LoadDriver.Result result;
+		private final long allocatedBytesPerCall;
+
+		Point(int size, int threads, LoadDriver.Result result, long allocatedBytesPerCall) {
+			this.size = size;
+			this.threads = threads;
+			this.result = result;
+			this.allocatedBytesPerCall = allocatedBytesPerCall;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+
+		public LoadDriver.Result getResult() {
+			return result;
+		}
+
+		/**
+		 * @return the mean bytes allocated by each call, warm-up included, or -1
+		 * if the JVM can't tell
+		 */
+		public long getAllocatedBytesPerCall() {
+			return allocatedBytesPerCall;
+		}
+	}
+
+	/**
+	 * A power law fitted to one measure at one thread count.
+	 */
+	public static class Fit {
+		private final String measure;
+		private final int threads;
+		private final double coefficient;
+		private final double exponent;
+		private final double rSquared;
+		private final boolean superLinear;
+
+		Fit(String measure, int threads, double coefficient, double exponent, double rSquared, boolean superLinear) {
+			this.measure = measure;
+			this.threads = threads;
+			this.coefficient = coefficient;
+			this.exponent = exponent;
+			this.rSquared = rSquared;
+			this.superLinear = superLinear;
+		}
+
+		public String getMeasure() {
+			return measure;
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+
+		public double getCoefficient() {
+			return coefficient;
+		}
+
+		public double getExponent() {
+			return exponent;
+		}
+
+		/**
+		 * @return how well the curve fits, from 0 to 1; a poor fit usually means
+		 * noise or a change of behaviour between sizes
+		 */
+		public double getRSquared() {
+			return rSquared;
+		}
+
+		public boolean isSuperLinear() {
+			return superLinear;
+		}
+
+		/**
+		 * @return the nearest usual name for the curve
+		 */
+		public String getShape() {
+			if (exponent < 0.25) {
+				return "constant";
+			} else if (exponent < 0.75) {
+				return "sub-linear";
+			} else if (exponent < 1.25) {
+				return "linear";
+			} else if (exponent < 1.75) {
+				return "between linear and quadratic";
+			} else if (exponent < 2.5) {
+				return "quadratic";
+			}
+			return "cubic or worse";
+		}
+
+		public String toString() {
+			return String.format(Locale.US, "%s at %d thread%s: %.3g * n^%.2f (%s, R^2 %.2f)%s",
+				measure, Integer.valueOf(threads), (threads == 1) ? "" : "s", Double.valueOf(coefficient),
+				Double.valueOf(exponent), getShape(), Double.valueOf(rSquared), superLinear ? " SUPER-LINEAR" : "");
+		}
+	}
+
+	/**
+	 * The points measured and the curves fitted to them.
+	 */
+	public static class Report {
+		private final String name;
+		private final List<Point> points;
+		private final List<Fit> fits;
+
+		Report(String name, List<Point> points, List<Fit> fits) {
+			this.name = name;
+			this.points = points;
+			this.fits = fits;
+		}
+
+		public List<Point> getPoints() {
+			return points;
+		}
+
+		public List<Fit> getFits() {
+			return fits;
+		}
+
+		public List<Fit> getSuperLinearFits() {
+			List<Fit> superLinear = new ArrayList<Fit>();
+			for (Fit fit : fits) {
+				if (fit.isSuperLinear()) {
+					superLinear.add(fit);
+				}
+			}
+			return superLinear;
+		}
+
+		public void writeCsv(File file) throws IOException {
+			PrintWriter out = new PrintWriter(new FileWriter(file));
+			try {
+				out.println("size,threads,calls,errors,calls_per_s,p50_ms,p90_ms,p99_ms,max_ms,allocated_bytes_per_call");
+				for (Point point : points) {
+					LoadDriver.Result result = point.getResult();
+					LatencyHistogram latency = result.getLatency();
+					out.println(String.format(Locale.US, "%d,%d,%d,%d,%.1f,%.3f,%.3f,%.3f,%.3f,%d",
+						Integer.valueOf(point.getSize()), Integer.valueOf(point.getThreads()),
+						Long.valueOf(result.getOperations()), Long.valueOf(result.getErrors()),
+						Double.valueOf(result.getThroughputPerSecond()), millis(latency.getPercentile(50)),
+						millis(latency.getPercentile(90)), millis(latency.getPercentile(99)), millis(latency.getMax()),
+						Long.valueOf(point.getAllocatedBytesPerCall())));
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		public void writeSummary(File file) throws IOException {
+			PrintWriter out = new PrintWriter(new FileWriter(file));
+			try {
+				out.print(toString());
+			} finally {
+				out.close();
+			}
+		}
+
+		private static Double millis(long nanos) {
+			return Double.valueOf(nanos / 1000000.0);
+		}
+
+		public String toString() {
+			StringBuilder sb = new StringBuilder("Scaling of ").append(name).append(" with data size\n");
+			for (Fit fit : fits) {
+				sb.append("  ").append(fit).append('\n');
+			}
+			List<Fit> superLinear = getSuperLinearFits();
+			if (superLinear.isEmpty()) {
+				sb.append("Nothing grows faster than linearly.\n");
+			} else {
+				sb.append(superLinear.size()).append(" curve").append((superLinear.size() == 1) ? "" : "s")
+					.append(" grow faster than linearly.\n");
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Measures every point, writes the reports and logs the fitted curves.
+	 */
+	public Report run(Workload workload) throws Exception {
+		int[] runSizes = getConfigured(SIZES_PROPERTY, sizes);
+		int[] runThreadCounts = getConfigured(THREADS_PROPERTY, threadCounts);
+		Arrays.sort(runSizes);
+		List<Point> points = new ArrayList<Point>();
+		for (int size : runSizes) {
+			SakaiTestTimer timer = new SakaiTestTimer("Scaling sweep " + name + ", preparing size " + size);
+			LoadDriver.Scenario scenario = workload.prepare(size);
+			timer.logTimeElapsed();
+			for (int threads : runThreadCounts) {
+				points.add(measure(size, threads, scenario));
+			}
+		}
+
+		List<Fit> fits = new ArrayList<Fit>();
+		for (int threads : runThreadCounts) {
+			addFit(fits, points, threads, P50_LATENCY);
+			addFit(fits, points, threads, P99_LATENCY);
+			addFit(fits, points, threads, ALLOCATION);
+		}
+		Report report = new Report(name, points, fits);
+
+		File dir = HarnessFiles.getBuildDirectory();
+		File csvFile = new File(dir, "scaling-" + name + ".csv");
+		File summaryFile = new File(dir, "scaling-" + name + ".txt");
+		try {
+			report.writeCsv(csvFile);
+			report.writeSummary(summaryFile);
+		} catch (IOException e) {
+			log.warn("Could not write scaling report to " + dir, e);
+		}
+		if (report.getSuperLinearFits().isEmpty()) {
+			if (log.isInfoEnabled()) log.info(report + "Wrote " + csvFile);
+		} else {
+			log.warn(report + "Wrote " + csvFile);
+		}
+		return report;
+	}
+
+	private Point measure(int size, int threads, final LoadDriver.Scenario scenario) throws InterruptedException {
+		final AtomicLong calls = new AtomicLong();
+		final AtomicLong allocatedBytes = new AtomicLong();
+		LoadDriver driver = new LoadDriver();
+		driver.setThreads(threads);
+		driver.setWarmupMillis(warmupMillis);
+		driver.setDurationMillis(durationMillis);
+		driver.setThreadFactory(new AllocationCountingThreadFactory(allocatedBytes));
+		LoadDriver.Result result = driver.run(new LoadDriver.Scenario() {
+			public void run(int thread, long iteration) throws Exception {
+				calls.incrementAndGet();
+				scenario.run(thread, iteration);
+			}
+		});
+		long allocatedPerCall = ((allocatedBytes.get() < 0) || (calls.get() == 0)) ? -1 : (allocatedBytes.get() / calls.get());
+		if (log.isDebugEnabled()) log.debug("Scaling sweep " + name + " at size " + size + ", " + threads + " threads: " + result);
+		return new Point(size, threads, result, allocatedPerCall);
+	}
+
+	private void addFit(List<Fit> fits, List<Point> points, int threads, String measure) {
+		List<double[]> values = new ArrayList<double[]>();
+		for (Point point : points) {
+			if (point.getThreads() == threads) {
+				double value;
+				if (measure.equals(P50_LATENCY)) {
+					value = point.getResult().getLatency().getPercentile(50);
+				} else if (measure.equals(P99_LATENCY)) {
+					value = point.getResult().getLatency().getPercentile(99);
+				} else {
+					value = point.getAllocatedBytesPerCall();
+				}
+				values.add(new double[] {point.getSize(), value});
+			}
+		}
+		Fit fit = fit(measure, threads, values, superLinearExponent);
+		if (fit != null) {
+			fits.add(fit);
+		}
+	}
+
+	/**
+	 * Fits value = a * size^b by least squares on the logarithms.
+	 *
+	 * @param values pairs of size and value; pairs with nothing to take the
+	 * logarithm of are left out
+	 * @return the fit, or null if there are fewer than two distinct sizes
+	 */
+	static Fit fit(String measure, int threads, List<double[]> values, double superLinearExponent) {
+		List<double[]> logs = new ArrayList<double[]>();
+		for (double[] value : values) {
+			if ((value[0] > 0) && (value[1] > 0)) {
+				logs.add(new double[] {Math.log(value[0]), Math.log(value[1])});
+			}
+		}
+		int n = logs.size();
+		if (n < 2) {
+			return null;
+		}
+		double sumX = 0;
+		double sumY = 0;
+		for (double[] point : logs) {
+			sumX += point[0];
+			sumY += point[1];
+		}
+		double meanX = sumX / n;
+		double meanY = sumY / n;
+		double sxx = 0;
+		double sxy = 0;
+		double syy = 0;
+		for (double[] point : logs) {
+			sxx += (point[0] - meanX) * (point[0] - meanX);
+			sxy += (point[0] - meanX) * (point[1] - meanY);
+			syy += (point[1] - meanY) * (point[1] - meanY);
+		}
+		if (sxx == 0) {
+			return null;
+		}
+		double exponent = sxy / sxx;
+		double coefficient = Math.exp(meanY - exponent * meanX);
+		double rSquared = (syy == 0) ? 1 : ((sxy * sxy) / (sxx * syy));
+		return new Fit(measure, threads, coefficient, exponent, rSquared, exponent > superLinearExponent);
+	}
+
+	private static int[] getConfigured(String property, int[] defaults) {
+		String value = ComponentContainerEmulator.getPassthroughSystemProperty(property);
+		if ((value == null) || (value.trim().length() == 0)) {
+			return defaults.clone();
+		}
+		String[] parts = value.split(",");
+		int[] numbers = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			numbers[i] = Integer.parseInt(parts[i].trim());
+		}
+		return numbers;
+	}
+
+	/**
+	 * Adds up what each worker allocates over its life, which is cheaper than
+	 * asking before and after every call and keeps the latencies clean.
+	 */
+	private static class AllocationCountingThreadFactory implements ThreadFactory {
+		private final String prefix = "ScalingSweep-" + sweepNumber.incrementAndGet() + "-";
+		private final AtomicInteger threadNumber = new AtomicInteger();
+		private final AtomicLong allocatedBytes;
+
+		AllocationCountingThreadFactory(AtomicLong allocatedBytes) {
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		public Thread newThread(final Runnable runnable) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					long before = ThreadUsage.getAllocatedBytes();
+					try {
+						runnable.run();
+					} finally {
+						long after = ThreadUsage.getAllocatedBytes();
+						if ((before < 0) || (after < 0)) {
+							allocatedBytes.set(Long.MIN_VALUE);
+						} else {
+							allocatedBytes.addAndGet(after - before);
+						}
+					}
+				}
+			}, prefix + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
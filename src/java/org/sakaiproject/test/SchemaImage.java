@@ -0,0 +1,269 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A copy of the test database as it stands once the component manager has
+ * started, with the kernel schema created and the default data seeded.
+ *
+ * Building the schema is a large part of startup. Once an image exists, each
+ * container is instead pointed at its own copy of the image through a derived
+ * Sakai home: HSQLDB reads the copy straight into memory tables and automatic
+ * DDL is switched off.
+ *
+ * Images are stored in the harness cache directory under a fingerprint of the
+ * component directory (the path, size and modification time of every file) and
+ * of the base "sakai.properties". Changing any component jar or the base
+ * configuration leads to a new image, and older images for the same components
+ * directory are deleted when it's saved.
+ *
+ * Only HSQLDB is supported, since the image is written with HSQLDB's SCRIPT
+ * command.
+ */
+public class SchemaImage {
+	private static final Log log = LogFactory.getLog(SchemaImage.class);
+
+	/**
+	 * Set this Java system property to "true" to use database images.
+	 */
+	public static final String ENABLED_PROPERTY = "test.harness.dbImage";
+
+	private static final String VENDOR_PROPERTY = "vendor@org.sakaiproject.db.api.SqlService";
+	private static final String URL_PROPERTY = "url@javax.sql.BaseDataSource";
+	private static final String DATABASE_NAME = "sakai";
+
+	private final String stalePrefix;
+	private final String currentPrefix;
+	private final File imageFile;
+
+	private SchemaImage(String stalePrefix, String currentPrefix, File imageFile) {
+		this.stalePrefix = stalePrefix;
+		this.currentPrefix = currentPrefix;
+		this.imageFile = imageFile;
+	}
+
+	public static boolean isEnabled() {
+		return Boolean.valueOf(ComponentContainerEmulator.getPassthroughSystemProperty(ENABLED_PROPERTY)).booleanValue();
+	}
+
+	/**
+	 * @param componentsRoot the Tomcat "components" directory
+	 * @param baseSakaiHome the Sakai home the containers are configured from
+	 * @return the image for this combination, which may not have been built yet,
+	 * or null if the configuration doesn't use HSQLDB
+	 */
+	public static SchemaImage forComponents(String componentsRoot, String baseSakaiHome) throws IOException {
+		return forComponents(componentsRoot, baseSakaiHome, "db-image-", null);
+	}
+
+	/**
+	 * As above, but for a database holding more than the schema and default
+	 * data, such as {@link FixtureGenerator}'s. Images of different variants
+	 * for the same components are kept side by side.
+	 *
+	 * @param kind the start of the image file name
+	 * @param variant a name for what else is in the database, or null
+	 */
+	static SchemaImage forComponents(String componentsRoot, String baseSakaiHome, String kind, String variant) throws IOException {
+		File propertiesFile = new File(baseSakaiHome, "sakai.properties");
+		if (propertiesFile.isFile()) {
+			Properties properties = new Properties();
+			InputStream in = new FileInputStream(propertiesFile);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+			String vendor = properties.getProperty(VENDOR_PROPERTY);
+			if ((vendor != null) && !vendor.trim().equalsIgnoreCase("hsqldb")) {
+				if (log.isInfoEnabled()) log.info("Not using a database image, since the database vendor is " + vendor);
+				return null;
+			}
+		}
+
+		SakaiTestTimer timer = new SakaiTestTimer("Component fingerprint");
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		File root = new File(componentsRoot);
+		addFingerprint(digest, root, "");
+		if (propertiesFile.isFile()) {
+			addContents(digest, propertiesFile);
+		}
+		timer.logTimeElapsed();
+
+		String stalePrefix = kind + HarnessFiles.hashName(root.getAbsolutePath()) + "-";
+		String currentPrefix = stalePrefix + HarnessFiles.toHex(digest.digest()).substring(0, 16);
+		File imageFile = new File(HarnessFiles.getCacheDirectory(),
+			currentPrefix + ((variant != null) ? ("-" + variant) : "") + ".script");
+		return new SchemaImage(stalePrefix, currentPrefix, imageFile);
+	}
+
+	static void addFingerprint(MessageDigest digest, File dir, String path) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			String filePath = path + "/" + file.getName();
+			if (file.isDirectory()) {
+				addFingerprint(digest, file, filePath);
+			} else {
+				digest.update((filePath + ":" + file.length() + ":" + file.lastModified() + "\n").getBytes("UTF-8"));
+			}
+		}
+	}
+
+	private static void addContents(MessageDigest digest, File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	public boolean exists() {
+		return imageFile.isFile();
+	}
+
+	public File getImageFile() {
+		return imageFile;
+	}
+
+	/**
+	 * Gives a container its own copy of the image in the given Sakai home, and
+	 * adds the settings which point the container at it.
+	 *
+	 * @param sakaiHome the container's own Sakai home directory
+	 * @param overrides the settings to append to its "sakai.properties"
+	 */
+	public void applyTo(File sakaiHome, Map<String, String> overrides) throws IOException {
+		File dbDir = new File(sakaiHome, "db");
+		dbDir.mkdirs();
+		File[] oldFiles = dbDir.listFiles();
+		if (oldFiles != null) {
+			for (File oldFile : oldFiles) {
+				oldFile.delete();
+			}
+		}
+		ContainerPool.copyFile(imageFile, new File(dbDir, DATABASE_NAME + ".script"));
+		overrides.put(VENDOR_PROPERTY, "hsqldb");
+		overrides.put("driverClassName@javax.sql.BaseDataSource", "org.hsqldb.jdbcDriver");
+		overrides.put(URL_PROPERTY, "jdbc:hsqldb:file:" + new File(dbDir, DATABASE_NAME).getAbsolutePath().replace('\\', '/') + ";shutdown=true");
+		overrides.put("auto.ddl", "false");
+	}
+
+	/**
+	 * Saves the database of a container as this image, normally just after it
+	 * has started.
+	 */
+	public void capture(SakaiContainer container) {
+		List<DataSource> dataSources = ContainerSnapshot.findDataSources(container);
+		if (dataSources.size() != 1) {
+			log.warn("Not saving a database image, since " + container + " has " + dataSources.size() + " databases");
+			return;
+		}
+		SakaiTestTimer timer = new SakaiTestTimer("Database image capture");
+		File tempFile = null;
+		try {
+			tempFile = File.createTempFile(imageFile.getName(), ".tmp", imageFile.getParentFile());
+			tempFile.delete();
+			Connection connection = dataSources.get(0).getConnection();
+			try {
+				if (connection.getMetaData().getDatabaseProductName().toLowerCase().indexOf("hsql") < 0) {
+					log.warn("Not saving a database image, since the database isn't HSQLDB");
+					return;
+				}
+				Statement statement = connection.createStatement();
+				try {
+					statement.execute("SCRIPT '" + tempFile.getAbsolutePath().replace("'", "''") + "'");
+				} finally {
+					statement.close();
+				}
+			} finally {
+				connection.close();
+			}
+			deleteOtherImages();
+			if (!tempFile.renameTo(imageFile)) {
+				log.warn("Could not save database image as " + imageFile);
+			} else if (log.isInfoEnabled()) {
+				log.info("Saved database image " + imageFile);
+			}
+		} catch (SQLException e) {
+			log.warn("Could not save database image: " + e);
+		} catch (IOException e) {
+			log.warn("Could not save database image: " + e);
+		} finally {
+			if (tempFile != null) {
+				tempFile.delete();
+			}
+		}
+		timer.logTimeElapsed();
+	}
+
+	/**
+	 * Images for earlier versions of the same components are of no further use.
+	 * (The variants of the current version are kept.)
+	 */
+	private void deleteOtherImages() {
+		File[] files = imageFile.getParentFile().listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.getName().startsWith(stalePrefix) && file.getName().endsWith(".script") &&
+					!file.getName().startsWith(currentPrefix)) {
+				if (log.isDebugEnabled()) log.debug("Deleting stale database image " + file);
+				file.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets test code use a container service whose interface was loaded by a
+ * different class loader than the test's copy of the same interface. (This
+ * happens when an API jar is on both the test classpath and the container's.)
+ *
+ * Calls are forwarded by method name and parameter type names. Arguments and
+ * return values are passed through unchanged, so this only works for methods
+ * whose signatures use JDK types or types which both sides share.
+ */
+class ServiceBridge implements InvocationHandler {
+	private final Object target;
+	private final Map<Method, Method> targetMethods = new ConcurrentHashMap<Method, Method>();
+
+	private ServiceBridge(Object target) {
+		this.target = target;
+	}
+
+	/**
+	 * @return the service itself if it already implements the interface, a bridge
+	 * if it implements an interface of the same name, or null otherwise
+	 */
+	static <T> T bridge(Class<T> clazz, Object service) {
+		if ((service == null) || clazz.isInstance(service)) {
+			return clazz.cast(service);
+		}
+		if (!implementsInterfaceNamed(service.getClass(), clazz.getName())) {
+			return null;
+		}
+		Object proxy = Proxy.newProxyInstance(clazz.getClassLoader(), new Class[] {clazz}, new ServiceBridge(service));
+		return clazz.cast(proxy);
+	}
+
+	private static boolean implementsInterfaceNamed(Class<?> clazz, String interfaceName) {
+		for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+			for (Class<?> iface : c.getInterfaces()) {
+				if (iface.getName().equals(interfaceName) || implementsInterfaceNamed(iface, interfaceName)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		Method targetMethod = targetMethods.get(method);
+		if (targetMethod == null) {
+			targetMethod = findTargetMethod(method);
+			targetMethods.put(method, targetMethod);
+		}
+		try {
+			return targetMethod.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private Method findTargetMethod(Method method) throws NoSuchMethodException {
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		for (Method candidate : target.getClass().getMethods()) {
+			if (candidate.getName().equals(method.getName()) && sameTypeNames(candidate.getParameterTypes(), parameterTypes)) {
+				candidate.setAccessible(true);
+				return candidate;
+			}
+		}
+		throw new NoSuchMethodException(target.getClass().getName() + "." + method.getName());
+	}
+
+	private static boolean sameTypeNames(Class<?>[] a, Class<?>[] b) {
+		if (a.length != b.length) return false;
+		for (int i = 0; i < a.length; i++) {
+			if (!a[i].getName().equals(b[i].getName())) return false;
+		}
+		return true;
+	}
+}
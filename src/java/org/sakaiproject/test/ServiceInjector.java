@@ -0,0 +1,65 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.lang.reflect.Field;
+
+/**
+ * Sets the {@link SakaiService} fields of an object (and its superclasses) from
+ * the running component manager, for test and benchmark classes which aren't
+ * Spring beans themselves.
+ */
+public class ServiceInjector {
+
+	/**
+	 * @throws IllegalStateException if a service isn't registered
+	 */
+	public static void injectServices(Object target) {
+		for (Class<?> clazz = target.getClass(); clazz != Object.class; clazz = clazz.getSuperclass()) {
+			for (Field field : clazz.getDeclaredFields()) {
+				SakaiService annotation = field.getAnnotation(SakaiService.class);
+				if (annotation == null) {
+					continue;
+				}
+				Object service;
+				if (annotation.value().length() > 0) {
+					service = ComponentContainerEmulator.getService(annotation.value());
+					if ((service != null) && field.getType().isInterface()) {
+						service = ServiceBridge.bridge(field.getType(), service);
+					}
+				} else {
+					service = ComponentContainerEmulator.getService(field.getType());
+				}
+				if (service == null) {
+					throw new IllegalStateException("No service found for " + clazz.getName() + "." + field.getName());
+				}
+				field.setAccessible(true);
+				try {
+					field.set(target, service);
+				} catch (IllegalAccessException e) {
+					throw new IllegalStateException("Could not set " + clazz.getName() + "." + field.getName() + ": " + e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,274 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.FactoryBean;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+/**
+ * Counts the calls made to each method of each Sakai service and how long
+ * they take, to show which APIs a test suite leans on hardest.
+ *
+ * As each component bean whose ID is the name of an interface it implements
+ * (the Sakai convention for services) is created, it's wrapped in a proxy
+ * implementing all of its interfaces. The proxy records, per interface method,
+ * the number of calls, a latency histogram, and the bytes allocated by the
+ * calling thread, using striped counters so that concurrent tests don't
+ * contend. Times include any calls the service makes to other services.
+ * Allocation figures are approximate: what the measuring itself allocates
+ * on an empty call is measured once and subtracted from every call.
+ * Calls a service makes to itself don't pass through its proxy and aren't
+ * counted.
+ *
+ * Services looked up by their implementation class instead of an interface
+ * will no longer be found, which is why this is optional.
+ */
+public class ServiceMetrics extends SakaiContainer.ListenerAdapter implements BeanPostProcessor {
+	private static final Log log = LogFactory.getLog(ServiceMetrics.class);
+
+	private final ConcurrentMap<Method, MethodMetrics> metrics = new ConcurrentHashMap<Method, MethodMetrics>();
+
+	private static final long MEASUREMENT_OVERHEAD_BYTES = measureOverheadBytes();
+
+	/**
+	 * The figures for one interface method.
+	 */
+	public static class MethodMetrics {
+		private final Method method;
+		private final StripedCounter calls = new StripedCounter();
+		private final StripedCounter failures = new StripedCounter();
+		private final StripedCounter allocatedBytes = new StripedCounter();
+		private final LatencyHistogram latency = new LatencyHistogram();
+
+		MethodMetrics(Method method) {
+			this.method = method;
+		}
+
+		public String getName() {
+			return method.getDeclaringClass().getName() + "." + method.getName();
+		}
+
+		public long getCalls() {
+			return calls.sum();
+		}
+
+		public long getFailures() {
+			return failures.sum();
+		}
+
+		/**
+		 * @return nanoseconds
+		 */
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+
+		/**
+		 * @return bytes allocated per call, or -1 if that can't be measured
+		 */
+		public long getAllocatedBytesPerCall() {
+			long callCount = calls.sum();
+			return (ThreadUsage.isAllocatedBytesSupported() && (callCount > 0)) ? (allocatedBytes.sum() / callCount) : -1;
+		}
+	}
+
+	public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+		return bean;
+	}
+
+	public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+		if ((bean == null) || (bean instanceof FactoryBean) || Proxy.isProxyClass(bean.getClass())) {
+			return bean;
+		}
+		Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+		boolean isService = false;
+		for (Class<?> c = bean.getClass(); c != null; c = c.getSuperclass()) {
+			for (Class<?> iface : c.getInterfaces()) {
+				addInterfaces(iface, interfaces);
+			}
+		}
+		for (Class<?> iface : interfaces) {
+			if (iface.getName().equals(beanName)) {
+				isService = true;
+			}
+		}
+		if (!isService) {
+			return bean;
+		}
+		try {
+			return Proxy.newProxyInstance(bean.getClass().getClassLoader(), interfaces.toArray(new Class[interfaces.size()]),
+				new MetricsHandler(bean));
+		} catch (IllegalArgumentException e) {
+			if (log.isDebugEnabled()) log.debug("Not measuring " + beanName + ": " + e);
+			return bean;
+		}
+	}
+
+	private static void addInterfaces(Class<?> iface, Set<Class<?>> interfaces) {
+		if (interfaces.add(iface)) {
+			for (Class<?> parent : iface.getInterfaces()) {
+				addInterfaces(parent, interfaces);
+			}
+		}
+	}
+
+	/**
+	 * @return the least a proxied call to an empty method was seen to
+	 * allocate, which is what reading the allocation counters (reflectively,
+	 * with boxing) and invoking the target cost in themselves
+	 */
+	private static long measureOverheadBytes() {
+		if (!ThreadUsage.isAllocatedBytesSupported()) {
+			return 0;
+		}
+		long least = Long.MAX_VALUE;
+		try {
+			Method method = ServiceMetrics.class.getDeclaredMethod("emptyCall");
+			for (int i = 0; i < 1000; i++) {
+				long startAllocated = ThreadUsage.getAllocatedBytes();
+				method.invoke(null, (Object[])null);
+				long endAllocated = ThreadUsage.getAllocatedBytes();
+				least = Math.min(least, endAllocated - startAllocated);
+			}
+		} catch (Exception e) {
+			if (log.isDebugEnabled()) log.debug("Could not measure allocation overhead: " + e);
+			return 0;
+		}
+		if (log.isDebugEnabled()) log.debug("Allocation measuring overhead is " + least + " bytes per call");
+		return Math.max(0, least);
+	}
+
+	private static void emptyCall() {
+	}
+
+	private class MetricsHandler implements InvocationHandler {
+		private final Object target;
+
+		MetricsHandler(Object target) {
+			this.target = target;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				return method.invoke(target, args);
+			}
+			MethodMetrics methodMetrics = metrics.get(method);
+			if (methodMetrics == null) {
+				MethodMetrics newMetrics = new MethodMetrics(method);
+				methodMetrics = metrics.putIfAbsent(method, newMetrics);
+				if (methodMetrics == null) {
+					methodMetrics = newMetrics;
+				}
+			}
+			long startAllocated = ThreadUsage.getAllocatedBytes();
+			long start = System.nanoTime();
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				methodMetrics.failures.increment();
+				throw e.getCause();
+			} finally {
+				long elapsed = System.nanoTime() - start;
+				long endAllocated = ThreadUsage.getAllocatedBytes();
+				methodMetrics.calls.increment();
+				methodMetrics.latency.record(elapsed);
+				if (startAllocated >= 0) {
+					methodMetrics.allocatedBytes.add(Math.max(0, endAllocated - startAllocated - MEASUREMENT_OVERHEAD_BYTES));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the figures for every method called so far, most called first
+	 */
+	public List<MethodMetrics> getMetrics() {
+		List<MethodMetrics> sorted = new ArrayList<MethodMetrics>(metrics.values());
+		Collections.sort(sorted, new Comparator<MethodMetrics>() {
+			public int compare(MethodMetrics a, MethodMetrics b) {
+				long aCalls = a.getCalls();
+				long bCalls = b.getCalls();
+				return (aCalls < bCalls) ? 1 : ((aCalls == bCalls) ? a.getName().compareTo(b.getName()) : -1);
+			}
+		});
+		return sorted;
+	}
+
+	public void writeReport(File file) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("method,calls,failures,total_ms,mean_us,p50_us,p99_us,max_us,approx_allocated_bytes_per_call");
+			for (MethodMetrics methodMetrics : getMetrics()) {
+				LatencyHistogram latency = methodMetrics.getLatency();
+				out.println(String.format(Locale.US, "%s,%d,%d,%.3f,%.1f,%.1f,%.1f,%.1f,%d", methodMetrics.getName(),
+					Long.valueOf(methodMetrics.getCalls()), Long.valueOf(methodMetrics.getFailures()),
+					Double.valueOf(latency.getTotal() / 1000000.0), Double.valueOf(latency.getMean() / 1000.0),
+					Double.valueOf(latency.getPercentile(50) / 1000.0), Double.valueOf(latency.getPercentile(99) / 1000.0),
+					Double.valueOf(latency.getMax() / 1000.0), Long.valueOf(methodMetrics.getAllocatedBytesPerCall())));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	public void containerStopping(SakaiContainer container) {
+		File file = new File(HarnessFiles.getBuildDirectory(), "service-metrics-" + container.getName() + ".csv");
+		try {
+			writeReport(file);
+			if (log.isInfoEnabled()) {
+				StringBuilder summary = new StringBuilder("Most called services:");
+				List<MethodMetrics> sorted = getMetrics();
+				for (int i = 0; (i < 10) && (i < sorted.size()); i++) {
+					MethodMetrics methodMetrics = sorted.get(i);
+					summary.append("\n  ").append(methodMetrics.getName()).append(": ").append(methodMetrics.getCalls())
+						.append(" calls, p99 ").append(methodMetrics.getLatency().getPercentile(99) / 1000).append(" us");
+				}
+				log.info(summary + "\nFull report (allocation figures are approximate) in " + file);
+			}
+		} catch (IOException e) {
+			log.warn("Could not write service metrics to " + file, e);
+		}
+	}
+}
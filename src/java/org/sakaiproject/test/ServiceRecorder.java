@@ -0,0 +1,637 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Records the calls made to a real service and plays them back later without
+ * the service, so that tests can leave slow backends such as user providers
+ * and databases out when they aren't what's being tested.
+ *
+ * <pre>
+ * // Once, against a running container:
+ * ServiceRecorder recorder = new ServiceRecorder();
+ * UserDirectoryService uds = recorder.record(UserDirectoryService.class, getService(UserDirectoryService.class));
+ * ... exercise uds ...
+ * recorder.save(file);
+ *
+ * // From then on, without one:
+ * UserDirectoryService uds = ServiceRecorder.replay(UserDirectoryService.class, file);
+ * </pre>
+ *
+ * A call is identified by the object it was made on, the method, and the
+ * serialized form of its arguments. Repeated identical calls are played back
+ * in the order they were recorded, with the last result repeated after that.
+ * Results and exceptions are stored serialized. Results which can't be
+ * serialized but are declared as an interface (such as a User from the user
+ * directory) are recorded as proxies in turn, so calls on them are captured
+ * too. Other calls can't be played back and fail if a replay reaches them.
+ * Calls with an argument which is neither serializable nor one of the
+ * recorded proxies have no key which would match on a later run, so they
+ * are passed on without being recorded, with a warning.
+ *
+ * Saving merges the calls into any recording already in the file, holding
+ * a lock on it meanwhile, so that the JVMs forked for each test class add
+ * to one recording. A call recorded again replaces what was saved for it.
+ *
+ * The "equals", "hashCode" and "toString" methods of the proxies are never
+ * recorded; they compare and describe the proxies themselves.
+ */
+public class ServiceRecorder {
+	private static final Log log = LogFactory.getLog(ServiceRecorder.class);
+
+	/**
+	 * Java system property which makes {@link #getRecordedService(Class)} record
+	 * ("record") or replay ("replay") services. Otherwise it returns the real ones.
+	 */
+	public static final String MODE_PROPERTY = "test.harness.recording";
+	public static final String RECORD_MODE = "record";
+	public static final String REPLAY_MODE = "replay";
+
+	/**
+	 * Java system property for the directory holding recordings, one per service
+	 * interface. Defaults to "service-recordings" in the build directory.
+	 */
+	public static final String DIR_PROPERTY = "test.harness.recording.dir";
+
+	private static final Map<SakaiContainer, ContainerRecordings> recordings = new IdentityHashMap<SakaiContainer, ContainerRecordings>();
+	private static final Map<Class<?>, Object> replayedServices = new HashMap<Class<?>, Object>();
+	private static boolean hookAdded;
+
+	/** Held while a recording file is locked, since a JVM can't lock a file twice. */
+	private static final Object saveLock = new Object();
+
+	private static final int MAGIC = 0x53524543;	// "SREC"
+	private static final int VERSION = 2;
+
+	private static final byte KIND_VALUE = 0;
+	private static final byte KIND_NULL = 1;
+	private static final byte KIND_EXCEPTION = 2;
+	private static final byte KIND_PROXY = 3;
+	private static final byte KIND_UNRECORDABLE = 4;
+
+	private final Map<String, List<Result>> results = new LinkedHashMap<String, List<Result>>();
+	private final Map<Object, String> proxyIds = new IdentityHashMap<Object, String>();
+	private final Set<Method> unkeyedMethods = new HashSet<Method>();
+	private int callCount;
+
+	/**
+	 * One recorded outcome of a call.
+	 */
+	private static class Result {
+		private final byte kind;
+		private final byte[] data;
+		private final String proxyId;
+		private final String description;
+
+		Result(byte kind, byte[] data, String proxyId, String description) {
+			this.kind = kind;
+			this.data = data;
+			this.proxyId = proxyId;
+			this.description = description;
+		}
+	}
+
+	/**
+	 * @return a proxy which passes every call on to the service and records it
+	 */
+	public synchronized <T> T record(Class<T> clazz, Object service) {
+		T target = ServiceBridge.bridge(clazz, service);
+		if (target == null) {
+			throw new IllegalArgumentException(service + " does not implement " + clazz.getName());
+		}
+		return clazz.cast(newRecordingProxy(clazz, target, clazz.getName()));
+	}
+
+	/**
+	 * Services are identified by their interface. Objects they return are
+	 * identified by the call which returned them, so that the same calls get
+	 * the same IDs in every JVM and recordings can be merged.
+	 */
+	private synchronized Object newRecordingProxy(Class<?> clazz, Object target, String id) {
+		Object proxy = Proxy.newProxyInstance(clazz.getClassLoader(), new Class[] {clazz}, new RecordingHandler(id, target));
+		proxyIds.put(proxy, id);
+		return proxy;
+	}
+
+	/**
+	 * @return the number of calls recorded so far
+	 */
+	public synchronized int getCallCount() {
+		return callCount;
+	}
+
+	/**
+	 * Merges the recorded calls into the file, replacing any saved results of
+	 * the same calls.
+	 */
+	public synchronized void save(File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null) {
+			dir.mkdirs();
+		}
+		synchronized (saveLock) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				FileLock lock = raf.getChannel().lock();
+				try {
+					Map<String, List<Result>> merged = new LinkedHashMap<String, List<Result>>();
+					if (raf.length() > 0) {
+						byte[] saved = new byte[(int)raf.length()];
+						raf.readFully(saved);
+						try {
+							merged.putAll(read(new DataInputStream(new ByteArrayInputStream(saved)), file));
+						} catch (IOException e) {
+							log.warn("Replacing unreadable service recording " + file + ": " + e);
+						}
+					}
+					merged.putAll(results);
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					DataOutputStream out = new DataOutputStream(bytes);
+					write(out, merged);
+					out.close();
+					raf.seek(0);
+					raf.write(bytes.toByteArray());
+					raf.setLength(bytes.size());
+				} finally {
+					lock.release();
+				}
+			} finally {
+				raf.close();
+			}
+		}
+		if (log.isInfoEnabled()) log.info("Saved " + callCount + " recorded service calls to " + file);
+	}
+
+	private static void write(DataOutputStream out, Map<String, List<Result>> calls) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(calls.size());
+		for (Map.Entry<String, List<Result>> entry : calls.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeInt(entry.getValue().size());
+			for (Result result : entry.getValue()) {
+				out.writeByte(result.kind);
+				switch (result.kind) {
+				case KIND_VALUE:
+				case KIND_EXCEPTION:
+					out.writeInt(result.data.length);
+					out.write(result.data);
+					break;
+				case KIND_PROXY:
+					out.writeUTF(result.proxyId);
+					break;
+				case KIND_UNRECORDABLE:
+					out.writeUTF(result.description);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return a proxy which answers calls from a saved recording
+	 */
+	public static <T> T replay(Class<T> clazz, File file) throws IOException {
+		Map<String, List<Result>> recorded;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			recorded = read(in, file);
+		} finally {
+			in.close();
+		}
+		Player player = new Player(recorded);
+		return clazz.cast(player.newReplayProxy(clazz, clazz.getName()));
+	}
+
+	private static Map<String, List<Result>> read(DataInputStream in, File file) throws IOException {
+		if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+			throw new IOException(file + " is not a service recording of this version");
+		}
+		Map<String, List<Result>> recorded = new LinkedHashMap<String, List<Result>>();
+		int keyCount = in.readInt();
+		for (int i = 0; i < keyCount; i++) {
+			String key = in.readUTF();
+			int resultCount = in.readInt();
+			List<Result> keyResults = new ArrayList<Result>(resultCount);
+			for (int j = 0; j < resultCount; j++) {
+				byte kind = in.readByte();
+				byte[] data = null;
+				String proxyId = null;
+				String description = null;
+				switch (kind) {
+				case KIND_VALUE:
+				case KIND_EXCEPTION:
+					data = new byte[in.readInt()];
+					in.readFully(data);
+					break;
+				case KIND_PROXY:
+					proxyId = in.readUTF();
+					break;
+				case KIND_UNRECORDABLE:
+					description = in.readUTF();
+					break;
+				}
+				keyResults.add(new Result(kind, data, proxyId, description));
+			}
+			recorded.put(key, keyResults);
+		}
+		return recorded;
+	}
+
+	/**
+	 * Records calls on one real object.
+	 */
+	private class RecordingHandler implements InvocationHandler {
+		private final String id;
+		private final Object target;
+
+		RecordingHandler(String id, Object target) {
+			this.id = id;
+			this.target = target;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				return invokeObjectMethod(proxy, method, args, "Recording " + method.getDeclaringClass().getName() + "#" + id);
+			}
+			String key;
+			synchronized (ServiceRecorder.this) {
+				key = callKey(id, method, args, proxyIds);
+				if ((key == null) && unkeyedMethods.add(method)) {
+					log.warn("Not recording calls to " + method + " with arguments which can't be serialized, so they can't be replayed");
+				}
+			}
+			Object value;
+			try {
+				value = method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				Throwable cause = e.getCause();
+				if (key != null) {
+					byte[] data = serialize(cause);
+					addResult(key, (data != null) ? new Result(KIND_EXCEPTION, data, null, null) :
+						new Result(KIND_UNRECORDABLE, null, null, "threw " + cause));
+				}
+				throw cause;
+			}
+			if (key == null) {
+				return value;
+			}
+			Class<?> returnType = method.getReturnType();
+			if (value == null) {
+				addResult(key, new Result(KIND_NULL, null, null, null));
+				return null;
+			}
+			byte[] data = serialize(value);
+			if (data != null) {
+				addResult(key, new Result(KIND_VALUE, data, null, null));
+				return value;
+			}
+			if (returnType.isInterface()) {
+				Object child = ServiceBridge.bridge(returnType, value);
+				if (child != null) {
+					synchronized (ServiceRecorder.this) {
+						List<Result> keyResults = results.get(key);
+						String childId = HarnessFiles.hashName(key + "#" + ((keyResults != null) ? keyResults.size() : 0));
+						Object childProxy = newRecordingProxy(returnType, child, childId);
+						addResult(key, new Result(KIND_PROXY, null, childId, null));
+						return childProxy;
+					}
+				}
+			}
+			addResult(key, new Result(KIND_UNRECORDABLE, null, null, "returned unserializable " + value.getClass().getName()));
+			return value;
+		}
+	}
+
+	private synchronized void addResult(String key, Result result) {
+		List<Result> keyResults = results.get(key);
+		if (keyResults == null) {
+			keyResults = new ArrayList<Result>(1);
+			results.put(key, keyResults);
+		}
+		keyResults.add(result);
+		callCount++;
+	}
+
+	/**
+	 * Answers calls from a loaded recording.
+	 */
+	private static class Player {
+		private final Map<String, List<Result>> recorded;
+		private final Map<String, Integer> positions = new HashMap<String, Integer>();
+		private final Map<Object, String> proxyIds = new IdentityHashMap<Object, String>();
+		private final Map<String, Object> proxiesById = new HashMap<String, Object>();
+
+		Player(Map<String, List<Result>> recorded) {
+			this.recorded = recorded;
+		}
+
+		synchronized Object newReplayProxy(Class<?> clazz, final String id) {
+			Object proxy = proxiesById.get(id);
+			if (proxy == null) {
+				proxy = Proxy.newProxyInstance(clazz.getClassLoader(), new Class[] {clazz}, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						return replayCall(proxy, id, method, args);
+					}
+				});
+				proxyIds.put(proxy, id);
+				proxiesById.put(id, proxy);
+			}
+			return proxy;
+		}
+
+		private Object replayCall(Object proxy, String id, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				return invokeObjectMethod(proxy, method, args, "Replayed " + method.getDeclaringClass().getName() + "#" + id);
+			}
+			Result result;
+			synchronized (this) {
+				String key = callKey(id, method, args, proxyIds);
+				if (key == null) {
+					throw new IllegalStateException("Can't replay " + method + " with arguments which can't be serialized");
+				}
+				List<Result> keyResults = recorded.get(key);
+				if (keyResults == null) {
+					throw new IllegalStateException("No recorded call to " + method + " with these arguments");
+				}
+				Integer position = positions.get(key);
+				int index = (position != null) ? position.intValue() : 0;
+				result = keyResults.get(Math.min(index, keyResults.size() - 1));
+				positions.put(key, Integer.valueOf(index + 1));
+			}
+			ClassLoader loader = method.getDeclaringClass().getClassLoader();
+			switch (result.kind) {
+			case KIND_NULL:
+				return null;
+			case KIND_VALUE:
+				return deserialize(result.data, loader);
+			case KIND_EXCEPTION:
+				throw (Throwable)deserialize(result.data, loader);
+			case KIND_PROXY:
+				return newReplayProxy(method.getReturnType(), result.proxyId);
+			default:
+				throw new IllegalStateException("Can't replay " + method + ", which " + result.description);
+			}
+		}
+	}
+
+	private static Object invokeObjectMethod(Object proxy, Method method, Object[] args, String description) {
+		if (method.getName().equals("equals")) {
+			return Boolean.valueOf(proxy == args[0]);
+		} else if (method.getName().equals("hashCode")) {
+			return Integer.valueOf(System.identityHashCode(proxy));
+		}
+		return description;
+	}
+
+	/**
+	 * Identifies a call by object, method and the digest of its serialized
+	 * arguments. Arguments which are recording or replay proxies are identified
+	 * by their ID.
+	 *
+	 * @return the key, or null if an argument is neither serializable nor a proxy
+	 */
+	private static String callKey(String id, Method method, Object[] args, Map<Object, String> proxyIds) {
+		StringBuilder key = new StringBuilder().append(id).append(':').append(method.getName()).append('(');
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		for (int i = 0; i < parameterTypes.length; i++) {
+			key.append((i == 0) ? "" : ",").append(parameterTypes[i].getName());
+		}
+		key.append(')');
+		if ((args != null) && (args.length > 0)) {
+			try {
+				MessageDigest digest = MessageDigest.getInstance("MD5");
+				for (Object arg : args) {
+					String argProxyId = (arg != null) ? proxyIds.get(arg) : null;
+					byte[] data = (argProxyId != null) ? null : serialize(arg);
+					if (argProxyId != null) {
+						digest.update(("proxy#" + argProxyId).getBytes("UTF-8"));
+					} else if (data != null) {
+						digest.update(data);
+					} else {
+						// Its identity would differ on every run.
+						return null;
+					}
+					digest.update((byte)0);
+				}
+				key.append(':').append(HarnessFiles.toHex(digest.digest()));
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return the serialized object, or null if it can't be serialized
+	 */
+	private static byte[] serialize(Object value) {
+		if ((value != null) && !(value instanceof Serializable)) {
+			return null;
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(value);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static Object deserialize(byte[] data, final ClassLoader loader) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data)) {
+			protected Class<?> resolveClass(ObjectStreamClass description) throws IOException, ClassNotFoundException {
+				try {
+					return Class.forName(description.getName(), false, loader);
+				} catch (ClassNotFoundException e) {
+					ClassLoader contextLoader = Thread.currentThread().getContextClassLoader();
+					if (contextLoader != null) {
+						try {
+							return Class.forName(description.getName(), false, contextLoader);
+						} catch (ClassNotFoundException e2) {
+							// Fall through to the default.
+						}
+					}
+					return super.resolveClass(description);
+				}
+			}
+		};
+		try {
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns a real service, a recording proxy for it, or a replay proxy,
+	 * according to the "test.harness.recording" system property. Recordings are
+	 * saved to a file named after the interface when the container they were
+	 * made in stops, or when the JVM exits.
+	 */
+	public static synchronized <T> T getRecordedService(Class<T> clazz) {
+		String mode = ComponentContainerEmulator.getPassthroughSystemProperty(MODE_PROPERTY);
+		if (!RECORD_MODE.equals(mode) && !REPLAY_MODE.equals(mode)) {
+			return ComponentContainerEmulator.getService(clazz);
+		}
+		String dirPath = ComponentContainerEmulator.getPassthroughSystemProperty(DIR_PROPERTY);
+		File dir = ((dirPath != null) && (dirPath.length() > 0)) ? new File(dirPath) : new File(HarnessFiles.getBuildDirectory(), "service-recordings");
+		File file = new File(dir, clazz.getName() + ".rec");
+		if (REPLAY_MODE.equals(mode)) {
+			Object service = replayedServices.get(clazz);
+			if (service == null) {
+				try {
+					service = replay(clazz, file);
+				} catch (IOException e) {
+					throw new IllegalStateException("Could not read service recording " + file + ": " + e);
+				}
+				replayedServices.put(clazz, service);
+			}
+			return clazz.cast(service);
+		}
+
+		// A restarted container has new services, which need recording proxies of their own.
+		SakaiContainer container = ComponentContainerEmulator.getCurrentContainer();
+		if ((container == null) || !container.isStarted()) {
+			throw new IllegalStateException("The component manager must be running to record " + clazz.getName());
+		}
+		ContainerRecordings containerRecordings = recordings.get(container);
+		if (containerRecordings == null) {
+			containerRecordings = new ContainerRecordings();
+			container.addListener(containerRecordings);
+			recordings.put(container, containerRecordings);
+			addShutdownHook();
+		}
+		Object service = containerRecordings.services.get(clazz);
+		if (service == null) {
+			ServiceRecorder recorder = new ServiceRecorder();
+			service = recorder.record(clazz, ComponentContainerEmulator.getService(clazz));
+			containerRecordings.services.put(clazz, service);
+			containerRecordings.recorders.put(file, recorder);
+		}
+		return clazz.cast(service);
+	}
+
+	/**
+	 * The recordings made in one container, which are saved and forgotten
+	 * when it stops so that they don't keep its services alive.
+	 */
+	private static class ContainerRecordings extends SakaiContainer.ListenerAdapter {
+		private final Map<Class<?>, Object> services = new HashMap<Class<?>, Object>();
+		private final Map<File, ServiceRecorder> recorders = new LinkedHashMap<File, ServiceRecorder>();
+
+		public void containerStopped(SakaiContainer container) {
+			synchronized (ServiceRecorder.class) {
+				recordings.remove(container);
+			}
+			container.removeListener(this);
+			save();
+		}
+
+		void save() {
+			for (Map.Entry<File, ServiceRecorder> entry : recorders.entrySet()) {
+				try {
+					entry.getValue().save(entry.getKey());
+				} catch (IOException e) {
+					log.warn("Could not save service recording to " + entry.getKey(), e);
+				}
+			}
+		}
+	}
+
+	private static void addShutdownHook() {
+		if (hookAdded) {
+			return;
+		}
+		hookAdded = true;
+		Runtime.getRuntime().addShutdownHook(new Thread("ServiceRecorder save") {
+			public void run() {
+				List<ContainerRecordings> unsaved;
+				synchronized (ServiceRecorder.class) {
+					unsaved = new ArrayList<ContainerRecordings>(recordings.values());
+					recordings.clear();
+				}
+				for (ContainerRecordings containerRecordings : unsaved) {
+					containerRecordings.save();
+				}
+			}
+		});
+	}
+
+	public static boolean isReplaying() {
+		return REPLAY_MODE.equals(ComponentContainerEmulator.getPassthroughSystemProperty(MODE_PROPERTY));
+	}
+
+	/**
+	 * Saves the recording when the JVM exits.
+	 */
+	public void saveOnExit(final File file) {
+		Runtime.getRuntime().addShutdownHook(new Thread("ServiceRecorder save") {
+			public void run() {
+				try {
+					save(file);
+				} catch (IOException e) {
+					log.warn("Could not save service recording to " + file, e);
+				}
+			}
+		});
+	}
+}
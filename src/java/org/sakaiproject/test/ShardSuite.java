@@ -0,0 +1,566 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import junit.extensions.TestSetup;
+import junit.framework.JUnit4TestAdapter;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestResult;
+import junit.framework.TestSuite;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.runner.RunWith;
+
+/**
+ * Splits the integration test classes into shards of about the same running
+ * time, so they can be spread over several machines or forks, and runs one
+ * shard in a single JVM.
+ *
+ * Running times come from {@link TestDurations}. Classes which need the same
+ * Sakai home and test context configuration are kept together, since they
+ * can share one component manager: a group pays for startup once, in
+ * whichever shard it lands. The groups are then handed out longest first,
+ * each to the shard with the least work so far. A group which would take more
+ * than a fair share of the whole suite by itself is split, each part paying
+ * for its own startup. Classes with no history are assumed to take as long
+ * as the average known class.
+ *
+ * Within a shard, classes run grouped by Sakai home and configuration, and
+ * the component manager is kept running from one class to the next until the
+ * Sakai home changes, as in a {@link ContainerDaemon}. To run the second of
+ * four shards, give the test project a class such as
+ *
+ * <pre>
+ * public class ShardedTests {
+ *     public static Test suite() {
+ *         return ShardSuite.suite();
+ *     }
+ * }
+ * </pre>
+ *
+ * and run it with "-Dtest=ShardedTests -Dtest.harness.shard=2/4". The test
+ * classes are found in "target/test-classes" (or "test.harness.shard.classes")
+ * using Surefire's default name patterns, and may be JUnit 3 or 4 tests. If
+ * "test.harness.changed" is set, only the classes {@link TestFootprints}
+ * selects for those changes are run. "ShardSuite N" prints the plan for N
+ * shards.
+ *
+ * Every shard works the plan out for itself, so every shard must read an
+ * identical duration history (and footprint file, if changes are given), or
+ * classes may be run twice or not at all. JVMs running a shard therefore
+ * never write to those files; they save what they measure beside them (see
+ * {@link #getOutputFile(File)}), and "ShardSuite merge" folds the shards'
+ * files into the history once every shard has finished.
+ */
+public class ShardSuite {
+	private static final Log log = LogFactory.getLog(ShardSuite.class);
+
+	/**
+	 * Java system property giving the shard to run and the number of shards,
+	 * as in "2/4". Shards are numbered from 1.
+	 */
+	public static final String SHARD_PROPERTY = "test.harness.shard";
+
+	/**
+	 * Java system property naming the directory to look for test classes in.
+	 */
+	public static final String CLASSES_DIR_PROPERTY = "test.harness.shard.classes";
+
+	/**
+	 * A group of classes which run one after another on the same container.
+	 */
+	static class Unit {
+		private final List<String> classNames = new ArrayList<String>();
+		private String sakaiHome;
+		private String configuration;
+		private long startupMillis;
+		private long testMillis;
+
+		long getMillis() {
+			return startupMillis + testMillis;
+		}
+	}
+
+	/**
+	 * The classes planned for one shard.
+	 */
+	public static class Shard {
+		private final int number;
+		private final List<Unit> units = new ArrayList<Unit>();
+		private long estimatedMillis;
+
+		Shard(int number) {
+			this.number = number;
+		}
+
+		/**
+		 * @return the shard's number, from 1
+		 */
+		public int getNumber() {
+			return number;
+		}
+
+		/**
+		 * @return the classes in the order they should run
+		 */
+		public List<String> getClassNames() {
+			List<String> classNames = new ArrayList<String>();
+			for (Unit unit : units) {
+				classNames.addAll(unit.classNames);
+			}
+			return classNames;
+		}
+
+		/**
+		 * @return the estimated running time, including one startup per group
+		 */
+		public long getEstimatedMillis() {
+			return estimatedMillis;
+		}
+
+		/**
+		 * @return how many times the component manager should start
+		 */
+		public int getStartups() {
+			return units.size();
+		}
+
+		public String toString() {
+			return String.format(Locale.US, "Shard %d: %d classes, %d startups, about %.1f s",
+				Integer.valueOf(number), Integer.valueOf(getClassNames().size()), Integer.valueOf(getStartups()),
+				Double.valueOf(estimatedMillis / 1000.0));
+		}
+	}
+
+	/**
+	 * Usage: ShardSuite shardCount [testClassesDir], or ShardSuite merge
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: ShardSuite shardCount [testClassesDir], or ShardSuite merge");
+			return;
+		}
+		if ("merge".equals(args[0])) {
+			mergeShardOutputs();
+			return;
+		}
+		File dir = (args.length > 1) ? new File(args[1]) : getClassesDirectory();
+		List<String> classNames = findTestClasses(dir);
+		List<String> changes = TestFootprints.getConfiguredChanges();
+		if (changes != null) {
+			classNames = TestFootprints.load().select(classNames, changes);
+		}
+		List<Shard> shards = plan(classNames, TestDurations.load(), Integer.parseInt(args[0]));
+		for (Shard shard : shards) {
+			System.out.println(shard);
+			for (String className : shard.getClassNames()) {
+				System.out.println("  " + className);
+			}
+		}
+	}
+
+	/**
+	 * @return the shard named by "test.harness.shard", or every test class if
+	 * it isn't set
+	 */
+	public static Test suite() {
+		String shardValue = ComponentContainerEmulator.getPassthroughSystemProperty(SHARD_PROPERTY);
+		int shardNumber = 1;
+		int shardCount = 1;
+		if ((shardValue != null) && (shardValue.length() > 0)) {
+			int slash = shardValue.indexOf('/');
+			if (slash < 0) {
+				throw new IllegalArgumentException(SHARD_PROPERTY + " should look like \"2/4\", not \"" + shardValue + "\"");
+			}
+			shardNumber = Integer.parseInt(shardValue.substring(0, slash).trim());
+			shardCount = Integer.parseInt(shardValue.substring(slash + 1).trim());
+			if ((shardNumber < 1) || (shardNumber > shardCount)) {
+				throw new IllegalArgumentException("No shard " + shardNumber + " of " + shardCount);
+			}
+		}
+		List<String> classNames = findTestClasses(getClassesDirectory());
+		List<String> changes = TestFootprints.getConfiguredChanges();
+		if (changes != null) {
+			classNames = TestFootprints.load().select(classNames, changes);
+		}
+		TestDurations history = TestDurations.load();
+		Shard shard = plan(classNames, history, shardCount).get(shardNumber - 1);
+		if (log.isInfoEnabled()) log.info(shard + " of " + shardCount);
+
+		TestSuite suite = new TestSuite("Shard " + shardNumber + " of " + shardCount);
+		for (String className : shard.getClassNames()) {
+			TestDurations.ClassDuration known = history.get(className);
+			suite.addTest(new ClassTest(className, (known != null) ? known.getSakaiHome() : null));
+		}
+		return new TestSetup(suite) {
+			protected void setUp() {
+				ComponentContainerEmulator.setKeepAlive(true);
+			}
+			protected void tearDown() {
+				ComponentContainerEmulator.setKeepAlive(false);
+				ComponentContainerEmulator.stopComponentManager();
+			}
+		};
+	}
+
+	/**
+	 * @return where a JVM should save what it records for a file the shards
+	 * are planned from: the file itself unless a shard is running, and
+	 * otherwise a file beside it named for the shard, such as
+	 * "test-durations.shard-2-of-4.txt"
+	 */
+	public static File getOutputFile(File planningFile) {
+		String shardValue = ComponentContainerEmulator.getPassthroughSystemProperty(SHARD_PROPERTY);
+		if ((planningFile == null) || (shardValue == null) || (shardValue.length() == 0)) {
+			return planningFile;
+		}
+		String name = planningFile.getName();
+		int dot = name.lastIndexOf('.');
+		String base = (dot > 0) ? name.substring(0, dot) : name;
+		String extension = (dot > 0) ? name.substring(dot) : "";
+		return new File(planningFile.getAbsoluteFile().getParentFile(),
+			base + SHARD_OUTPUT_INFIX + shardValue.replaceAll("\\s", "").replace("/", "-of-") + extension);
+	}
+
+	private static final String SHARD_OUTPUT_INFIX = ".shard-";
+
+	/**
+	 * Merges the shards' output files into the duration history and footprint
+	 * file, and deletes them.
+	 */
+	static void mergeShardOutputs() throws IOException {
+		for (File output : findShardOutputs(TestDurations.getHistoryFile())) {
+			TestDurations.mergeInto(TestDurations.getHistoryFile(), TestDurations.load(output).getAll());
+			output.delete();
+		}
+		for (File output : findShardOutputs(TestFootprints.getFootprintFile())) {
+			TestFootprints.mergeInto(TestFootprints.getFootprintFile(), TestFootprints.load(output).getAll());
+			output.delete();
+		}
+	}
+
+	static List<File> findShardOutputs(File planningFile) {
+		List<File> outputs = new ArrayList<File>();
+		if (planningFile == null) {
+			return outputs;
+		}
+		String name = planningFile.getName();
+		int dot = name.lastIndexOf('.');
+		String prefix = ((dot > 0) ? name.substring(0, dot) : name) + SHARD_OUTPUT_INFIX;
+		String extension = (dot > 0) ? name.substring(dot) : "";
+		File[] files = planningFile.getAbsoluteFile().getParentFile().listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().startsWith(prefix) && file.getName().endsWith(extension)) {
+					outputs.add(file);
+				}
+			}
+		}
+		Collections.sort(outputs);
+		return outputs;
+	}
+
+	static File getClassesDirectory() {
+		String path = ComponentContainerEmulator.getPassthroughSystemProperty(CLASSES_DIR_PROPERTY);
+		return ((path != null) && (path.length() > 0)) ? new File(path) : new File("target/test-classes");
+	}
+
+	/**
+	 * Divides the classes between shards as described above.
+	 */
+	public static List<Shard> plan(List<String> classNames, TestDurations history, int shardCount) {
+		if (shardCount < 1) {
+			throw new IllegalArgumentException("At least one shard is needed");
+		}
+
+		// Guess for unknown classes from the known ones.
+		long knownStartup = 0;
+		long knownTests = 0;
+		int known = 0;
+		for (String className : classNames) {
+			TestDurations.ClassDuration duration = history.get(className);
+			if (duration != null) {
+				knownStartup += duration.getStartupMillis();
+				knownTests += duration.getTestMillis();
+				known++;
+			}
+		}
+		long defaultStartup = (known > 0) ? (knownStartup / known) : 1;
+		long defaultTests = (known > 0) ? (knownTests / known) : 1;
+
+		// Group by configuration, charging each group for its slowest startup.
+		Map<String, Unit> groups = new LinkedHashMap<String, Unit>();
+		Map<String, Long> testMillis = new LinkedHashMap<String, Long>();
+		long totalMillis = 0;
+		for (String className : classNames) {
+			TestDurations.ClassDuration duration = history.get(className);
+			String key = ((duration != null) && (duration.getConfiguration() != null)) ? duration.getConfiguration() : ("class " + className);
+			Unit group = groups.get(key);
+			if (group == null) {
+				group = new Unit();
+				group.configuration = key;
+				group.sakaiHome = (duration != null) ? duration.getSakaiHome() : null;
+				groups.put(key, group);
+			}
+			long startup = (duration != null) ? duration.getStartupMillis() : defaultStartup;
+			long tests = (duration != null) ? duration.getTestMillis() : defaultTests;
+			// Nothing takes no time at all.
+			tests = Math.max(tests, 1);
+			group.classNames.add(className);
+			totalMillis -= group.getMillis();
+			group.startupMillis = Math.max(group.startupMillis, startup);
+			group.testMillis += tests;
+			totalMillis += group.getMillis();
+			testMillis.put(className, Long.valueOf(tests));
+		}
+
+		// Split any group too big for one shard.
+		long fairShare = (totalMillis + shardCount - 1) / shardCount;
+		List<Unit> units = new ArrayList<Unit>();
+		for (Unit group : groups.values()) {
+			int parts = (int)Math.min(group.classNames.size(), Math.min(shardCount, (group.getMillis() + fairShare - 1) / Math.max(fairShare, 1)));
+			if (parts <= 1) {
+				units.add(group);
+			} else {
+				units.addAll(split(group, parts, testMillis));
+			}
+		}
+
+		// Longest first, each to the least loaded shard.
+		Collections.sort(units, new Comparator<Unit>() {
+			public int compare(Unit a, Unit b) {
+				if (a.getMillis() != b.getMillis()) {
+					return (a.getMillis() > b.getMillis()) ? -1 : 1;
+				}
+				return a.classNames.get(0).compareTo(b.classNames.get(0));
+			}
+		});
+		List<Shard> shards = new ArrayList<Shard>(shardCount);
+		for (int i = 0; i < shardCount; i++) {
+			shards.add(new Shard(i + 1));
+		}
+		for (Unit unit : units) {
+			Shard least = shards.get(0);
+			for (Shard shard : shards) {
+				if (shard.estimatedMillis < least.estimatedMillis) {
+					least = shard;
+				}
+			}
+			least.units.add(unit);
+			least.estimatedMillis += unit.getMillis();
+		}
+
+		// Run each shard's groups in Sakai home order, so the container can stay up.
+		for (Shard shard : shards) {
+			Collections.sort(shard.units, new Comparator<Unit>() {
+				public int compare(Unit a, Unit b) {
+					int result = compareNullable(a.sakaiHome, b.sakaiHome);
+					return (result != 0) ? result : a.configuration.compareTo(b.configuration);
+				}
+			});
+		}
+		return shards;
+	}
+
+	/**
+	 * Deals a group's classes out between parts, longest first.
+	 */
+	private static List<Unit> split(Unit group, int parts, final Map<String, Long> testMillis) {
+		List<String> classNames = new ArrayList<String>(group.classNames);
+		Collections.sort(classNames, new Comparator<String>() {
+			public int compare(String a, String b) {
+				long difference = testMillis.get(b).longValue() - testMillis.get(a).longValue();
+				return (difference != 0) ? ((difference > 0) ? 1 : -1) : a.compareTo(b);
+			}
+		});
+		List<Unit> units = new ArrayList<Unit>(parts);
+		for (int i = 0; i < parts; i++) {
+			Unit unit = new Unit();
+			unit.sakaiHome = group.sakaiHome;
+			unit.configuration = group.configuration;
+			unit.startupMillis = group.startupMillis;
+			units.add(unit);
+		}
+		for (String className : classNames) {
+			Unit least = units.get(0);
+			for (Unit unit : units) {
+				if (unit.testMillis < least.testMillis) {
+					least = unit;
+				}
+			}
+			least.classNames.add(className);
+			least.testMillis += testMillis.get(className).longValue();
+		}
+		for (Unit unit : units) {
+			Collections.sort(unit.classNames);
+		}
+		return units;
+	}
+
+	private static int compareNullable(String a, String b) {
+		if (a == null) {
+			return (b == null) ? 0 : -1;
+		}
+		return (b == null) ? 1 : a.compareTo(b);
+	}
+
+	/**
+	 * @return the concrete test classes under the directory which Surefire would
+	 * run by default ("Test*", "*Test" and "*TestCase"), sorted by name
+	 */
+	static List<String> findTestClasses(File dir) {
+		List<String> classNames = new ArrayList<String>();
+		addTestClasses(dir, "", classNames);
+		Collections.sort(classNames);
+		return classNames;
+	}
+
+	private static void addTestClasses(File dir, String packagePrefix, List<String> classNames) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (file.isDirectory()) {
+				addTestClasses(file, packagePrefix + name + ".", classNames);
+			} else if (name.endsWith(".class") && (name.indexOf('$') < 0)) {
+				String simpleName = name.substring(0, name.length() - ".class".length());
+				if (simpleName.startsWith("Test") || simpleName.endsWith("Test") || simpleName.endsWith("TestCase")) {
+					String className = packagePrefix + simpleName;
+					if (isRunnable(className)) {
+						classNames.add(className);
+					}
+				}
+			}
+		}
+	}
+
+	private static boolean isRunnable(String className) {
+		try {
+			Class<?> clazz = Class.forName(className, false, ShardSuite.class.getClassLoader());
+			if (Modifier.isAbstract(clazz.getModifiers())) {
+				return false;
+			}
+			return TestCase.class.isAssignableFrom(clazz) || (getSuiteMethod(clazz) != null) || isJUnit4(clazz);
+		} catch (Throwable t) {
+			if (log.isDebugEnabled()) log.debug("Not running " + className + ": " + t);
+			return false;
+		}
+	}
+
+	private static boolean isJUnit4(Class<?> clazz) {
+		if (clazz.isAnnotationPresent(RunWith.class)) {
+			return true;
+		}
+		for (Method method : clazz.getMethods()) {
+			if (method.isAnnotationPresent(org.junit.Test.class)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Method getSuiteMethod(Class<?> clazz) {
+		try {
+			Method method = clazz.getMethod("suite", new Class[0]);
+			return Modifier.isStatic(method.getModifiers()) ? method : null;
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * One test class, which isn't loaded until it runs so that its static
+	 * set-up (such as a "setSakaiHome" call) happens in its turn.
+	 */
+	private static class ClassTest implements Test {
+		private final String className;
+		private final String sakaiHome;
+
+		ClassTest(String className, String sakaiHome) {
+			this.className = className;
+			this.sakaiHome = sakaiHome;
+		}
+
+		public int countTestCases() {
+			try {
+				Class<?> clazz = Class.forName(className, false, ShardSuite.class.getClassLoader());
+				int count = 0;
+				for (Method method : clazz.getMethods()) {
+					if ((method.getName().startsWith("test") && (method.getParameterTypes().length == 0) &&
+							!Modifier.isStatic(method.getModifiers())) || method.isAnnotationPresent(org.junit.Test.class)) {
+						count++;
+					}
+				}
+				return Math.max(count, 1);
+			} catch (ClassNotFoundException e) {
+				return 1;
+			}
+		}
+
+		public void run(TestResult result) {
+			// A class which needs another Sakai home needs a fresh container.
+			SakaiContainer container = ComponentContainerEmulator.getCurrentContainer();
+			if ((sakaiHome != null) && (container != null) && container.isStarted() && !sakaiHome.equals(container.getBaseSakaiHome())) {
+				ComponentContainerEmulator.setKeepAlive(false);
+				ComponentContainerEmulator.stopComponentManager();
+				ComponentContainerEmulator.setKeepAlive(true);
+			}
+			createTest().run(result);
+		}
+
+		private Test createTest() {
+			try {
+				Class<?> clazz = Class.forName(className, true, ShardSuite.class.getClassLoader());
+				Method suiteMethod = getSuiteMethod(clazz);
+				if (suiteMethod != null) {
+					return (Test)suiteMethod.invoke(null, new Object[0]);
+				} else if (!TestCase.class.isAssignableFrom(clazz)) {
+					return new JUnit4TestAdapter(clazz);
+				}
+				return new TestSuite(clazz);
+			} catch (Throwable t) {
+				return TestSuite.warning("Could not create tests for " + className + ": " + t);
+			}
+		}
+
+		public String toString() {
+			return className;
+		}
+	}
+}
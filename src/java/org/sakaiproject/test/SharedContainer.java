@@ -0,0 +1,166 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Shares one component manager between all the test classes in a JVM which
+ * ask for it, however they're written. {@link SakaiJUnit4Runner} and
+ * {@link SharedContainerRule} use it for JUnit 4 tests, and the SakaiExtension
+ * in the separate "junit5" module for JUnit 5 tests; other test frameworks
+ * can call {@link #acquire(String)} before a class's tests and {@link #release()}
+ * after them.
+ *
+ * The container is started by the first user and kept running while others
+ * come and go; requests to stop it (such as "oneTimeTearDown()" in older
+ * test classes) are ignored meanwhile. A user which needs a different Sakai
+ * home waits until the container is unused and then restarts it with the new
+ * home, so test classes with the same home should run one after another. By
+ * default the container is stopped when the JVM exits. Set
+ * "test.harness.shared.stop=unused" to stop it as soon as the last user
+ * releases it instead.
+ *
+ * If something else already keeps the container alive (a {@link ContainerDaemon}
+ * or {@link ShardSuite}), that is left in charge of starting and stopping it.
+ */
+public class SharedContainer {
+	private static final Log log = LogFactory.getLog(SharedContainer.class);
+
+	/**
+	 * Java system property saying when to stop the shared container: "exit"
+	 * (the default) or "unused".
+	 */
+	public static final String STOP_PROPERTY = "test.harness.shared.stop";
+	public static final String STOP_WHEN_UNUSED = "unused";
+
+	private static final Object lock = new Object();
+	private static int users;
+	private static String sharedSakaiHome;
+	private static boolean managing;
+	private static boolean hookAdded;
+
+	/**
+	 * Uses the Sakai home from {@link ComponentContainerEmulator#findTestSakaiHome()}.
+	 */
+	public static SakaiContainer acquire() throws InterruptedException {
+		return acquire(ComponentContainerEmulator.findTestSakaiHome());
+	}
+
+	/**
+	 * Starts the shared container if it isn't running with this Sakai home, and
+	 * counts another user of it.
+	 *
+	 * @param sakaiHome the Sakai home, or null for the default one
+	 * @return the running container
+	 */
+	public static SakaiContainer acquire(String sakaiHome) throws InterruptedException {
+		synchronized (lock) {
+			while ((users > 0) && managing && !isSameHome(sakaiHome, sharedSakaiHome)) {
+				if (log.isInfoEnabled()) log.info("Waiting for other tests to finish with sakai.home " + sharedSakaiHome);
+				lock.wait();
+			}
+			if (users == 0) {
+				// Leave the container alone if something else is keeping it alive.
+				if (!managing && ComponentContainerEmulator.isKeptAlive()) {
+					if (log.isDebugEnabled()) log.debug("Component manager is already being kept alive, so just using it");
+				} else {
+					managing = true;
+					SakaiContainer current = ComponentContainerEmulator.getCurrentContainer();
+					if ((current != null) && current.isStarted() && !isSameHome(sakaiHome, current.getBaseSakaiHome())) {
+						if (log.isInfoEnabled()) log.info("Restarting the shared component manager to use sakai.home " + sakaiHome);
+						stopContainer();
+					}
+					ComponentContainerEmulator.setKeepAlive(true);
+					addShutdownHook();
+				}
+			} else if (!managing && !isSameHome(sakaiHome, sharedSakaiHome)) {
+				log.warn("Component manager is being kept alive with sakai.home " + sharedSakaiHome + ", so not switching to " + sakaiHome);
+			}
+			if (!ComponentContainerEmulator.isStarted()) {
+				ComponentContainerEmulator.startComponentManager(ComponentContainerEmulator.findTestTomcatHome(), sakaiHome);
+			}
+			if (users == 0) {
+				sharedSakaiHome = sakaiHome;
+			}
+			users++;
+			return ComponentContainerEmulator.getCurrentContainer();
+		}
+	}
+
+	/**
+	 * Counts one user fewer, and stops the container if that was the last
+	 * and it should be stopped when unused.
+	 */
+	public static void release() {
+		synchronized (lock) {
+			if (users == 0) {
+				throw new IllegalStateException("Shared container released more often than acquired");
+			}
+			users--;
+			if (users == 0) {
+				if (managing && STOP_WHEN_UNUSED.equals(ComponentContainerEmulator.getPassthroughSystemProperty(STOP_PROPERTY))) {
+					stopContainer();
+					managing = false;
+				}
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return how many users the shared container has
+	 */
+	public static int getUsers() {
+		synchronized (lock) {
+			return users;
+		}
+	}
+
+	private static void stopContainer() {
+		ComponentContainerEmulator.setKeepAlive(false);
+		ComponentContainerEmulator.stopComponentManager();
+	}
+
+	private static boolean isSameHome(String a, String b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+	private static void addShutdownHook() {
+		if (hookAdded) {
+			return;
+		}
+		hookAdded = true;
+		Runtime.getRuntime().addShutdownHook(new Thread("SharedContainer shutdown") {
+			public void run() {
+				synchronized (lock) {
+					if (managing) {
+						stopContainer();
+						managing = false;
+					}
+				}
+			}
+		});
+	}
+}
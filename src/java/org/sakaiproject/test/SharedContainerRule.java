@@ -0,0 +1,65 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import org.junit.rules.MethodRule;
+import org.junit.runners.model.FrameworkMethod;
+import org.junit.runners.model.Statement;
+
+/**
+ * A JUnit 4 rule for test classes which can't use {@link SakaiJUnit4Runner}
+ * because they need another runner. Around each test method, it makes sure the
+ * {@link SharedContainer} is running and sets the test's {@link SakaiService}
+ * fields.
+ *
+ * <pre>
+ * &#64;Rule
+ * public SharedContainerRule container = new SharedContainerRule();
+ * </pre>
+ *
+ * The container is counted as in use only while a test method runs, so with
+ * "test.harness.shared.stop=unused" it would be restarted for every method;
+ * prefer the runner in that case.
+ */
+public class SharedContainerRule implements MethodRule {
+
+	public Statement apply(final Statement base, FrameworkMethod method, final Object target) {
+		return new Statement() {
+			public void evaluate() throws Throwable {
+				String sakaiHome = ComponentContainerEmulator.findTestSakaiHome();
+				SharedContainer.acquire(sakaiHome);
+				try {
+					ServiceInjector.injectServices(target);
+					TestDurations.testStarted(target.getClass());
+					try {
+						base.evaluate();
+					} finally {
+						TestDurations.testFinished(target.getClass());
+					}
+				} finally {
+					SharedContainer.release();
+				}
+			}
+		};
+	}
+}
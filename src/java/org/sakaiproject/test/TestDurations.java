@@ -0,0 +1,386 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * How long each test class took in earlier runs, split into the component
+ * manager startup it paid for and the time its tests took, along with the
+ * container configuration it needed.
+ *
+ * The test base classes record every test class they run. When the JVM exits
+ * the measurements are merged into the history file, which is locked while
+ * it's rewritten so that forked test JVMs can share it. Each new measurement
+ * is averaged with the one before, so the history follows a slowly changing
+ * suite without jumping about on one slow run. {@link ShardSuite} uses the
+ * history to divide test classes between machines or forks.
+ *
+ * The file defaults to "test-durations.txt" in the harness cache directory
+ * (see {@link HarnessFiles}). Point "test.harness.durations" at another file
+ * to keep the history with a CI job, or set it to "false" to stop recording.
+ * A JVM running a shard leaves the history alone, since the other shards plan
+ * from it, and saves its measurements beside it instead (see
+ * {@link ShardSuite#getOutputFile(File)}).
+ */
+public class TestDurations {
+	private static final Log log = LogFactory.getLog(TestDurations.class);
+
+	public static final String FILE_PROPERTY = "test.harness.durations";
+
+	private static final String HEADER = "# class\tstartup ms\ttest ms\truns\tsakai.home\tconfiguration";
+
+	private static final Map<String, ClassDuration> measured = new TreeMap<String, ClassDuration>();
+	private static final ThreadLocal<Long> testStart = new ThreadLocal<Long>();
+	private static String currentClass;
+	private static int runningTests;
+	// Read on every service lookup, so kept where it can be read without locking.
+	private static volatile String runningClassName;
+	private static long unclaimedStartupNanos;
+	private static boolean hookAdded;
+
+	private final Map<String, ClassDuration> byClass = new TreeMap<String, ClassDuration>();
+
+	/**
+	 * What is known about one test class.
+	 */
+	public static class ClassDuration {
+		private final String className;
+		private long startupMillis;
+		private long testMillis;
+		private int runs;
+		private String sakaiHome;
+		private String configuration;
+
+		public ClassDuration(String className, long startupMillis, long testMillis, String sakaiHome, String configuration) {
+			this.className = className;
+			this.startupMillis = startupMillis;
+			this.testMillis = testMillis;
+			this.runs = 1;
+			this.sakaiHome = sakaiHome;
+			this.configuration = configuration;
+		}
+
+		public String getClassName() {
+			return className;
+		}
+
+		/**
+		 * @return the time spent starting the component manager on behalf of
+		 * this class the last time it had to
+		 */
+		public long getStartupMillis() {
+			return startupMillis;
+		}
+
+		public long getTestMillis() {
+			return testMillis;
+		}
+
+		public int getRuns() {
+			return runs;
+		}
+
+		public String getSakaiHome() {
+			return sakaiHome;
+		}
+
+		/**
+		 * @return a description of the container and test context the class
+		 * runs in, the same for every class which could share them
+		 */
+		public String getConfiguration() {
+			return configuration;
+		}
+
+		/**
+		 * Folds a new measurement in. A run which found the container already
+		 * started says nothing about startup time, so that's kept.
+		 */
+		void merge(ClassDuration newer) {
+			if (newer.startupMillis > 0) {
+				startupMillis = (runs == 0) ? newer.startupMillis : (startupMillis + newer.startupMillis) / 2;
+			}
+			testMillis = (runs == 0) ? newer.testMillis : (testMillis + newer.testMillis) / 2;
+			runs += newer.runs;
+			if (newer.configuration != null) {
+				sakaiHome = newer.sakaiHome;
+				configuration = newer.configuration;
+			}
+		}
+
+		public String toString() {
+			return className + " (" + startupMillis + " ms startup, " + testMillis + " ms tests)";
+		}
+	}
+
+	/**
+	 * @return the history in the configured file, which is empty if there is none
+	 */
+	public static TestDurations load() {
+		File file = getHistoryFile();
+		TestDurations durations = new TestDurations();
+		if ((file != null) && file.exists()) {
+			try {
+				durations = load(file);
+			} catch (IOException e) {
+				log.warn("Could not read test durations from " + file + ": " + e);
+			}
+		}
+		return durations;
+	}
+
+	public static TestDurations load(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return parse(readAll(raf));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the configured history file, or null if recording is switched off
+	 */
+	public static File getHistoryFile() {
+		String path = ComponentContainerEmulator.getPassthroughSystemProperty(FILE_PROPERTY);
+		if ((path == null) || (path.length() == 0) || "true".equals(path)) {
+			return new File(HarnessFiles.getCacheDirectory(), "test-durations.txt");
+		} else if ("false".equals(path)) {
+			return null;
+		}
+		return new File(path);
+	}
+
+	public ClassDuration get(String className) {
+		return byClass.get(className);
+	}
+
+	public Collection<ClassDuration> getAll() {
+		return Collections.unmodifiableCollection(byClass.values());
+	}
+
+	/**
+	 * Adds a measurement, averaging it with what's already known about the class.
+	 */
+	public void add(ClassDuration duration) {
+		ClassDuration known = byClass.get(duration.getClassName());
+		if (known == null) {
+			known = new ClassDuration(duration.getClassName(), 0, 0, null, null);
+			known.runs = 0;
+			byClass.put(duration.getClassName(), known);
+		}
+		known.merge(duration);
+	}
+
+	/**
+	 * Merges measurements into a history file, holding a lock on it meanwhile.
+	 */
+	public static void mergeInto(File file, Collection<ClassDuration> durations) throws IOException {
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileLock lock = raf.getChannel().lock();
+			try {
+				TestDurations history = parse(readAll(raf));
+				for (ClassDuration duration : durations) {
+					history.add(duration);
+				}
+				byte[] bytes = history.format().getBytes("UTF-8");
+				raf.seek(0);
+				raf.write(bytes);
+				raf.setLength(bytes.length);
+			} finally {
+				lock.release();
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	String format() {
+		StringBuilder sb = new StringBuilder(HEADER).append('\n');
+		for (ClassDuration duration : byClass.values()) {
+			sb.append(duration.className).append('\t').append(duration.startupMillis).append('\t').append(duration.testMillis)
+				.append('\t').append(duration.runs).append('\t').append(orDash(duration.sakaiHome))
+				.append('\t').append(orDash(duration.configuration)).append('\n');
+		}
+		return sb.toString();
+	}
+
+	static TestDurations parse(String text) throws IOException {
+		TestDurations durations = new TestDurations();
+		BufferedReader reader = new BufferedReader(new StringReader(text));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if ((line.length() == 0) || line.startsWith("#")) {
+				continue;
+			}
+			String[] fields = line.split("\t", -1);
+			if (fields.length < 6) {
+				continue;
+			}
+			try {
+				ClassDuration duration = new ClassDuration(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+					fromDash(fields[4]), fromDash(fields[5]));
+				duration.runs = Integer.parseInt(fields[3]);
+				durations.byClass.put(duration.className, duration);
+			} catch (NumberFormatException e) {
+				log.warn("Skipping a bad line in the test duration history: " + line);
+			}
+		}
+		return durations;
+	}
+
+	private static String readAll(RandomAccessFile raf) throws IOException {
+		byte[] bytes = new byte[(int)raf.length()];
+		raf.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static String orDash(String value) {
+		return ((value == null) || (value.length() == 0)) ? "-" : value.replace('\t', ' ').replace('\n', ' ');
+	}
+
+	private static String fromDash(String value) {
+		return "-".equals(value) ? null : value;
+	}
+
+	/**
+	 * Called before each test method of a class which runs on the
+	 * {@link SharedContainer}, as by the JUnit 4 runner and the JUnit 5
+	 * extension. Its configuration is just its Sakai home.
+	 */
+	public static void testStarted(Class<?> testClass) {
+		String sakaiHome = ComponentContainerEmulator.findTestSakaiHome();
+		testStarted(testClass, sakaiHome, new ChildContextCache.Key(null, sakaiHome).toString());
+	}
+
+	/**
+	 * Called by the test base classes before each test method.
+	 *
+	 * @param configuration the container and test context the class needs, as
+	 * a string which is equal for classes which can share them
+	 */
+	static synchronized void testStarted(Class<?> testClass, String sakaiHome, String configuration) {
+		String className = testClass.getName();
+		ClassDuration duration = measured.get(className);
+		if (duration == null) {
+			duration = new ClassDuration(className, 0, 0, sakaiHome, configuration);
+			measured.put(className, duration);
+			addShutdownHook();
+		}
+		// A container started outside a test method (as by "oneTimeSetup()")
+		// was started for the class that runs next.
+		duration.startupMillis += unclaimedStartupNanos / 1000000;
+		unclaimedStartupNanos = 0;
+		currentClass = className;
+		runningTests++;
+		runningClassName = className;
+		TestFootprints.classStarted(className);
+		testStart.set(Long.valueOf(System.nanoTime()));
+	}
+
+	/**
+	 * Called after each test method, however it ended.
+	 */
+	public static synchronized void testFinished(Class<?> testClass) {
+		Long start = testStart.get();
+		testStart.remove();
+		runningTests--;
+		runningClassName = (runningTests > 0) ? currentClass : null;
+		ClassDuration duration = measured.get(testClass.getName());
+		if ((start != null) && (duration != null)) {
+			duration.testMillis += (System.nanoTime() - start.longValue()) / 1000000;
+		}
+	}
+
+	/**
+	 * Called when the component manager has started, to charge its startup
+	 * time to the test class which needed it.
+	 */
+	static synchronized void containerStarted(long nanos) {
+		ClassDuration duration = (runningTests > 0) ? measured.get(currentClass) : null;
+		if (duration != null) {
+			duration.startupMillis += nanos / 1000000;
+			// Time spent starting isn't test time.
+			duration.testMillis -= nanos / 1000000;
+		} else {
+			unclaimedStartupNanos += nanos;
+		}
+	}
+
+	/**
+	 * @return the class whose test method is running, or null between tests
+	 */
+	static String getRunningClassName() {
+		return runningClassName;
+	}
+
+	/**
+	 * @return what this JVM has measured so far
+	 */
+	static synchronized List<ClassDuration> getMeasured() {
+		List<ClassDuration> durations = new ArrayList<ClassDuration>();
+		for (ClassDuration duration : measured.values()) {
+			ClassDuration copy = new ClassDuration(duration.className, duration.startupMillis, duration.testMillis,
+				duration.sakaiHome, duration.configuration);
+			durations.add(copy);
+		}
+		return durations;
+	}
+
+	private static void addShutdownHook() {
+		if (hookAdded) {
+			return;
+		}
+		hookAdded = true;
+		final File file = ShardSuite.getOutputFile(getHistoryFile());
+		if (file == null) {
+			return;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread("TestDurations history") {
+			public void run() {
+				try {
+					mergeInto(file, getMeasured());
+				} catch (IOException e) {
+					log.warn("Could not save test durations to " + file, e);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,593 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.nio.channels.FileLock;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.MutablePropertyValues;
+import org.springframework.beans.PropertyValue;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.config.ConstructorArgumentValues;
+import org.springframework.beans.factory.config.RuntimeBeanReference;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Which Sakai services each test class uses, and the component packages and
+ * jars they come from, so that a change to some components need only rerun
+ * the tests which could notice it.
+ *
+ * Services fetched through {@link ComponentContainerEmulator#getService(String)}
+ * or {@link ComponentContainerEmulator#getService(Class)} during a test are
+ * recorded, as are component beans injected into a {@link SakaiDependencyInjectionTests}
+ * or referred to by its own bean definitions. Each footprint lists the bean
+ * IDs and interfaces used, and the component packages and jars which the
+ * service classes (and, through Spring proxies, their targets) and interfaces
+ * were loaded from. When the JVM exits, each class's footprint replaces the
+ * one recorded before, in a shared file which is locked while it's rewritten.
+ *
+ * {@link #select(List, Collection)} picks the classes affected by a list of
+ * changes. A change is a jar, component package, bean ID or interface name,
+ * or a path ending in one; it matches a jar or package whose name contains it
+ * as a whole dash-separated part, so "site-impl" matches
+ * "sakai-site-impl-2.7.0.jar". Classes with no footprint yet are always
+ * selected. {@link ShardSuite} applies the selection when
+ * "test.harness.changed" lists changes, separated by commas.
+ *
+ * The file defaults to "test-footprints.txt" in the harness cache directory.
+ * Point "test.harness.footprints" at another file, or set it to "false" to
+ * stop recording.
+ */
+public class TestFootprints {
+	private static final Log log = LogFactory.getLog(TestFootprints.class);
+
+	public static final String FILE_PROPERTY = "test.harness.footprints";
+
+	/**
+	 * Java system property listing changed jars, packages or services, separated
+	 * by commas.
+	 */
+	public static final String CHANGED_PROPERTY = "test.harness.changed";
+
+	static final String BEAN = "bean";
+	static final String INTERFACE = "interface";
+	static final String COMPONENT = "component";
+	static final String JAR = "jar";
+
+	private static final String HEADER = "# class\tkind\tname";
+
+	private static final Map<String, Set<String>> recorded = new TreeMap<String, Set<String>>();
+	private static final Set<String> unclaimed = new TreeSet<String>();
+	private static final Map<Class<?>, List<String>> sourcesByClass = new WeakHashMap<Class<?>, List<String>>();
+	private static boolean hookAdded;
+	private static volatile Boolean recording;
+
+	// Bean IDs and interfaces already recorded for each class, checked before
+	// anything else so that repeated lookups cost no locks or allocation.
+	private static final ConcurrentMap<String, ConcurrentMap<Object, Boolean>> seen =
+		new ConcurrentHashMap<String, ConcurrentMap<Object, Boolean>>();
+	private static final String UNCLAIMED = "";
+
+	private final Map<String, Set<String>> byClass = new TreeMap<String, Set<String>>();
+
+	/**
+	 * Usage: TestFootprints change... - prints the affected test classes in
+	 * "target/test-classes" (or "test.harness.shard.classes"), separated by
+	 * commas as for "-Dtest=".
+	 */
+	public static void main(String[] args) {
+		List<String> changes = new ArrayList<String>();
+		for (String arg : args) {
+			addChanges(arg, changes);
+		}
+		List<String> selected = load().select(ShardSuite.findTestClasses(ShardSuite.getClassesDirectory()), changes);
+		StringBuilder sb = new StringBuilder();
+		for (String className : selected) {
+			sb.append((sb.length() > 0) ? "," : "").append(className.substring(className.lastIndexOf('.') + 1));
+		}
+		System.out.println(sb);
+	}
+
+	/**
+	 * @return the changes listed by "test.harness.changed", or null if it isn't set
+	 */
+	public static List<String> getConfiguredChanges() {
+		String value = ComponentContainerEmulator.getPassthroughSystemProperty(CHANGED_PROPERTY);
+		if ((value == null) || (value.trim().length() == 0)) {
+			return null;
+		}
+		List<String> changes = new ArrayList<String>();
+		addChanges(value, changes);
+		return changes;
+	}
+
+	private static void addChanges(String value, List<String> changes) {
+		for (String change : value.split(",")) {
+			change = change.trim();
+			while (change.endsWith("/") || change.endsWith("\\")) {
+				change = change.substring(0, change.length() - 1);
+			}
+			change = change.substring(Math.max(change.lastIndexOf('/'), change.lastIndexOf('\\')) + 1);
+			if (change.length() > 0) {
+				changes.add(change);
+			}
+		}
+	}
+
+	/**
+	 * @return the footprints in the configured file, which are empty if there are none
+	 */
+	public static TestFootprints load() {
+		File file = getFootprintFile();
+		TestFootprints footprints = new TestFootprints();
+		if ((file != null) && file.exists()) {
+			try {
+				footprints = load(file);
+			} catch (IOException e) {
+				log.warn("Could not read test footprints from " + file + ": " + e);
+			}
+		}
+		return footprints;
+	}
+
+	public static TestFootprints load(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return parse(readAll(raf));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the configured footprint file, or null if recording is switched off
+	 */
+	public static File getFootprintFile() {
+		String path = ComponentContainerEmulator.getPassthroughSystemProperty(FILE_PROPERTY);
+		if ((path == null) || (path.length() == 0) || "true".equals(path)) {
+			return new File(HarnessFiles.getCacheDirectory(), "test-footprints.txt");
+		} else if ("false".equals(path)) {
+			return null;
+		}
+		return new File(path);
+	}
+
+	/**
+	 * @return the recorded footprint of a class, as "kind name" strings, or null
+	 * if it has none
+	 */
+	public Set<String> getFootprint(String className) {
+		return byClass.get(className);
+	}
+
+	/**
+	 * @return every recorded footprint, by class name
+	 */
+	Map<String, Set<String>> getAll() {
+		return Collections.unmodifiableMap(byClass);
+	}
+
+	/**
+	 * Replaces the footprint of a class.
+	 */
+	public void put(String className, Set<String> footprint) {
+		byClass.put(className, new TreeSet<String>(footprint));
+	}
+
+	/**
+	 * @return the classes which use something changed, or have no footprint,
+	 * in the order given
+	 */
+	public List<String> select(List<String> classNames, Collection<String> changes) {
+		List<String> selected = new ArrayList<String>();
+		for (String className : classNames) {
+			Set<String> footprint = byClass.get(className);
+			if ((footprint == null) || isAffected(footprint, changes)) {
+				selected.add(className);
+			}
+		}
+		if (log.isInfoEnabled()) log.info("Selected " + selected.size() + " of " + classNames.size() + " test classes for changes to " + changes);
+		return selected;
+	}
+
+	static boolean isAffected(Set<String> footprint, Collection<String> changes) {
+		for (String entry : footprint) {
+			int space = entry.indexOf(' ');
+			String kind = entry.substring(0, space);
+			String name = entry.substring(space + 1);
+			for (String change : changes) {
+				if (name.equals(change)) {
+					return true;
+				}
+				if (JAR.equals(kind) || COMPONENT.equals(kind)) {
+					String baseName = name.endsWith(".jar") ? name.substring(0, name.length() - ".jar".length()) : name;
+					String changeName = change.endsWith(".jar") ? change.substring(0, change.length() - ".jar".length()) : change;
+					if (("-" + baseName + "-").indexOf("-" + changeName + "-") >= 0) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Replaces the footprints of the given classes in a file, holding a lock on
+	 * it meanwhile.
+	 */
+	public static void mergeInto(File file, Map<String, Set<String>> footprints) throws IOException {
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileLock lock = raf.getChannel().lock();
+			try {
+				TestFootprints known = parse(readAll(raf));
+				for (Map.Entry<String, Set<String>> footprint : footprints.entrySet()) {
+					known.put(footprint.getKey(), footprint.getValue());
+				}
+				byte[] bytes = known.format().getBytes("UTF-8");
+				raf.seek(0);
+				raf.write(bytes);
+				raf.setLength(bytes.length);
+			} finally {
+				lock.release();
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	String format() {
+		StringBuilder sb = new StringBuilder(HEADER).append('\n');
+		for (Map.Entry<String, Set<String>> footprint : byClass.entrySet()) {
+			if (footprint.getValue().isEmpty()) {
+				// Keep the class known even if it used nothing.
+				sb.append(footprint.getKey()).append('\n');
+			}
+			for (String entry : footprint.getValue()) {
+				int space = entry.indexOf(' ');
+				sb.append(footprint.getKey()).append('\t').append(entry.substring(0, space)).append('\t')
+					.append(entry.substring(space + 1)).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	static TestFootprints parse(String text) throws IOException {
+		TestFootprints footprints = new TestFootprints();
+		BufferedReader reader = new BufferedReader(new StringReader(text));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if ((line.length() == 0) || line.startsWith("#")) {
+				continue;
+			}
+			String[] fields = line.split("\t");
+			Set<String> footprint = footprints.byClass.get(fields[0]);
+			if (footprint == null) {
+				footprint = new TreeSet<String>();
+				footprints.byClass.put(fields[0], footprint);
+			}
+			if (fields.length >= 3) {
+				footprint.add(fields[1] + " " + fields[2]);
+			}
+		}
+		return footprints;
+	}
+
+	private static String readAll(RandomAccessFile raf) throws IOException {
+		byte[] bytes = new byte[(int)raf.length()];
+		raf.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Records a service fetched by bean ID.
+	 */
+	static void serviceUsed(String beanId, Object bean) {
+		if (!isFirstUse(beanId)) {
+			return;
+		}
+		Set<String> entries = new TreeSet<String>();
+		entries.add(BEAN + " " + beanId);
+		if (bean != null) {
+			addSources(bean, entries);
+		}
+		record(entries);
+	}
+
+	/**
+	 * Records a service fetched by interface.
+	 */
+	static void serviceUsed(Class<?> serviceInterface, Object bean) {
+		if (!isFirstUse(serviceInterface)) {
+			return;
+		}
+		Set<String> entries = new TreeSet<String>();
+		entries.add(INTERFACE + " " + serviceInterface.getName());
+		entries.add(BEAN + " " + serviceInterface.getName());
+		entries.addAll(getSources(serviceInterface));
+		if (bean != null) {
+			addSources(bean, entries);
+		}
+		record(entries);
+	}
+
+	/**
+	 * Records the component beans which a test and its own context were given.
+	 */
+	static void contextInjected(Object test, Class<?> stopClass, ApplicationContext testContext) {
+		if (!isRecording()) {
+			return;
+		}
+		ApplicationContext parent = (testContext != null) ? testContext.getParent() : null;
+		if (!(parent instanceof ConfigurableApplicationContext)) {
+			return;
+		}
+		ConfigurableListableBeanFactory parentFactory = ((ConfigurableApplicationContext)parent).getBeanFactory();
+		Map<Object, String> namesBySingleton = new IdentityHashMap<Object, String>();
+		for (String beanName : parentFactory.getSingletonNames()) {
+			Object singleton = parentFactory.getSingleton(beanName);
+			if (singleton != null) {
+				namesBySingleton.put(singleton, beanName);
+			}
+		}
+		Set<String> entries = new TreeSet<String>();
+
+		// Whatever was injected into the test itself.
+		for (Class<?> clazz = test.getClass(); (clazz != null) && (clazz != stopClass); clazz = clazz.getSuperclass()) {
+			for (Field field : clazz.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+					continue;
+				}
+				try {
+					field.setAccessible(true);
+					Object value = field.get(test);
+					String beanName = (value != null) ? namesBySingleton.get(value) : null;
+					if (beanName != null) {
+						entries.add(BEAN + " " + beanName);
+						addSources(value, entries);
+					}
+				} catch (Exception e) {
+					// Inaccessible, so not injected by Spring either.
+				}
+			}
+		}
+
+		// Component beans which the test's own beans refer to by name.
+		if (testContext instanceof ConfigurableApplicationContext) {
+			ConfigurableListableBeanFactory testFactory = ((ConfigurableApplicationContext)testContext).getBeanFactory();
+			for (String beanName : testFactory.getBeanDefinitionNames()) {
+				BeanDefinition definition = testFactory.getBeanDefinition(beanName);
+				List<Object> values = new ArrayList<Object>();
+				MutablePropertyValues properties = definition.getPropertyValues();
+				if (properties != null) {
+					for (PropertyValue property : properties.getPropertyValues()) {
+						values.add(property.getValue());
+					}
+				}
+				ConstructorArgumentValues arguments = definition.getConstructorArgumentValues();
+				if (arguments != null) {
+					for (Object holder : arguments.getIndexedArgumentValues().values()) {
+						values.add(((ConstructorArgumentValues.ValueHolder)holder).getValue());
+					}
+					for (Object holder : arguments.getGenericArgumentValues()) {
+						values.add(((ConstructorArgumentValues.ValueHolder)holder).getValue());
+					}
+				}
+				for (Object value : values) {
+					if (value instanceof RuntimeBeanReference) {
+						String reference = ((RuntimeBeanReference)value).getBeanName();
+						if (!testFactory.containsBeanDefinition(reference) && parentFactory.containsBean(reference)) {
+							entries.add(BEAN + " " + reference);
+							Object singleton = parentFactory.containsSingleton(reference) ? parentFactory.getSingleton(reference) : null;
+							if (singleton != null) {
+								addSources(singleton, entries);
+							}
+						}
+					}
+				}
+			}
+		}
+		record(entries);
+	}
+
+	/**
+	 * @return true if footprints are being recorded and the running class (or
+	 * the unclaimed footprint) hasn't used this service before
+	 */
+	private static boolean isFirstUse(Object service) {
+		if (!isRecording()) {
+			return false;
+		}
+		String className = TestDurations.getRunningClassName();
+		String owner = (className != null) ? className : UNCLAIMED;
+		ConcurrentMap<Object, Boolean> services = seen.get(owner);
+		if (services == null) {
+			services = new ConcurrentHashMap<Object, Boolean>();
+			ConcurrentMap<Object, Boolean> existing = seen.putIfAbsent(owner, services);
+			if (existing != null) {
+				services = existing;
+			}
+		} else if (services.containsKey(service)) {
+			return false;
+		}
+		return services.putIfAbsent(service, Boolean.TRUE) == null;
+	}
+
+	/**
+	 * @return false if "test.harness.footprints" is "false"
+	 */
+	static boolean isRecording() {
+		Boolean on = recording;
+		if (on == null) {
+			on = Boolean.valueOf(getFootprintFile() != null);
+			recording = on;
+		}
+		return on.booleanValue();
+	}
+
+	/**
+	 * Lets tests record without saving; null goes back to the configured setting.
+	 */
+	static void setRecording(Boolean on) {
+		recording = on;
+	}
+
+	private static void addSources(Object bean, Set<String> entries) {
+		Class<?> beanClass = bean.getClass();
+		if (Proxy.isProxyClass(beanClass)) {
+			for (Class<?> proxied : beanClass.getInterfaces()) {
+				entries.addAll(getSources(proxied));
+			}
+			// A Spring proxy can say what it's in front of.
+			try {
+				Method targetSourceMethod = beanClass.getMethod("getTargetSource", new Class[0]);
+				Object targetSource = targetSourceMethod.invoke(bean, new Object[0]);
+				Object target = targetSource.getClass().getMethod("getTarget", new Class[0]).invoke(targetSource, new Object[0]);
+				if ((target != null) && !Proxy.isProxyClass(target.getClass())) {
+					entries.addAll(getSources(target.getClass()));
+				}
+			} catch (Exception e) {
+				// Not a Spring proxy, or not a simple one.
+			}
+		} else {
+			entries.addAll(getSources(beanClass));
+		}
+	}
+
+	/**
+	 * @return the jar and component package a class came from
+	 */
+	static List<String> getSources(Class<?> clazz) {
+		synchronized (sourcesByClass) {
+			List<String> sources = sourcesByClass.get(clazz);
+			if (sources == null) {
+				sources = new ArrayList<String>(2);
+				CodeSource codeSource = clazz.getProtectionDomain().getCodeSource();
+				URL location = (codeSource != null) ? codeSource.getLocation() : null;
+				if (location != null) {
+					String path = location.getPath();
+					if (path.endsWith(".jar")) {
+						sources.add(JAR + " " + path.substring(path.lastIndexOf('/') + 1));
+					}
+					int components = path.lastIndexOf("/components/");
+					int webInf = path.indexOf("/WEB-INF/", components + 1);
+					if ((components >= 0) && (webInf > components)) {
+						sources.add(COMPONENT + " " + path.substring(components + "/components/".length(), webInf));
+					}
+				}
+				sourcesByClass.put(clazz, sources);
+			}
+			return sources;
+		}
+	}
+
+	/**
+	 * Adds to the running test class's footprint. Whatever is used between test
+	 * methods goes to the next class to use anything, which can only make the
+	 * selection larger.
+	 */
+	private static synchronized void record(Set<String> entries) {
+		String className = TestDurations.getRunningClassName();
+		if (className == null) {
+			unclaimed.addAll(entries);
+			return;
+		}
+		Set<String> footprint = recorded.get(className);
+		if (footprint == null) {
+			footprint = new TreeSet<String>();
+			recorded.put(className, footprint);
+			addShutdownHook();
+		}
+		footprint.addAll(entries);
+		if (!unclaimed.isEmpty()) {
+			footprint.addAll(unclaimed);
+			unclaimed.clear();
+			seen.remove(UNCLAIMED);
+		}
+	}
+
+	/**
+	 * Makes sure a running class has a footprint, even if it uses nothing.
+	 */
+	static synchronized void classStarted(String className) {
+		if (isRecording() && !recorded.containsKey(className)) {
+			recorded.put(className, new TreeSet<String>());
+			addShutdownHook();
+		}
+	}
+
+	static synchronized Map<String, Set<String>> getRecorded() {
+		Map<String, Set<String>> copy = new TreeMap<String, Set<String>>();
+		for (Map.Entry<String, Set<String>> footprint : recorded.entrySet()) {
+			copy.put(footprint.getKey(), new TreeSet<String>(footprint.getValue()));
+		}
+		return copy;
+	}
+
+	private static void addShutdownHook() {
+		if (hookAdded) {
+			return;
+		}
+		hookAdded = true;
+		final File file = ShardSuite.getOutputFile(getFootprintFile());
+		if (file == null) {
+			return;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread("TestFootprints save") {
+			public void run() {
+				try {
+					mergeInto(file, getRecorded());
+				} catch (IOException e) {
+					log.warn("Could not save test footprints to " + file, e);
+				}
+			}
+		});
+	}
+}
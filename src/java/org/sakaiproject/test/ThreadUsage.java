@@ -0,0 +1,93 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * Reads the CPU time and allocated bytes of the current thread, where the
+ * JVM supports measuring them.
+ */
+public class ThreadUsage {
+	private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	private static final boolean cpuTimeSupported;
+	private static final Method allocatedBytesMethod;
+
+	static {
+		boolean cpuSupported = false;
+		try {
+			cpuSupported = threadBean.isCurrentThreadCpuTimeSupported();
+			if (cpuSupported && !threadBean.isThreadCpuTimeEnabled()) {
+				threadBean.setThreadCpuTimeEnabled(true);
+			}
+		} catch (Exception e) {
+			cpuSupported = false;
+		}
+		cpuTimeSupported = cpuSupported;
+
+		// Allocation counting is a HotSpot extension (com.sun.management.ThreadMXBean).
+		Method method = null;
+		try {
+			Class<?> extendedBean = Class.forName("com.sun.management.ThreadMXBean");
+			if (extendedBean.isInstance(threadBean)) {
+				method = extendedBean.getMethod("getThreadAllocatedBytes", new Class[] {long.class});
+				method.invoke(threadBean, new Object[] {Long.valueOf(Thread.currentThread().getId())});
+			}
+		} catch (Exception e) {
+			method = null;
+		}
+		allocatedBytesMethod = method;
+	}
+
+	/**
+	 * @return the current thread's CPU time in nanoseconds, or -1 if unsupported
+	 */
+	public static long getCpuTime() {
+		return cpuTimeSupported ? threadBean.getCurrentThreadCpuTime() : -1;
+	}
+
+	/**
+	 * @return the number of bytes the current thread has allocated so far, or -1
+	 * if unsupported
+	 */
+	public static long getAllocatedBytes() {
+		if (allocatedBytesMethod == null) {
+			return -1;
+		}
+		try {
+			return ((Long)allocatedBytesMethod.invoke(threadBean, new Object[] {Long.valueOf(Thread.currentThread().getId())})).longValue();
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	public static boolean isCpuTimeSupported() {
+		return cpuTimeSupported;
+	}
+
+	public static boolean isAllocatedBytesSupported() {
+		return (allocatedBytesMethod != null);
+	}
+}
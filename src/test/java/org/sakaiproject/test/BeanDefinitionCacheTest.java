@@ -0,0 +1,126 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+/**
+ * Checks that cached bean definitions come back the same as parsed ones.
+ */
+public class BeanDefinitionCacheTest extends TestCase {
+	private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+		"<!DOCTYPE beans PUBLIC \"-//SPRING//DTD BEAN//EN\" \"http://www.springframework.org/dtd/spring-beans.dtd\">\n<beans>\n";
+
+	private File workDir;
+	private File mainXml;
+	private File importedXml;
+
+	protected void setUp() throws Exception {
+		workDir = File.createTempFile("definitions", "");
+		workDir.delete();
+		workDir.mkdirs();
+		System.setProperty(HarnessFiles.CACHE_DIR_PROPERTY, new File(workDir, "cache").getPath());
+		mainXml = new File(workDir, "components.xml");
+		importedXml = new File(workDir, "imported.xml");
+		writeFile(mainXml, HEADER +
+			"<import resource=\"imported.xml\"/>\n" +
+			"<bean id=\"base\" abstract=\"true\" init-method=\"toString\"><property name=\"name\" value=\"base\"/></bean>\n" +
+			"<bean id=\"child\" name=\"childAlias\" class=\"java.util.ArrayList\" parent=\"base\" lazy-init=\"true\" depends-on=\"imported\">\n" +
+			"  <constructor-arg index=\"0\" type=\"int\"><value>5</value></constructor-arg>\n" +
+			"  <property name=\"list\"><list><value>a</value><ref bean=\"imported\"/><idref bean=\"base\"/><null/></list></property>\n" +
+			"  <property name=\"map\"><map><entry key=\"k\"><bean class=\"java.lang.Object\"/></entry></map></property>\n" +
+			"  <property name=\"props\"><props><prop key=\"p\">v</prop></props></property>\n" +
+			"  <property name=\"set\"><set><value type=\"java.lang.Integer\">1</value></set></property>\n" +
+			"</bean>\n" +
+			"<bean id=\"prototype\" class=\"java.util.HashMap\" singleton=\"false\"><lookup-method name=\"get\" bean=\"imported\"/></bean>\n" +
+			"<alias name=\"imported\" alias=\"importedAlias\"/>\n" +
+			"</beans>\n");
+		writeFile(importedXml, HEADER + "<bean id=\"imported\" class=\"java.lang.String\"/>\n</beans>\n");
+	}
+
+	protected void tearDown() throws Exception {
+		System.clearProperty(HarnessFiles.CACHE_DIR_PROPERTY);
+		delete(workDir);
+	}
+
+	public void testCachedDefinitionsMatch() throws Exception {
+		DefaultListableBeanFactory parsed = load();
+		DefaultListableBeanFactory cached = load();
+		List<BeanDefinitionCache.LoadStatistics> loads = BeanDefinitionCache.getStatistics();
+		assertFalse(loads.get(loads.size() - 2).isCached());
+		assertTrue(loads.get(loads.size() - 1).isCached());
+
+		assertEquals(parsed.getBeanDefinitionCount(), cached.getBeanDefinitionCount());
+		for (String beanName : parsed.getBeanDefinitionNames()) {
+			assertEquals(beanName, parsed.getBeanDefinition(beanName), cached.getBeanDefinition(beanName));
+			assertEquals(beanName, parsed.getAliases(beanName).length, cached.getAliases(beanName).length);
+		}
+		assertTrue(cached.isAlias("childAlias"));
+		assertTrue(cached.isAlias("importedAlias"));
+		assertEquals("", cached.getBean("importedAlias"));
+	}
+
+	public void testChangedImportIsParsed() throws Exception {
+		load();
+		writeFile(importedXml, HEADER + "<bean id=\"imported\" class=\"java.lang.StringBuffer\"/>\n</beans>\n");
+		DefaultListableBeanFactory reloaded = load();
+		List<BeanDefinitionCache.LoadStatistics> loads = BeanDefinitionCache.getStatistics();
+		assertFalse(loads.get(loads.size() - 1).isCached());
+		assertEquals("java.lang.StringBuffer", reloaded.getBeanDefinition("imported").getBeanClassName());
+	}
+
+	private DefaultListableBeanFactory load() {
+		DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+		BeanDefinitionCache.loadBeanDefinitions(beanFactory, new Resource[] {new FileSystemResource(mainXml)}, null,
+			getClass().getClassLoader(), "BeanDefinitionCacheTest");
+		return beanFactory;
+	}
+
+	private static void writeFile(File file, String contents) throws IOException {
+		FileWriter writer = new FileWriter(file);
+		try {
+			writer.write(contents);
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
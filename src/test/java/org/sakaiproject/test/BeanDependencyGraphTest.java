@@ -0,0 +1,106 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.springframework.beans.MutablePropertyValues;
+import org.springframework.beans.factory.config.RuntimeBeanReference;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.support.ManagedList;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+
+/**
+ * Checks the dependency graph against bean definitions registered by hand.
+ */
+public class BeanDependencyGraphTest extends TestCase {
+	private DefaultListableBeanFactory beanFactory;
+
+	@Override
+	protected void setUp() throws Exception {
+		// a <- b, a <- c (through an alias, in a list), {b, c} <- d, and e <-> f.
+		beanFactory = new DefaultListableBeanFactory();
+		beanFactory.registerBeanDefinition("a", new RootBeanDefinition(Object.class));
+		beanFactory.registerAlias("a", "aAlias");
+		beanFactory.registerBeanDefinition("b", withProperty("target", new RuntimeBeanReference("a")));
+		ManagedList list = new ManagedList();
+		list.add(new RuntimeBeanReference("aAlias"));
+		beanFactory.registerBeanDefinition("c", withProperty("targets", list));
+		RootBeanDefinition d = new RootBeanDefinition(Object.class);
+		d.getConstructorArgumentValues().addIndexedArgumentValue(0, new RuntimeBeanReference("b"));
+		d.setDependsOn(new String[] {"c", "missing"});
+		beanFactory.registerBeanDefinition("d", d);
+		beanFactory.registerBeanDefinition("e", withProperty("other", new RuntimeBeanReference("f")));
+		beanFactory.registerBeanDefinition("f", withProperty("other", new RuntimeBeanReference("e")));
+	}
+
+	public void testDependencies() {
+		BeanDependencyGraph graph = BeanDependencyGraph.build(beanFactory);
+		assertEquals(set("a"), graph.getDependencies("b"));
+		assertEquals(set("a"), graph.getDependencies("c"));
+		assertEquals(set("b", "c"), graph.getDependencies("d"));
+		assertEquals(set("b", "c"), graph.getDependents("a"));
+		// The cycle is broken at the edge which closes it.
+		assertEquals(set("f"), graph.getDependencies("e"));
+		assertEquals(set(), graph.getDependencies("f"));
+
+		List<String> order = graph.getCreationOrder();
+		assertEquals(6, order.size());
+		assertTrue(order.indexOf("a") < order.indexOf("b"));
+		assertTrue(order.indexOf("c") < order.indexOf("d"));
+		assertTrue(order.indexOf("f") < order.indexOf("e"));
+	}
+
+	public void testCriticalPathAndEstimate() {
+		BeanDependencyGraph graph = BeanDependencyGraph.build(beanFactory);
+		Map<String, Long> costs = new HashMap<String, Long>();
+		costs.put("a", Long.valueOf(10));
+		costs.put("b", Long.valueOf(5));
+		costs.put("c", Long.valueOf(20));
+		costs.put("d", Long.valueOf(1));
+		costs.put("e", Long.valueOf(8));
+		costs.put("f", Long.valueOf(8));
+		assertEquals(Arrays.asList(new String[] {"a", "c", "d"}), graph.getCriticalPath(costs));
+		assertEquals(52, graph.estimateElapsed(costs, 1));
+		// Enough threads leaves just the critical path.
+		assertEquals(31, graph.estimateElapsed(costs, 8));
+		assertEquals(31, graph.estimateElapsed(costs, 2));
+	}
+
+	private static Set<String> set(String... beanNames) {
+		return new HashSet<String>(Arrays.asList(beanNames));
+	}
+
+	private static RootBeanDefinition withProperty(String name, Object value) {
+		MutablePropertyValues propertyValues = new MutablePropertyValues();
+		propertyValues.addPropertyValue(name, value);
+		return new RootBeanDefinition(Object.class, propertyValues);
+	}
+}
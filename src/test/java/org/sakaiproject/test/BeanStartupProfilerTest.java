@@ -0,0 +1,151 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.springframework.beans.MutablePropertyValues;
+import org.springframework.beans.factory.FactoryBean;
+import org.springframework.beans.factory.config.RuntimeBeanReference;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+
+/**
+ * Checks the profiler's nesting against bean definitions registered by hand.
+ */
+public class BeanStartupProfilerTest extends TestCase {
+	private DefaultListableBeanFactory beanFactory;
+	private BeanStartupProfiler profiler;
+
+	/**
+	 * Takes a little while to be given its target.
+	 */
+	public static class Holder {
+		public void setTarget(Object target) throws InterruptedException {
+			Thread.sleep(2);
+		}
+	}
+
+	/**
+	 * Has a second dependency, made by a FactoryBean.
+	 */
+	public static class AnotherHolder extends Holder {
+		public void setThing(Object thing) {
+		}
+	}
+
+	public static class ThingFactory implements FactoryBean {
+		public Object getObject() {
+			return new Holder();
+		}
+		public Class getObjectType() {
+			return Holder.class;
+		}
+		public boolean isSingleton() {
+			return true;
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		// a -> b -> c, and a -> thing, which a FactoryBean makes.
+		beanFactory = new DefaultListableBeanFactory();
+		profiler = new BeanStartupProfiler();
+		beanFactory.addBeanPostProcessor(profiler);
+		MutablePropertyValues aProperties = new MutablePropertyValues();
+		aProperties.addPropertyValue("target", new RuntimeBeanReference("b"));
+		aProperties.addPropertyValue("thing", new RuntimeBeanReference("thing"));
+		beanFactory.registerBeanDefinition("a", new RootBeanDefinition(AnotherHolder.class, aProperties));
+		beanFactory.registerBeanDefinition("b", withTarget(new RuntimeBeanReference("c")));
+		beanFactory.registerBeanDefinition("c", withTarget("plain value"));
+		beanFactory.registerBeanDefinition("thing", new RootBeanDefinition(ThingFactory.class));
+	}
+
+	public void testSelfExcludesNestedBeans() {
+		beanFactory.getBean("a");
+		Map<String, BeanStartupProfiler.BeanTiming> timings = new HashMap<String, BeanStartupProfiler.BeanTiming>();
+		for (BeanStartupProfiler.BeanTiming timing : profiler.getTimings()) {
+			timings.put(timing.getBeanName(), timing);
+		}
+		// The object the FactoryBean made isn't a bean creation of its own.
+		assertEquals(4, timings.size());
+		BeanStartupProfiler.BeanTiming a = timings.get("a");
+		BeanStartupProfiler.BeanTiming b = timings.get("b");
+		BeanStartupProfiler.BeanTiming c = timings.get("c");
+		BeanStartupProfiler.BeanTiming thing = timings.get("thing");
+		assertEquals(a.getTotalNanos() - b.getTotalNanos() - thing.getTotalNanos(), a.getSelfNanos());
+		assertEquals(b.getTotalNanos() - c.getTotalNanos(), b.getSelfNanos());
+		assertEquals(c.getTotalNanos(), c.getSelfNanos());
+		assertTrue(b.getTotalNanos() >= c.getTotalNanos() + 2000000);
+		assertEquals(AnotherHolder.class.getName(), a.getBeanClassName());
+		assertEquals(ThingFactory.class.getName(), thing.getBeanClassName());
+	}
+
+	public void testFoldedStacks() throws Exception {
+		beanFactory.getBean("a");
+		File reportFile = File.createTempFile("bean-startup", ".txt");
+		File foldedFile = File.createTempFile("bean-startup", ".folded");
+		try {
+			profiler.writeReports(reportFile, foldedFile);
+			Map<String, Long> folded = readFolded(foldedFile);
+			assertEquals(folded.toString(), 4, folded.size());
+			assertTrue(folded.containsKey("a"));
+			assertTrue(folded.containsKey("a;b"));
+			assertTrue(folded.containsKey("a;b;c"));
+			assertTrue(folded.containsKey("a;thing"));
+			// Each frame counts only its own time, in microseconds.
+			assertTrue(folded.get("a;b").longValue() >= 2000);
+		} finally {
+			reportFile.delete();
+			foldedFile.delete();
+		}
+	}
+
+	private static Map<String, Long> readFolded(File file) throws IOException {
+		Map<String, Long> folded = new HashMap<String, Long>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int space = line.lastIndexOf(' ');
+				folded.put(line.substring(0, space), Long.valueOf(line.substring(space + 1)));
+			}
+		} finally {
+			reader.close();
+		}
+		return folded;
+	}
+
+	private static RootBeanDefinition withTarget(Object value) {
+		MutablePropertyValues propertyValues = new MutablePropertyValues();
+		propertyValues.addPropertyValue("target", value);
+		return new RootBeanDefinition(Holder.class, propertyValues);
+	}
+}
@@ -0,0 +1,77 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the test context cache's eviction order without loading any contexts.
+ */
+public class ChildContextCacheTest extends TestCase {
+	private ChildContextCache.Key[] keys;
+
+	protected void setUp() throws Exception {
+		System.setProperty(ChildContextCache.SIZE_PROPERTY, "2");
+		System.setProperty(ChildContextCache.MEGABYTES_PROPERTY, "10");
+		keys = new ChildContextCache.Key[4];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = new ChildContextCache.Key(new String[] {"context-" + i + ".xml"}, "/sakai-home/");
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		for (ChildContextCache.Key key : keys) {
+			ChildContextCache.remove(key);
+		}
+		System.clearProperty(ChildContextCache.SIZE_PROPERTY);
+		System.clearProperty(ChildContextCache.MEGABYTES_PROPERTY);
+	}
+
+	public void testKeyIncludesSakaiHome() {
+		ChildContextCache.Key key = new ChildContextCache.Key(new String[] {"context-0.xml"}, "/sakai-home/");
+		assertEquals(keys[0], key);
+		assertEquals(keys[0].toString(), key.toString());
+		assertFalse(keys[0].equals(new ChildContextCache.Key(new String[] {"context-0.xml"}, "/other-home/")));
+	}
+
+	public void testEvictsLeastRecentlyUsedByCount() {
+		assertTrue(ChildContextCache.add(keys[0], 1024).isEmpty());
+		assertTrue(ChildContextCache.add(keys[1], 1024).isEmpty());
+		ChildContextCache.touch(keys[0]);
+		List<ChildContextCache.Key> evicted = ChildContextCache.add(keys[2], 1024);
+		assertEquals(1, evicted.size());
+		assertEquals(keys[1], evicted.get(0));
+	}
+
+	public void testEvictsByEstimatedMemory() {
+		assertTrue(ChildContextCache.add(keys[0], 6 * 1024 * 1024).isEmpty());
+		List<ChildContextCache.Key> evicted = ChildContextCache.add(keys[1], 6 * 1024 * 1024);
+		assertEquals(1, evicted.size());
+		assertEquals(keys[0], evicted.get(0));
+
+		// The newest context is kept even if it's too big on its own.
+		assertTrue(ChildContextCache.add(keys[1], 20 * 1024 * 1024).isEmpty());
+	}
+}
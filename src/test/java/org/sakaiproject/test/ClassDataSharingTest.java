@@ -0,0 +1,145 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the class data sharing archive follows the jar set.
+ */
+public class ClassDataSharingTest extends TestCase {
+	private File workDir;
+	private File tomcatHome;
+
+	protected void setUp() throws Exception {
+		workDir = File.createTempFile("appcds", "");
+		workDir.delete();
+		tomcatHome = new File(workDir, "tomcat");
+		new File(tomcatHome, "common/lib").mkdirs();
+		new File(tomcatHome, "components/sakai-kernel-pack/WEB-INF/lib").mkdirs();
+		writeJar(new File(tomcatHome, "shared/lib/sakai-kernel-api.jar"), "org/sakaiproject/api/A.class");
+		writeJar(new File(tomcatHome, "components/sakai-kernel-pack/WEB-INF/lib/sakai-kernel-impl.jar"), "org/sakaiproject/impl/B.class");
+		System.setProperty(HarnessFiles.CACHE_DIR_PROPERTY, new File(workDir, "cache").getPath());
+	}
+
+	protected void tearDown() throws Exception {
+		System.clearProperty(HarnessFiles.CACHE_DIR_PROPERTY);
+		System.clearProperty("test.tomcat.home");
+		delete(workDir);
+	}
+
+	public void testArchiveChangesWithJars() throws Exception {
+		File first = archive().getArchiveFile();
+		assertEquals(first, archive().getArchiveFile());
+
+		writeJar(new File(tomcatHome, "shared/lib/sakai-kernel-api.jar"), "org/sakaiproject/api/C.class");
+		File second = archive().getArchiveFile();
+		assertFalse(first.equals(second));
+
+		writeJar(new File(tomcatHome, "components/sakai-kernel-pack/WEB-INF/lib/sakai-kernel-impl.jar"), "org/sakaiproject/impl/Other.class");
+		assertFalse(second.equals(archive().getArchiveFile()));
+	}
+
+	public void testStaleArchivesDeleted() throws Exception {
+		ClassDataSharing stale = archive();
+		stale.getArchiveFile().createNewFile();
+		writeJar(new File(tomcatHome, "shared/lib/sakai-kernel-api.jar"), "org/sakaiproject/api/C.class");
+		archive().deleteOtherArchives();
+		assertFalse(stale.exists());
+	}
+
+	public void testOptionsFile() throws Exception {
+		System.setProperty("test.tomcat.home", tomcatHome.getPath());
+		File optionsFile = new File(workDir, "target/appcds.args");
+		// Without an archive, test JVMs get nothing, and in particular not the
+		// option to write one.
+		ClassDataSharing.writeOptions(optionsFile, false);
+		assertEquals("", readFile(optionsFile));
+
+		archive().getArchiveFile().createNewFile();
+		ClassDataSharing.writeOptions(optionsFile, false);
+		String options = readFile(optionsFile);
+		if (ClassDataSharing.getJavaVersion() >= 13) {
+			assertEquals("\"-XX:SharedArchiveFile=" + archive().getArchiveFile().getAbsolutePath() + "\"\n", options);
+		} else {
+			assertEquals("", options);
+		}
+	}
+
+	public void testReferenceCommand() throws Exception {
+		List<String> command = archive().getReferenceCommand(tomcatHome.getPath(), null);
+		assertTrue(command.contains("-XX:ArchiveClassesAtExit=" + archive().getArchiveFile().getAbsolutePath()));
+		assertTrue(command.contains("-Dtest.tomcat.home=" + tomcatHome.getPath()));
+		assertEquals(System.getProperty("java.class.path"), command.get(command.indexOf("-classpath") + 1));
+		assertEquals("reference", command.get(command.size() - 1));
+	}
+
+	private ClassDataSharing archive() throws IOException {
+		return ClassDataSharing.forTomcatHome(tomcatHome.getPath());
+	}
+
+	private static void writeJar(File file, String entryName) throws IOException {
+		file.getParentFile().mkdirs();
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(file));
+		try {
+			out.putNextEntry(new ZipEntry(entryName));
+			out.write(new byte[] {(byte)0xca, (byte)0xfe, (byte)0xba, (byte)0xbe});
+			out.closeEntry();
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String readFile(File file) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				sb.append(line).append('\n');
+			}
+		} finally {
+			reader.close();
+		}
+		return sb.toString();
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,154 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+
+package org.sakaiproject.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the saved classpath index is reused until a library directory
+ * or jar changes, using a few small jars in a directory of their own.
+ */
+public class ClasspathIndexTest extends TestCase {
+	private File workDir;
+	private File cacheDir;
+	private File libDir;
+	private String[] dirPaths;
+
+	public void setUp() throws Exception {
+		workDir = File.createTempFile("classpathindex", "");
+		workDir.delete();
+		cacheDir = new File(workDir, "cache");
+		libDir = new File(workDir, "lib");
+		libDir.mkdirs();
+		System.setProperty(HarnessFiles.CACHE_DIR_PROPERTY, cacheDir.getPath());
+		writeJar(new File(libDir, "first.jar"), "org/example/first/A.class", "org/example/first/B.class");
+		writeJar(new File(libDir, "second.jar"), "org/example/second/C.class", "Toplevel.class");
+		// Left out, as in Tomcat.
+		writeJar(new File(libDir, "xml-apis.jar"), "org/w3c/dom/Node.class");
+		dirPaths = new String[] {libDir.getPath() + File.separator};
+	}
+
+	public void tearDown() throws Exception {
+		System.clearProperty(HarnessFiles.CACHE_DIR_PROPERTY);
+		System.clearProperty(ClasspathIndex.ENABLED_PROPERTY);
+		delete(workDir);
+	}
+
+	public void testPackagesIndexed() throws Exception {
+		ClasspathIndex index = ClasspathIndex.load(dirPaths);
+		assertEquals(2, index.getEntries().size());
+		assertEquals(2, index.getJarUrls().length);
+		assertEquals("first.jar", index.getEntriesForClass("org.example.first.B").get(0).getFile().getName());
+		assertEquals("second.jar", index.getEntriesForPackage("org.example.second").get(0).getFile().getName());
+		assertEquals("second.jar", index.getEntriesForClass("Toplevel").get(0).getFile().getName());
+		assertTrue(index.getEntriesForPackage("org.w3c.dom").isEmpty());
+		assertTrue(index.isCurrent());
+	}
+
+	public void testSavedIndexReused() throws Exception {
+		ClasspathIndex.load(dirPaths);
+		File indexFile = getIndexFile();
+		indexFile.setLastModified(1000000000L);
+
+		ClasspathIndex index = ClasspathIndex.load(dirPaths);
+		assertEquals(2, index.getEntries().size());
+		assertEquals("Unchanged index was saved again", 1000000000L, indexFile.lastModified());
+
+		System.setProperty(ClasspathIndex.ENABLED_PROPERTY, "false");
+		ClasspathIndex.load(dirPaths);
+		assertTrue("Disabled index wasn't rebuilt", getIndexFile().lastModified() != 1000000000L);
+	}
+
+	public void testNewJarInvalidatesIndex() throws Exception {
+		ClasspathIndex saved = ClasspathIndex.load(dirPaths);
+		writeJar(new File(libDir, "third.jar"), "org/example/third/D.class");
+		// Some file systems only keep whole seconds.
+		libDir.setLastModified(libDir.lastModified() + 2000);
+		assertFalse(saved.isCurrent());
+
+		ClasspathIndex index = ClasspathIndex.load(dirPaths);
+		assertEquals(3, index.getEntries().size());
+		assertEquals("third.jar", index.getEntriesForPackage("org.example.third").get(0).getFile().getName());
+		assertTrue(index.isCurrent());
+	}
+
+	public void testJarRewrittenInPlaceInvalidatesIndex() throws Exception {
+		ClasspathIndex saved = ClasspathIndex.load(dirPaths);
+		long dirStamp = libDir.lastModified();
+		File first = new File(libDir, "first.jar");
+		long jarStamp = first.lastModified();
+		writeJar(first, "org/example/renamed/A.class");
+		first.setLastModified(jarStamp + 2000);
+		// Overwriting a file doesn't change its directory.
+		libDir.setLastModified(dirStamp);
+		assertFalse(saved.isCurrent());
+
+		ClasspathIndex index = ClasspathIndex.load(dirPaths);
+		assertTrue(index.getEntriesForPackage("org.example.first").isEmpty());
+		assertEquals("first.jar", index.getEntriesForPackage("org.example.renamed").get(0).getFile().getName());
+		// The unchanged jar is still found.
+		assertEquals("second.jar", index.getEntriesForPackage("org.example.second").get(0).getFile().getName());
+	}
+
+	private File getIndexFile() {
+		File[] files = cacheDir.listFiles();
+		File indexFile = null;
+		for (File file : files) {
+			if (file.getName().endsWith(".idx")) {
+				assertNull("More than one index saved", indexFile);
+				indexFile = file;
+			}
+		}
+		assertNotNull("No index saved", indexFile);
+		return indexFile;
+	}
+
+	private static void writeJar(File jar, String... entryNames) throws Exception {
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+		try {
+			for (String entryName : entryNames) {
+				out.putNextEntry(new JarEntry(entryName));
+				out.write(new byte[] {(byte)0xca, (byte)0xfe, (byte)0xba, (byte)0xbe});
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,177 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+
+package org.sakaiproject.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.jar.JarOutputStream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks which classes the container class loader takes from its own jars and
+ * which from its parent, with classes compiled into both so no Tomcat is needed.
+ */
+public class ContainerClassLoaderTest extends TestCase {
+	private static final String[] CLASSES = {
+		"org.example.Duplicate", "org.sakaiproject.example.api.ExampleService", "org.sakaiproject.test.example.Helper",
+	};
+
+	private File workDir;
+	private ClassLoader parent;
+	private ClasspathIndex index;
+
+	public void setUp() throws Exception {
+		workDir = File.createTempFile("containerclassloader", "");
+		workDir.delete();
+		System.setProperty(HarnessFiles.CACHE_DIR_PROPERTY, new File(workDir, "cache").getPath());
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) {
+			// Not running on a JDK.
+			return;
+		}
+
+		File parentClasses = new File(workDir, "parent");
+		LeakAuditTest.compile(compiler, parentClasses, new File(workDir, "parent-src"), sources("parent", "org.example.OnlyInParent"));
+		writeResource(parentClasses, "parent");
+		parent = new URLClassLoader(new URL[] {parentClasses.toURI().toURL()}, getClass().getClassLoader());
+
+		File childClasses = new File(workDir, "child");
+		LeakAuditTest.compile(compiler, childClasses, new File(workDir, "child-src"), sources("child", "org.example.OnlyInChild"));
+		writeResource(childClasses, "child");
+		File lib = new File(workDir, "lib");
+		lib.mkdirs();
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(new File(lib, "child.jar")));
+		try {
+			LeakAuditTest.addToJar(out, childClasses, "");
+		} finally {
+			out.close();
+		}
+		index = ClasspathIndex.load(new String[] {lib.getPath() + File.separator});
+	}
+
+	public void tearDown() throws Exception {
+		System.clearProperty(HarnessFiles.CACHE_DIR_PROPERTY);
+		LeakAuditTest.delete(workDir);
+	}
+
+	public void testIsolatedLoaderIsChildFirst() throws Exception {
+		if (index == null) {
+			return;
+		}
+		ContainerClassLoader loader = new ContainerClassLoader(index, parent, true);
+		try {
+			assertLoadedFrom(loader, "org.example.Duplicate", loader, "child");
+			assertLoadedFrom(loader, "org.example.OnlyInChild", loader, "child");
+			assertLoadedFrom(loader, "org.example.OnlyInParent", parent, "parent");
+
+			// The Sakai APIs and the harness are shared with the test code.
+			assertLoadedFrom(loader, "org.sakaiproject.example.api.ExampleService", parent, "parent");
+			assertLoadedFrom(loader, "org.sakaiproject.test.example.Helper", parent, "parent");
+
+			assertTrue(loader.getResource("org/example/which.txt").toString().indexOf("child.jar") > 0);
+		} finally {
+			loader.dispose();
+		}
+	}
+
+	public void testSharedLoaderIsParentFirst() throws Exception {
+		if (index == null) {
+			return;
+		}
+		ContainerClassLoader loader = new ContainerClassLoader(index, parent, false);
+		try {
+			assertLoadedFrom(loader, "org.example.Duplicate", parent, "parent");
+			assertLoadedFrom(loader, "org.example.OnlyInChild", loader, "child");
+			assertTrue(loader.getResource("org/example/which.txt").toString().indexOf("child.jar") < 0);
+		} finally {
+			loader.dispose();
+		}
+	}
+
+	public void testDisposedLoaderLoadsNothingNew() throws Exception {
+		if (index == null) {
+			return;
+		}
+		ContainerClassLoader loader = new ContainerClassLoader(index, parent, true);
+		loader.loadClass("org.example.Duplicate");
+		loader.dispose();
+		assertTrue(loader.isClosed());
+		try {
+			loader.loadClass("org.example.OnlyInChild");
+			fail("Loaded a class after being disposed of");
+		} catch (ClassNotFoundException e) {
+		}
+	}
+
+	public void testSharedPrefixes() {
+		assertTrue(ContainerClassLoader.isSharedClass("java.lang.String"));
+		assertTrue(ContainerClassLoader.isSharedClass("org.springframework.context.ApplicationContext"));
+		assertTrue(ContainerClassLoader.isSharedClass("org.sakaiproject.user.api.UserDirectoryService"));
+		assertTrue(ContainerClassLoader.isSharedClass("org.sakaiproject.test.SakaiTestBase"));
+		assertFalse(ContainerClassLoader.isSharedClass("org.sakaiproject.user.impl.BaseUserDirectoryService"));
+		assertFalse(ContainerClassLoader.isSharedClass("org.hibernate.Session"));
+	}
+
+	private static void assertLoadedFrom(ClassLoader loader, String className, ClassLoader expectedLoader, String expectedCopy) throws Exception {
+		Class<?> c = loader.loadClass(className);
+		assertSame(className, expectedLoader, c.getClassLoader());
+		assertEquals(className, expectedCopy, c.newInstance().toString());
+	}
+
+	/**
+	 * @return the shared classes, and one only this side has, each of which
+	 * says which side it was compiled for
+	 */
+	private static String[] sources(String side, String ownClass) {
+		String[] pathsAndSources = new String[(CLASSES.length + 1) * 2];
+		for (int i = 0; i <= CLASSES.length; i++) {
+			String className = (i < CLASSES.length) ? CLASSES[i] : ownClass;
+			int lastDot = className.lastIndexOf('.');
+			pathsAndSources[i * 2] = className.replace('.', '/') + ".java";
+			pathsAndSources[i * 2 + 1] = "package " + className.substring(0, lastDot) + ";\n" +
+				"public class " + className.substring(lastDot + 1) + " {\n" +
+				"	public String toString() {\n" +
+				"		return \"" + side + "\";\n" +
+				"	}\n" +
+				"}\n";
+		}
+		return pathsAndSources;
+	}
+
+	private static void writeResource(File classesDir, String side) throws Exception {
+		FileWriter writer = new FileWriter(new File(classesDir, "org/example/which.txt"));
+		try {
+			writer.write(side);
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,190 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+
+package org.sakaiproject.test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestFailure;
+import junit.framework.TestListener;
+import junit.framework.TestResult;
+
+import org.junit.runner.Describable;
+import org.junit.runner.Description;
+
+/**
+ * Runs a test class through the container daemon's socket protocol, in this
+ * JVM and with the component manager left out, so no Tomcat is needed.
+ */
+public class ContainerDaemonTest extends TestCase {
+	private ContainerDaemon daemon;
+	private Thread daemonThread;
+	private int port;
+	private volatile int restarts;
+	private volatile boolean restartFails;
+
+	/**
+	 * Run inside the daemon. Not named like a test so that Surefire leaves it alone.
+	 */
+	public static class RemoteSample extends TestCase {
+		public void testPasses() {
+		}
+		public void testFails() {
+			fail("Expected failure");
+		}
+		public void testErrs() {
+			throw new IllegalStateException("Expected error");
+		}
+	}
+
+	public void setUp() throws Exception {
+		ServerSocket probe = new ServerSocket(0);
+		port = probe.getLocalPort();
+		probe.close();
+		daemon = new ContainerDaemon(port) {
+			void startContainer() {
+			}
+			void stopContainer() {
+			}
+			void restartContainer() {
+				restarts++;
+				if (restartFails) {
+					throw new IllegalStateException("Expected restart failure");
+				}
+			}
+		};
+		daemonThread = new Thread("ContainerDaemonTest daemon") {
+			public void run() {
+				try {
+					daemon.serve();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		daemonThread.start();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!ContainerDaemon.isListening(port)) {
+			assertTrue("Daemon didn't start listening", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	public void tearDown() throws Exception {
+		ContainerDaemon.sendCommand(port, ContainerDaemon.CMD_SHUTDOWN);
+		daemonThread.join(10000);
+		assertFalse(daemonThread.isAlive());
+	}
+
+	public void testRemoteResults() throws Exception {
+		final List<Test> started = new ArrayList<Test>();
+		TestResult result = new TestResult();
+		result.addListener(new TestListener() {
+			public void startTest(Test test) {
+				started.add(test);
+			}
+			public void addFailure(Test test, AssertionFailedError t) {
+			}
+			public void addError(Test test, Throwable t) {
+			}
+			public void endTest(Test test) {
+			}
+		});
+		new ContainerDaemon.RemoteTest(RemoteSample.class.getName(), port, false, 3).run(result);
+
+		assertEquals(3, result.runCount());
+		assertEquals(1, result.failureCount());
+		assertEquals(1, result.errorCount());
+
+		TestFailure failure = result.failures().nextElement();
+		assertEquals("Expected failure", failure.thrownException().getMessage());
+		assertTrue(failure.thrownException() instanceof AssertionFailedError);
+		assertTrue(failure.thrownException().getStackTrace().length > 0);
+		assertEquals("testFails", ((TestCase)failure.failedTest()).getName());
+
+		TestFailure error = result.errors().nextElement();
+		ContainerDaemon.RemoteTestException remote = (ContainerDaemon.RemoteTestException)error.thrownException();
+		assertEquals(IllegalStateException.class.getName(), remote.getRemoteClassName());
+		assertEquals("Expected error", remote.getMessage());
+
+		// JUnit 4 runners describe the tests by the class which ran remotely.
+		assertEquals(3, started.size());
+		for (Test test : started) {
+			Description description = ((Describable)test).getDescription();
+			assertEquals(RemoteSample.class.getName(), description.getClassName());
+			assertEquals(((TestCase)test).getName(), description.getMethodName());
+			assertTrue(description.isTest());
+		}
+	}
+
+	public void testRestartAndMissingClass() throws Exception {
+		TestResult result = new TestResult();
+		new ContainerDaemon.RemoteTest("org.sakaiproject.test.NoSuchTest", port, true, 1).run(result);
+		assertEquals(1, result.runCount());
+		assertEquals(1, result.errorCount());
+		TestFailure error = result.errors().nextElement();
+		assertEquals(ClassNotFoundException.class.getName(), ((ContainerDaemon.RemoteTestException)error.thrownException()).getRemoteClassName());
+		assertTrue(restarts > 0);
+
+		int before = restarts;
+		ContainerDaemon.sendCommand(port, ContainerDaemon.CMD_RESTART);
+		assertEquals(before + 1, restarts);
+	}
+
+	public void testDaemonSurvivesFailedRestart() throws Exception {
+		restartFails = true;
+		TestResult result = new TestResult();
+		new ContainerDaemon.RemoteTest(RemoteSample.class.getName(), port, true, 3).run(result);
+		assertEquals(0, result.runCount());
+		assertEquals(1, result.errorCount());
+		TestFailure error = result.errors().nextElement();
+		assertEquals(IllegalStateException.class.getName(), ((ContainerDaemon.RemoteTestException)error.thrownException()).getRemoteClassName());
+
+		try {
+			ContainerDaemon.sendCommand(port, ContainerDaemon.CMD_RESTART);
+			fail("Restart should have failed");
+		} catch (IOException e) {
+			assertEquals("Expected restart failure", e.getCause().getMessage());
+		}
+
+		// Still serving.
+		restartFails = false;
+		assertTrue(ContainerDaemon.isListening(port));
+		result = new TestResult();
+		new ContainerDaemon.RemoteTest(RemoteSample.class.getName(), port, true, 3).run(result);
+		assertEquals(3, result.runCount());
+	}
+
+	public void testRemoteTestCaseCannotRunLocally() {
+		TestResult result = new TestResult();
+		new ContainerDaemon.RemoteTestCase("testSomething(org.example.MyTest)").run(result);
+		assertEquals(1, result.runCount());
+		assertEquals(1, result.failureCount());
+	}
+}
@@ -0,0 +1,138 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.sakaiproject.user.api.UserDirectoryService;
+
+/**
+ * Checks that pooled containers are independent of each other.
+ */
+public class ContainerPoolTest extends TestCase {
+	private ContainerPool pool;
+
+	public void setUp() throws Exception {
+		pool = new ContainerPool(ComponentContainerEmulator.findTestTomcatHome(), ComponentContainerEmulator.findTestSakaiHome(),
+			2, new File("target/container-pool-test"), ContainerPool.DEFAULT_DATABASE_URL);
+	}
+
+	public void tearDown() throws Exception {
+		pool.shutdown();
+	}
+
+	public void testIsolatedContainers() throws Exception {
+		SakaiContainer first = pool.lease();
+		try {
+			final SakaiContainer[] second = new SakaiContainer[1];
+			final Object[] secondService = new Object[1];
+			Thread thread = new Thread() {
+				public void run() {
+					try {
+						second[0] = pool.lease();
+						secondService[0] = ComponentContainerEmulator.getService(UserDirectoryService.class);
+						pool.release(second[0]);
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			thread.start();
+			thread.join();
+			UserDirectoryService firstService = ComponentContainerEmulator.getService(UserDirectoryService.class);
+
+			Assert.assertNotNull(second[0]);
+			Assert.assertNotSame(first, second[0]);
+			Assert.assertEquals(2, pool.getStartedCount());
+			Assert.assertNotNull(firstService);
+			Assert.assertNotNull(secondService[0]);
+			Assert.assertNotSame(firstService, secondService[0]);
+			Assert.assertNotSame(first.getClassLoader(), second[0].getClassLoader());
+		} finally {
+			pool.release(first);
+		}
+	}
+
+	public void testFailedStartFreesSlot() throws Exception {
+		// Nothing to load the components from, so every start fails.
+		File missing = new File("target/container-pool-test-missing");
+		ContainerPool broken = new ContainerPool(missing.getAbsolutePath(), null, 1, new File("target/container-pool-test-broken"), null);
+		try {
+			for (int i = 0; i < 2; i++) {
+				try {
+					broken.lease(1, TimeUnit.SECONDS);
+					fail("Started a container without components");
+				} catch (RuntimeException e) {
+				}
+				Assert.assertEquals(0, broken.getStartedCount());
+			}
+		} finally {
+			broken.shutdown();
+		}
+	}
+
+	public void testReleaseOnlyLeasedContainers() throws Exception {
+		SakaiContainer stranger = new SakaiContainer("stranger", null, null, getClass().getClassLoader());
+		try {
+			pool.release(stranger);
+			fail("Released a container which wasn't leased");
+		} catch (IllegalStateException e) {
+		}
+
+		ClassLoader before = Thread.currentThread().getContextClassLoader();
+		SakaiContainer container = pool.lease();
+		pool.release(container);
+		Assert.assertSame(before, Thread.currentThread().getContextClassLoader());
+		try {
+			pool.release(container);
+			fail("Released a container twice");
+		} catch (IllegalStateException e) {
+		}
+		Assert.assertSame(before, Thread.currentThread().getContextClassLoader());
+	}
+
+	public void testReleaseFromAnotherThread() throws Exception {
+		ClassLoader before = Thread.currentThread().getContextClassLoader();
+		final SakaiContainer container = pool.lease();
+		final ClassLoader[] otherLoader = new ClassLoader[1];
+		final ClassLoader otherBefore = new ClassLoader() {};
+		Thread thread = new Thread() {
+			public void run() {
+				setContextClassLoader(otherBefore);
+				pool.release(container);
+				otherLoader[0] = getContextClassLoader();
+			}
+		};
+		thread.start();
+		thread.join();
+		Assert.assertSame(otherBefore, otherLoader[0]);
+		Assert.assertSame(container, ComponentContainerEmulator.getCurrentContainer());
+		// The leasing thread is left bound to the container.
+		ComponentContainerEmulator.setLeasedContainer(null);
+		Thread.currentThread().setContextClassLoader(before);
+	}
+}
@@ -0,0 +1,88 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks how snapshots name tables on different databases, with stand-in
+ * JDBC objects.
+ */
+public class ContainerSnapshotTest extends TestCase {
+
+	public void testQuoting() {
+		assertEquals("\"SAKAI_USER\"", ContainerSnapshot.quote("SAKAI_USER", "\""));
+		assertEquals("`odd``name`", ContainerSnapshot.quote("odd`name", "`"));
+		// A space means the database doesn't quote.
+		assertEquals("SAKAI_USER", ContainerSnapshot.quote("SAKAI_USER", " "));
+	}
+
+	public void testSchemaPatternIsEscaped() {
+		assertEquals("SAKAI\\_TEST", ContainerSnapshot.escapePattern("SAKAI_TEST", "\\"));
+		assertEquals("SAKAI_TEST", ContainerSnapshot.escapePattern("SAKAI_TEST", ""));
+		assertNull(ContainerSnapshot.escapePattern(null, "\\"));
+	}
+
+	public void testCurrentSchema() throws Exception {
+		assertEquals("PUBLIC", ContainerSnapshot.getCurrentSchema(connection("HSQL Database Engine", "PUBLIC", false)));
+		// MySQL has no schemas; the catalog does the job.
+		assertNull(ContainerSnapshot.getCurrentSchema(connection("MySQL", null, false)));
+		// Old Oracle drivers can't say, but the schema is the user's.
+		assertEquals("SAKAI", ContainerSnapshot.getCurrentSchema(connection("Oracle", null, true)));
+	}
+
+	private static Connection connection(final String product, final String schema, final boolean schemaUnsupported) {
+		final DatabaseMetaData metaData = (DatabaseMetaData)Proxy.newProxyInstance(ContainerSnapshotTest.class.getClassLoader(),
+			new Class[] {DatabaseMetaData.class}, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if (method.getName().equals("getDatabaseProductName")) {
+						return product;
+					} else if (method.getName().equals("getUserName")) {
+						return "SAKAI";
+					}
+					throw new UnsupportedOperationException(method.getName());
+				}
+			});
+		return (Connection)Proxy.newProxyInstance(ContainerSnapshotTest.class.getClassLoader(),
+			new Class[] {Connection.class}, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+					if (method.getName().equals("getSchema")) {
+						if (schemaUnsupported) {
+							throw new SQLException("Not supported");
+						}
+						return schema;
+					} else if (method.getName().equals("getMetaData")) {
+						return metaData;
+					}
+					throw new UnsupportedOperationException(method.getName());
+				}
+			});
+	}
+}
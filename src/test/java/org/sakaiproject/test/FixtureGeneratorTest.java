@@ -0,0 +1,118 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the fixture layout, which is worked out without a component manager.
+ */
+public class FixtureGeneratorTest extends TestCase {
+
+	public void testSameSeedSameFixture() {
+		FixtureGenerator.Fixture first = createGenerator(7).getFixture();
+		FixtureGenerator.Fixture second = createGenerator(7).getFixture();
+		FixtureGenerator.Fixture other = createGenerator(8).getFixture();
+		assertEquals(first.getKey(), second.getKey());
+		assertFalse(first.getKey().equals(other.getKey()));
+		assertFalse(first.getUserId(0).equals(other.getUserId(0)));
+		for (int site = 0; site < first.getSiteCount(); site++) {
+			assertEquals(first.getSiteId(site), second.getSiteId(site));
+			assertEquals(toString(first.getSiteMembers(site)), toString(second.getSiteMembers(site)));
+			assertEquals(toString(first.getGroupMembers(site, 1)), toString(second.getGroupMembers(site, 1)));
+		}
+		assertEquals(first.getFirstName(123), second.getFirstName(123));
+	}
+
+	public void testIdsAreUniqueAndSorted() {
+		FixtureGenerator.Fixture fixture = createGenerator(7).getFixture();
+		Set<String> ids = new HashSet<String>();
+		for (int user = 0; user < fixture.getUserCount(); user++) {
+			assertTrue(ids.add(fixture.getUserId(user)));
+			assertTrue(ids.add(fixture.getUserEid(user)));
+		}
+		for (int site = 0; site < fixture.getSiteCount(); site++) {
+			assertTrue(ids.add(fixture.getSiteId(site)));
+		}
+		// Padded numbers keep database order the same as fixture order.
+		assertTrue(fixture.getUserId(9).compareTo(fixture.getUserId(10)) < 0);
+		assertTrue(fixture.getSiteId(99).compareTo(fixture.getSiteId(100)) < 0);
+		// A bigger fixture from the same seed extends this one.
+		FixtureGenerator bigger = createGenerator(7);
+		bigger.setUsers(100000);
+		assertEquals(fixture.getUserId(999), bigger.getFixture().getUserId(999));
+	}
+
+	public void testMembershipsAreDistinctAndNested() {
+		FixtureGenerator.Fixture fixture = createGenerator(7).getFixture();
+		for (int site = 0; site < fixture.getSiteCount(); site++) {
+			int[] members = fixture.getSiteMembers(site);
+			assertEquals(40, members.length);
+			Set<Integer> siteMembers = new HashSet<Integer>();
+			for (int member : members) {
+				assertTrue(member >= 0 && member < fixture.getUserCount());
+				assertTrue(siteMembers.add(Integer.valueOf(member)));
+			}
+			for (int group = 0; group < fixture.getGroupsPerSite(); group++) {
+				int[] groupMembers = fixture.getGroupMembers(site, group);
+				assertEquals(10, groupMembers.length);
+				Set<Integer> distinct = new HashSet<Integer>();
+				for (int member : groupMembers) {
+					assertTrue(siteMembers.contains(Integer.valueOf(member)));
+					assertTrue(distinct.add(Integer.valueOf(member)));
+				}
+			}
+		}
+	}
+
+	public void testSmallPopulation() {
+		FixtureGenerator generator = new FixtureGenerator(1);
+		generator.setUsers(3);
+		generator.setSites(2);
+		generator.setMembersPerSite(10);
+		generator.setGroupsPerSite(1);
+		generator.setMembersPerGroup(10);
+		FixtureGenerator.Fixture fixture = generator.getFixture();
+		assertEquals(3, fixture.getSiteMembers(0).length);
+		assertEquals(3, fixture.getGroupMembers(1, 0).length);
+		assertNull(fixture.getResult());
+	}
+
+	private static FixtureGenerator createGenerator(long seed) {
+		FixtureGenerator generator = new FixtureGenerator(seed);
+		generator.setUsers(1000);
+		generator.setSites(150);
+		generator.setMembersPerSite(40);
+		generator.setGroupsPerSite(3);
+		generator.setMembersPerGroup(10);
+		return generator;
+	}
+
+	private static String toString(int[] numbers) {
+		return Arrays.toString(numbers);
+	}
+}
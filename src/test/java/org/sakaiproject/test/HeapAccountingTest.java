@@ -0,0 +1,109 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks how reachable objects are shared out between beans and components,
+ * with plain objects standing in for beans.
+ */
+public class HeapAccountingTest extends TestCase {
+
+	/**
+	 * A bean with a private buffer, a link to something shared, and a reference
+	 * to another bean which must not be counted against it.
+	 */
+	static class Holder {
+		Object privateData;
+		Object sharedData;
+		Object otherBean;
+	}
+
+	public void testOwnership() {
+		byte[] sameComponentData = new byte[10000];
+		int[] crossComponentData = new int[5000];
+		List<Object> crossComponentList = new ArrayList<Object>();
+		crossComponentList.add(crossComponentData);
+
+		Holder big = holder(new long[20000], sameComponentData, null);
+		Holder small = holder(new byte[100], sameComponentData, big);
+		Holder other = holder(null, crossComponentList, small);
+		Holder lone = holder(new char[10], crossComponentList, null);
+
+		Map<String, Object> beans = new LinkedHashMap<String, Object>();
+		beans.put("big", big);
+		beans.put("small", small);
+		beans.put("other", other);
+		beans.put("lone", lone);
+		Map<String, String> components = new HashMap<String, String>();
+		components.put("big", "a-pack");
+		components.put("small", "a-pack");
+		components.put("other", "b-pack");
+		components.put("lone", "c-pack");
+
+		HeapAccounting.Report report = HeapAccounting.measure(beans, components, 1000);
+		assertFalse(report.isTruncated());
+
+		HeapAccounting.Usage first = report.getBeans().get(0);
+		assertEquals("big", first.getName());
+		assertTrue(first.getBytes() >= 160000);
+		assertTrue(first.getBytes() < 161000);
+
+		// The byte array is shared within a-pack only, so it counts for the
+		// component but neither bean.
+		HeapAccounting.Usage component = report.getComponents().get(0);
+		assertEquals("a-pack", component.getName());
+		assertEquals(2, component.getBeans());
+		assertTrue(component.getBytes() >= first.getBytes() + 10000 + 100);
+
+		assertTrue(report.getSharedBytes() >= 20000);
+		assertTrue(report.getSharedBytes() < 21000);
+		assertEquals(report.getTotalBytes(), component.getBytes() + report.getComponents().get(1).getBytes() +
+			report.getComponents().get(2).getBytes() + report.getSharedBytes());
+	}
+
+	public void testTruncation() {
+		List<Object> many = new ArrayList<Object>();
+		for (int i = 0; i < 100; i++) {
+			many.add(new Object());
+		}
+		Map<String, Object> beans = new LinkedHashMap<String, Object>();
+		beans.put("many", many);
+		assertTrue(HeapAccounting.measure(beans, new HashMap<String, String>(), 50).isTruncated());
+	}
+
+	private static Holder holder(Object privateData, Object sharedData, Object otherBean) {
+		Holder holder = new Holder();
+		holder.privateData = privateData;
+		holder.sharedData = sharedData;
+		holder.otherBean = otherBean;
+		return holder;
+	}
+}
@@ -0,0 +1,70 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import junit.extensions.TestSetup;
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import org.sakaiproject.user.api.UserDirectoryService;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Checks that lazy mode only creates the services a test asks for.
+ */
+public class LazyComponentManagerTest extends SakaiTestBase {
+	public static Test suite() {
+		TestSetup setup = new TestSetup(new TestSuite(LazyComponentManagerTest.class)) {
+			private String previousLazy;
+
+			protected void setUp() throws Exception {
+				// Only this class's container is lazy, not every one in the JVM.
+				previousLazy = System.setProperty(ComponentContainerEmulator.LAZY_PROPERTY, "true");
+				oneTimeSetup();
+			}
+			protected void tearDown() throws Exception {
+				try {
+					oneTimeTearDown();
+				} finally {
+					if (previousLazy != null) {
+						System.setProperty(ComponentContainerEmulator.LAZY_PROPERTY, previousLazy);
+					} else {
+						System.clearProperty(ComponentContainerEmulator.LAZY_PROPERTY);
+					}
+				}
+			}
+		};
+		return setup;
+	}
+
+	public void testServicesCreatedOnDemand() throws Exception {
+		ConfigurableListableBeanFactory beanFactory =
+			((ConfigurableApplicationContext)ComponentContainerEmulator.getContainerApplicationContext()).getBeanFactory();
+		Assert.assertFalse(beanFactory.containsSingleton(UserDirectoryService.class.getName()));
+
+		Assert.assertNotNull(getService(UserDirectoryService.class));
+		Assert.assertTrue(beanFactory.containsSingleton(UserDirectoryService.class.getName()));
+	}
+}
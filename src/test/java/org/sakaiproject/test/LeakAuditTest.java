@@ -0,0 +1,290 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+/**
+ * Checks that threads and files opened between start and stop are reported,
+ * calling the listener directly, and that component class loaders are judged
+ * only after a real stop has let them go.
+ */
+public class LeakAuditTest extends TestCase {
+	private SakaiContainer container;
+	private File file;
+
+	protected void setUp() throws Exception {
+		System.setProperty(LeakAudit.GRACE_MILLIS_PROPERTY, "200");
+		container = new SakaiContainer("LeakAuditTest", System.getProperty("java.io.tmpdir"), null, getClass().getClassLoader());
+		file = File.createTempFile("leak", ".txt");
+	}
+
+	protected void tearDown() throws Exception {
+		System.clearProperty(LeakAudit.GRACE_MILLIS_PROPERTY);
+		file.delete();
+	}
+
+	public void testLeaksReported() throws Exception {
+		LeakAudit audit = new LeakAudit(false);
+		final CountDownLatch done = new CountDownLatch(1);
+		audit.containerStarting(container);
+		Thread thread = new Thread("LeakAuditTest-worker") {
+			public void run() {
+				try {
+					done.await();
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		thread.start();
+		FileInputStream in = new FileInputStream(file);
+		try {
+			audit.containerStopped(container);
+			assertTrue(hasLeak(audit, "thread", "LeakAuditTest-worker"));
+			if (new File("/proc/self/fd").isDirectory()) {
+				assertTrue(hasLeak(audit, "file", file.getCanonicalPath()));
+			}
+		} finally {
+			in.close();
+			done.countDown();
+			thread.join();
+		}
+
+		// A clean cycle reports nothing.
+		audit.containerStarting(container);
+		thread = new Thread("LeakAuditTest-finished");
+		thread.start();
+		thread.join();
+		audit.containerStopped(container);
+		LeakAudit.finish(Collections.singletonList(audit));
+		assertEquals(audit.getLastLeaks().toString(), 0, audit.getLastLeaks().size());
+	}
+
+	/**
+	 * Starts and stops a component manager whose only component lives in a
+	 * class loader of its own, as Sakai's do, compiled from source so that no
+	 * Tomcat is needed.
+	 */
+	public void testComponentClassLoaderReleasedOnStop() throws Exception {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) {
+			// Not running on a JDK.
+			return;
+		}
+		File tomcatHome = createTomcatHome(compiler);
+		System.setProperty(LeakAudit.GRACE_MILLIS_PROPERTY, "5000");
+		System.setProperty(ComponentContainerEmulator.LEAK_AUDIT_PROPERTY, ComponentContainerEmulator.LEAK_AUDIT_FAIL_MODE);
+		try {
+			// The closed component manager must let its component go, even
+			// though the cover class stays loaded for the next start.
+			ComponentContainerEmulator.startComponentManager(tomcatHome.getPath(), null);
+			assertNotNull(ComponentContainerEmulator.getService(FAKE_SERVICE));
+			ComponentContainerEmulator.stopComponentManager();
+
+			// A component which keeps itself somewhere global is caught.
+			System.setProperty("LeakAuditTest.leak", "true");
+			ComponentContainerEmulator.startComponentManager(tomcatHome.getPath(), null);
+			assertNotNull(ComponentContainerEmulator.getService(FAKE_SERVICE));
+			try {
+				ComponentContainerEmulator.stopComponentManager();
+				fail("Leaked component class loader not reported");
+			} catch (AssertionFailedError e) {
+				assertTrue(e.getMessage(), e.getMessage().indexOf("classloader") >= 0);
+				assertTrue(e.getMessage(), e.getMessage().indexOf("fake-pack") >= 0);
+			}
+		} finally {
+			System.getProperties().remove("LeakAuditTest.leaked");
+			System.clearProperty("LeakAuditTest.leak");
+			System.clearProperty(ComponentContainerEmulator.LEAK_AUDIT_PROPERTY);
+			System.clearProperty(HarnessFiles.CACHE_DIR_PROPERTY);
+			ComponentContainerEmulator.releaseContainerClassLoader();
+			delete(tomcatHome.getParentFile());
+		}
+	}
+
+	private static final String FAKE_SERVICE = "org.sakaiproject.fake.FakeService";
+
+	private static final String COVER_SOURCE =
+		"package org.sakaiproject.component.cover;\n" +
+		"public class ComponentManager {\n" +
+		"	private static Object m_componentManager;\n" +
+		"	public static synchronized Object getInstance() throws Exception {\n" +
+		"		if (m_componentManager == null) {\n" +
+		"			m_componentManager = new org.sakaiproject.component.impl.SpringCompMgr();\n" +
+		"		}\n" +
+		"		return m_componentManager;\n" +
+		"	}\n" +
+		"}\n";
+
+	// Keeps the component's class, as closed bean definitions do.
+	private static final String MANAGER_SOURCE =
+		"package org.sakaiproject.component.impl;\n" +
+		"import java.io.File;\n" +
+		"import java.net.URL;\n" +
+		"import java.net.URLClassLoader;\n" +
+		"import org.springframework.context.support.GenericApplicationContext;\n" +
+		"public class SpringCompMgr {\n" +
+		"	private final GenericApplicationContext context = new GenericApplicationContext();\n" +
+		"	private final Class<?> componentClass;\n" +
+		"	public SpringCompMgr() throws Exception {\n" +
+		"		File classes = new File(System.getProperty(\"sakai.components.root\"), \"fake-pack/WEB-INF/classes\");\n" +
+		"		ClassLoader loader = new URLClassLoader(new URL[] {classes.toURI().toURL()}, SpringCompMgr.class.getClassLoader());\n" +
+		"		componentClass = loader.loadClass(\"" + FAKE_SERVICE + "\");\n" +
+		"		context.getBeanFactory().registerSingleton(\"" + FAKE_SERVICE + "\", componentClass.newInstance());\n" +
+		"		context.refresh();\n" +
+		"	}\n" +
+		"	public Object get(String id) {\n" +
+		"		return context.containsBean(id) ? context.getBean(id) : null;\n" +
+		"	}\n" +
+		"	public void close() {\n" +
+		"		context.close();\n" +
+		"	}\n" +
+		"	public Object getApplicationContext() {\n" +
+		"		return context;\n" +
+		"	}\n" +
+		"}\n";
+
+	private static final String SERVICE_SOURCE =
+		"package org.sakaiproject.fake;\n" +
+		"public class FakeService {\n" +
+		"	public FakeService() {\n" +
+		"		if (Boolean.getBoolean(\"LeakAuditTest.leak\")) {\n" +
+		"			System.getProperties().put(\"LeakAuditTest.leaked\", this);\n" +
+		"		}\n" +
+		"	}\n" +
+		"}\n";
+
+	private static File createTomcatHome(JavaCompiler compiler) throws Exception {
+		File workDir = File.createTempFile("leakaudit", "");
+		workDir.delete();
+		System.setProperty(HarnessFiles.CACHE_DIR_PROPERTY, new File(workDir, "cache").getPath());
+		File tomcatHome = new File(workDir, "tomcat");
+		File kernelClasses = new File(workDir, "kernel");
+		compile(compiler, kernelClasses, new File(workDir, "src"), new String[] {
+			"org/sakaiproject/component/cover/ComponentManager.java", COVER_SOURCE,
+			"org/sakaiproject/component/impl/SpringCompMgr.java", MANAGER_SOURCE});
+		File kernelJar = new File(tomcatHome, "shared/lib/fake-kernel.jar");
+		kernelJar.getParentFile().mkdirs();
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(kernelJar));
+		try {
+			addToJar(out, kernelClasses, "");
+		} finally {
+			out.close();
+		}
+		compile(compiler, new File(tomcatHome, "components/fake-pack/WEB-INF/classes"), new File(workDir, "src"), new String[] {
+			"org/sakaiproject/fake/FakeService.java", SERVICE_SOURCE});
+		return tomcatHome;
+	}
+
+	static void compile(JavaCompiler compiler, File classesDir, File sourceDir, String[] pathsAndSources) throws Exception {
+		classesDir.mkdirs();
+		List<String> args = new ArrayList<String>();
+		args.add("-d");
+		args.add(classesDir.getPath());
+		args.add("-classpath");
+		args.add(System.getProperty("java.class.path"));
+		for (int i = 0; i < pathsAndSources.length; i += 2) {
+			File sourceFile = new File(sourceDir, pathsAndSources[i]);
+			sourceFile.getParentFile().mkdirs();
+			FileWriter writer = new FileWriter(sourceFile);
+			try {
+				writer.write(pathsAndSources[i + 1]);
+			} finally {
+				writer.close();
+			}
+			args.add(sourceFile.getPath());
+		}
+		assertEquals("Compiling " + args, 0, compiler.run(null, null, null, args.toArray(new String[args.size()])));
+	}
+
+	static void addToJar(JarOutputStream out, File dir, String prefix) throws Exception {
+		for (File file : dir.listFiles()) {
+			if (file.isDirectory()) {
+				addToJar(out, file, prefix + file.getName() + "/");
+			} else {
+				out.putNextEntry(new ZipEntry(prefix + file.getName()));
+				FileInputStream in = new FileInputStream(file);
+				try {
+					byte[] buffer = new byte[8192];
+					for (int count; (count = in.read(buffer)) >= 0; ) {
+						out.write(buffer, 0, count);
+					}
+				} finally {
+					in.close();
+				}
+				out.closeEntry();
+			}
+		}
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	public void testFailMode() throws Exception {
+		LeakAudit audit = new LeakAudit(true);
+		audit.containerStarting(container);
+		FileInputStream in = new FileInputStream(file);
+		try {
+			audit.containerStopped(container);
+			LeakAudit.finish(Collections.singletonList(audit));
+			if (new File("/proc/self/fd").isDirectory()) {
+				fail("Open file not reported");
+			}
+		} catch (AssertionFailedError e) {
+			assertTrue(e.getMessage().indexOf(file.getName()) > 0);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static boolean hasLeak(LeakAudit audit, String kind, String description) {
+		for (LeakAudit.Leak leak : audit.getLastLeaks()) {
+			if (leak.getKind().equals(kind) && (leak.getDescription().indexOf(description) >= 0)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,73 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the load driver's modes with a scenario which just sleeps, so no
+ * component manager is needed.
+ */
+public class LoadDriverTest extends TestCase {
+
+	public void testClosedLoop() throws Exception {
+		LoadDriver driver = new LoadDriver();
+		driver.setThreads(4);
+		driver.setWarmupMillis(100);
+		driver.setDurationMillis(500);
+		LoadDriver.Result result = driver.run(new LoadDriver.Scenario() {
+			public void run(int thread, long iteration) throws Exception {
+				Thread.sleep(2);
+				if (iteration == 10) {
+					throw new IllegalStateException("Expected failure");
+				}
+			}
+		});
+		assertTrue(result.getOperations() > 100);
+		// Iteration 10 falls in the warm-up on every thread.
+		assertEquals(0, result.getErrors());
+		assertTrue(result.getLatency().getPercentile(50) >= 2000000);
+	}
+
+	public void testOpenLoopCountsStalls() throws Exception {
+		final AtomicBoolean stalled = new AtomicBoolean();
+		LoadDriver driver = new LoadDriver();
+		driver.setThreads(1);
+		driver.setRatePerSecond(200);
+		driver.setDurationMillis(1000);
+		LoadDriver.Result result = driver.run(new LoadDriver.Scenario() {
+			public void run(int thread, long iteration) throws Exception {
+				if ((iteration == 50) && stalled.compareAndSet(false, true)) {
+					Thread.sleep(300);
+				}
+			}
+		});
+		// About 60 calls were due during the stall. Their service times were
+		// short but they all waited for it.
+		assertTrue(result.getServiceTime().getPercentile(90) < 100000000);
+		assertTrue(result.getLatency().getPercentile(90) > 100000000);
+		assertTrue(result.getThroughputPerSecond() > 150);
+	}
+}
@@ -0,0 +1,86 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import junit.framework.TestCase;
+
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+
+/**
+ * Checks that bean classes are loaded from wherever their definitions came
+ * from, and never initialized off the starting thread.
+ */
+public class ParallelStartupTest extends TestCase {
+	static volatile boolean initialized;
+
+	public static class NotToBeInitialized {
+		static {
+			initialized = true;
+		}
+
+		public String getName() {
+			return "name";
+		}
+	}
+
+	public static class OnlyInComponent {
+		public Integer getNumber() {
+			return Integer.valueOf(1);
+		}
+	}
+
+	public void testPreloadsWithoutInitializing() throws Exception {
+		// The factory's own loader sees nothing but the JDK, as it can't see
+		// component classes.
+		URLClassLoader factoryLoader = new URLClassLoader(new URL[0], null);
+		URL testClasses = ParallelStartupTest.class.getProtectionDomain().getCodeSource().getLocation();
+		URLClassLoader componentLoader = new URLClassLoader(new URL[] {testClasses}, null);
+		Class<?> componentClass = componentLoader.loadClass(OnlyInComponent.class.getName());
+
+		DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+		beanFactory.setBeanClassLoader(factoryLoader);
+		beanFactory.registerBeanDefinition("component", new RootBeanDefinition(componentClass));
+		RootBeanDefinition byName = new RootBeanDefinition();
+		byName.setBeanClassName(NotToBeInitialized.class.getName());
+		beanFactory.registerBeanDefinition("byName", byName);
+		beanFactory.registerBeanDefinition("builtIn", new RootBeanDefinition(String.class));
+
+		ParallelStartup startup = new ParallelStartup(2, null);
+		startup.postProcessBeanFactory(beanFactory);
+		startup.containerStarted(null);
+		// Only the class named for the factory's loader is out of reach.
+		assertEquals(2, startup.getLoadedClasses());
+		assertEquals(1, startup.getFailedClasses());
+
+		beanFactory.setBeanClassLoader(ParallelStartupTest.class.getClassLoader());
+		startup = new ParallelStartup(2, null);
+		startup.postProcessBeanFactory(beanFactory);
+		startup.containerStarted(null);
+		assertEquals(3, startup.getLoadedClasses());
+		assertFalse(initialized);
+	}
+}
@@ -0,0 +1,135 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the timer's statistics without needing a component manager.
+ */
+public class SakaiTestTimerTest extends TestCase {
+
+	public void testHistogramPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long i = 1; i <= 10000; i++) {
+			histogram.record(i * 1000);
+		}
+		assertEquals(10000, histogram.getCount());
+		assertEquals(10000000, histogram.getMax());
+		assertWithin(5000000, histogram.getPercentile(50));
+		assertWithin(9000000, histogram.getPercentile(90));
+		assertWithin(9900000, histogram.getPercentile(99));
+		assertEquals(10000000, histogram.getPercentile(100));
+	}
+
+	public void testHistogramFromManyThreads() throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final long offset = t;
+			threads[t] = new Thread() {
+				public void run() {
+					for (long i = 1; i <= 10000; i++) {
+						histogram.record(i * 10 + offset);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(80000, histogram.getCount());
+		assertEquals(8 * (10 * 10000L * 10001 / 2) + 10000L * (0 + 1 + 2 + 3 + 4 + 5 + 6 + 7), histogram.getTotal());
+		assertEquals(100007, histogram.getMax());
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getTotal());
+		assertEquals(0, histogram.getMax());
+	}
+
+	public void testHistogramBuckets() {
+		long[] values = {0, 1, 63, 64, 65, 127, 128, 1000, 123456789, Long.MAX_VALUE};
+		for (long value : values) {
+			int index = LatencyHistogram.indexOf(value);
+			assertTrue(value + " above its bucket", value <= LatencyHistogram.highestValueAt(index));
+			if (index > 0) {
+				assertTrue(value + " below its bucket", value > LatencyHistogram.highestValueAt(index - 1));
+			}
+		}
+	}
+
+	public void testLapsAndExport() throws Exception {
+		SakaiTestTimer timer = new SakaiTestTimer("SakaiTestTimerTest, laps");
+		for (int i = 0; i < 20; i++) {
+			Thread.sleep(1);
+			assertTrue(timer.lap() >= 1000000);
+		}
+		SakaiTestTimer.TaskStatistics statistics = SakaiTestTimer.getStatistics("SakaiTestTimerTest, laps");
+		assertSame(statistics, timer.getStatistics());
+		assertEquals(20, statistics.getHistogram().getCount());
+
+		File csv = File.createTempFile("timings", ".csv");
+		File json = File.createTempFile("timings", ".json");
+		try {
+			SakaiTestTimer.writeCsv(csv);
+			SakaiTestTimer.writeJson(json);
+			assertTrue(readFile(csv).contains("\"SakaiTestTimerTest, laps\",20,"));
+			assertTrue(readFile(json).contains("\"task\": \"SakaiTestTimerTest, laps\", \"count\": 20,"));
+		} finally {
+			csv.delete();
+			json.delete();
+		}
+	}
+
+	public void testLogTimeElapsedKeepsRunning() throws Exception {
+		SakaiTestTimer timer = new SakaiTestTimer("SakaiTestTimerTest, logged");
+		Thread.sleep(2);
+		timer.logTimeElapsed();
+		assertEquals(0, timer.getStatistics().getHistogram().getCount());
+		assertTrue(timer.getElapsedNanos() >= 2000000);
+		assertTrue(timer.lap() >= 2000000);
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue("Expected about " + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 50);
+	}
+
+	private static String readFile(File file) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				sb.append(line).append('\n');
+			}
+		} finally {
+			reader.close();
+		}
+		return sb.toString();
+	}
+}
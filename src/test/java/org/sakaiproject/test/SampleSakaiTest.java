@@ -48,7 +48,7 @@ public class SampleSakaiTest extends SakaiTestBase {
 				oneTimeTearDown();
 			}
 		};
-		return setup;
+		return ContainerDaemon.suite(SampleSakaiTest.class, setup);
 	}
 
 	public void setUp() throws Exception {
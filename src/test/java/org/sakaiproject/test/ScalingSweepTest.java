@@ -0,0 +1,92 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the curve fitting, and a short sweep over a scenario whose cost
+ * grows with the square of the size, without a component manager.
+ */
+public class ScalingSweepTest extends TestCase {
+
+	public void testFitExponents() {
+		assertEquals(0.0, fitPowerLaw(5, 0).getExponent(), 0.001);
+		assertEquals(1.0, fitPowerLaw(5, 1).getExponent(), 0.001);
+		ScalingSweep.Fit quadratic = fitPowerLaw(5, 2);
+		assertEquals(2.0, quadratic.getExponent(), 0.001);
+		assertEquals(5.0, quadratic.getCoefficient(), 0.001);
+		assertEquals(1.0, quadratic.getRSquared(), 0.001);
+		assertEquals("quadratic", quadratic.getShape());
+		assertTrue(quadratic.isSuperLinear());
+		assertFalse(fitPowerLaw(5, 1).isSuperLinear());
+	}
+
+	public void testFitNeedsTwoSizes() {
+		List<double[]> values = new ArrayList<double[]>();
+		values.add(new double[] {10, 3});
+		values.add(new double[] {20, -1});
+		assertNull(ScalingSweep.fit(ScalingSweep.ALLOCATION, 1, values, 1.25));
+	}
+
+	public void testSweepFlagsQuadraticScenario() throws Exception {
+		ScalingSweep sweep = new ScalingSweep("ScalingSweepTest");
+		sweep.setSizes(new int[] {40, 10, 20});
+		sweep.setThreadCounts(new int[] {1, 2});
+		sweep.setWarmupMillis(50);
+		sweep.setDurationMillis(300);
+		ScalingSweep.Report report = sweep.run(new ScalingSweep.Workload() {
+			public LoadDriver.Scenario prepare(final int size) {
+				return new LoadDriver.Scenario() {
+					public void run(int thread, long iteration) throws Exception {
+						// 20, 80 and 320 microseconds; sleeping isn't precise enough.
+						long end = System.nanoTime() + size * size * 200L;
+						while (System.nanoTime() - end < 0) {
+							Thread.yield();
+						}
+					}
+				};
+			}
+		});
+		assertEquals(6, report.getPoints().size());
+		assertEquals(10, report.getPoints().get(0).getSize());
+		boolean flagged = false;
+		for (ScalingSweep.Fit fit : report.getSuperLinearFits()) {
+			if (fit.getMeasure().equals(ScalingSweep.P50_LATENCY) && (fit.getThreads() == 1)) {
+				flagged = true;
+			}
+		}
+		assertTrue(report.toString(), flagged);
+	}
+
+	private static ScalingSweep.Fit fitPowerLaw(double coefficient, double exponent) {
+		List<double[]> values = new ArrayList<double[]>();
+		for (int size = 100; size <= 100000; size *= 10) {
+			values.add(new double[] {size, coefficient * Math.pow(size, exponent)});
+		}
+		return ScalingSweep.fit(ScalingSweep.P50_LATENCY, 1, values, 1.25);
+	}
+}
@@ -0,0 +1,133 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks how database images are named and applied, without a database.
+ */
+public class SchemaImageTest extends TestCase {
+	private File workDir;
+	private File components;
+	private File sakaiHome;
+
+	protected void setUp() throws Exception {
+		workDir = File.createTempFile("schema-image", "");
+		workDir.delete();
+		components = new File(workDir, "components/sakai-kernel-pack/WEB-INF/lib");
+		components.mkdirs();
+		sakaiHome = new File(workDir, "sakai");
+		sakaiHome.mkdirs();
+		writeFile(new File(components, "kernel.jar"), "version 1");
+		writeFile(new File(sakaiHome, "sakai.properties"), "serverId=test\n");
+		System.setProperty(HarnessFiles.CACHE_DIR_PROPERTY, new File(workDir, "cache").getPath());
+	}
+
+	protected void tearDown() throws Exception {
+		System.clearProperty(HarnessFiles.CACHE_DIR_PROPERTY);
+		delete(workDir);
+	}
+
+	public void testImageChangesWithComponents() throws Exception {
+		File first = image().getImageFile();
+		assertEquals(first, image().getImageFile());
+
+		writeFile(new File(components, "kernel.jar"), "version 2, longer");
+		assertFalse(first.equals(image().getImageFile()));
+	}
+
+	public void testImageChangesWithConfiguration() throws Exception {
+		File first = image().getImageFile();
+		writeFile(new File(sakaiHome, "sakai.properties"), "serverId=other\n");
+		assertFalse(first.equals(image().getImageFile()));
+	}
+
+	public void testOnlyForHsqldb() throws Exception {
+		writeFile(new File(sakaiHome, "sakai.properties"), "vendor@org.sakaiproject.db.api.SqlService=mysql\n");
+		assertNull(image());
+	}
+
+	public void testApplyTo() throws Exception {
+		SchemaImage image = image();
+		writeFile(image.getImageFile(), "CREATE SCHEMA PUBLIC AUTHORIZATION DBA\n");
+		assertTrue(image.exists());
+
+		File containerHome = new File(workDir, "container");
+		Map<String, String> overrides = new LinkedHashMap<String, String>();
+		image.applyTo(containerHome, overrides);
+		assertTrue(new File(containerHome, "db/sakai.script").isFile());
+		assertEquals("false", overrides.get("auto.ddl"));
+		assertTrue(overrides.get("url@javax.sql.BaseDataSource").startsWith("jdbc:hsqldb:file:"));
+	}
+
+	public void testRestoresDoNotShareDirectories() throws Exception {
+		SchemaImage image = image();
+		writeFile(image.getImageFile(), "CREATE SCHEMA PUBLIC AUTHORIZATION DBA\n");
+		System.setProperty(HarnessFiles.BUILD_DIR_PROPERTY, new File(workDir, "target").getPath());
+		try {
+			// As two JVMs starting from the same image at once would.
+			File first = HarnessFiles.createWorkDirectory("sakai-home-image");
+			File second = HarnessFiles.createWorkDirectory("sakai-home-image");
+			assertFalse(first.equals(second));
+			Map<String, String> firstOverrides = new LinkedHashMap<String, String>();
+			Map<String, String> secondOverrides = new LinkedHashMap<String, String>();
+			image.applyTo(first, firstOverrides);
+			image.applyTo(second, secondOverrides);
+			assertTrue(new File(first, "db/sakai.script").isFile());
+			assertTrue(new File(second, "db/sakai.script").isFile());
+			assertFalse(firstOverrides.get("url@javax.sql.BaseDataSource").equals(secondOverrides.get("url@javax.sql.BaseDataSource")));
+		} finally {
+			System.clearProperty(HarnessFiles.BUILD_DIR_PROPERTY);
+		}
+	}
+
+	private SchemaImage image() throws IOException {
+		return SchemaImage.forComponents(new File(workDir, "components").getPath(), sakaiHome.getPath());
+	}
+
+	private static void writeFile(File file, String contents) throws IOException {
+		FileWriter writer = new FileWriter(file);
+		try {
+			writer.write(contents);
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
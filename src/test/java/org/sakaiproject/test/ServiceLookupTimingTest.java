@@ -0,0 +1,100 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import junit.extensions.TestSetup;
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.user.api.UserDirectoryService;
+
+/**
+ * A rough microbenchmark of service lookups through the emulator, from one
+ * thread and from several.
+ */
+public class ServiceLookupTimingTest extends SakaiTestBase {
+	private static final Log log = LogFactory.getLog(ServiceLookupTimingTest.class);
+	private static final int WARMUP_LOOKUPS = 200000;
+	private static final int TIMED_LOOKUPS = 2000000;
+	private static final int THREADS = 8;
+
+	public static Test suite() {
+		TestSetup setup = new TestSetup(new TestSuite(ServiceLookupTimingTest.class)) {
+			protected void setUp() throws Exception {
+				oneTimeSetup();
+			}
+			protected void tearDown() throws Exception {
+				oneTimeTearDown();
+			}
+		};
+		return setup;
+	}
+
+	public void testLookupByInterface() throws Exception {
+		lookUp(WARMUP_LOOKUPS, true);
+		long nanos = lookUp(TIMED_LOOKUPS, true);
+		log.info("getService(Class): " + (nanos / TIMED_LOOKUPS) + " ns per lookup");
+	}
+
+	public void testLookupById() throws Exception {
+		lookUp(WARMUP_LOOKUPS, false);
+		long nanos = lookUp(TIMED_LOOKUPS, false);
+		log.info("getService(String): " + (nanos / TIMED_LOOKUPS) + " ns per lookup");
+	}
+
+	public void testConcurrentLookup() throws Exception {
+		final long[] nanos = new long[THREADS];
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				public void run() {
+					lookUp(WARMUP_LOOKUPS, true);
+					nanos[index] = lookUp(TIMED_LOOKUPS, true);
+				}
+			};
+			threads[i].start();
+		}
+		long total = 0;
+		for (int i = 0; i < THREADS; i++) {
+			threads[i].join();
+			total += nanos[i];
+		}
+		log.info("getService(Class) with " + THREADS + " threads: " + (total / ((long)THREADS * TIMED_LOOKUPS)) + " ns per lookup");
+	}
+
+	private static long lookUp(int count, boolean byInterface) {
+		String beanId = UserDirectoryService.class.getName();
+		Object last = null;
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			last = byInterface ? getService(UserDirectoryService.class) : getService(beanId);
+		}
+		long elapsed = System.nanoTime() - start;
+		Assert.assertNotNull(last);
+		return elapsed;
+	}
+}
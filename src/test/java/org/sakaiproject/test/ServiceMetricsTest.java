@@ -0,0 +1,101 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the metrics proxy on a stand-in service, without a component manager.
+ */
+public class ServiceMetricsTest extends TestCase {
+
+	public interface Counter {
+		int next();
+	}
+
+	private static class CounterImpl implements Counter {
+		private int count;
+		public synchronized int next() {
+			return ++count;
+		}
+	}
+
+	public interface Pinger {
+		void ping();
+	}
+
+	private static class PingerImpl implements Pinger {
+		public void ping() {
+		}
+	}
+
+	public void testMeasuringOverheadIsSubtracted() throws Exception {
+		if (!ThreadUsage.isAllocatedBytesSupported()) {
+			return;
+		}
+		ServiceMetrics serviceMetrics = new ServiceMetrics();
+		Pinger pinger = (Pinger)serviceMetrics.postProcessAfterInitialization(new PingerImpl(), Pinger.class.getName());
+		for (int i = 0; i < 10000; i++) {
+			pinger.ping();
+		}
+		// Reading the counters reflectively allocates several boxed longs per call.
+		long perCall = serviceMetrics.getMetrics().get(0).getAllocatedBytesPerCall();
+		assertTrue("Empty call allocated " + perCall + " bytes", perCall < 16);
+	}
+
+	public void testOnlyServicesAreWrapped() throws Exception {
+		ServiceMetrics serviceMetrics = new ServiceMetrics();
+		CounterImpl counter = new CounterImpl();
+		assertSame(counter, serviceMetrics.postProcessAfterInitialization(counter, "someCounter"));
+		assertTrue(serviceMetrics.postProcessAfterInitialization(counter, Counter.class.getName()) instanceof Counter);
+		assertNotSame(counter, serviceMetrics.postProcessAfterInitialization(counter, Counter.class.getName()));
+	}
+
+	public void testCountsCallsFromManyThreads() throws Exception {
+		ServiceMetrics serviceMetrics = new ServiceMetrics();
+		final Counter counter = (Counter)serviceMetrics.postProcessAfterInitialization(new CounterImpl(), Counter.class.getName());
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < 1000; j++) {
+						counter.next();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(4001, counter.next());
+
+		List<ServiceMetrics.MethodMetrics> metrics = serviceMetrics.getMetrics();
+		assertEquals(1, metrics.size());
+		assertEquals(Counter.class.getName() + ".next", metrics.get(0).getName());
+		assertEquals(4001, metrics.get(0).getCalls());
+		assertEquals(4001, metrics.get(0).getLatency().getCount());
+	}
+}
@@ -0,0 +1,174 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+import junit.framework.TestCase;
+
+/**
+ * Records calls to a small stand-in service and plays them back.
+ */
+public class ServiceRecorderTest extends TestCase {
+
+	public interface Person {
+		String getName();
+	}
+
+	public interface Directory {
+		Person find(String id) throws FileNotFoundException;
+		int count();
+		String describe(Object value);
+	}
+
+	private static class PersonImpl implements Person {
+		private final String name;
+		PersonImpl(String name) {
+			this.name = name;
+		}
+		public String getName() {
+			return name;
+		}
+	}
+
+	private static class DirectoryImpl implements Directory {
+		private int count;
+		public Person find(String id) throws FileNotFoundException {
+			if (id.equals("missing")) {
+				throw new FileNotFoundException(id);
+			}
+			return new PersonImpl("Person " + id);
+		}
+		public int count() {
+			return ++count;
+		}
+		public String describe(Object value) {
+			return "Described";
+		}
+	}
+
+	public void testRecordAndReplay() throws Exception {
+		ServiceRecorder recorder = new ServiceRecorder();
+		Directory recording = recorder.record(Directory.class, new DirectoryImpl());
+		assertEquals("Person 1", recording.find("1").getName());
+		assertEquals(1, recording.count());
+		assertEquals(2, recording.count());
+		try {
+			recording.find("missing");
+			fail();
+		} catch (FileNotFoundException e) {
+		}
+
+		File file = File.createTempFile("directory", ".rec");
+		try {
+			recorder.save(file);
+			Directory replay = ServiceRecorder.replay(Directory.class, file);
+			assertEquals("Person 1", replay.find("1").getName());
+			assertEquals(1, replay.count());
+			assertEquals(2, replay.count());
+			assertEquals(2, replay.count());
+			try {
+				replay.find("missing");
+				fail();
+			} catch (FileNotFoundException e) {
+				assertEquals("missing", e.getMessage());
+			}
+			try {
+				replay.find("2");
+				fail();
+			} catch (IllegalStateException e) {
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * As when each test class is run in a JVM of its own.
+	 */
+	public void testRecordingsMerged() throws Exception {
+		File file = File.createTempFile("directory", ".rec");
+		try {
+			ServiceRecorder first = new ServiceRecorder();
+			Directory firstRecording = first.record(Directory.class, new DirectoryImpl());
+			assertEquals("Person 1", firstRecording.find("1").getName());
+			assertEquals(1, firstRecording.count());
+			first.save(file);
+
+			ServiceRecorder second = new ServiceRecorder();
+			Directory secondRecording = second.record(Directory.class, new DirectoryImpl() {
+				public int count() {
+					return 42;
+				}
+			});
+			assertEquals("Person 2", secondRecording.find("2").getName());
+			assertEquals(42, secondRecording.count());
+			second.save(file);
+
+			Directory replay = ServiceRecorder.replay(Directory.class, file);
+			assertEquals("Person 1", replay.find("1").getName());
+			assertEquals("Person 2", replay.find("2").getName());
+			// The call recorded again replaced the first JVM's result.
+			assertEquals(42, replay.count());
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testUnserializableArgumentsNotRecorded() throws Exception {
+		ServiceRecorder recorder = new ServiceRecorder();
+		Directory recording = recorder.record(Directory.class, new DirectoryImpl());
+		assertEquals("Described", recording.describe(new Object()));
+		assertEquals(0, recorder.getCallCount());
+		assertEquals("Described", recording.describe("serializable"));
+		assertEquals(1, recorder.getCallCount());
+
+		File file = File.createTempFile("directory", ".rec");
+		try {
+			recorder.save(file);
+			Directory replay = ServiceRecorder.replay(Directory.class, file);
+			assertEquals("Described", replay.describe("serializable"));
+			try {
+				replay.describe(new Object());
+				fail();
+			} catch (IllegalStateException e) {
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testLatency() throws Exception {
+		Directory slow = new LatencyInjector(20, 5).wrap(Directory.class, new DirectoryImpl());
+		long start = System.nanoTime();
+		slow.count();
+		assertTrue(System.nanoTime() - start >= 15000000);
+
+		LatencyInjector injector = new LatencyInjector(1000, 500, 1);
+		for (int i = 0; i < 100; i++) {
+			long delay = injector.nextDelayNanos();
+			assertTrue((delay >= 500000) && (delay <= 1500000));
+		}
+	}
+}
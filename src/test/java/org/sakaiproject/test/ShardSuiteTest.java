@@ -0,0 +1,171 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks shard planning and the duration history with made-up classes.
+ */
+public class ShardSuiteTest extends TestCase {
+
+	public void testGroupsStayTogether() {
+		TestDurations history = new TestDurations();
+		// Two configurations with expensive startups, and some quick classes.
+		for (int i = 0; i < 4; i++) {
+			history.add(new TestDurations.ClassDuration("a.Test" + i, 60000, 5000, "/home/a", "config A"));
+			history.add(new TestDurations.ClassDuration("b.Test" + i, 50000, 5000, "/home/a", "config B"));
+		}
+		for (int i = 0; i < 6; i++) {
+			history.add(new TestDurations.ClassDuration("c.Test" + i, 0, 20000, null, "class c.Test" + i));
+		}
+		List<String> classNames = new ArrayList<String>();
+		for (TestDurations.ClassDuration duration : history.getAll()) {
+			classNames.add(duration.getClassName());
+		}
+		classNames.add("d.UnknownTest");
+
+		List<ShardSuite.Shard> shards = ShardSuite.plan(classNames, history, 3);
+		assertEquals(3, shards.size());
+		int total = 0;
+		long longest = 0;
+		long shortest = Long.MAX_VALUE;
+		for (ShardSuite.Shard shard : shards) {
+			List<String> names = shard.getClassNames();
+			total += names.size();
+			// All of a group or none of it.
+			assertGroup(names, "a.");
+			assertGroup(names, "b.");
+			longest = Math.max(longest, shard.getEstimatedMillis());
+			shortest = Math.min(shortest, shard.getEstimatedMillis());
+		}
+		assertEquals(classNames.size(), total);
+		// 80 + 70 + 120 + unknown, in three: each group is a shard's worth.
+		assertTrue(shards.toString(), longest - shortest < 40000);
+	}
+
+	public void testBigGroupIsSplit() {
+		TestDurations history = new TestDurations();
+		List<String> classNames = new ArrayList<String>();
+		for (int i = 0; i < 10; i++) {
+			history.add(new TestDurations.ClassDuration("big.Test" + i, 10000, 30000, "/home", "config"));
+			classNames.add("big.Test" + i);
+		}
+		List<ShardSuite.Shard> shards = ShardSuite.plan(classNames, history, 2);
+		assertEquals(5, shards.get(0).getClassNames().size());
+		assertEquals(5, shards.get(1).getClassNames().size());
+		assertEquals(1, shards.get(0).getStartups());
+		assertEquals(160000, shards.get(0).getEstimatedMillis());
+	}
+
+	public void testShardsCoverEveryClassOnce() {
+		TestDurations history = new TestDurations();
+		List<String> classNames = new ArrayList<String>();
+		for (int i = 0; i < 7; i++) {
+			history.add(new TestDurations.ClassDuration("a.Test" + i, 30000, 4000 * (i + 1), "/home/a", "config A"));
+			history.add(new TestDurations.ClassDuration("b.Test" + i, 0, 1000 * (i + 1), null, "class b.Test" + i));
+			classNames.add("a.Test" + i);
+			classNames.add("b.Test" + i);
+			classNames.add("c.UnknownTest" + i);
+		}
+		List<String> expected = new ArrayList<String>(classNames);
+		Collections.sort(expected);
+		for (int shardCount = 1; shardCount <= 5; shardCount++) {
+			List<String> union = new ArrayList<String>();
+			for (ShardSuite.Shard shard : ShardSuite.plan(classNames, history, shardCount)) {
+				union.addAll(shard.getClassNames());
+			}
+			Collections.sort(union);
+			assertEquals("With " + shardCount + " shards", expected, union);
+		}
+	}
+
+	public void testShardsSaveBesideHistory() throws Exception {
+		File dir = File.createTempFile("shards", "");
+		dir.delete();
+		dir.mkdir();
+		File history = new File(dir, "test-durations.txt");
+		String previous = System.getProperty(ShardSuite.SHARD_PROPERTY);
+		try {
+			System.clearProperty(ShardSuite.SHARD_PROPERTY);
+			assertEquals(history, ShardSuite.getOutputFile(history));
+			System.setProperty(ShardSuite.SHARD_PROPERTY, "2/4");
+			File output = ShardSuite.getOutputFile(history);
+			assertEquals(new File(dir, "test-durations.shard-2-of-4.txt"), output);
+
+			TestDurations.mergeInto(output, Arrays.asList(new TestDurations.ClassDuration("x.FirstTest", 0, 1000, null, null)));
+			assertFalse(history.exists());
+			assertEquals(Arrays.asList(output), ShardSuite.findShardOutputs(history));
+		} finally {
+			if (previous == null) {
+				System.clearProperty(ShardSuite.SHARD_PROPERTY);
+			} else {
+				System.setProperty(ShardSuite.SHARD_PROPERTY, previous);
+			}
+			LeakAuditTest.delete(dir);
+		}
+	}
+
+	public void testHistoryMerge() throws Exception {
+		File file = File.createTempFile("durations", ".txt");
+		try {
+			TestDurations.mergeInto(file, Arrays.asList(new TestDurations.ClassDuration("x.FirstTest", 40000, 1000, "/home", "config")));
+			TestDurations.mergeInto(file, Arrays.asList(
+				new TestDurations.ClassDuration("x.FirstTest", 0, 3000, "/home", "config"),
+				new TestDurations.ClassDuration("x.SecondTest", 20000, 500, null, null)));
+			TestDurations history = TestDurations.load(file);
+			TestDurations.ClassDuration first = history.get("x.FirstTest");
+			// No startup in the second run, so the first run's is kept.
+			assertEquals(40000, first.getStartupMillis());
+			assertEquals(2000, first.getTestMillis());
+			assertEquals(2, first.getRuns());
+			assertEquals("config", first.getConfiguration());
+			assertNull(history.get("x.SecondTest").getSakaiHome());
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testFindsTestClasses() {
+		File dir = new File(ShardSuiteTest.class.getProtectionDomain().getCodeSource().getLocation().getPath());
+		List<String> classNames = ShardSuite.findTestClasses(dir);
+		assertTrue(classNames.contains(ShardSuiteTest.class.getName()));
+		assertFalse(classNames.contains(SomeBean.class.getName()));
+	}
+
+	private static void assertGroup(List<String> names, String prefix) {
+		int count = 0;
+		for (String name : names) {
+			if (name.startsWith(prefix)) {
+				count++;
+			}
+		}
+		assertTrue(names.toString(), (count == 0) || (count == 4));
+	}
+}
@@ -0,0 +1,35 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import junit.framework.Test;
+
+/**
+ * Runs one shard of this project's test classes (see {@link ShardSuite}):
+ * mvn -DskipLongTests=false -Pshard -Dtest.harness.shard=2/4 test
+ */
+public class ShardedTests {
+	public static Test suite() {
+		return ShardSuite.suite();
+	}
+}
@@ -0,0 +1,53 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sakaiproject.user.api.User;
+import org.sakaiproject.user.api.UserDirectoryService;
+
+/**
+ * A JUnit 4 version of SampleSakaiTest, which shares its component manager
+ * with any other test class in the JVM run by SakaiJUnit4Runner.
+ */
+@RunWith(SakaiJUnit4Runner.class)
+public class SharedContainerSampleTest {
+	private static final String GUEST_EID = "joeuser4";
+
+	@SakaiService
+	private UserDirectoryService userDirectoryService;
+
+	@Test
+	public void userStorage() throws Exception {
+		assertNotNull(userDirectoryService);
+		userDirectoryService.addUser(null, GUEST_EID, "J. " + GUEST_EID, "de " + GUEST_EID,
+			GUEST_EID + "@somewhere.edu", GUEST_EID + "pwd", "Guest", null);
+		User user = userDirectoryService.getUserByEid(GUEST_EID);
+		assertEquals("Guest", user.getType());
+		assertEquals(1, SharedContainer.getUsers());
+	}
+}
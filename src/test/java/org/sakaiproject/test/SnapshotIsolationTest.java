@@ -0,0 +1,69 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import junit.extensions.TestSetup;
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import org.sakaiproject.user.api.UserDirectoryService;
+
+/**
+ * Both tests create the same user, which only works if the first one's user
+ * is gone by the time the second runs.
+ */
+public class SnapshotIsolationTest extends SakaiTestBase {
+	private static final String EID = "snapshotuser";
+
+	static {
+		System.setProperty(ComponentContainerEmulator.ISOLATION_PROPERTY, ComponentContainerEmulator.SNAPSHOT_ISOLATION_MODE);
+	}
+
+	public static Test suite() {
+		TestSetup setup = new TestSetup(new TestSuite(SnapshotIsolationTest.class)) {
+			protected void setUp() throws Exception {
+				oneTimeSetup();
+			}
+			protected void tearDown() throws Exception {
+				oneTimeTearDown();
+			}
+		};
+		return setup;
+	}
+
+	public void testCreateUser() throws Exception {
+		createUser();
+	}
+
+	public void testCreateSameUserAgain() throws Exception {
+		createUser();
+	}
+
+	private void createUser() throws Exception {
+		Assert.assertTrue(ComponentContainerEmulator.getCurrentContainer().hasSnapshot());
+		UserDirectoryService userDirectoryService = getService(UserDirectoryService.class);
+		userDirectoryService.addUser(null, EID, "Snap", "Shot", EID + "@somewhere.edu", EID + "pwd", "Guest", null);
+		Assert.assertNotNull(userDirectoryService.getUserByEid(EID));
+	}
+}
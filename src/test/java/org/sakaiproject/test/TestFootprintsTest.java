@@ -0,0 +1,113 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2008 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+
+package org.sakaiproject.test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks footprint recording and test selection, with JUnit's own classes
+ * standing in for services.
+ */
+public class TestFootprintsTest extends TestCase {
+
+	protected void setUp() {
+		// Don't leave footprints of this test behind.
+		System.setProperty(TestFootprints.FILE_PROPERTY, "false");
+		System.setProperty(TestDurations.FILE_PROPERTY, "false");
+		TestFootprints.setRecording(Boolean.TRUE);
+	}
+
+	protected void tearDown() {
+		System.clearProperty(TestFootprints.FILE_PROPERTY);
+		System.clearProperty(TestDurations.FILE_PROPERTY);
+		TestFootprints.setRecording(null);
+	}
+
+	public void testRecording() {
+		TestFootprints.serviceUsed("before.any.Test", null);
+		TestDurations.testStarted(TestFootprintsTest.class, null, "none");
+		try {
+			TestFootprints.serviceUsed(junit.framework.Test.class, new TestCase("x") {});
+		} finally {
+			TestDurations.testFinished(TestFootprintsTest.class);
+		}
+		Set<String> footprint = TestFootprints.getRecorded().get(TestFootprintsTest.class.getName());
+		assertTrue(footprint.contains("interface junit.framework.Test"));
+		assertTrue(footprint.contains("bean before.any.Test"));
+		String junitJar = TestFootprints.getSources(TestCase.class).get(0);
+		assertTrue(junitJar, junitJar.startsWith("jar junit-"));
+		assertTrue(footprint.contains(junitJar));
+	}
+
+	public void testNothingRecordedWhenSwitchedOff() {
+		TestFootprints.setRecording(null);
+		assertFalse(TestFootprints.isRecording());
+		TestDurations.testStarted(Collections.class, null, "none");
+		try {
+			TestFootprints.serviceUsed("switched.off.Test", null);
+		} finally {
+			TestDurations.testFinished(Collections.class);
+		}
+		assertNull(TestFootprints.getRecorded().get(Collections.class.getName()));
+	}
+
+	public void testSelection() throws Exception {
+		File file = File.createTempFile("footprints", ".txt");
+		try {
+			Map<String, Set<String>> footprints = new TreeMap<String, Set<String>>();
+			footprints.put("a.SiteTest", set("bean org.sakaiproject.site.api.SiteService", "jar sakai-site-impl-2.7.0.jar",
+				"component sakai-site-pack"));
+			footprints.put("a.UserTest", set("bean org.sakaiproject.user.api.UserDirectoryService", "jar sakai-kernel-impl-1.1.jar"));
+			footprints.put("a.PlainTest", set());
+			TestFootprints.mergeInto(file, footprints);
+			// A later run replaces a class's footprint.
+			TestFootprints.mergeInto(file, Collections.singletonMap("a.UserTest", set("jar sakai-user-impl-2.7.0.jar")));
+
+			TestFootprints known = TestFootprints.load(file);
+			assertEquals(set(), known.getFootprint("a.PlainTest"));
+			List<String> classNames = Arrays.asList("a.NewTest", "a.PlainTest", "a.SiteTest", "a.UserTest");
+			assertEquals(Arrays.asList("a.NewTest", "a.SiteTest"), known.select(classNames, Arrays.asList("site-impl")));
+			assertEquals(Arrays.asList("a.NewTest", "a.SiteTest"), known.select(classNames, Arrays.asList("sakai-site-pack")));
+			assertEquals(Arrays.asList("a.NewTest", "a.UserTest"), known.select(classNames, Arrays.asList("sakai-user-impl-2.7.0.jar")));
+			assertEquals(Arrays.asList("a.NewTest"), known.select(classNames, Arrays.asList("sakai-kernel-impl")));
+			assertEquals(Arrays.asList("a.NewTest", "a.SiteTest"), known.select(classNames, Arrays.asList("org.sakaiproject.site.api.SiteService")));
+			// Not a whole part of the name.
+			assertEquals(Arrays.asList("a.NewTest"), known.select(classNames, Arrays.asList("ite-impl")));
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static Set<String> set(String... entries) {
+		return new TreeSet<String>(Arrays.asList(entries));
+	}
+}